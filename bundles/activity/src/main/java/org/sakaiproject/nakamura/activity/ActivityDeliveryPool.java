@@ -0,0 +1,338 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.activity;
+
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Delivers activities on a fixed set of worker threads. Activities are partitioned over
+ * the workers by a key (the actor), so the activities of one actor are delivered in the
+ * order they were published. Each worker has its own bounded queue and a long lived
+ * administrative session, and delivers whatever has queued up as one batch on that
+ * session. An activity that fails with a storage error is retried a few times, backing off
+ * between attempts, before it is counted as failed.
+ */
+class ActivityDeliveryPool implements ActivityDeliveryStatisticsMBean {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ActivityDeliveryPool.class);
+
+  /**
+   * How long an idle worker waits for an activity before checking whether it should stop.
+   */
+  private static final long IDLE_POLL = 500L;
+
+  /**
+   * The longest a worker keeps its administrative session before logging in again.
+   */
+  private static final long SESSION_MAX_AGE = 300000L;
+
+  /**
+   * The wait before the first retry of a failed activity, doubled for each further retry.
+   */
+  static final long RETRY_DELAY = 100L;
+
+  /**
+   * Delivers a single activity.
+   */
+  interface Delivery {
+    void deliver(Session session, String activityItemPath) throws StorageClientException,
+        AccessDeniedException;
+  }
+
+  private final Repository repository;
+  private final Delivery delivery;
+  private final int batchSize;
+  private final int retries;
+  private final List<BlockingQueue<QueuedActivity>> queues = new ArrayList<BlockingQueue<QueuedActivity>>();
+  private final List<Thread> threads = new ArrayList<Thread>();
+  private volatile boolean running;
+
+  private final AtomicLong delivered = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private final AtomicLong retried = new AtomicLong();
+  private final AtomicLong batches = new AtomicLong();
+  private final AtomicLong totalLag = new AtomicLong();
+  private final AtomicLong maxLag = new AtomicLong();
+  private volatile long lastLag;
+
+  /**
+   * @param repository
+   *          the repository the workers log in to.
+   * @param delivery
+   *          delivers each activity.
+   * @param workers
+   *          the number of worker threads.
+   * @param queueSize
+   *          the maximum number of activities waiting for each worker.
+   * @param batchSize
+   *          the maximum number of activities a worker delivers in one batch.
+   * @param retries
+   *          the number of times an activity that failed with a storage error is retried.
+   */
+  ActivityDeliveryPool(Repository repository, Delivery delivery, int workers,
+      int queueSize, int batchSize, int retries) {
+    this.repository = repository;
+    this.delivery = delivery;
+    this.batchSize = Math.max(1, batchSize);
+    this.retries = Math.max(0, retries);
+    for (int i = 0; i < Math.max(1, workers); i++) {
+      queues.add(new ArrayBlockingQueue<QueuedActivity>(Math.max(1, queueSize)));
+    }
+  }
+
+  synchronized void start() {
+    running = true;
+    for (int i = 0; i < queues.size(); i++) {
+      Thread t = new Thread(new Worker(queues.get(i)), "LiteActivityListener-worker-" + i);
+      t.setDaemon(true);
+      t.start();
+      threads.add(t);
+    }
+  }
+
+  /**
+   * Stops accepting activities, delivers what is already queued and logs the workers out.
+   */
+  synchronized void stop() {
+    running = false;
+    for (Thread t : threads) {
+      try {
+        t.join(IDLE_POLL + 5000L);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+      if (t.isAlive()) {
+        LOGGER.warn("Worker {} did not stop, {} activities may not be delivered",
+            t.getName(), getBacklog());
+        t.interrupt();
+      }
+    }
+    threads.clear();
+  }
+
+  /**
+   * Queue an activity for delivery, waiting for space if the worker for its partition is
+   * full so that a burst of activity holds back the JMS consumer rather than memory.
+   *
+   * @param key
+   *          the partition key, activities with the same key are delivered in order.
+   * @param activityItemPath
+   *          the path of the activity.
+   * @param published
+   *          when the activity was published, in ms, 0 if not known.
+   * @throws InterruptedException
+   */
+  void submit(String key, String activityItemPath, long published)
+      throws InterruptedException {
+    if (!running) {
+      throw new IllegalStateException("Activity delivery has been stopped");
+    }
+    int partition = (key.hashCode() & Integer.MAX_VALUE) % queues.size();
+    queues.get(partition).put(new QueuedActivity(activityItemPath, published));
+  }
+
+  public int getBacklog() {
+    int backlog = 0;
+    for (BlockingQueue<QueuedActivity> queue : queues) {
+      backlog += queue.size();
+    }
+    return backlog;
+  }
+
+  public long getDelivered() {
+    return delivered.get();
+  }
+
+  public long getFailed() {
+    return failed.get();
+  }
+
+  public long getRetried() {
+    return retried.get();
+  }
+
+  public long getBatches() {
+    return batches.get();
+  }
+
+  public double getAverageLag() {
+    long n = delivered.get();
+    return n == 0 ? 0.0 : (double) totalLag.get() / n;
+  }
+
+  public long getMaxLag() {
+    return maxLag.get();
+  }
+
+  public long getLastLag() {
+    return lastLag;
+  }
+
+  private void recordLag(long lag) {
+    lastLag = lag;
+    totalLag.addAndGet(lag);
+    long max = maxLag.get();
+    while (lag > max && !maxLag.compareAndSet(max, lag)) {
+      max = maxLag.get();
+    }
+  }
+
+  private static final class QueuedActivity {
+    private final String path;
+    private final long published;
+
+    QueuedActivity(String path, long published) {
+      this.path = path;
+      this.published = published > 0 ? published : System.currentTimeMillis();
+    }
+  }
+
+  /**
+   * A worker thread. The session is only ever used by this thread.
+   */
+  private final class Worker implements Runnable {
+
+    private final BlockingQueue<QueuedActivity> queue;
+    private Session session;
+    private long loggedIn;
+
+    Worker(BlockingQueue<QueuedActivity> queue) {
+      this.queue = queue;
+    }
+
+    public void run() {
+      List<QueuedActivity> batch = new ArrayList<QueuedActivity>(batchSize);
+      try {
+        while (running || !queue.isEmpty()) {
+          QueuedActivity first = queue.poll(IDLE_POLL, TimeUnit.MILLISECONDS);
+          if (first == null) {
+            continue;
+          }
+          batch.add(first);
+          queue.drainTo(batch, batchSize - 1);
+          deliver(batch);
+          batch.clear();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        if (!batch.isEmpty()) {
+          deliver(batch);
+        }
+      } finally {
+        logout();
+      }
+    }
+
+    private void deliver(List<QueuedActivity> batch) {
+      if (session != null && System.currentTimeMillis() - loggedIn > SESSION_MAX_AGE) {
+        logout();
+      }
+      for (QueuedActivity activity : batch) {
+        deliver(activity);
+      }
+      batches.incrementAndGet();
+    }
+
+    /**
+     * Deliver one activity, retrying storage errors (including failing to log in) with a
+     * fresh session. Any other error will not go away on a retry.
+     */
+    private void deliver(QueuedActivity activity) {
+      for (int attempt = 0;; attempt++) {
+        try {
+          if (session == null && !login()) {
+            throw new StorageClientException("Unable to log in to deliver activities.");
+          }
+          delivery.deliver(session, activity.path);
+          delivered.incrementAndGet();
+          recordLag(System.currentTimeMillis() - activity.published);
+          return;
+        } catch (StorageClientException e) {
+          // the session may be broken, use a new one for the retry and the rest of the batch.
+          logout();
+          if (!backoff(attempt)) {
+            failed.incrementAndGet();
+            LOGGER.error("Failed to deliver activity " + activity.path + " after "
+                + (attempt + 1) + " attempts", e);
+            return;
+          }
+          LOGGER.warn("Failed to deliver activity {}, retrying: {}", activity.path,
+              e.getMessage());
+        } catch (Exception e) {
+          failed.incrementAndGet();
+          LOGGER.error("Failed to deliver activity " + activity.path, e);
+          return;
+        }
+      }
+    }
+
+    /**
+     * Wait before the next attempt.
+     *
+     * @return false if there are no retries left or the worker was interrupted.
+     */
+    private boolean backoff(int attempt) {
+      if (attempt >= retries || Thread.currentThread().isInterrupted()) {
+        return false;
+      }
+      try {
+        Thread.sleep(RETRY_DELAY << Math.min(attempt, 10));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+      retried.incrementAndGet();
+      return true;
+    }
+
+    private boolean login() {
+      try {
+        session = repository.loginAdministrative();
+        loggedIn = System.currentTimeMillis();
+        return true;
+      } catch (Exception e) {
+        LOGGER.warn("Unable to log in to deliver activities: {} ", e.getMessage());
+        return false;
+      }
+    }
+
+    private void logout() {
+      if (session != null) {
+        try {
+          session.logout();
+        } catch (Exception e) {
+          LOGGER.warn("Failed to logout of administrative session {} ", e.getMessage());
+        }
+        session = null;
+      }
+    }
+  }
+}
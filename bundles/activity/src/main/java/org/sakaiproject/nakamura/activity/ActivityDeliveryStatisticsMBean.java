@@ -0,0 +1,67 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.activity;
+
+/**
+ * Backlog, throughput and delivery lag of the activity delivery workers, published over
+ * JMX.
+ */
+public interface ActivityDeliveryStatisticsMBean {
+
+  /**
+   * @return the number of activities waiting to be delivered, over all workers.
+   */
+  int getBacklog();
+
+  /**
+   * @return the number of activities delivered to their feeds.
+   */
+  long getDelivered();
+
+  /**
+   * @return the number of activities that could not be delivered.
+   */
+  long getFailed();
+
+  /**
+   * @return the number of times an activity was retried after a storage error.
+   */
+  long getRetried();
+
+  /**
+   * @return the number of batches delivered.
+   */
+  long getBatches();
+
+  /**
+   * @return the mean time in ms from an activity being published to it being delivered.
+   */
+  double getAverageLag();
+
+  /**
+   * @return the longest time in ms from an activity being published to it being delivered.
+   */
+  long getMaxLag();
+
+  /**
+   * @return the time in ms from the last delivered activity being published to it being
+   *         delivered.
+   */
+  long getLastLag();
+
+}
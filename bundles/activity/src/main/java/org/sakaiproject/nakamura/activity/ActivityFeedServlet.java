@@ -0,0 +1,110 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.activity;
+
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.sling.SlingServlet;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
+import org.apache.sling.commons.json.JSONException;
+import org.sakaiproject.nakamura.api.doc.BindingType;
+import org.sakaiproject.nakamura.api.doc.ServiceBinding;
+import org.sakaiproject.nakamura.api.doc.ServiceDocumentation;
+import org.sakaiproject.nakamura.api.doc.ServiceMethod;
+import org.sakaiproject.nakamura.api.doc.ServiceResponse;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.user.UserConstants;
+import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.List;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+
+@ServiceDocumentation(name = "ActivityFeedServlet", shortDescription = "The activity feed of the current user.", description = "The activity feed of the current user in JSON format, including the activities of contacts that are merged into the feed when read.", bindings = @ServiceBinding(type = BindingType.PATH, bindings = "/system/activity/feed"), methods = @ServiceMethod(name = "GET", description = "Returns the newest activities in the feed of the current user.", response = {
+    @ServiceResponse(code = 200, description = "Request for information was successful. <br />"),
+    @ServiceResponse(code = 401, description = "Anonymous users have no activity feed."),
+    @ServiceResponse(code = 500, description = "Unable to read the activity feed.") }))
+@SlingServlet(paths = { "/system/activity/feed" }, generateComponent = true, generateService = true, methods = { "GET" })
+public class ActivityFeedServlet extends SlingSafeMethodsServlet {
+
+  private static final long serialVersionUID = 4514318946328741934L;
+  private static final Logger LOG = LoggerFactory.getLogger(ActivityFeedServlet.class);
+
+  @Reference
+  protected transient MergedFeedService mergedFeedService;
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.apache.sling.api.servlets.SlingSafeMethodsServlet#doGet(org.apache.sling.api.SlingHttpServletRequest,
+   *      org.apache.sling.api.SlingHttpServletResponse)
+   */
+  @Override
+  protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response)
+      throws ServletException, IOException {
+    String user = request.getRemoteUser();
+    if (user == null || UserConstants.ANON_USERID.equals(user)) {
+      response.sendError(HttpServletResponse.SC_UNAUTHORIZED,
+          "Anonymous users have no activity feed.");
+      return;
+    }
+    try {
+      List<Content> feed = mergedFeedService.getFeed(user);
+      // the feed is personal, it must never be stored by a shared cache.
+      response.setHeader("Cache-Control", "private, no-store");
+      response.setContentType("application/json");
+      response.setCharacterEncoding("UTF-8");
+      ExtendedJSONWriter writer = new ExtendedJSONWriter(response.getWriter());
+      writer.object();
+      writer.key("items");
+      writer.value(feed.size());
+
+      writer.key("results");
+      writer.array();
+      for (Content item : feed) {
+        writer.object();
+        ExtendedJSONWriter.writeNodeContentsToWriter(writer, item);
+        writer.endObject();
+      }
+      writer.endArray();
+      writer.key("total");
+      writer.value(feed.size());
+
+      writer.endObject();
+    } catch (StorageClientException e) {
+      LOG.error("Failed to read the activity feed of " + user, e);
+      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+          "Failed to read the activity feed.");
+    } catch (AccessDeniedException e) {
+      LOG.error("Failed to read the activity feed of " + user, e);
+      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+          "Failed to read the activity feed.");
+    } catch (JSONException e) {
+      LOG.error("Failed to create proper JSON response in /system/activity/feed", e);
+      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+          "Failed to create proper JSON response.");
+    }
+  }
+}
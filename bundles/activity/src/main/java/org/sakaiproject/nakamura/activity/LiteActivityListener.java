@@ -23,7 +23,9 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableMap.Builder;
 
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
+import org.apache.sling.commons.osgi.OsgiUtil;
 import org.apache.sling.jcr.resource.JcrResourceConstants;
 import org.osgi.service.component.ComponentContext;
 import org.sakaiproject.nakamura.api.activemq.ConnectionFactoryService;
@@ -37,9 +39,12 @@ import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.user.UserConstants;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.lang.management.ManagementFactory;
+import java.util.Dictionary;
 import java.util.List;
 import java.util.Map.Entry;
 
@@ -50,10 +55,28 @@ import javax.jms.Message;
 import javax.jms.MessageConsumer;
 import javax.jms.MessageListener;
 import javax.jms.Topic;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 
-@Component(immediate = true)
+@Component(immediate = true, metatype = true)
 public class LiteActivityListener implements MessageListener {
 
+  @Property(intValue = 4, description = "The number of threads delivering activities to feeds. Activities are partitioned over the threads by actor, so the activities of one actor are delivered in order. 0 to deliver on the JMS consumer thread.")
+  static final String DELIVERY_WORKERS = "activity.delivery.workers";
+
+  @Property(intValue = 1000, description = "The maximum number of activities waiting for each delivery thread, when full the JMS consumer waits.")
+  static final String DELIVERY_QUEUE = "activity.delivery.queue";
+
+  @Property(intValue = 50, description = "The maximum number of activities a delivery thread delivers in one batch.")
+  static final String DELIVERY_BATCH = "activity.delivery.batch";
+
+  @Property(intValue = 3, description = "The number of times an activity that failed with a storage error is retried before it is dropped.")
+  static final String DELIVERY_RETRIES = "activity.delivery.retries";
+
+  private static final String STATISTICS_NAME = "org.sakaiproject.nakamura.activity:type=ActivityDeliveryStatistics";
+
   // References/properties need for JMS
   @Reference
   protected ConnectionFactoryService connFactoryService;
@@ -63,16 +86,35 @@ public class LiteActivityListener implements MessageListener {
   protected Repository sparseRepository;
   @Reference
   protected ActivityRouterManager activityRouterManager;
+  @Reference
+  protected MergedFeedService mergedFeedService;
 
   public static final Logger LOG = LoggerFactory
       .getLogger(LiteActivityListener.class);
 
   private Connection connection = null;
 
+  private ActivityDeliveryPool deliveryPool;
+
   /**
-   * Start a JMS connection.
+   * Start the delivery workers and a JMS connection.
    */
   public void activate(ComponentContext componentContext) {
+    Dictionary<?, ?> properties = componentContext.getProperties();
+    int workers = OsgiUtil.toInteger(properties.get(DELIVERY_WORKERS), 4);
+    if (workers > 0) {
+      deliveryPool = new ActivityDeliveryPool(sparseRepository,
+          new ActivityDeliveryPool.Delivery() {
+            public void deliver(Session session, String activityItemPath)
+                throws StorageClientException, AccessDeniedException {
+              deliverActivity(session, activityItemPath);
+            }
+          }, workers, OsgiUtil.toInteger(properties.get(DELIVERY_QUEUE), 1000),
+          OsgiUtil.toInteger(properties.get(DELIVERY_BATCH), 50),
+          OsgiUtil.toInteger(properties.get(DELIVERY_RETRIES), 3));
+      deliveryPool.start();
+      registerStatistics(deliveryPool);
+    }
     try {
       connection = connFactoryService.getDefaultConnectionFactory().createConnection();
       javax.jms.Session session = connection.createSession(false,
@@ -93,9 +135,22 @@ public class LiteActivityListener implements MessageListener {
   }
 
   /**
-   * Close the JMS connection
+   * Stop consuming, deliver what has been queued and close the JMS connection.
    */
   protected void deactivate(ComponentContext ctx) {
+    if (connection != null) {
+      try {
+        connection.stop();
+      } catch (JMSException e) {
+        LOG.error("Cannot stop the activity JMS connection.", e);
+      }
+    }
+    if (deliveryPool != null) {
+      unregisterStatistics();
+      ActivityDeliveryPool pool = deliveryPool;
+      deliveryPool = null;
+      pool.stop();
+    }
     if (connection != null) {
       try {
         connection.close();
@@ -105,6 +160,39 @@ public class LiteActivityListener implements MessageListener {
     }
   }
 
+  private void registerStatistics(ActivityDeliveryPool pool) {
+    try {
+      ObjectName objectName = new ObjectName(STATISTICS_NAME);
+      MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+      if (!mBeanServer.isRegistered(objectName)) {
+        mBeanServer.registerMBean(new StandardMBean(pool,
+            ActivityDeliveryStatisticsMBean.class), objectName);
+      }
+    } catch (JMException e) {
+      LOG.debug("Unable to publish activity delivery statistics: {} ", e.getMessage());
+    }
+  }
+
+  private void unregisterStatistics() {
+    try {
+      ObjectName objectName = new ObjectName(STATISTICS_NAME);
+      MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+      if (mBeanServer.isRegistered(objectName)) {
+        mBeanServer.unregisterMBean(objectName);
+      }
+    } catch (JMException e) {
+      LOG.debug(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * @return the statistics of the delivery workers, null if activities are delivered on
+   *         the JMS consumer thread.
+   */
+  ActivityDeliveryStatisticsMBean getStatistics() {
+    return deliveryPool;
+  }
+
   /**
    * {@inheritDoc}
    *
@@ -115,24 +203,23 @@ public class LiteActivityListener implements MessageListener {
       final String activityItemPath = message
           .getStringProperty(ActivityConstants.EVENT_PROP_PATH);
       LOG.info("Processing activity: {}", activityItemPath);
+      ActivityDeliveryPool pool = deliveryPool;
+      if (pool != null) {
+        String actor = message.getStringProperty(UserConstants.EVENT_PROP_USERID);
+        try {
+          pool.submit(actor == null ? activityItemPath : actor, activityItemPath,
+              message.getJMSTimestamp());
+          return;
+        } catch (IllegalStateException e) {
+          // the workers stopped while this message was arriving. It has already been
+          // acknowledged and would be lost, so deliver it here instead.
+          LOG.info("Activity delivery has stopped, delivering {} on the consumer thread",
+              activityItemPath);
+        }
+      }
       Session session = sparseRepository.loginAdministrative(); 
-      ContentManager contentManager = session.getContentManager();
       try {
-        Content activity = contentManager.get(activityItemPath);
-        if (!activity.hasProperty(PARAM_ACTOR_ID)) {
-          // we must know the actor
-          throw new IllegalStateException(
-              "Could not determine actor of activity: " + activity);
-        }
-  
-        // Get all the routes for this activity.
-        List<ActivityRoute> routes = activityRouterManager
-            .getActivityRoutes(activity, session);
-  
-        // Copy the activity items to each endpoint.
-        for (ActivityRoute route : routes) {
-          deliverActivityToFeed(session, activity, route.getDestination());
-        }
+        deliverActivity(session, activityItemPath);
       } finally {
         try { 
           session.logout(); 
@@ -147,6 +234,39 @@ public class LiteActivityListener implements MessageListener {
       LOG.error("Got a repository exception in the activity listener.", e);
     } catch (StorageClientException e) {
       LOG.error("Got a repository exception in the activity listener.", e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      LOG.warn("Interrupted while queueing an activity for delivery.");
+    }
+  }
+
+  /**
+   * Delivers an activity to the feeds of all its routes.
+   *
+   * @param session
+   *          The administrative session that should be used to do the delivering.
+   * @param activityItemPath
+   *          The path of the original activity.
+   * @throws StorageClientException
+   * @throws AccessDeniedException
+   */
+  protected void deliverActivity(Session session, String activityItemPath)
+      throws StorageClientException, AccessDeniedException {
+    ContentManager contentManager = session.getContentManager();
+    Content activity = contentManager.get(activityItemPath);
+    if (activity == null || !activity.hasProperty(PARAM_ACTOR_ID)) {
+      // we must know the actor
+      throw new IllegalStateException(
+          "Could not determine actor of activity: " + activityItemPath);
+    }
+
+    // Get all the routes for this activity.
+    List<ActivityRoute> routes = activityRouterManager
+        .getActivityRoutes(activity, session);
+
+    // Copy the activity items to each endpoint.
+    for (ActivityRoute route : routes) {
+      deliverActivityToFeed(session, activity, route.getDestination());
     }
   }
 
@@ -171,14 +291,19 @@ public class LiteActivityListener implements MessageListener {
         .newPath(activityFeedPath, StorageClientUtils.getObjectName(activity.getPath()));
     Builder<String, Object> contentProperties = ImmutableMap.builder();
     for ( Entry<String, Object> e : activity.getProperties().entrySet()) {
-      if (!JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY.equals(e.getKey())) {
+      if (!JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY.equals(e.getKey())
+          && !ActivityConstants.PARAM_ITEM_PATH.equals(e.getKey())) {
         contentProperties.put(e.getKey(), e.getValue());
       }
     }
+    contentProperties.put(ActivityConstants.PARAM_ITEM_PATH, activity.getPath());
     contentProperties.put(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY,
         ActivityConstants.ACTIVITY_FEED_RESOURCE_TYPE);
     Content content = new Content(deliveryPath, contentProperties.build());
     contentManager.update(content);
+    if (activityFeedPath.endsWith("/" + ActivityConstants.ACTIVITY_STREAM_NAME)) {
+      mergedFeedService.pruneStream(contentManager, activityFeedPath);
+    }
   }
 
 }
@@ -0,0 +1,340 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.activity;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.sakaiproject.nakamura.api.activity.ActivityConstants;
+import org.sakaiproject.nakamura.api.activity.ActivityUtils;
+import org.sakaiproject.nakamura.api.connections.ConnectionManager;
+import org.sakaiproject.nakamura.api.connections.ConnectionState;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessControlManager;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Permissions;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Reads the activity feed of a user. Activities of most actors are copied to the feeds of
+ * their contacts when they happen, but those of actors with very many contacts are stored
+ * once in the stream of the actor (see {@link ActivityUtils#getUserStream(String)}). The
+ * feed of a user is the newest activities of their own feed merged with the streams of
+ * their contacts, keeping only the streamed activities the user can read. Only the
+ * contacts in the stream index are looked at, and only the newest activities of each feed
+ * or stream, as many as fit in a feed, take part in the merge. Streams are pruned to the
+ * stream size as activities are delivered to them, so reading one is bounded. Merged
+ * feeds are cached for a short time.
+ */
+@Component(immediate = true, metatype = true)
+@Service(value = MergedFeedService.class)
+public class MergedFeedService {
+
+  @Property(intValue = 100, description = "The maximum number of activities in a feed.")
+  static final String FEED_SIZE = "activity.feed.size";
+
+  @Property(intValue = 200, description = "The number of activities kept in the stream of an actor, older activities are removed as new ones are delivered.")
+  static final String STREAM_SIZE = "activity.stream.size";
+
+  @Property(intValue = 1000, description = "The maximum number of merged feeds to cache.")
+  static final String CACHE_SIZE = "activity.feed.cache.size";
+
+  @Property(longValue = 60000, description = "The time in ms a merged feed is cached for.")
+  static final String CACHE_TTL = "activity.feed.cache.ttl";
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(MergedFeedService.class);
+
+  /**
+   * Newest first, by path for activities created at the same time.
+   */
+  static final Comparator<Content> NEWEST_FIRST = new Comparator<Content>() {
+    public int compare(Content o1, Content o2) {
+      long c1 = getCreated(o1);
+      long c2 = getCreated(o2);
+      if (c1 != c2) {
+        return c1 > c2 ? -1 : 1;
+      }
+      return o1.getPath().compareTo(o2.getPath());
+    }
+  };
+
+  @Reference
+  protected Repository sparseRepository;
+
+  @Reference
+  protected ConnectionManager connectionManager;
+
+  private int feedSize = 100;
+
+  private int streamSize = 200;
+
+  private long cacheTtl = 60000;
+
+  private Map<String, CachedFeed> cache = newCache(1000);
+
+  @Activate
+  protected void activate(Map<String, Object> properties) {
+    feedSize = Math.max(1, OsgiUtil.toInteger(properties.get(FEED_SIZE), 100));
+    streamSize = Math.max(feedSize, OsgiUtil.toInteger(properties.get(STREAM_SIZE), 200));
+    cacheTtl = OsgiUtil.toLong(properties.get(CACHE_TTL), 60000);
+    cache = newCache(OsgiUtil.toInteger(properties.get(CACHE_SIZE), 1000));
+  }
+
+  /**
+   * @param user
+   *          the user whose feed to get.
+   * @return the newest activities in the feed of the user, newest first.
+   * @throws StorageClientException
+   * @throws AccessDeniedException
+   */
+  public List<Content> getFeed(String user) throws StorageClientException,
+      AccessDeniedException {
+    Map<String, CachedFeed> cache = this.cache;
+    CachedFeed cached;
+    synchronized (cache) {
+      cached = cache.get(user);
+    }
+    if (cached != null && System.currentTimeMillis() - cached.created < cacheTtl) {
+      return cached.items;
+    }
+    List<Content> items = mergeFeed(user);
+    synchronized (cache) {
+      cache.put(user, new CachedFeed(items));
+    }
+    return items;
+  }
+
+  /**
+   * Merge the feed of a user with the streams of their contacts.
+   */
+  protected List<Content> mergeFeed(String user) throws StorageClientException,
+      AccessDeniedException {
+    Session adminSession = sparseRepository.loginAdministrative();
+    try {
+      ContentManager contentManager = adminSession.getContentManager();
+      Authorizable reader = adminSession.getAuthorizableManager().findAuthorizable(user);
+      if (reader == null) {
+        return Collections.emptyList();
+      }
+      // a k way merge, each stream sorted newest first and positioned on its next
+      // readable activity, the queue ordered by those activities.
+      PriorityQueue<Stream> streams = new PriorityQueue<Stream>();
+      addStream(streams, new Stream(contentManager.get(ActivityUtils.getUserFeed(user)),
+          feedSize, Integer.MAX_VALUE, null, null));
+      Content index = contentManager.get(ActivityConstants.ACTIVITY_STREAM_INDEX);
+      if (index != null) {
+        Set<String> contacts = Sets.newHashSet(connectionManager.getConnectedUsers(
+            adminSession, user, ConnectionState.ACCEPTED));
+        AccessControlManager accessControlManager = adminSession.getAccessControlManager();
+        for (String actor : index.getProperties().keySet()) {
+          if (!contacts.contains(actor)) {
+            continue;
+          }
+          Content stream = contentManager.get(ActivityUtils.getUserStream(actor));
+          if (stream != null) {
+            // the stream is pruned as it is written, anything past twice its size means
+            // pruning is behind and is not worth reading.
+            addStream(streams, new Stream(stream, feedSize, 2 * streamSize,
+                accessControlManager, reader));
+          }
+        }
+      }
+      List<Content> feed = Lists.newArrayList();
+      while (feed.size() < feedSize && !streams.isEmpty()) {
+        Stream stream = streams.poll();
+        feed.add(stream.head);
+        addStream(streams, stream);
+      }
+      return Collections.unmodifiableList(feed);
+    } finally {
+      try {
+        adminSession.logout();
+      } catch (Exception e) {
+        LOGGER.warn("Failed to logout of administrative session {} ", e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Remove the oldest activities from a stream, keeping the stream size newest.
+   *
+   * @param contentManager
+   *          a content manager that can delete from the stream.
+   * @param streamPath
+   *          the path of the stream.
+   * @throws StorageClientException
+   * @throws AccessDeniedException
+   */
+  public void pruneStream(ContentManager contentManager, String streamPath)
+      throws StorageClientException, AccessDeniedException {
+    Content stream = contentManager.get(streamPath);
+    if (stream == null) {
+      return;
+    }
+    List<Content> items = Lists.newArrayList(stream.listChildren());
+    if (items.size() <= streamSize) {
+      return;
+    }
+    Collections.sort(items, NEWEST_FIRST);
+    for (Content item : items.subList(streamSize, items.size())) {
+      contentManager.delete(item.getPath());
+    }
+  }
+
+  private void addStream(PriorityQueue<Stream> streams, Stream stream) {
+    if (stream.advance()) {
+      streams.add(stream);
+    }
+  }
+
+  private static long getCreated(Content content) {
+    Object created = content.getProperty(Content.CREATED_FIELD);
+    return created == null ? 0L : StorageClientUtils.toLong(created);
+  }
+
+  private static Map<String, CachedFeed> newCache(final int size) {
+    return new LinkedHashMap<String, CachedFeed>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Entry<String, CachedFeed> eldest) {
+        return size() > size;
+      }
+    };
+  }
+
+  /**
+   * The activities of a feed or stream, newest first.
+   */
+  private static final class Stream implements Comparable<Stream> {
+    private final List<Content> items;
+    private final AccessControlManager accessControlManager;
+    private final Authorizable reader;
+    private int next;
+    private Content head;
+
+    /**
+     * @param store
+     *          the feed or stream, may be null.
+     * @param limit
+     *          the number of newest activities to keep, no more than that can make it
+     *          into a feed.
+     * @param maxRead
+     *          the most activities to read from the store.
+     * @param accessControlManager
+     *          used to check the reader can read each activity, null if the reader can
+     *          read them all.
+     * @param reader
+     *          the user reading the activities.
+     */
+    private Stream(Content store, int limit, int maxRead,
+        AccessControlManager accessControlManager, Authorizable reader) {
+      this.items = Lists.newArrayList();
+      if (store != null) {
+        // keep the newest limit activities, the oldest of those at the head.
+        PriorityQueue<Content> newest = new PriorityQueue<Content>(limit + 1,
+            Collections.reverseOrder(NEWEST_FIRST));
+        int read = 0;
+        for (Iterator<Content> children = store.listChildren().iterator(); children
+            .hasNext() && read < maxRead; read++) {
+          Content item = children.next();
+          newest.add(item);
+          if (newest.size() > limit) {
+            newest.poll();
+          }
+        }
+        items.addAll(newest);
+        Collections.sort(items, NEWEST_FIRST);
+      }
+      this.accessControlManager = accessControlManager;
+      this.reader = reader;
+    }
+
+    /**
+     * Move to the next activity the reader can read.
+     *
+     * @return false if there are no more.
+     */
+    private boolean advance() {
+      while (next < items.size()) {
+        Content item = items.get(next++);
+        if (canRead(item)) {
+          head = item;
+          return true;
+        }
+      }
+      head = null;
+      return false;
+    }
+
+    private boolean canRead(Content item) {
+      if (accessControlManager == null) {
+        return true;
+      }
+      String path = (String) item.getProperty(ActivityConstants.PARAM_ITEM_PATH);
+      if (path == null) {
+        return false;
+      }
+      try {
+        return accessControlManager.can(reader, Security.ZONE_CONTENT, path,
+            Permissions.CAN_READ);
+      } catch (Exception e) {
+        LOGGER.warn(e.getMessage(), e);
+      }
+      return false;
+    }
+
+    public int compareTo(Stream o) {
+      return NEWEST_FIRST.compare(head, o.head);
+    }
+  }
+
+  private static final class CachedFeed {
+    private final List<Content> items;
+    private final long created;
+
+    private CachedFeed(List<Content> items) {
+      this.items = items;
+      this.created = System.currentTimeMillis();
+    }
+  }
+}
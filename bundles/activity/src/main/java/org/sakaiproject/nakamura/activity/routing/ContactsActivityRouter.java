@@ -17,9 +17,12 @@
  */
 package org.sakaiproject.nakamura.activity.routing;
 
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.OsgiUtil;
 import org.apache.sling.jcr.base.util.AccessControlUtil;
 import org.sakaiproject.nakamura.api.activity.AbstractActivityRoute;
 import org.sakaiproject.nakamura.api.activity.ActivityConstants;
@@ -36,10 +39,12 @@ import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
 import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.List;
+import java.util.Map;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
@@ -51,18 +56,32 @@ import javax.jcr.security.Privilege;
 /**
  * This router will deliver an activity to the feed of all the contacts of the actor. It
  * will only deliver if the contact has READ access on the node where the activity was
- * performed on.
+ * performed on. The activities of an actor with more contacts than the fan out threshold
+ * are delivered once to the stream of the actor instead, and merged into the feeds of
+ * the contacts when those are read. Those actors are recorded in the stream index so
+ * that readers only look for the streams that exist. Streams are only merged into the
+ * feed served by the ActivityFeedServlet, so this is off by default.
  */
-@Component(immediate = true, enabled = true)
+@Component(immediate = true, enabled = true, metatype = true)
 @Service(value = ActivityRouter.class)
 public class ContactsActivityRouter implements ActivityRouter {
 
   @Reference
   protected ConnectionManager connectionManager;
 
+  @Property(intValue = 0, description = "Actors with more contacts than this have their activities merged into the feeds of their contacts when read, rather than copied to each feed. Only the feed at /system/activity/feed merges, the myfeed search and recent activity do not. 0 or less to always copy.")
+  static final String FANOUT_THRESHOLD = "activity.fanout.threshold";
+
+  protected int fanoutThreshold = 0;
+
   private static final Logger LOGGER = LoggerFactory
       .getLogger(ContactsActivityRouter.class);
 
+  @Activate
+  protected void activate(Map<String, Object> properties) {
+    fanoutThreshold = OsgiUtil.toInteger(properties.get(FANOUT_THRESHOLD), 0);
+  }
+
   /**
    * {@inheritDoc}
    *
@@ -131,6 +150,13 @@ public class ContactsActivityRouter implements ActivityRouter {
       String actor = (String) activity.getProperty(ActivityConstants.PARAM_ACTOR_ID);
       List<String> connections = connectionManager.getConnectedUsers(adminSession, actor,
           ConnectionState.ACCEPTED);
+      if (fanoutThreshold > 0 && connections != null && connections.size() > fanoutThreshold) {
+        // store once, read access of each contact is checked when their feed is read.
+        indexStream(adminSession, actor);
+        routes.add(new AbstractActivityRoute(ActivityUtils.getUserStream(actor)) {
+        });
+        return;
+      }
       org.sakaiproject.nakamura.api.lite.accesscontrol.AccessControlManager accessControlManager = adminSession.getAccessControlManager();
       AuthorizableManager authorizableManager = adminSession.getAuthorizableManager();
       if (connections != null && connections.size() > 0) {
@@ -158,7 +184,26 @@ public class ContactsActivityRouter implements ActivityRouter {
     } catch (StorageClientException e) {
       LOGGER.error(
           "Exception when trying to deliver an activity to contacts feed.", e);
+    } catch (AccessDeniedException e) {
+      LOGGER.error(
+          "Exception when trying to deliver an activity to contacts feed.", e);
+    }
+  }
+
+  /**
+   * Record that the actor has a stream, if that is not already known.
+   */
+  private void indexStream(org.sakaiproject.nakamura.api.lite.Session adminSession,
+      String actor) throws StorageClientException, AccessDeniedException {
+    ContentManager contentManager = adminSession.getContentManager();
+    Content index = contentManager.get(ActivityConstants.ACTIVITY_STREAM_INDEX);
+    if (index == null) {
+      index = new Content(ActivityConstants.ACTIVITY_STREAM_INDEX, null);
+    } else if (index.hasProperty(actor)) {
+      return;
     }
+    index.setProperty(actor, Boolean.TRUE);
+    contentManager.update(index);
   }
 
 }
@@ -40,6 +40,10 @@ public interface ActivityConstants {
    * The property name for the source of the activity.
    */
   public static final String PARAM_SOURCE = "sakai:activity-source";
+  /**
+   * The property name on a delivered activity for the path of the original activity.
+   */
+  public static final String PARAM_ITEM_PATH = "sakai:activity-item-path";
 
 
   // Node names
@@ -52,6 +56,17 @@ public interface ActivityConstants {
    * The name for the big store where the original activities will be copied to.
    */
   public static final String ACTIVITY_FEED_NAME = "activityFeed";
+  /**
+   * The name for the store where the activities of an actor with too many contacts to
+   * copy them to are stored once, to be merged into the feeds of those contacts when
+   * read.
+   */
+  public static final String ACTIVITY_STREAM_NAME = "activityStream";
+  /**
+   * The content holding the ids of the actors whose activities are delivered to their
+   * stream, one property per actor.
+   */
+  public static final String ACTIVITY_STREAM_INDEX = "/var/activity/streams";
 
   /**
    * JCR folder name for templates.
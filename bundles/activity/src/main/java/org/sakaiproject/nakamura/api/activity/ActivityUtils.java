@@ -59,6 +59,18 @@ public class ActivityUtils {
         + ActivityConstants.ACTIVITY_FEED_NAME;
   }
 
+  /**
+   * Returns the path to the stream holding the activities of a user that are merged into
+   * the feeds of their contacts when read rather than copied to them.
+   *
+   * @param user
+   * @return
+   */
+  public static String getUserStream(String user) {
+    return LitePersonalUtils.getPrivatePath(user) + "/"
+        + ActivityConstants.ACTIVITY_STREAM_NAME;
+  }
+
   /**
    * Get the path from an activity id.
    *
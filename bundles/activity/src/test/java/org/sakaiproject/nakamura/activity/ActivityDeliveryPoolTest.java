@@ -0,0 +1,152 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.activity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
+import org.sakaiproject.nakamura.lite.RepositoryImpl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *
+ */
+public class ActivityDeliveryPoolTest {
+
+  private RepositoryImpl repository;
+  private List<String> delivered;
+  private Map<Session, Boolean> sessions;
+  private AtomicInteger flaky;
+
+  @Before
+  public void setUp() throws Exception {
+    repository = new BaseMemoryRepository().getRepository();
+    delivered = Collections.synchronizedList(new ArrayList<String>());
+    sessions = Collections.synchronizedMap(new IdentityHashMap<Session, Boolean>());
+    flaky = new AtomicInteger();
+  }
+
+  private ActivityDeliveryPool createPool(int workers) {
+    return new ActivityDeliveryPool(repository, new ActivityDeliveryPool.Delivery() {
+      public void deliver(Session session, String activityItemPath)
+          throws StorageClientException {
+        sessions.put(session, Boolean.TRUE);
+        if (activityItemPath.startsWith("broken")) {
+          throw new IllegalStateException("Could not determine actor of activity");
+        }
+        if (activityItemPath.startsWith("flaky") && flaky.getAndDecrement() > 0) {
+          throw new StorageClientException("Connection reset");
+        }
+        delivered.add(activityItemPath);
+      }
+    }, workers, 10, 4, 2);
+  }
+
+  @Test
+  public void testOrderedPerActor() throws Exception {
+    ActivityDeliveryPool pool = createPool(3);
+    pool.start();
+    for (int i = 0; i < 50; i++) {
+      pool.submit("alice", "alice/" + i, System.currentTimeMillis());
+      pool.submit("bob", "bob/" + i, 0);
+    }
+    pool.stop();
+
+    assertEquals(100, delivered.size());
+    assertEquals(100, pool.getDelivered());
+    assertEquals(0, pool.getBacklog());
+    int alice = 0;
+    int bob = 0;
+    for (String path : delivered) {
+      if (path.startsWith("alice/")) {
+        assertEquals("alice/" + alice++, path);
+      } else {
+        assertEquals("bob/" + bob++, path);
+      }
+    }
+    // one long lived session per worker at most
+    assertTrue(sessions.size() <= 3);
+    assertTrue(pool.getBatches() <= 100);
+  }
+
+  @Test
+  public void testFailures() throws Exception {
+    ActivityDeliveryPool pool = createPool(1);
+    pool.start();
+    pool.submit("alice", "alice/1", 0);
+    pool.submit("alice", "broken/2", 0);
+    pool.submit("alice", "alice/3", 0);
+    pool.stop();
+
+    assertEquals(2, pool.getDelivered());
+    assertEquals(1, pool.getFailed());
+    assertEquals("alice/1", delivered.get(0));
+    assertEquals("alice/3", delivered.get(1));
+    assertTrue(pool.getMaxLag() >= 0);
+  }
+
+  @Test
+  public void testRetries() throws Exception {
+    ActivityDeliveryPool pool = createPool(1);
+    pool.start();
+    flaky.set(2);
+    pool.submit("alice", "flaky/1", 0);
+    pool.submit("alice", "alice/2", 0);
+    pool.stop();
+
+    // two storage errors are retried, in order, on a new session each time
+    assertEquals(2, pool.getDelivered());
+    assertEquals(0, pool.getFailed());
+    assertEquals(2, pool.getRetried());
+    assertEquals("flaky/1", delivered.get(0));
+    assertEquals("alice/2", delivered.get(1));
+    assertEquals(3, sessions.size());
+  }
+
+  @Test
+  public void testRetriesExhausted() throws Exception {
+    ActivityDeliveryPool pool = createPool(1);
+    pool.start();
+    flaky.set(5);
+    pool.submit("alice", "flaky/1", 0);
+    pool.submit("alice", "alice/2", 0);
+    pool.stop();
+
+    assertEquals(1, pool.getDelivered());
+    assertEquals(1, pool.getFailed());
+    assertEquals(2, pool.getRetried());
+    assertEquals("alice/2", delivered.get(0));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testStopped() throws Exception {
+    ActivityDeliveryPool pool = createPool(1);
+    pool.submit("alice", "alice/1", 0);
+  }
+}
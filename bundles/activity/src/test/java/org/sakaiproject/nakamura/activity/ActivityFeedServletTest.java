@@ -0,0 +1,86 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.activity;
+
+import static org.easymock.EasyMock.expect;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.commons.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.testutils.easymock.AbstractEasyMockTest;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Collections;
+import java.util.List;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ *
+ */
+public class ActivityFeedServletTest extends AbstractEasyMockTest {
+
+  private ActivityFeedServlet createServlet() {
+    ActivityFeedServlet servlet = new ActivityFeedServlet();
+    servlet.mergedFeedService = new MergedFeedService() {
+      @Override
+      public List<Content> getFeed(String user) {
+        return Collections.singletonList(new Content("a:" + user
+            + "/private/activityFeed/a1", ImmutableMap.of("sakai:activity-actor",
+            (Object) "bob")));
+      }
+    };
+    return servlet;
+  }
+
+  @Test
+  public void testFeedIsPrivate() throws Exception {
+    SlingHttpServletRequest request = createMock(SlingHttpServletRequest.class);
+    SlingHttpServletResponse response = createNiceMock(SlingHttpServletResponse.class);
+    StringWriter w = new StringWriter();
+    expect(request.getRemoteUser()).andReturn("alice").anyTimes();
+    response.setHeader("Cache-Control", "private, no-store");
+    expect(response.getWriter()).andReturn(new PrintWriter(w));
+    replay();
+    createServlet().doGet(request, response);
+    verify();
+
+    JSONObject json = new JSONObject(w.toString());
+    Assert.assertEquals(1, json.getInt("total"));
+    Assert.assertEquals("bob", json.getJSONArray("results").getJSONObject(0).getString(
+        "sakai:activity-actor"));
+  }
+
+  @Test
+  public void testAnonymous() throws Exception {
+    SlingHttpServletRequest request = createMock(SlingHttpServletRequest.class);
+    SlingHttpServletResponse response = createMock(SlingHttpServletResponse.class);
+    expect(request.getRemoteUser()).andReturn("anonymous").anyTimes();
+    response.sendError(HttpServletResponse.SC_UNAUTHORIZED,
+        "Anonymous users have no activity feed.");
+    replay();
+    createServlet().doGet(request, response);
+    verify();
+  }
+}
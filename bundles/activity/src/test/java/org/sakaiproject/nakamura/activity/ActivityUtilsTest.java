@@ -44,6 +44,12 @@ public class ActivityUtilsTest extends AbstractEasyMockTest{
     Assert.assertEquals(expected, result);
   }
 
+  @Test
+  public void testUserStream() {
+    Assert.assertEquals("a:admin/private/" + ActivityConstants.ACTIVITY_STREAM_NAME,
+        ActivityUtils.getUserStream("admin"));
+  }
+
   @Test
   public void testCreateID() throws UnsupportedEncodingException,
       NoSuchAlgorithmException {
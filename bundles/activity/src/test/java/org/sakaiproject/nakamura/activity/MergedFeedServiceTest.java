@@ -0,0 +1,139 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.activity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+import org.easymock.EasyMock;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.activity.ActivityConstants;
+import org.sakaiproject.nakamura.api.activity.ActivityUtils;
+import org.sakaiproject.nakamura.api.connections.ConnectionManager;
+import org.sakaiproject.nakamura.api.connections.ConnectionState;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AclModification;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AclModification.Operation;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Permissions;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
+import org.sakaiproject.nakamura.lite.RepositoryImpl;
+
+import java.util.List;
+
+/**
+ *
+ */
+public class MergedFeedServiceTest {
+
+  private RepositoryImpl repository;
+  private MergedFeedService mergedFeedService;
+
+  @Before
+  public void setUp() throws Exception {
+    repository = new BaseMemoryRepository().getRepository();
+    Session session = repository.loginAdministrative();
+    session.getAuthorizableManager().createUser("alice", "alice", "test", null);
+    session.getAccessControlManager().setAcl(Security.ZONE_CONTENT, "/readable",
+        new AclModification[] { new AclModification(AclModification.grantKey(Group.EVERYONE),
+            Permissions.CAN_READ.getPermission(), Operation.OP_REPLACE) });
+    session.getAccessControlManager().setAcl(Security.ZONE_CONTENT, "/secret",
+        new AclModification[] { new AclModification(AclModification.denyKey("alice"),
+            Permissions.ALL.getPermission(), Operation.OP_REPLACE) });
+
+    // alice has activities copied to her feed, bob streams his, carol has a stream that
+    // is not in the index.
+    ContentManager contentManager = session.getContentManager();
+    contentManager.update(new Content(ActivityConstants.ACTIVITY_STREAM_INDEX,
+        ImmutableMap.of("bob", (Object) Boolean.TRUE)));
+    deliver(contentManager, ActivityUtils.getUserStream("carol"), "c1", "/readable");
+    deliver(contentManager, ActivityUtils.getUserFeed("alice"), "a1", "/readable");
+    deliver(contentManager, ActivityUtils.getUserStream("bob"), "b1", "/readable");
+    deliver(contentManager, ActivityUtils.getUserStream("bob"), "b2", "/secret");
+    deliver(contentManager, ActivityUtils.getUserFeed("alice"), "a2", "/readable");
+    deliver(contentManager, ActivityUtils.getUserStream("bob"), "b3", "/readable");
+    session.logout();
+
+    ConnectionManager connectionManager = EasyMock.createMock(ConnectionManager.class);
+    EasyMock.expect(
+        connectionManager.getConnectedUsers((Session) EasyMock.anyObject(),
+            EasyMock.eq("alice"), EasyMock.eq(ConnectionState.ACCEPTED)))
+        .andReturn(Lists.newArrayList("bob", "carol")).anyTimes();
+    EasyMock.replay(connectionManager);
+
+    mergedFeedService = new MergedFeedService();
+    mergedFeedService.sparseRepository = repository;
+    mergedFeedService.connectionManager = connectionManager;
+  }
+
+  private void deliver(ContentManager contentManager, String store, String id,
+      String itemPath) throws Exception {
+    contentManager.update(new Content(StorageClientUtils.newPath(store, id), ImmutableMap.of(
+        ActivityConstants.PARAM_ITEM_PATH, (Object) itemPath)));
+    // make sure every activity has its own creation time.
+    Thread.sleep(5);
+  }
+
+  @Test
+  public void testMerge() throws Exception {
+    List<Content> feed = mergedFeedService.getFeed("alice");
+    assertEquals(4, feed.size());
+    assertEquals("b3", StorageClientUtils.getObjectName(feed.get(0).getPath()));
+    assertEquals("a2", StorageClientUtils.getObjectName(feed.get(1).getPath()));
+    assertEquals("b1", StorageClientUtils.getObjectName(feed.get(2).getPath()));
+    assertEquals("a1", StorageClientUtils.getObjectName(feed.get(3).getPath()));
+  }
+
+  @Test
+  public void testLimitAndCache() throws Exception {
+    mergedFeedService.activate(ImmutableMap.of(MergedFeedService.FEED_SIZE, (Object) 2));
+    List<Content> feed = mergedFeedService.getFeed("alice");
+    assertEquals(2, feed.size());
+    assertEquals("b3", StorageClientUtils.getObjectName(feed.get(0).getPath()));
+    assertSame(feed, mergedFeedService.getFeed("alice"));
+  }
+
+  @Test
+  public void testPruneStream() throws Exception {
+    mergedFeedService.activate(ImmutableMap.of(MergedFeedService.FEED_SIZE, (Object) 1,
+        MergedFeedService.STREAM_SIZE, (Object) 2));
+    Session session = repository.loginAdministrative();
+    ContentManager contentManager = session.getContentManager();
+    mergedFeedService.pruneStream(contentManager, ActivityUtils.getUserStream("bob"));
+
+    List<Content> stream = Lists.newArrayList(contentManager.get(
+        ActivityUtils.getUserStream("bob")).listChildren());
+    assertEquals(2, stream.size());
+    assertNull(contentManager.get(ActivityUtils.getUserStream("bob") + "/b1"));
+    session.logout();
+  }
+
+  @Test
+  public void testUnknownUser() throws Exception {
+    assertEquals(0, mergedFeedService.getFeed("nobody").size());
+  }
+}
@@ -17,12 +17,23 @@
  */
 package org.sakaiproject.nakamura.activity.routing;
 
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+import org.easymock.Capture;
 import org.easymock.EasyMock;
+import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import org.sakaiproject.nakamura.api.activity.ActivityConstants;
+import org.sakaiproject.nakamura.api.activity.ActivityUtils;
 import org.sakaiproject.nakamura.api.connections.ConnectionManager;
 import org.sakaiproject.nakamura.api.connections.ConnectionState;
 import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessControlManager;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -55,4 +66,53 @@ public class ContactsActivityRouterTest extends AbstractActivityRouterTest {
     verify();
   }
 
+  @Test
+  public void testFanoutOnRead() {
+    ConnectionManager connectionManager = createNiceMock(ConnectionManager.class);
+    Session adminSession = createNiceMock(Session.class);
+    ContentManager contentManager = createMock(ContentManager.class);
+    EasyMock.expect(connectionManager.getConnectedUsers(adminSession, user, ConnectionState.ACCEPTED))
+        .andReturn(Lists.newArrayList("alice", "bob", "carol"));
+    EasyMock.expect(adminSession.getContentManager()).andReturn(contentManager);
+    // the actor is added to the stream index
+    EasyMock.expect(contentManager.get(ActivityConstants.ACTIVITY_STREAM_INDEX)).andReturn(
+        new Content(ActivityConstants.ACTIVITY_STREAM_INDEX, ImmutableMap.of("alice",
+            (Object) Boolean.TRUE)));
+    Capture<Content> index = new Capture<Content>();
+    contentManager.update(EasyMock.capture(index));
+    replay();
+    ContactsActivityRouter router = new ContactsActivityRouter();
+    router.connectionManager = connectionManager;
+    router.fanoutThreshold = 2;
+    router.route(new Content(path + "/a1", ImmutableMap.of(ActivityConstants.PARAM_ACTOR_ID,
+        (Object) user)), routes, adminSession);
+
+    Assert.assertEquals(1, routes.size());
+    Assert.assertEquals(ActivityUtils.getUserStream(user), routes.get(0).getDestination());
+    Assert.assertTrue(index.getValue().hasProperty(user));
+    verify();
+  }
+
+  @Test
+  public void testCopiedByDefault() {
+    ConnectionManager connectionManager = createNiceMock(ConnectionManager.class);
+    Session adminSession = createNiceMock(Session.class);
+    EasyMock.expect(connectionManager.getConnectedUsers(adminSession, user, ConnectionState.ACCEPTED))
+        .andReturn(Lists.newArrayList("alice", "bob", "carol"));
+    EasyMock.expect(adminSession.getAuthorizableManager()).andReturn(
+        createNiceMock(AuthorizableManager.class));
+    EasyMock.expect(adminSession.getAccessControlManager()).andReturn(
+        createNiceMock(AccessControlManager.class));
+    replay();
+    ContactsActivityRouter router = new ContactsActivityRouter();
+    router.connectionManager = connectionManager;
+    router.activate(ImmutableMap.<String, Object> of());
+    router.route(new Content(path + "/a1", ImmutableMap.of(ActivityConstants.PARAM_ACTOR_ID,
+        (Object) user)), routes, adminSession);
+
+    // no stream, each contact is checked for a copy instead and none of them can read it
+    Assert.assertEquals(0, routes.size());
+    verify();
+  }
+
 }
@@ -23,11 +23,16 @@ import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceNotFoundException;
 import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
 import org.apache.sling.commons.json.JSONArray;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.JSONObject;
+import org.apache.sling.commons.json.JSONString;
 import org.apache.sling.commons.json.io.JSONWriter;
+import org.apache.sling.engine.SlingRequestProcessor;
 import org.sakaiproject.nakamura.api.lite.authorizable.User;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
 import org.sakaiproject.nakamura.util.RequestInfo;
 import org.sakaiproject.nakamura.util.RequestWrapper;
 import org.sakaiproject.nakamura.util.ResponseWrapper;
@@ -35,13 +40,29 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.io.StringWriter;
+import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Dictionary;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.servlet.RequestDispatcher;
 import javax.servlet.ServletException;
@@ -55,6 +76,104 @@ public class BatchHelper {
 
   protected static final String REQUESTS_PARAMETER = "requests";
 
+  /**
+   * When true, sub-responses with a JSON content type are embedded in the envelope as JSON
+   * values rather than as escaped strings.
+   */
+  protected static final String EMBED_JSON_PARAMETER = "embedJson";
+
+  /**
+   * Shared pool used to dispatch safe sub-requests concurrently, null when every batch is
+   * processed serially on the request thread.
+   */
+  private volatile ThreadPoolExecutor executor;
+
+  /**
+   * The maximum number of sub-requests of a single batch that may be in flight at once.
+   */
+  private volatile int concurrency = 1;
+
+  /**
+   * The longest the batch waits for a concurrent sub-request, in ms.
+   */
+  private volatile long timeout = 30000L;
+
+  private volatile CacheManagerService cacheManagerService;
+
+  private volatile ResourceResolverFactory resourceResolverFactory;
+
+  private volatile SlingRequestProcessor requestProcessor;
+
+  /**
+   * Configures concurrent dispatch of safe GET sub-requests. A concurrency of 1 or less
+   * (or a pool size of 0) processes every batch serially, which is the default. Requests
+   * are also processed serially unless a {@link ResourceResolverFactory} and a
+   * {@link SlingRequestProcessor} are available to give each concurrent sub-request its
+   * own resolver and session.
+   *
+   * @param poolSize
+   *          the number of threads shared by all batches.
+   * @param concurrency
+   *          the maximum number of sub-requests of one batch in flight at the same time.
+   * @param timeout
+   *          the longest to wait for a concurrent sub-request, in ms, after which it fails.
+   */
+  protected synchronized void configure(int poolSize, int concurrency, long timeout) {
+    shutdown();
+    this.concurrency = concurrency;
+    this.timeout = timeout;
+    if (poolSize > 0 && concurrency > 1) {
+      final AtomicInteger threadNumber = new AtomicInteger();
+      // When the pool and its queue are saturated, or the pool has been shut down, the
+      // submission is rejected and the request thread runs the sub-request itself, so a
+      // busy server degrades to serial batches rather than failing them.
+      executor = new ThreadPoolExecutor(poolSize, poolSize, 60L, TimeUnit.SECONDS,
+          new ArrayBlockingQueue<Runnable>(poolSize * 4), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+              Thread t = new Thread(r, "batch-request-" + threadNumber.incrementAndGet());
+              t.setDaemon(true);
+              return t;
+            }
+          }, new ThreadPoolExecutor.AbortPolicy());
+      executor.allowCoreThreadTimeOut(true);
+    }
+  }
+
+  /**
+   * Stops the dispatch pool, batches after this point are processed serially.
+   */
+  protected synchronized void shutdown() {
+    if (executor != null) {
+      executor.shutdown();
+      executor = null;
+    }
+  }
+
+  /**
+   * @param cacheManagerService
+   *          used to release the request scoped caches that sub-requests dispatched on a
+   *          pool thread leave behind, may be null.
+   */
+  protected void setCacheManagerService(CacheManagerService cacheManagerService) {
+    this.cacheManagerService = cacheManagerService;
+  }
+
+  /**
+   * @param resourceResolverFactory
+   *          used to log each concurrent sub-request in as the user of the batch, may be
+   *          null.
+   */
+  protected void setResourceResolverFactory(ResourceResolverFactory resourceResolverFactory) {
+    this.resourceResolverFactory = resourceResolverFactory;
+  }
+
+  /**
+   * @param requestProcessor
+   *          used to process each concurrent sub-request on its own resolver, may be null.
+   */
+  protected void setRequestProcessor(SlingRequestProcessor requestProcessor) {
+    this.requestProcessor = requestProcessor;
+  }
 
   /**
    * Takes the original request and starts the batching.
@@ -88,43 +207,139 @@ public class BatchHelper {
       return;
     }
 
-    // Loop over the requests and handle each one.
+    // TODO: This is a nasty hack to work around white listing of /system/batch POST
+    // requests. This should be removed when the UI has refactored itself not to use batch
+    // POSTs in place of GETs (see http spec for reasons by thats bad)
+    // The check is made before anything is dispatched, as the envelope is streamed and
+    // can't be taken back once writing has started.
+    if (User.ANON_USER.equals(request.getRemoteUser())) {
+      for (RequestInfo r : batchedRequests) {
+        if (!"GET".equals(r.getMethod())) {
+          response.reset();
+          throw new ServletException("Anon Users may only perform GET operations");
+        }
+      }
+    }
+
+    boolean embedJson = "true".equals(request.getParameter(EMBED_JSON_PARAMETER));
+
+    // Loop over the requests and handle each one, streaming the results as they are
+    // written.
     try {
-      StringWriter sw = new StringWriter();
-      JSONWriter write = new JSONWriter(sw);
+      response.setContentType("application/json");
+      response.setCharacterEncoding("UTF-8");
+      PrintWriter writer = response.getWriter();
+      JSONWriter write = new JSONWriter(writer);
       write.object();
       write.key("results");
       write.array();
 
-      for (RequestInfo r : batchedRequests) {
-        doRequest(request, response, r, write);
+      ThreadPoolExecutor pool = executor;
+      int limit = concurrency;
+      ResourceResolverFactory factory = resourceResolverFactory;
+      SlingRequestProcessor processor = requestProcessor;
+      if (factory == null || processor == null) {
+        // without isolated sessions sub-requests must not share the request across threads.
+        pool = null;
+      }
+      LinkedList<Future<ResponseWrapper>> pending = new LinkedList<Future<ResponseWrapper>>();
+      int submitted = 0;
+      for (int i = 0; i < batchedRequests.size(); i++) {
+        RequestInfo r = batchedRequests.get(i);
+        if (i == submitted && !isConcurrent(pool, limit, r)) {
+          // Everything before this request has been written, so it sees the effects of
+          // earlier modifications just as it would in a serial batch.
+          doRequest(request, response, r, write, embedJson);
+          submitted++;
+          continue;
+        }
+        // Keep up to the limit of the following safe requests in flight.
+        while (submitted < batchedRequests.size() && submitted - i < limit
+            && isConcurrent(pool, limit, batchedRequests.get(submitted))) {
+          pending.add(submit(pool, new SubRequest(request, response, batchedRequests
+              .get(submitted), factory, processor)));
+          submitted++;
+        }
+        Future<ResponseWrapper> future = pending.removeFirst();
+        if (!future.isDone()) {
+          // Get what we have so far to the client while we wait.
+          writer.flush();
+        }
+        writeFuture(write, future, r, embedJson, timeout);
       }
       write.endArray();
       write.endObject();
-      response.setContentType("application/json");
-      response.setCharacterEncoding("UTF-8");
-      response.getWriter().write(sw.getBuffer().toString());
     } catch (JSONException e) {
       LOGGER.warn("Failed to create a JSON response");
-      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
-          "Failed to write JSON response");
+      if (!response.isCommitted()) {
+        response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+            "Failed to write JSON response");
+      }
+    }
+  }
+
+  /**
+   * Only safe GET requests are dispatched concurrently, anything else acts as a barrier
+   * that waits for the requests before it. Concurrent requests never touch the request,
+   * resolver or session of the batch, see {@link SubRequest}.
+   */
+  private boolean isConcurrent(ThreadPoolExecutor pool, int limit, RequestInfo requestInfo) {
+    return pool != null && limit > 1 && "GET".equals(requestInfo.getMethod());
+  }
+
+  /**
+   * Submit a sub-request to the pool, or run it on the request thread if the pool rejects
+   * it. A task discarded by a shut down pool would never complete.
+   */
+  private Future<ResponseWrapper> submit(ThreadPoolExecutor pool, SubRequest subRequest) {
+    try {
+      return pool.submit(subRequest);
+    } catch (RejectedExecutionException e) {
+      FutureTask<ResponseWrapper> task = new FutureTask<ResponseWrapper>(subRequest);
+      task.run();
+      return task;
+    }
+  }
+
+  private void writeFuture(JSONWriter write, Future<ResponseWrapper> future,
+      RequestInfo requestInfo, boolean embedJson, long timeout) throws JSONException {
+    try {
+      writeResponse(write, future.get(timeout, TimeUnit.MILLISECONDS), requestInfo,
+          embedJson);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      future.cancel(true);
+      writeFailedRequest(write, requestInfo);
+    } catch (TimeoutException e) {
+      LOGGER.warn("Batched request to {} timed out after {} ms", requestInfo.getUrl(),
+          timeout);
+      future.cancel(true);
+      writeFailedRequest(write, requestInfo);
+    } catch (ExecutionException e) {
+      LOGGER.debug("Batched request to {} failed: {}", requestInfo.getUrl(), e.getCause());
+      writeFailedRequest(write, requestInfo);
     }
   }
 
   private void doRequest(SlingHttpServletRequest request,
       SlingHttpServletResponse response, RequestInfo requestInfo,
-      JSONWriter write) throws JSONException, ServletException {
+      JSONWriter write, boolean embedJson) throws JSONException {
+    try {
+      ResponseWrapper responseWrapper = dispatch(request, response, requestInfo);
+      // Write the response (status, headers, body) back to the client.
+      writeResponse(write, responseWrapper, requestInfo, embedJson);
+    } catch (ServletException e) {
+      writeFailedRequest(write, requestInfo);
+    } catch (IOException e) {
+      writeFailedRequest(write, requestInfo);
+    }
+  }
+
+  private ResponseWrapper dispatch(SlingHttpServletRequest request,
+      SlingHttpServletResponse response, RequestInfo requestInfo)
+      throws ServletException, IOException {
     // Look for a matching resource in the usual way. If one is found,
     // the resource will also be embedded with any necessary RequestPathInfo.
-    // TODO: This is a nasty hack to work around white listing of /system/batch POST
-    // requests. This should be removed when the UI has refactored itself not to use batch
-    // POSTs in place of GETs (see http spec for reasons by thats bad)
-    if (User.ANON_USER.equals(request.getRemoteUser())) {
-      if (!"GET".equals(requestInfo.getMethod())) {
-        response.reset();
-        throw new ServletException("Anon Users may only perform GET operations");
-      }
-    }
     String requestPath = requestInfo.getUrl();
     ResourceResolver resourceResolver = request.getResourceResolver();
     Resource resource = resourceResolver.resolve(request, requestPath);
@@ -133,34 +348,175 @@ public class BatchHelper {
     RequestWrapper requestWrapper = new RequestWrapper(request, requestInfo);
     ResponseWrapper responseWrapper = new ResponseWrapper(response);
     RequestDispatcher requestDispatcher;
+    // Get the response
     try {
-      // Get the response
+      if (resource != null) {
+        LOGGER.debug("Dispatching to request path='{}', resource path='{}'", requestPath, resource.getPath());
+        requestDispatcher = request.getRequestDispatcher(resource);
+      } else {
+        LOGGER.debug("Dispatching to request path='{}', no resource", requestPath);
+        requestDispatcher = request.getRequestDispatcher(requestPath);
+      }
+      requestDispatcher.forward(requestWrapper, responseWrapper);
+    } catch (ResourceNotFoundException e) {
+      responseWrapper.setStatus(HttpServletResponse.SC_NOT_FOUND);
+    } catch (SlingException e) {
+      responseWrapper.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+    }
+    return responseWrapper;
+  }
+
+  /**
+   * A safe sub-request dispatched on the pool. None of the request, response, resolver or
+   * session of the batch are thread safe, so the sub-request is processed from scratch by
+   * the {@link SlingRequestProcessor} on its own resolver, logged in as the same user and
+   * closed when it finishes, with its own copy of the request attributes.
+   */
+  private class SubRequest implements Callable<ResponseWrapper> {
+
+    private final SlingHttpServletRequest request;
+    private final SlingHttpServletResponse response;
+    private final RequestInfo requestInfo;
+    private final ResourceResolverFactory factory;
+    private final SlingRequestProcessor processor;
+    private final String user;
+    private final Map<String, Object> attributes;
+    private final String characterEncoding;
+    private final Thread requestThread = Thread.currentThread();
+
+    /**
+     * Created on the request thread, which is the only thread that reads the request.
+     */
+    SubRequest(SlingHttpServletRequest request, SlingHttpServletResponse response,
+        RequestInfo requestInfo, ResourceResolverFactory factory,
+        SlingRequestProcessor processor) {
+      this.request = request;
+      this.response = response;
+      this.requestInfo = requestInfo;
+      this.factory = factory;
+      this.processor = processor;
+      String remoteUser = request.getRemoteUser();
+      this.user = remoteUser == null ? User.ANON_USER : remoteUser;
+      this.characterEncoding = request.getCharacterEncoding();
+      this.attributes = new HashMap<String, Object>();
+      Enumeration<?> names = request.getAttributeNames();
+      while (names.hasMoreElements()) {
+        String name = (String) names.nextElement();
+        attributes.put(name, request.getAttribute(name));
+      }
+    }
+
+    public ResponseWrapper call() throws Exception {
+      ResourceResolver resourceResolver = null;
       try {
-        if (resource != null) {
-          LOGGER.debug("Dispatching to request path='{}', resource path='{}'", requestPath, resource.getPath());
-          requestDispatcher = request.getRequestDispatcher(resource);
-        } else {
-          LOGGER.debug("Dispatching to request path='{}', no resource", requestPath);
-          requestDispatcher = request.getRequestDispatcher(requestPath);
+        Map<String, Object> authInfo = new HashMap<String, Object>();
+        authInfo.put(ResourceResolverFactory.USER_IMPERSONATION, user);
+        resourceResolver = factory.getAdministrativeResourceResolver(authInfo);
+        IsolatedResponse responseWrapper = new IsolatedResponse(response);
+        processor.processRequest(new IsolatedRequest(request, requestInfo, attributes,
+            characterEncoding), responseWrapper, resourceResolver);
+        return responseWrapper;
+      } finally {
+        if (resourceResolver != null) {
+          resourceResolver.close();
+        }
+        // Pool threads outlive the request, don't let them keep its request scoped caches.
+        CacheManagerService cms = cacheManagerService;
+        if (cms != null && Thread.currentThread() != requestThread) {
+          cms.unbind(CacheScope.REQUEST);
         }
-        requestDispatcher.forward(requestWrapper, responseWrapper);
-      } catch (ResourceNotFoundException e) {
-        responseWrapper.setStatus(HttpServletResponse.SC_NOT_FOUND);
-      } catch (SlingException e) {
-        responseWrapper.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
       }
-      // Write the response (status, headers, body) back to the client.
-      writeResponse(write, responseWrapper, requestInfo);
-    } catch (ServletException e) {
-      writeFailedRequest(write, requestInfo);
-    } catch (IOException e) {
-      writeFailedRequest(write, requestInfo);
     }
+  }
 
+  /**
+   * The request of a concurrent sub-request, with its own attributes so nothing is
+   * written to the request of the batch.
+   */
+  static final class IsolatedRequest extends RequestWrapper {
+    private final Map<String, Object> attributes;
+    private String characterEncoding;
+
+    IsolatedRequest(SlingHttpServletRequest request, RequestInfo requestInfo,
+        Map<String, Object> attributes, String characterEncoding) {
+      super(request, requestInfo);
+      this.attributes = new HashMap<String, Object>(attributes);
+      this.characterEncoding = characterEncoding;
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+      return attributes.get(name);
+    }
+
+    @SuppressWarnings("rawtypes")
+    @Override
+    public Enumeration getAttributeNames() {
+      return Collections.enumeration(attributes.keySet());
+    }
+
+    @Override
+    public void setAttribute(String name, Object o) {
+      if (o == null) {
+        attributes.remove(name);
+      } else {
+        attributes.put(name, o);
+      }
+    }
+
+    @Override
+    public void removeAttribute(String name) {
+      attributes.remove(name);
+    }
+
+    @Override
+    public String getCharacterEncoding() {
+      return characterEncoding;
+    }
+
+    @Override
+    public void setCharacterEncoding(String env) {
+      characterEncoding = env;
+    }
+  }
+
+  /**
+   * The response of a concurrent sub-request, which captures everything and never
+   * reaches the response of the batch.
+   */
+  static final class IsolatedResponse extends ResponseWrapper {
+
+    IsolatedResponse(SlingHttpServletResponse response) {
+      super(response);
+    }
+
+    @Override
+    public void sendRedirect(String location) {
+      setStatus(HttpServletResponse.SC_MOVED_TEMPORARILY);
+      setHeader("Location", location);
+    }
+
+    @Override
+    public void setIntHeader(String name, int value) {
+      setHeader(name, Integer.toString(value));
+    }
+
+    @Override
+    public boolean containsHeader(String name) {
+      return getResponseHeaders().get(name) != null;
+    }
+
+    @Override
+    public void setLocale(Locale loc) {
+    }
+
+    @Override
+    public void setBufferSize(int size) {
+    }
   }
 
   private void writeResponse(JSONWriter write, ResponseWrapper responseWrapper,
-      RequestInfo requestData) throws JSONException {
+      RequestInfo requestData, boolean embedJson) throws JSONException {
     try {
       String body = responseWrapper.getDataAsString();
       write.object();
@@ -169,7 +525,12 @@ public class BatchHelper {
       write.key("success");
       write.value(true);
       write.key("body");
-      write.value(body);
+      if (embedJson && isJson(responseWrapper.getContentType())
+          && JsonScanner.isObjectOrArray(body)) {
+        write.value(new EmbeddedJson(body));
+      } else {
+        write.value(body);
+      }
       write.key("status");
       write.value(responseWrapper.getResponseStatus());
       write.key("headers");
@@ -188,6 +549,40 @@ public class BatchHelper {
     }
   }
 
+  /**
+   * @return true if the content type is application/json or a +json type.
+   */
+  private boolean isJson(String contentType) {
+    if (contentType == null) {
+      return false;
+    }
+    String mimeType = contentType;
+    int i = mimeType.indexOf(';');
+    if (i >= 0) {
+      mimeType = mimeType.substring(0, i);
+    }
+    mimeType = mimeType.trim().toLowerCase();
+    return "application/json".equals(mimeType) || mimeType.endsWith("+json");
+  }
+
+  /**
+   * A body that claims to be JSON and has been scanned to be entirely one well formed JSON
+   * object or array, written into the envelope exactly as it was sent. Anything else, an
+   * empty, truncated or crafted body or an error page sent with the wrong content type, is
+   * written as a string and can never add entries to the envelope.
+   */
+  private static final class EmbeddedJson implements JSONString {
+    private final String body;
+
+    private EmbeddedJson(String body) {
+      this.body = body;
+    }
+
+    public String toJSONString() {
+      return body;
+    }
+  }
+
   private void writeFailedRequest(JSONWriter write, RequestInfo requestData)
       throws JSONException {
     write.object();
@@ -17,23 +17,40 @@
  */
 package org.sakaiproject.nakamura.batch;
 
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.sling.SlingServlet;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.resource.ResourceResolverFactory;
 import org.apache.sling.api.servlets.SlingAllMethodsServlet;
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.apache.sling.engine.SlingRequestProcessor;
 import org.sakaiproject.nakamura.api.doc.BindingType;
 import org.sakaiproject.nakamura.api.doc.ServiceBinding;
 import org.sakaiproject.nakamura.api.doc.ServiceDocumentation;
 import org.sakaiproject.nakamura.api.doc.ServiceMethod;
 import org.sakaiproject.nakamura.api.doc.ServiceParameter;
 import org.sakaiproject.nakamura.api.doc.ServiceResponse;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 
 import java.io.IOException;
+import java.util.Map;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
 
 @SlingServlet(methods = { "POST" }, generateService = true, paths = { "/system/batch" })
+@Properties(value = {
+    @Property(name = BatchServlet.POOL_SIZE, intValue = BatchServlet.DEFAULT_POOL_SIZE),
+    @Property(name = BatchServlet.CONCURRENCY, intValue = BatchServlet.DEFAULT_CONCURRENCY),
+    @Property(name = BatchServlet.TIMEOUT, longValue = BatchServlet.DEFAULT_TIMEOUT) })
 @ServiceDocumentation(
     name = "BatchServlet",
     shortDescription = "Bundles multiple requests into a single response.",
@@ -45,11 +62,17 @@ import javax.servlet.http.HttpServletResponse;
     methods = @ServiceMethod(
         name = "POST",
         description = "Get multiple request responses into a single response. It can do GET, POST and DELETE everything is defined in the json block.",
-        parameters = @ServiceParameter(
+        parameters = {@ServiceParameter(
             name = "requests",
             description = "A JSON string representing a request. <br />Example:" +
                 "<pre>[{  \"url\" : \"/foo/bar\",  \"method\" : \"POST\",  \"parameters\" : {    \"val\" : 123,    \"val@TypeHint\" : \"Long\"  }},{  \"url\" : \"/_user/a/ad/admin/public/authprofile.json\",  \"method\" : \"GET\"}]</pre>"
-        ),
+          ),
+          @ServiceParameter(
+            name = "embedJson",
+            description = "Optional, if true the body of each response with a JSON content type is embedded " +
+                "as a JSON object or array instead of as an escaped string."
+          )
+        },
         response = {@ServiceResponse(
             code = 200,
             description = "All requests are successful. <br />" +
@@ -74,8 +97,88 @@ public class BatchServlet extends SlingAllMethodsServlet {
 
   protected static final String REQUESTS_PARAMETER = "requests";
   
+  /**
+   * The number of threads shared by all batches to dispatch safe sub-requests.
+   */
+  protected static final String POOL_SIZE = "batch.pool.size";
+  protected static final int DEFAULT_POOL_SIZE = 10;
+
+  /**
+   * The maximum number of GET sub-requests of a single batch that are dispatched at the
+   * same time. 1 processes each batch serially on the request thread. Keep this low, each
+   * sub-request in flight holds a slot in the QoS filter's budget for the whole batch.
+   */
+  protected static final String CONCURRENCY = "batch.concurrency";
+  protected static final int DEFAULT_CONCURRENCY = 1;
+
+  /**
+   * The longest in ms a batch waits for a concurrent sub-request before reporting it as
+   * failed.
+   */
+  protected static final String TIMEOUT = "batch.timeout";
+  protected static final long DEFAULT_TIMEOUT = 30000L;
+
   private BatchHelper helper = new BatchHelper();
 
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC, bind = "bindCacheManagerService", unbind = "unbindCacheManagerService")
+  protected CacheManagerService cacheManagerService;
+
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC, bind = "bindResourceResolverFactory", unbind = "unbindResourceResolverFactory")
+  protected ResourceResolverFactory resourceResolverFactory;
+
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC, bind = "bindRequestProcessor", unbind = "unbindRequestProcessor")
+  protected SlingRequestProcessor requestProcessor;
+
+  @Activate
+  @Modified
+  protected void activate(Map<String, Object> properties) {
+    helper.configure(OsgiUtil.toInteger(properties.get(POOL_SIZE), DEFAULT_POOL_SIZE),
+        OsgiUtil.toInteger(properties.get(CONCURRENCY), DEFAULT_CONCURRENCY),
+        OsgiUtil.toLong(properties.get(TIMEOUT), DEFAULT_TIMEOUT));
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    helper.shutdown();
+  }
+
+  protected void bindCacheManagerService(CacheManagerService cacheManagerService) {
+    this.cacheManagerService = cacheManagerService;
+    helper.setCacheManagerService(cacheManagerService);
+  }
+
+  protected void unbindCacheManagerService(CacheManagerService cacheManagerService) {
+    if (this.cacheManagerService == cacheManagerService) {
+      this.cacheManagerService = null;
+      helper.setCacheManagerService(null);
+    }
+  }
+
+  protected void bindResourceResolverFactory(ResourceResolverFactory resourceResolverFactory) {
+    this.resourceResolverFactory = resourceResolverFactory;
+    helper.setResourceResolverFactory(resourceResolverFactory);
+  }
+
+  protected void unbindResourceResolverFactory(
+      ResourceResolverFactory resourceResolverFactory) {
+    if (this.resourceResolverFactory == resourceResolverFactory) {
+      this.resourceResolverFactory = null;
+      helper.setResourceResolverFactory(null);
+    }
+  }
+
+  protected void bindRequestProcessor(SlingRequestProcessor requestProcessor) {
+    this.requestProcessor = requestProcessor;
+    helper.setRequestProcessor(requestProcessor);
+  }
+
+  protected void unbindRequestProcessor(SlingRequestProcessor requestProcessor) {
+    if (this.requestProcessor == requestProcessor) {
+      this.requestProcessor = null;
+      helper.setRequestProcessor(null);
+    }
+  }
+
   /**
    * {@inheritDoc}
    *
@@ -0,0 +1,231 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.batch;
+
+/**
+ * Checks that text is well formed JSON without building anything from it. The scan walks
+ * the text once and allocates nothing, so a response body can be checked before it is
+ * copied into a batch envelope unchanged.
+ */
+final class JsonScanner {
+
+  /**
+   * Deeper nesting than this is not accepted, so the scan can't exhaust the stack.
+   */
+  private static final int MAX_DEPTH = 512;
+
+  private JsonScanner() {
+  }
+
+  /**
+   * @param text
+   *          the text to check.
+   * @return true if the text is exactly one JSON object or array, with nothing but
+   *         whitespace around it.
+   */
+  static boolean isObjectOrArray(String text) {
+    int i = skipWhitespace(text, 0);
+    if (i >= text.length() || (text.charAt(i) != '{' && text.charAt(i) != '[')) {
+      return false;
+    }
+    i = value(text, i, 0);
+    return i >= 0 && skipWhitespace(text, i) == text.length();
+  }
+
+  /**
+   * @return the index after the value starting at or after i, or -1 if it is malformed.
+   */
+  private static int value(String text, int i, int depth) {
+    i = skipWhitespace(text, i);
+    if (i >= text.length()) {
+      return -1;
+    }
+    char c = text.charAt(i);
+    switch (c) {
+    case '{':
+      return object(text, i, depth + 1);
+    case '[':
+      return array(text, i, depth + 1);
+    case '"':
+      return string(text, i);
+    case 't':
+      return literal(text, i, "true");
+    case 'f':
+      return literal(text, i, "false");
+    case 'n':
+      return literal(text, i, "null");
+    default:
+      return c == '-' || isDigit(c) ? number(text, i) : -1;
+    }
+  }
+
+  private static int object(String text, int i, int depth) {
+    if (depth > MAX_DEPTH) {
+      return -1;
+    }
+    i = skipWhitespace(text, i + 1);
+    if (i < text.length() && text.charAt(i) == '}') {
+      return i + 1;
+    }
+    while (true) {
+      i = skipWhitespace(text, i);
+      if (i >= text.length() || text.charAt(i) != '"') {
+        return -1;
+      }
+      i = skipWhitespace(text, string(text, i));
+      if (i < 0 || i >= text.length() || text.charAt(i) != ':') {
+        return -1;
+      }
+      i = value(text, i + 1, depth);
+      if (i < 0) {
+        return -1;
+      }
+      i = skipWhitespace(text, i);
+      if (i >= text.length()) {
+        return -1;
+      }
+      if (text.charAt(i) == '}') {
+        return i + 1;
+      }
+      if (text.charAt(i++) != ',') {
+        return -1;
+      }
+    }
+  }
+
+  private static int array(String text, int i, int depth) {
+    if (depth > MAX_DEPTH) {
+      return -1;
+    }
+    i = skipWhitespace(text, i + 1);
+    if (i < text.length() && text.charAt(i) == ']') {
+      return i + 1;
+    }
+    while (true) {
+      i = value(text, i, depth);
+      if (i < 0) {
+        return -1;
+      }
+      i = skipWhitespace(text, i);
+      if (i >= text.length()) {
+        return -1;
+      }
+      if (text.charAt(i) == ']') {
+        return i + 1;
+      }
+      if (text.charAt(i++) != ',') {
+        return -1;
+      }
+    }
+  }
+
+  private static int string(String text, int i) {
+    if (i < 0) {
+      return -1;
+    }
+    i++;
+    while (i < text.length()) {
+      char c = text.charAt(i++);
+      if (c == '"') {
+        return i;
+      }
+      if (c < 0x20) {
+        return -1;
+      }
+      if (c == '\\') {
+        if (i >= text.length()) {
+          return -1;
+        }
+        char e = text.charAt(i++);
+        if (e == 'u') {
+          for (int end = i + 4; i < end; i++) {
+            if (i >= text.length() || Character.digit(text.charAt(i), 16) < 0) {
+              return -1;
+            }
+          }
+        } else if ("\"\\/bfnrt".indexOf(e) < 0) {
+          return -1;
+        }
+      }
+    }
+    return -1;
+  }
+
+  private static int number(String text, int i) {
+    if (text.charAt(i) == '-') {
+      i++;
+    }
+    if (i < text.length() && text.charAt(i) == '0') {
+      i++;
+    } else {
+      int start = i;
+      i = skipDigits(text, i);
+      if (i == start) {
+        return -1;
+      }
+    }
+    if (i < text.length() && text.charAt(i) == '.') {
+      int start = ++i;
+      i = skipDigits(text, i);
+      if (i == start) {
+        return -1;
+      }
+    }
+    if (i < text.length() && (text.charAt(i) == 'e' || text.charAt(i) == 'E')) {
+      i++;
+      if (i < text.length() && (text.charAt(i) == '+' || text.charAt(i) == '-')) {
+        i++;
+      }
+      int start = i;
+      i = skipDigits(text, i);
+      if (i == start) {
+        return -1;
+      }
+    }
+    return i;
+  }
+
+  private static int literal(String text, int i, String literal) {
+    return text.startsWith(literal, i) ? i + literal.length() : -1;
+  }
+
+  private static int skipDigits(String text, int i) {
+    while (i < text.length() && isDigit(text.charAt(i))) {
+      i++;
+    }
+    return i;
+  }
+
+  private static boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
+
+  private static int skipWhitespace(String text, int i) {
+    if (i < 0) {
+      return i;
+    }
+    while (i < text.length()) {
+      char c = text.charAt(i);
+      if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+        break;
+      }
+      i++;
+    }
+    return i;
+  }
+}
@@ -17,7 +17,16 @@
  */
 package org.sakaiproject.nakamura.batch;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.sakaiproject.nakamura.batch.BatchServlet.REQUESTS_PARAMETER;
@@ -26,15 +35,30 @@ import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.commons.json.JSONArray;
+import org.apache.sling.commons.json.JSONObject;
+import org.apache.sling.engine.SlingRequestProcessor;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.RequestDispatcher;
 import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 /**
@@ -45,6 +69,8 @@ public class BatchServletTest {
   private BatchServlet servlet;
   private SlingHttpServletRequest request;
   private SlingHttpServletResponse response;
+  private SlingRequestProcessor processor;
+  private ResourceResolver subResolver;
 
   @Before
   public void setUp() throws Exception {
@@ -80,4 +106,215 @@ public class BatchServletTest {
     servlet.doPost(request, response);
   }
 
+  @Test
+  public void testConcurrentRequestsKeepOrder() throws Exception {
+    // The first request finishes last, it must still come first.
+    final CountDownLatch bDone = new CountDownLatch(1);
+    activate(3, BatchServlet.DEFAULT_TIMEOUT);
+    try {
+      ByteArrayOutputStream baos = mockConcurrentBatch(new Answer<Void>() {
+        public Void answer(InvocationOnMock invocation) throws Throwable {
+          HttpServletRequest subRequest = (HttpServletRequest) invocation.getArguments()[0];
+          String path = subRequest.getRequestURI();
+          if ("/a".equals(path)) {
+            bDone.await(5, TimeUnit.SECONDS);
+          }
+          subRequest.setAttribute("sub", path);
+          ((ServletResponse) invocation.getArguments()[1]).getWriter().write(path);
+          if ("/b".equals(path)) {
+            bDone.countDown();
+          }
+          return null;
+        }
+      }, null);
+
+      verify(processor, times(3)).processRequest(any(HttpServletRequest.class),
+          any(HttpServletResponse.class), any(ResourceResolver.class));
+      verify(subResolver, times(3)).close();
+      verify(request, never()).setAttribute(anyString(), any());
+
+      JSONArray results = new JSONObject(baos.toString("UTF-8")).getJSONArray("results");
+      assertEquals(4, results.length());
+      String[] expected = new String[] { "/a", "/b", "/c", "/d" };
+      for (int i = 0; i < expected.length; i++) {
+        assertEquals(expected[i], results.getJSONObject(i).getString("url"));
+        assertEquals(expected[i], results.getJSONObject(i).getString("body"));
+      }
+    } finally {
+      servlet.deactivate();
+    }
+  }
+
+  @Test
+  public void testTimeout() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    activate(3, 100L);
+    try {
+      ByteArrayOutputStream baos = mockConcurrentBatch(new Answer<Void>() {
+        public Void answer(InvocationOnMock invocation) throws Throwable {
+          HttpServletRequest subRequest = (HttpServletRequest) invocation.getArguments()[0];
+          String path = subRequest.getRequestURI();
+          if ("/a".equals(path)) {
+            release.await(5, TimeUnit.SECONDS);
+          }
+          ((ServletResponse) invocation.getArguments()[1]).getWriter().write(path);
+          return null;
+        }
+      }, null);
+
+      JSONArray results = new JSONObject(baos.toString("UTF-8")).getJSONArray("results");
+      assertEquals(4, results.length());
+      assertEquals("/a", results.getJSONObject(0).getString("url"));
+      assertFalse(results.getJSONObject(0).getBoolean("success"));
+      assertEquals("/b", results.getJSONObject(1).getString("body"));
+      assertEquals("/d", results.getJSONObject(3).getString("body"));
+    } finally {
+      release.countDown();
+      servlet.deactivate();
+    }
+  }
+
+  @Test
+  public void testPoolShutDownDuringBatch() throws Exception {
+    activate(3, BatchServlet.DEFAULT_TIMEOUT);
+    final Thread requestThread = Thread.currentThread();
+    final Thread[] dThread = new Thread[1];
+    ByteArrayOutputStream baos = mockConcurrentBatch(new Answer<Void>() {
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        HttpServletRequest subRequest = (HttpServletRequest) invocation.getArguments()[0];
+        String path = subRequest.getRequestURI();
+        if ("/d".equals(path)) {
+          dThread[0] = Thread.currentThread();
+        }
+        ((ServletResponse) invocation.getArguments()[1]).getWriter().write(path);
+        return null;
+      }
+    }, new Answer<Void>() {
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        // reconfigured between the requests of the batch
+        servlet.activate(new HashMap<String, Object>());
+        ((ServletResponse) invocation.getArguments()[1]).getWriter().write("/c");
+        return null;
+      }
+    });
+
+    // /d was rejected by the pool it was submitted to and ran on the request thread.
+    assertSame(requestThread, dThread[0]);
+    JSONArray results = new JSONObject(baos.toString("UTF-8")).getJSONArray("results");
+    assertEquals(4, results.length());
+    assertEquals("/d", results.getJSONObject(3).getString("body"));
+    servlet.deactivate();
+  }
+
+  private void activate(int concurrency, long timeout) {
+    Map<String, Object> properties = new HashMap<String, Object>();
+    properties.put(BatchServlet.POOL_SIZE, 4);
+    properties.put(BatchServlet.CONCURRENCY, concurrency);
+    properties.put(BatchServlet.TIMEOUT, timeout);
+    servlet.activate(properties);
+  }
+
+  /**
+   * Posts a batch of GET /a, GET /b, POST /c and GET /d. The GETs are processed on
+   * resolvers of their own by the processor, the POST is dispatched on the request.
+   *
+   * @return the envelope written.
+   */
+  private ByteArrayOutputStream mockConcurrentBatch(Answer<Void> process,
+      Answer<Void> forward) throws Exception {
+    String json = "[{\"url\" : \"/a\",\"method\" : \"GET\"},"
+        + "{\"url\" : \"/b\",\"method\" : \"GET\"},"
+        + "{\"url\" : \"/c\",\"method\" : \"POST\"},"
+        + "{\"url\" : \"/d\",\"method\" : \"GET\"}]";
+    when(request.getParameter(REQUESTS_PARAMETER)).thenReturn(json);
+    ResourceResolver resourceResolver = mock(ResourceResolver.class);
+    when(request.getResourceResolver()).thenReturn(resourceResolver);
+    if (forward == null) {
+      mockDispatch(resourceResolver, "/c", null, "/c");
+    } else {
+      Resource resource = mock(Resource.class);
+      when(resource.getPath()).thenReturn("/c");
+      when(resourceResolver.resolve(request, "/c")).thenReturn(resource);
+      RequestDispatcher dispatcher = mock(RequestDispatcher.class);
+      doAnswer(forward).when(dispatcher).forward(any(ServletRequest.class),
+          any(ServletResponse.class));
+      when(request.getRequestDispatcher(resource)).thenReturn(dispatcher);
+    }
+    // Concurrent GETs are processed from scratch on a resolver of their own.
+    when(request.getRemoteUser()).thenReturn("alice");
+    when(request.getAttributeNames()).thenAnswer(new Answer<Enumeration<?>>() {
+      public Enumeration<?> answer(InvocationOnMock invocation) throws Throwable {
+        return Collections.enumeration(Collections.emptyList());
+      }
+    });
+    ResourceResolverFactory factory = mock(ResourceResolverFactory.class);
+    subResolver = mock(ResourceResolver.class);
+    when(factory.getAdministrativeResourceResolver(any(Map.class))).thenReturn(subResolver);
+    processor = mock(SlingRequestProcessor.class);
+    doAnswer(process).when(processor).processRequest(any(HttpServletRequest.class),
+        any(HttpServletResponse.class), any(ResourceResolver.class));
+    servlet.bindResourceResolverFactory(factory);
+    servlet.bindRequestProcessor(processor);
+
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    PrintWriter writer = new PrintWriter(baos);
+    when(response.getWriter()).thenReturn(writer);
+
+    servlet.doPost(request, response);
+    writer.flush();
+    return baos;
+  }
+
+  @Test
+  public void testEmbedJson() throws Exception {
+    String json = "[{\"url\" : \"/a.json\",\"method\" : \"GET\"},"
+        + "{\"url\" : \"/b.html\",\"method\" : \"GET\"},"
+        + "{\"url\" : \"/c.json\",\"method\" : \"GET\"}]";
+    when(request.getParameter(REQUESTS_PARAMETER)).thenReturn(json);
+    when(request.getParameter(BatchHelper.EMBED_JSON_PARAMETER)).thenReturn("true");
+    ResourceResolver resourceResolver = mock(ResourceResolver.class);
+    when(request.getResourceResolver()).thenReturn(resourceResolver);
+    // embedded exactly as sent, number formatting, key order and escapes included.
+    String embedded = "{\"z\": 1.50, \"foo\":\"b\\u0061r\"}";
+    mockDispatch(resourceResolver, "/a.json", "application/json; charset=utf-8", embedded);
+    mockDispatch(resourceResolver, "/b.html", "text/html", "{not json}");
+    // Balanced brackets around more than one value must not leak into the envelope.
+    String injected = "{\"foo\":\"bar\"}, \"success\": false, \"x\": {\"y\":1}";
+    mockDispatch(resourceResolver, "/c.json", "application/json", injected);
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    PrintWriter writer = new PrintWriter(baos);
+    when(response.getWriter()).thenReturn(writer);
+
+    servlet.doPost(request, response);
+    writer.flush();
+
+    String envelope = baos.toString("UTF-8");
+    assertTrue(envelope.contains("\"body\":" + embedded));
+    JSONArray results = new JSONObject(envelope).getJSONArray("results");
+    assertEquals("bar", results.getJSONObject(0).getJSONObject("body").getString("foo"));
+    assertEquals("{not json}", results.getJSONObject(1).getString("body"));
+    assertEquals(3, results.length());
+    assertEquals(injected, results.getJSONObject(2).getString("body"));
+    assertEquals(true, results.getJSONObject(2).getBoolean("success"));
+  }
+
+  private void mockDispatch(ResourceResolver resourceResolver, String path,
+      final String contentType, final String body) throws Exception {
+    Resource resource = mock(Resource.class);
+    when(resource.getPath()).thenReturn(path);
+    when(resourceResolver.resolve(request, path)).thenReturn(resource);
+    RequestDispatcher dispatcher = mock(RequestDispatcher.class);
+    doAnswer(new Answer<Void>() {
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        ServletResponse subResponse = (ServletResponse) invocation.getArguments()[1];
+        if (contentType != null) {
+          subResponse.setContentType(contentType);
+        }
+        subResponse.getWriter().write(body);
+        return null;
+      }
+    }).when(dispatcher).forward(any(ServletRequest.class), any(ServletResponse.class));
+    when(request.getRequestDispatcher(resource)).thenReturn(dispatcher);
+  }
+
 }
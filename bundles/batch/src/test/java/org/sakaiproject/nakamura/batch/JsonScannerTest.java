@@ -0,0 +1,72 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.batch;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ *
+ */
+public class JsonScannerTest {
+
+  @Test
+  public void testWellFormed() {
+    assertTrue(JsonScanner.isObjectOrArray("{}"));
+    assertTrue(JsonScanner.isObjectOrArray(" [ ]\n"));
+    assertTrue(JsonScanner.isObjectOrArray("[-0, 0.1, 10, 1.5e-3, 2E+8]"));
+    assertTrue(JsonScanner
+        .isObjectOrArray("{\"a\" : {\"b\" : [true, false, null, \"x\\u00e9\\n\\\"\"]}}"));
+  }
+
+  @Test
+  public void testNotObjectOrArray() {
+    assertFalse(JsonScanner.isObjectOrArray(""));
+    assertFalse(JsonScanner.isObjectOrArray("1"));
+    assertFalse(JsonScanner.isObjectOrArray("\"string\""));
+    assertFalse(JsonScanner.isObjectOrArray("{\"a\":1}, \"success\": false"));
+    assertFalse(JsonScanner.isObjectOrArray("{\"a\":1}{}"));
+  }
+
+  @Test
+  public void testMalformed() {
+    assertFalse(JsonScanner.isObjectOrArray("{"));
+    assertFalse(JsonScanner.isObjectOrArray("{\"a\":}"));
+    assertFalse(JsonScanner.isObjectOrArray("{\"a\":1,}"));
+    assertFalse(JsonScanner.isObjectOrArray("{a:1}"));
+    assertFalse(JsonScanner.isObjectOrArray("[1,]"));
+    assertFalse(JsonScanner.isObjectOrArray("[01]"));
+    assertFalse(JsonScanner.isObjectOrArray("[1.]"));
+    assertFalse(JsonScanner.isObjectOrArray("[1e]"));
+    assertFalse(JsonScanner.isObjectOrArray("[tru]"));
+    assertFalse(JsonScanner.isObjectOrArray("[\"\\x\"]"));
+    assertFalse(JsonScanner.isObjectOrArray("[\"\t\"]"));
+    assertFalse(JsonScanner.isObjectOrArray("[\"\\u12\"]"));
+  }
+
+  @Test
+  public void testTooDeep() {
+    StringBuilder deep = new StringBuilder();
+    for (int i = 0; i < 100000; i++) {
+      deep.append('[');
+    }
+    assertFalse(JsonScanner.isObjectOrArray(deep.toString()));
+  }
+}
@@ -0,0 +1,213 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.connections;
+
+import org.sakaiproject.nakamura.api.connections.ConnectionState;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.WeakHashMap;
+
+/**
+ * An in memory index of contact adjacency, holding for each indexed user the ids of the
+ * users they have a contact node for, grouped by {@link ConnectionState}. Entries are
+ * loaded lazily from the contact store and kept up to date by
+ * {@link ConnectionManagerImpl#connect}, changes made elsewhere (other cluster members,
+ * user deletion) are picked up when an entry expires. The number of indexed users is
+ * bounded, the least recently used entry being dropped first.
+ */
+class ConnectionIndex {
+
+  private static final String[] EMPTY = new String[0];
+
+  private static final ConnectionState[] STATES = ConnectionState.values();
+
+  /**
+   * The adjacency of a single user, one sorted array of interned ids per state. Never
+   * modified once created.
+   */
+  private static final class Adjacency {
+    private final String[][] byState;
+    private final long loaded;
+
+    private Adjacency(String[][] byState, long loaded) {
+      this.byState = byState;
+      this.loaded = loaded;
+    }
+  }
+
+  private final Map<String, Adjacency> index;
+
+  private final Map<String, WeakReference<String>> ids = new WeakHashMap<String, WeakReference<String>>();
+
+  private final long ttl;
+
+  /**
+   * Incremented by every update, an entry loaded from storage is only kept if no update
+   * happened while it was being read.
+   */
+  private long modifications;
+
+  /**
+   * @param maxUsers
+   *          the maximum number of users to hold adjacency for.
+   * @param ttl
+   *          the time in ms an entry loaded from storage is trusted for, 0 or less to
+   *          never expire entries.
+   */
+  ConnectionIndex(final int maxUsers, long ttl) {
+    this.ttl = ttl;
+    this.index = new LinkedHashMap<String, Adjacency>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Entry<String, Adjacency> eldest) {
+        return size() > maxUsers;
+      }
+    };
+  }
+
+  /**
+   * @param user
+   *          the owner of the contacts.
+   * @param state
+   *          the state of the contacts, null for all states.
+   * @return a new list of the contacts of user in the given state, or null if the user is
+   *         not indexed.
+   */
+  synchronized List<String> get(String user, ConnectionState state) {
+    Adjacency adjacency = index.get(user);
+    if (adjacency == null) {
+      return null;
+    }
+    if (ttl > 0 && System.currentTimeMillis() - adjacency.loaded > ttl) {
+      index.remove(user);
+      return null;
+    }
+    if (state != null) {
+      return new ArrayList<String>(Arrays.asList(adjacency.byState[state.ordinal()]));
+    }
+    List<String> all = new ArrayList<String>();
+    for (String[] contacts : adjacency.byState) {
+      all.addAll(Arrays.asList(contacts));
+    }
+    return all;
+  }
+
+  /**
+   * @return a stamp to pass to {@link #put} once the contacts have been read.
+   */
+  synchronized long stamp() {
+    return modifications;
+  }
+
+  /**
+   * Index the contacts of a user as read from storage.
+   *
+   * @param user
+   *          the owner of the contacts.
+   * @param contacts
+   *          the contacts of user, by state.
+   * @param stamp
+   *          the value of {@link #stamp()} before the contacts were read. If the index
+   *          has been updated since, the contacts may be stale and are not indexed.
+   */
+  synchronized void put(String user, Map<ConnectionState, List<String>> contacts, long stamp) {
+    if (stamp != modifications) {
+      return;
+    }
+    String[][] byState = new String[STATES.length][];
+    for (ConnectionState state : STATES) {
+      List<String> ofState = contacts.get(state);
+      if (ofState == null || ofState.isEmpty()) {
+        byState[state.ordinal()] = EMPTY;
+      } else {
+        String[] a = new String[ofState.size()];
+        for (int i = 0; i < a.length; i++) {
+          a[i] = intern(ofState.get(i));
+        }
+        Arrays.sort(a);
+        byState[state.ordinal()] = a;
+      }
+    }
+    index.put(intern(user), new Adjacency(byState, System.currentTimeMillis()));
+  }
+
+  /**
+   * Record that the contact node of user for other has moved to a new state. If the user
+   * is not indexed nothing is recorded, the entry will be loaded when next needed.
+   *
+   * @param user
+   *          the owner of the contact node.
+   * @param other
+   *          the contact.
+   * @param state
+   *          the new state of the contact node.
+   */
+  synchronized void update(String user, String other, ConnectionState state) {
+    modifications++;
+    Adjacency adjacency = index.get(user);
+    if (adjacency == null) {
+      return;
+    }
+    String[][] byState = adjacency.byState.clone();
+    for (int i = 0; i < byState.length; i++) {
+      int p = Arrays.binarySearch(byState[i], other);
+      if (p >= 0) {
+        String[] a = new String[byState[i].length - 1];
+        System.arraycopy(byState[i], 0, a, 0, p);
+        System.arraycopy(byState[i], p + 1, a, p, a.length - p);
+        byState[i] = a;
+      }
+    }
+    String[] current = byState[state.ordinal()];
+    int p = -(Arrays.binarySearch(current, other) + 1);
+    String[] a = new String[current.length + 1];
+    System.arraycopy(current, 0, a, 0, p);
+    a[p] = intern(other);
+    System.arraycopy(current, p, a, p + 1, current.length - p);
+    byState[state.ordinal()] = a;
+    index.put(user, new Adjacency(byState, adjacency.loaded));
+  }
+
+  /**
+   * Drop all indexed users.
+   */
+  synchronized void clear() {
+    modifications++;
+    index.clear();
+  }
+
+  /**
+   * Share a single instance of each id between all the adjacency lists that contain it.
+   */
+  private String intern(String id) {
+    WeakReference<String> ref = ids.get(id);
+    String interned = ref == null ? null : ref.get();
+    if (interned == null) {
+      interned = id;
+      ids.put(interned, new WeakReference<String>(interned));
+    }
+    return interned;
+  }
+}
@@ -35,6 +35,7 @@ import static org.sakaiproject.nakamura.api.connections.ConnectionState.REJECTED
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
@@ -42,6 +43,7 @@ import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.resource.Resource;
+import org.apache.sling.commons.osgi.OsgiUtil;
 import org.sakaiproject.nakamura.api.connections.ConnectionConstants;
 import org.sakaiproject.nakamura.api.connections.ConnectionException;
 import org.sakaiproject.nakamura.api.connections.ConnectionManager;
@@ -81,7 +83,7 @@ import java.util.Set;
 /**
  * Service for doing operations with connections.
  */
-@Component(immediate = true, description = "Service for doing operations with connections.", label = "ConnectionSearchResultProcessor")
+@Component(immediate = true, metatype = true, description = "Service for doing operations with connections.", label = "Sakai Connection Manager")
 @Properties(value = { @Property(name = "service.vendor", value = "The Sakai Foundation") })
 @Service(value = ConnectionManager.class)
 public class ConnectionManagerImpl implements ConnectionManager {
@@ -93,6 +95,13 @@ public class ConnectionManagerImpl implements ConnectionManager {
   @Reference
   protected transient Repository repository;
 
+  @Property(intValue = 10000, description = "The maximum number of users whose contacts are held in memory.")
+  static final String INDEX_SIZE = "connection.index.size";
+
+  @Property(longValue = 300000, description = "The time in ms contacts held in memory are trusted for before being reloaded, to pick up changes made on other servers, 0 or less to never reload.")
+  static final String INDEX_TTL = "connection.index.ttl";
+
+  protected ConnectionIndex connectionIndex = new ConnectionIndex(10000, 300000);
 
   private static Map<TransitionKey, StatePair> stateMap = new HashMap<TransitionKey, StatePair>();
 
@@ -121,6 +130,12 @@ public class ConnectionManagerImpl implements ConnectionManager {
     stateMap.put(tk(BLOCKED, NONE, remove), sp(NONE, NONE)); // t23
   }
 
+  @Activate
+  protected void activate(Map<String, Object> properties) {
+    connectionIndex = new ConnectionIndex(OsgiUtil.toInteger(properties.get(INDEX_SIZE),
+        10000), OsgiUtil.toLong(properties.get(INDEX_TTL), 300000));
+  }
+
   /**
    * @param pending
    * @param invited
@@ -272,6 +287,8 @@ public class ConnectionManagerImpl implements ConnectionManager {
       ContentManager contentManager = adminSession.getContentManager();
       contentManager.update(thisNode);
       contentManager.update(otherNode);
+      connectionIndex.update(thisUserId, otherUserId, getConnectionState(thisNode));
+      connectionIndex.update(otherUserId, thisUserId, getConnectionState(otherNode));
 
       if (operation == ConnectionOperation.invite) {
         throw new ConnectionException(200, "Invitation made between "
@@ -352,26 +369,80 @@ public class ConnectionManagerImpl implements ConnectionManager {
    *      org.sakaiproject.nakamura.api.connections.ConnectionState)
    */
   public List<String> getConnectedUsers(Session session, String user, ConnectionState state) {
-    List<String> connections = Lists.newArrayList();
     try {
+      // the index is shared by every caller, so it is filled with an administrative
+      // session and the callers own read access is applied to what it returns.
       ContentManager contentManager = session.getContentManager();
       String path = ConnectionUtils.getConnectionPathBase(user);
-      Content content = contentManager.get(path);
-      if (content != null) {
-        for ( Content connection : content.listChildren() ) {
-          String resourceType = (String) connection.getProperty("sling:resourceType");
-          ConnectionState connectionState = ConnectionState.valueOf((String) connection.getProperty(ConnectionConstants.SAKAI_CONNECTION_STATE));
-          if ( ConnectionConstants.SAKAI_CONTACT_RT.equals(resourceType) && state.equals(connectionState)) {
-            connections.add(StorageClientUtils.getObjectName(connection.getPath()));
-          }
+      if (contentManager.get(path) == null) {
+        return Lists.newArrayList();
+      }
+      List<String> contacts = connectionIndex.get(user, state);
+      if (contacts == null) {
+        contacts = loadConnectedUsers(user, state);
+      }
+      AccessControlManager accessControlManager = session.getAccessControlManager();
+      List<String> connections = Lists.newArrayList();
+      for (String contact : contacts) {
+        try {
+          accessControlManager.check(Security.ZONE_CONTENT, path + "/" + contact,
+              Permissions.CAN_READ);
+          connections.add(contact);
+        } catch (AccessDeniedException e) {
+          LOGGER.debug("Contact {} of {} not readable by caller ", contact, user);
         }
       }
+      return connections;
     } catch (StorageClientException e) {
       throw new IllegalStateException(e.getMessage(), e);
     } catch (AccessDeniedException e) {
       throw new IllegalStateException(e.getMessage(), e);
+    } catch (ConnectionException e) {
+      throw new IllegalStateException(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Read all the contacts of user with an administrative session and index them.
+   *
+   * @return the contacts of user in state, or in every state if state is null.
+   */
+  private List<String> loadConnectedUsers(String user, ConnectionState state)
+      throws StorageClientException, AccessDeniedException, ConnectionException {
+    Session adminSession = repository.loginAdministrative();
+    try {
+      long stamp = connectionIndex.stamp();
+      Map<ConnectionState, List<String>> contacts = new HashMap<ConnectionState, List<String>>();
+      Content content = adminSession.getContentManager().get(
+          ConnectionUtils.getConnectionPathBase(user));
+      if (content != null) {
+        for (Content connection : content.listChildren()) {
+          if (ConnectionConstants.SAKAI_CONTACT_RT.equals(connection.getProperty("sling:resourceType"))) {
+            ConnectionState connectionState = getConnectionState(connection);
+            List<String> ofState = contacts.get(connectionState);
+            if (ofState == null) {
+              ofState = Lists.newArrayList();
+              contacts.put(connectionState, ofState);
+            }
+            ofState.add(StorageClientUtils.getObjectName(connection.getPath()));
+          }
+        }
+      }
+      connectionIndex.put(user, contacts, stamp);
+      List<String> connections = Lists.newArrayList();
+      for (Entry<ConnectionState, List<String>> e : contacts.entrySet()) {
+        if (state == null || state.equals(e.getKey())) {
+          connections.addAll(e.getValue());
+        }
+      }
+      return connections;
+    } finally {
+      try {
+        adminSession.logout();
+      } catch (ClientPoolException e) {
+        LOGGER.error(e.getMessage(), e);
+      }
     }
-    return connections;
   }
 
   protected Content getOrCreateConnectionNode(Session session, Authorizable fromUser,
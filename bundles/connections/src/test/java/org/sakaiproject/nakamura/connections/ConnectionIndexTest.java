@@ -0,0 +1,89 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.connections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.connections.ConnectionState;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ *
+ */
+public class ConnectionIndexTest {
+
+  private static final Map<ConnectionState, List<String>> CONTACTS = ImmutableMap.of(
+      ConnectionState.ACCEPTED, (List<String>) Lists.newArrayList("carol", "bob"),
+      ConnectionState.INVITED, (List<String>) Lists.newArrayList("dave"));
+
+  @Test
+  public void testGet() {
+    ConnectionIndex index = new ConnectionIndex(10, 0);
+    assertNull(index.get("alice", ConnectionState.ACCEPTED));
+    index.put("alice", CONTACTS, index.stamp());
+    assertEquals(Lists.newArrayList("bob", "carol"), index.get("alice", ConnectionState.ACCEPTED));
+    assertEquals(0, index.get("alice", ConnectionState.PENDING).size());
+    assertEquals(3, index.get("alice", null).size());
+  }
+
+  @Test
+  public void testUpdate() {
+    ConnectionIndex index = new ConnectionIndex(10, 0);
+    index.update("alice", "erin", ConnectionState.PENDING);
+    assertNull(index.get("alice", ConnectionState.PENDING));
+
+    index.put("alice", CONTACTS, index.stamp());
+    index.update("alice", "dave", ConnectionState.ACCEPTED);
+    index.update("alice", "bob", ConnectionState.NONE);
+    index.update("alice", "erin", ConnectionState.PENDING);
+    assertEquals(Lists.newArrayList("carol", "dave"), index.get("alice", ConnectionState.ACCEPTED));
+    assertEquals(0, index.get("alice", ConnectionState.INVITED).size());
+    assertEquals(Lists.newArrayList("bob"), index.get("alice", ConnectionState.NONE));
+    assertEquals(Lists.newArrayList("erin"), index.get("alice", ConnectionState.PENDING));
+  }
+
+  @Test
+  public void testStalePut() {
+    ConnectionIndex index = new ConnectionIndex(10, 0);
+    long stamp = index.stamp();
+    index.update("alice", "dave", ConnectionState.ACCEPTED);
+    index.put("alice", CONTACTS, stamp);
+    assertNull(index.get("alice", ConnectionState.ACCEPTED));
+  }
+
+  @Test
+  public void testBounds() throws InterruptedException {
+    ConnectionIndex index = new ConnectionIndex(1, 0);
+    index.put("alice", CONTACTS, index.stamp());
+    index.put("bob", CONTACTS, index.stamp());
+    assertNull(index.get("alice", ConnectionState.ACCEPTED));
+    assertEquals(2, index.get("bob", ConnectionState.ACCEPTED).size());
+
+    index = new ConnectionIndex(10, 1);
+    index.put("alice", CONTACTS, index.stamp());
+    Thread.sleep(10);
+    assertNull(index.get("alice", ConnectionState.ACCEPTED));
+  }
+}
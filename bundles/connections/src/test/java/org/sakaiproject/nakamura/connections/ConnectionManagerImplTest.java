@@ -42,7 +42,11 @@ import org.sakaiproject.nakamura.api.user.UserConstants;
 import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
 import org.sakaiproject.nakamura.lite.RepositoryImpl;
 
+import com.google.common.collect.ImmutableMap;
+
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 
@@ -255,4 +259,67 @@ public class ConnectionManagerImplTest {
     assertEquals(ConnectionConstants.SAKAI_CONTACT_RT, result.getProperty("sling:resourceType"));
     assertEquals("a:alice/public/authprofile", result.getProperty("reference"));
   }
+
+  @Test
+  public void testGetConnectedUsersIndexed() throws AccessDeniedException, StorageClientException  {
+    Session session = repository.loginAdministrative();
+    ContentManager contentManager = session.getContentManager();
+    contentManager.update(new Content("a:alice/contacts", null));
+    for (String[] contact : new String[][] { { "bob", "ACCEPTED" }, { "carol", "ACCEPTED" },
+        { "dave", "PENDING" } }) {
+      contentManager.update(new Content("a:alice/contacts/" + contact[0], ImmutableMap.of(
+          "sling:resourceType", (Object) ConnectionConstants.SAKAI_CONTACT_RT,
+          ConnectionConstants.SAKAI_CONNECTION_STATE, contact[1])));
+    }
+
+    List<String> accepted = connectionManager.getConnectedUsers(session, "alice", ConnectionState.ACCEPTED);
+    Collections.sort(accepted);
+    assertEquals(2, accepted.size());
+    assertEquals("bob", accepted.get(0));
+    assertEquals("carol", accepted.get(1));
+    assertEquals(3, connectionManager.getConnectedUsers(session, "alice", null).size());
+    assertEquals(0, connectionManager.getConnectedUsers(session, "nobody", ConnectionState.ACCEPTED).size());
+
+    // once indexed the contact store is not listed again, transitions are applied to the index
+    contentManager.delete("a:alice/contacts/carol");
+    assertEquals(2, connectionManager.getConnectedUsers(session, "alice", ConnectionState.ACCEPTED).size());
+    connectionManager.connectionIndex.update("alice", "carol", ConnectionState.NONE);
+    connectionManager.connectionIndex.update("alice", "dave", ConnectionState.ACCEPTED);
+    accepted = connectionManager.getConnectedUsers(session, "alice", ConnectionState.ACCEPTED);
+    Collections.sort(accepted);
+    assertEquals(2, accepted.size());
+    assertEquals("bob", accepted.get(0));
+    assertEquals("dave", accepted.get(1));
+    assertEquals(0, connectionManager.getConnectedUsers(session, "alice", ConnectionState.PENDING).size());
+  }
+
+  @Test
+  public void testGetConnectedUsersAppliesCallersAccess() throws AccessDeniedException, StorageClientException  {
+    Session session = repository.loginAdministrative();
+    session.getAuthorizableManager().createUser("bob", "bob", "test", null);
+    ContentManager contentManager = session.getContentManager();
+    contentManager.update(new Content("a:alice/contacts", null));
+    for (String contact : new String[] { "bob", "carol", "dave" }) {
+      contentManager.update(new Content("a:alice/contacts/" + contact, ImmutableMap.of(
+          "sling:resourceType", (Object) ConnectionConstants.SAKAI_CONTACT_RT,
+          ConnectionConstants.SAKAI_CONNECTION_STATE, "ACCEPTED")));
+    }
+    session.getAccessControlManager().setAcl(Security.ZONE_CONTENT, "a:alice/contacts", new AclModification[]{
+        new AclModification(AclModification.grantKey("bob"), Permissions.CAN_READ.getPermission(), Operation.OP_REPLACE)
+    });
+    session.getAccessControlManager().setAcl(Security.ZONE_CONTENT, "a:alice/contacts/carol", new AclModification[]{
+        new AclModification(AclModification.denyKey("bob"), Permissions.CAN_READ.getPermission(), Operation.OP_REPLACE)
+    });
+    Session bobSession = repository.loginAdministrative("bob");
+
+    // the first caller fills the index, but only sees what it can read.
+    List<String> accepted = connectionManager.getConnectedUsers(bobSession, "alice", ConnectionState.ACCEPTED);
+    Collections.sort(accepted);
+    assertEquals(2, accepted.size());
+    assertEquals("bob", accepted.get(0));
+    assertEquals("dave", accepted.get(1));
+    // and does not narrow the index for later callers.
+    assertEquals(3, connectionManager.getConnectedUsers(session, "alice", ConnectionState.ACCEPTED).size());
+    assertEquals(2, connectionManager.getConnectedUsers(bobSession, "alice", null).size());
+  }
 }
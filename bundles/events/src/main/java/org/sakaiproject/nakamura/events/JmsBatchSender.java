@@ -0,0 +1,369 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.events;
+
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.events.EventDeliveryConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+/**
+ * Sends OSGi events to JMS in micro-batches. Events are queued by the bridge and picked up
+ * by a small number of sender threads, each of which owns a long lived connection,
+ * transacted session and producer. A batch is committed when it reaches the batch size or
+ * when the flush interval since its first event has passed, whichever comes first.
+ * <p>
+ * Each sender has its own queue and events are partitioned between them by topic, so the
+ * events of one topic are always sent by the same thread in the order they were queued.
+ * When a queue is full the caller waits for room rather than overtaking queued events, but
+ * only for the offer timeout. The caller is usually the event admin delivery thread, which
+ * blacklists handlers that block it for too long, so after that the event is dropped.
+ */
+class JmsBatchSender implements JmsBridgeStatisticsMBean {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(JmsBatchSender.class);
+
+  /**
+   * How long an idle sender waits for an event before checking whether it should stop.
+   */
+  private static final long IDLE_POLL = 500L;
+
+  /**
+   * The number of destinations each sender keeps.
+   */
+  private static final int MAX_DESTINATIONS = 256;
+
+  private final OsgiJmsBridge bridge;
+  private final ConnectionFactory connectionFactory;
+  private final int senders;
+  private final int batchSize;
+  private final long flushInterval;
+  private final long offerTimeout;
+  private final List<BlockingQueue<QueuedEvent>> queues = new ArrayList<BlockingQueue<QueuedEvent>>();
+  private final List<Thread> threads = new ArrayList<Thread>();
+  private volatile boolean running;
+
+  private final AtomicLong sent = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private final AtomicLong overflowed = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong batches = new AtomicLong();
+  private final AtomicLong totalLatency = new AtomicLong();
+  private final AtomicLong maxLatency = new AtomicLong();
+
+  /**
+   * @param bridge
+   *          the bridge that turns events into messages.
+   * @param connectionFactory
+   *          the factory to create the long lived connections with.
+   * @param senders
+   *          the number of sender threads, each with its own connection and session.
+   * @param batchSize
+   *          the maximum number of events committed in one transaction.
+   * @param flushInterval
+   *          the maximum time in ms the first event of a batch waits for others.
+   * @param queueSize
+   *          the maximum number of events waiting to be sent, shared between the senders.
+   * @param offerTimeout
+   *          the longest time in ms a caller waits for room in a full queue.
+   */
+  JmsBatchSender(OsgiJmsBridge bridge, ConnectionFactory connectionFactory, int senders,
+      int batchSize, long flushInterval, int queueSize, long offerTimeout) {
+    this.bridge = bridge;
+    this.connectionFactory = connectionFactory;
+    this.senders = Math.max(1, senders);
+    this.batchSize = Math.max(1, batchSize);
+    this.flushInterval = Math.max(0L, flushInterval);
+    this.offerTimeout = Math.max(0L, offerTimeout);
+    int perSender = Math.max(1, (queueSize + this.senders - 1) / this.senders);
+    for (int i = 0; i < this.senders; i++) {
+      queues.add(new LinkedBlockingQueue<QueuedEvent>(perSender));
+    }
+  }
+
+  synchronized void start() {
+    running = true;
+    for (int i = 0; i < senders; i++) {
+      Thread t = new Thread(new Sender(queues.get(i)), "OsgiJmsBridge-sender-" + i);
+      t.setDaemon(true);
+      t.start();
+      threads.add(t);
+    }
+  }
+
+  /**
+   * Stops accepting events, sends what is already queued and closes the connections.
+   */
+  synchronized void stop() {
+    running = false;
+    for (Thread t : threads) {
+      try {
+        t.join(IDLE_POLL + flushInterval + 5000L);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+      if (t.isAlive()) {
+        LOGGER.warn("Sender {} did not stop, {} events may be lost", t.getName(),
+            getQueueDepth());
+        t.interrupt();
+      }
+    }
+    threads.clear();
+  }
+
+  /**
+   * Queue an event on the sender of its topic, waiting up to the offer timeout for room if
+   * that queue is full. An event that still finds no room is dropped.
+   *
+   * @param event
+   *          the event to queue.
+   * @return true if the event was queued or dropped, false if the sender is stopped (or the
+   *         caller is interrupted) and the caller should send the event itself.
+   */
+  boolean offer(Event event) {
+    BlockingQueue<QueuedEvent> queue = queues.get(partition(event));
+    QueuedEvent queuedEvent = new QueuedEvent(event);
+    if (running && queue.offer(queuedEvent)) {
+      return true;
+    }
+    try {
+      overflowed.incrementAndGet();
+      long deadline = System.currentTimeMillis() + offerTimeout;
+      while (running) {
+        long wait = Math.min(IDLE_POLL, deadline - System.currentTimeMillis());
+        if (wait <= 0) {
+          long d = dropped.incrementAndGet();
+          if (d == 1 || d % 1000 == 0) {
+            LOGGER.warn("JMS is not keeping up, dropped an event on {} after {} ms, {} "
+                + "dropped in all", new Object[] { event.getTopic(), offerTimeout, d });
+          }
+          return true;
+        }
+        if (queue.offer(queuedEvent, wait, TimeUnit.MILLISECONDS)) {
+          return true;
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    return false;
+  }
+
+  /**
+   * @return the index of the sender that sends every event with the topic of this event.
+   */
+  private int partition(Event event) {
+    String topic = event.getTopic();
+    int hash = topic == null ? 0 : topic.hashCode();
+    return (hash & Integer.MAX_VALUE) % senders;
+  }
+
+  public int getQueueDepth() {
+    int depth = 0;
+    for (BlockingQueue<QueuedEvent> queue : queues) {
+      depth += queue.size();
+    }
+    return depth;
+  }
+
+  public long getSent() {
+    return sent.get();
+  }
+
+  public long getFailed() {
+    return failed.get();
+  }
+
+  public long getOverflowed() {
+    return overflowed.get();
+  }
+
+  public long getDropped() {
+    return dropped.get();
+  }
+
+  public long getBatches() {
+    return batches.get();
+  }
+
+  public double getAverageLatency() {
+    long n = sent.get();
+    return n == 0 ? 0.0 : (double) totalLatency.get() / n;
+  }
+
+  public long getMaxLatency() {
+    return maxLatency.get();
+  }
+
+  private void recordLatency(long latency) {
+    totalLatency.addAndGet(latency);
+    long max = maxLatency.get();
+    while (latency > max && !maxLatency.compareAndSet(max, latency)) {
+      max = maxLatency.get();
+    }
+  }
+
+  private static final class QueuedEvent {
+    private final Event event;
+    private final long queued = System.currentTimeMillis();
+
+    QueuedEvent(Event event) {
+      this.event = event;
+    }
+  }
+
+  /**
+   * A sender thread. The session and producer are only ever used by this thread.
+   */
+  private final class Sender implements Runnable {
+
+    private final BlockingQueue<QueuedEvent> queue;
+    private Connection connection;
+    private Session session;
+    private MessageProducer producer;
+    private final Map<String, Destination> destinations = new LinkedHashMap<String, Destination>(
+        16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Entry<String, Destination> eldest) {
+        return size() > MAX_DESTINATIONS;
+      }
+    };
+
+    Sender(BlockingQueue<QueuedEvent> queue) {
+      this.queue = queue;
+    }
+
+    public void run() {
+      List<QueuedEvent> batch = new ArrayList<QueuedEvent>(batchSize);
+      try {
+        while (running || !queue.isEmpty()) {
+          QueuedEvent first = queue.poll(IDLE_POLL, TimeUnit.MILLISECONDS);
+          if (first == null) {
+            continue;
+          }
+          batch.add(first);
+          long deadline = first.queued + flushInterval;
+          while (batch.size() < batchSize) {
+            if (queue.drainTo(batch, batchSize - batch.size()) > 0) {
+              continue;
+            }
+            long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0) {
+              break;
+            }
+            QueuedEvent next = queue.poll(wait, TimeUnit.MILLISECONDS);
+            if (next == null) {
+              break;
+            }
+            batch.add(next);
+          }
+          send(batch);
+          batch.clear();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        if (!batch.isEmpty()) {
+          send(batch);
+        }
+      } finally {
+        close();
+      }
+    }
+
+    private void send(List<QueuedEvent> batch) {
+      try {
+        if (session == null) {
+          connection = connectionFactory.createConnection();
+          session = connection.createSession(true, Session.SESSION_TRANSACTED);
+          producer = session.createProducer(null);
+        }
+        for (QueuedEvent queuedEvent : batch) {
+          Message msg = bridge.createMessage(session, queuedEvent.event);
+          producer.send(getDestination(queuedEvent.event), msg, msg.getJMSDeliveryMode(),
+              Message.DEFAULT_PRIORITY, Message.DEFAULT_TIME_TO_LIVE);
+        }
+        session.commit();
+        long now = System.currentTimeMillis();
+        for (QueuedEvent queuedEvent : batch) {
+          recordLatency(now - queuedEvent.queued);
+        }
+        sent.addAndGet(batch.size());
+        batches.incrementAndGet();
+      } catch (JMSException e) {
+        failed.addAndGet(batch.size());
+        bridge.logJmsException(e);
+        // Start again with a new connection on the next batch, closing the session rolls
+        // back anything sent in this one.
+        close();
+      }
+    }
+
+    private Destination getDestination(Event event) throws JMSException {
+      String key = event.getProperty(EventDeliveryConstants.DELIVERY_MODE) + ":"
+          + event.getTopic();
+      Destination destination = destinations.get(key);
+      if (destination == null) {
+        destination = bridge.createDestination(session, event);
+        destinations.put(key, destination);
+      }
+      return destination;
+    }
+
+    private void close() {
+      destinations.clear();
+      producer = null;
+      if (session != null) {
+        try {
+          session.close();
+        } catch (Exception e) {
+          LOGGER.debug(e.getMessage(), e);
+        }
+        session = null;
+      }
+      if (connection != null) {
+        try {
+          connection.close();
+        } catch (Exception e) {
+          LOGGER.debug(e.getMessage(), e);
+        }
+        connection = null;
+      }
+    }
+  }
+}
@@ -0,0 +1,67 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.events;
+
+/**
+ * Queue depth, throughput and send latency of the batched OSGi to JMS bridge, published
+ * over JMX.
+ */
+public interface JmsBridgeStatisticsMBean {
+
+  /**
+   * @return the number of events waiting to be sent.
+   */
+  int getQueueDepth();
+
+  /**
+   * @return the number of events committed to JMS.
+   */
+  long getSent();
+
+  /**
+   * @return the number of events lost because their batch failed to send.
+   */
+  long getFailed();
+
+  /**
+   * @return the number of events whose caller had to wait because their queue was full.
+   */
+  long getOverflowed();
+
+  /**
+   * @return the number of events dropped because their queue stayed full for the offer
+   *         timeout.
+   */
+  long getDropped();
+
+  /**
+   * @return the number of batches committed.
+   */
+  long getBatches();
+
+  /**
+   * @return the mean time in ms from an event being queued to its batch being committed.
+   */
+  double getAverageLatency();
+
+  /**
+   * @return the longest time in ms from an event being queued to its batch being committed.
+   */
+  long getMaxLatency();
+
+}
@@ -21,6 +21,7 @@ import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.OsgiUtil;
 import org.osgi.service.component.ComponentContext;
 import org.osgi.service.event.Event;
 import org.osgi.service.event.EventConstants;
@@ -34,6 +35,7 @@ import org.sakaiproject.nakamura.api.events.EventDeliveryConstants.EventMessageM
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.lang.management.ManagementFactory;
 import java.util.Dictionary;
 import java.util.HashSet;
 import java.util.List;
@@ -47,6 +49,10 @@ import javax.jms.JMSException;
 import javax.jms.Message;
 import javax.jms.MessageProducer;
 import javax.jms.Session;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 
 /**
  * Bridge to send OSGi events onto a JMS topic.
@@ -71,6 +77,26 @@ public class OsgiJmsBridge implements EventHandler {
   @Property(value = {"org/osgi/service/log/LogEntry/LOG_DEBUG", "org/osgi/service/log/LogEntry/LOG_INFO", "org/osgi/service/log/LogEntry/LOG_TRACE"})
   private static final String IGNORE_EVENT_TOPICS = "bridge.ignore.event.topics";
 
+  @Property(boolValue = false)
+  static final String BATCHED = "bridge.batched";
+
+  @Property(intValue = 2)
+  static final String SENDERS = "bridge.senders";
+
+  @Property(intValue = 100)
+  static final String BATCH_SIZE = "bridge.batch.size";
+
+  @Property(longValue = 50L)
+  static final String FLUSH_INTERVAL = "bridge.flush.interval";
+
+  @Property(intValue = 10000)
+  static final String QUEUE_SIZE = "bridge.queue.size";
+
+  @Property(longValue = 1000L)
+  static final String OFFER_TIMEOUT = "bridge.offer.timeout";
+
+  private static final String STATISTICS_NAME = "org.sakaiproject.nakamura.events:type=JmsBridgeStatistics";
+
   private Set<String> ignoreEventTopics = new HashSet<String>();
 
 
@@ -89,6 +115,11 @@ public class OsgiJmsBridge implements EventHandler {
 
   private String serverId;
 
+  /**
+   * Sends events in batches when the bridge is in batched mode, null otherwise.
+   */
+  private volatile JmsBatchSender batchSender;
+
   /**
    * Default constructor.
    */
@@ -134,6 +165,21 @@ public class OsgiJmsBridge implements EventHandler {
 
     LOGGER.info("Session Transacted: {}, Acknowledge Mode: {}, " + "Client ID: {}",
         new Object[] { transacted, acknowledgeMode, connectionClientId });
+
+    stopBatchSender();
+    if (OsgiUtil.toBoolean(props.get(BATCHED), false)) {
+      int senders = OsgiUtil.toInteger(props.get(SENDERS), 2);
+      int batchSize = OsgiUtil.toInteger(props.get(BATCH_SIZE), 100);
+      long flushInterval = OsgiUtil.toLong(props.get(FLUSH_INTERVAL), 50L);
+      int queueSize = OsgiUtil.toInteger(props.get(QUEUE_SIZE), 10000);
+      long offerTimeout = OsgiUtil.toLong(props.get(OFFER_TIMEOUT), 1000L);
+      batchSender = new JmsBatchSender(this, connFactoryService.getDefaultConnectionFactory(),
+          senders, batchSize, flushInterval, queueSize, offerTimeout);
+      batchSender.start();
+      registerStatistics(batchSender);
+      LOGGER.info("Batching events with {} senders, batch size {}, flush interval {}ms",
+          new Object[] { senders, batchSize, flushInterval });
+    }
   }
 
   /**
@@ -142,6 +188,48 @@ public class OsgiJmsBridge implements EventHandler {
    * @param ctx
    */
   protected void deactivate(ComponentContext ctx) {
+    stopBatchSender();
+  }
+
+  private void stopBatchSender() {
+    if (batchSender != null) {
+      unregisterStatistics();
+      batchSender.stop();
+      batchSender = null;
+    }
+  }
+
+  private void registerStatistics(JmsBatchSender sender) {
+    try {
+      ObjectName objectName = new ObjectName(STATISTICS_NAME);
+      MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+      if (!mBeanServer.isRegistered(objectName)) {
+        mBeanServer.registerMBean(new StandardMBean(sender, JmsBridgeStatisticsMBean.class),
+            objectName);
+      }
+    } catch (JMException e) {
+      LOGGER.debug("Unable to publish bridge statistics: {} ", e.getMessage());
+    }
+  }
+
+  private void unregisterStatistics() {
+    try {
+      ObjectName objectName = new ObjectName(STATISTICS_NAME);
+      MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+      if (mBeanServer.isRegistered(objectName)) {
+        mBeanServer.unregisterMBean(objectName);
+      }
+    } catch (JMException e) {
+      LOGGER.debug(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * @return the statistics of the batched sender, null if the bridge sends each event as
+   *         it arrives.
+   */
+  JmsBridgeStatisticsMBean getStatistics() {
+    return batchSender;
   }
 
   /**
@@ -155,6 +243,11 @@ public class OsgiJmsBridge implements EventHandler {
       // Ignore Log messages in jms.
       return;
     }
+    JmsBatchSender sender = batchSender;
+    if (sender != null && sender.offer(event)) {
+      return;
+    }
+    // Not batching, or the batch sender has stopped, send it now.
     Connection conn = null;
 
     LOGGER.debug("Processing event {}", event);
@@ -166,11 +259,6 @@ public class OsgiJmsBridge implements EventHandler {
       // post to JMS
       // Sessions are not thread safe, so we need to create and destroy a session, for
       // sending.
-      EventDeliveryMode deliveryMode = (EventDeliveryMode) event
-          .getProperty(EventDeliveryConstants.DELIVERY_MODE);
-      EventMessageMode messageMode = (EventMessageMode) event
-          .getProperty(EventDeliveryConstants.MESSAGE_MODE);
-
       EventAcknowledgeMode acknowledgeModeForEvent = (EventAcknowledgeMode) event
           .getProperty(EventDeliveryConstants.ACKNOWLEDGE_MODE);
 
@@ -191,70 +279,16 @@ public class OsgiJmsBridge implements EventHandler {
 
       clientSession = conn.createSession(transacted, clientAcknowledgeMode);
 
-      Message msg = clientSession.createMessage();
-
-      // may need to set a delivery mode eg persistent for certain types of messages.
-      // this should be specified in the OSGi event.
-      if (messageMode != null) {
-        switch (messageMode) {
-        case PERSISTENT:
-          msg.setJMSDeliveryMode(DeliveryMode.PERSISTENT);
-          break;
-        case NON_PERSISTENT:
-        default:
-          msg.setJMSDeliveryMode(DeliveryMode.NON_PERSISTENT);
-          break;
-        }
-      } else {
-        msg.setJMSDeliveryMode(DeliveryMode.NON_PERSISTENT);
-      }
-
-      Destination destination = null;
-      if (deliveryMode != null) {
-        switch (deliveryMode) {
-        case P2P:
-          destination = clientSession.createQueue(event.getTopic());
-          break;
-        case BROADCAST:
-        default:
-          destination = clientSession.createTopic(event.getTopic());
-          break;
-        }
-      } else {
-        destination = clientSession.createTopic(event.getTopic());
-      }
+      Message msg = createMessage(clientSession, event);
+      Destination destination = createDestination(clientSession, event);
       MessageProducer producer = clientSession.createProducer(destination);
-      msg.setJMSType(event.getTopic());
-
-      for (String name : event.getPropertyNames()) {
-        Object obj = event.getProperty(name);
-        // "Only objectified primitive objects, String, Map and List types are
-        // allowed" as stated by an exception when putting something into the
-        // message that was not of one of these types.
-        if (obj instanceof Byte || obj instanceof Boolean || obj instanceof Character
-            || obj instanceof Number || obj instanceof Map || obj instanceof String
-            || obj instanceof List) {
-          msg.setObjectProperty(name, obj);
-        }
-      }
-
-      msg.setStringProperty("clusterServerId", serverId);
 
       // add the current user
 
       LOGGER.debug("Sending Message {} to {}  ",msg, destination);
       producer.send(msg);
     } catch (JMSException e) {
-      Throwable t = e.getCause();
-      if ( t != null && t.getClass().getName().equals("org.apache.activemq.transport.TransportDisposedIOException") ) {
-        if ( (System.currentTimeMillis() - lastMessage) > 15000L ) {
-          lastMessage = System.currentTimeMillis();
-          LOGGER.info("Transport disposed, probably on shutdown, use debug level logging to see more :{} ", e.getMessage());
-        }
-        LOGGER.debug(e.getMessage(), e);
-      } else {
-        LOGGER.error(e.getMessage(), e);
-      }
+      logJmsException(e);
     } finally {
       try {
         if (conn != null) {
@@ -273,4 +307,89 @@ public class OsgiJmsBridge implements EventHandler {
     }
   }
 
+  /**
+   * Creates the message for an event, carrying the event properties JMS can hold.
+   *
+   * @param session
+   *          the session to create the message with.
+   * @param event
+   *          the event to send.
+   * @return the message, ready to be sent.
+   * @throws JMSException
+   */
+  Message createMessage(Session session, Event event) throws JMSException {
+    EventMessageMode messageMode = (EventMessageMode) event
+        .getProperty(EventDeliveryConstants.MESSAGE_MODE);
+
+    Message msg = session.createMessage();
+
+    // may need to set a delivery mode eg persistent for certain types of messages.
+    // this should be specified in the OSGi event.
+    if (messageMode != null) {
+      switch (messageMode) {
+      case PERSISTENT:
+        msg.setJMSDeliveryMode(DeliveryMode.PERSISTENT);
+        break;
+      case NON_PERSISTENT:
+      default:
+        msg.setJMSDeliveryMode(DeliveryMode.NON_PERSISTENT);
+        break;
+      }
+    } else {
+      msg.setJMSDeliveryMode(DeliveryMode.NON_PERSISTENT);
+    }
+    msg.setJMSType(event.getTopic());
+
+    for (String name : event.getPropertyNames()) {
+      Object obj = event.getProperty(name);
+      // "Only objectified primitive objects, String, Map and List types are
+      // allowed" as stated by an exception when putting something into the
+      // message that was not of one of these types.
+      if (obj instanceof Byte || obj instanceof Boolean || obj instanceof Character
+          || obj instanceof Number || obj instanceof Map || obj instanceof String
+          || obj instanceof List) {
+        msg.setObjectProperty(name, obj);
+      }
+    }
+
+    msg.setStringProperty("clusterServerId", serverId);
+    return msg;
+  }
+
+  /**
+   * @param session
+   *          the session to create the destination with.
+   * @param event
+   *          the event to send.
+   * @return the queue or topic named after the event topic, depending on the delivery
+   *         mode of the event.
+   * @throws JMSException
+   */
+  Destination createDestination(Session session, Event event) throws JMSException {
+    EventDeliveryMode deliveryMode = (EventDeliveryMode) event
+        .getProperty(EventDeliveryConstants.DELIVERY_MODE);
+    if (deliveryMode == EventDeliveryMode.P2P) {
+      return session.createQueue(event.getTopic());
+    }
+    return session.createTopic(event.getTopic());
+  }
+
+  /**
+   * Logs a failure to send, quietly when the broker is going away.
+   *
+   * @param e
+   */
+  void logJmsException(JMSException e) {
+    Throwable t = e.getCause();
+    if ( t != null && t.getClass().getName().equals("org.apache.activemq.transport.TransportDisposedIOException") ) {
+      if ( (System.currentTimeMillis() - lastMessage) > 15000L ) {
+        lastMessage = System.currentTimeMillis();
+        LOGGER.info("Transport disposed, probably on shutdown, use debug level logging to see more :{} ", e.getMessage());
+      }
+      LOGGER.debug(e.getMessage(), e);
+    } else {
+      LOGGER.error(e.getMessage(), e);
+    }
+  }
+
 }
@@ -0,0 +1,223 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.events;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.service.component.ComponentContext;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.activemq.ConnectionFactoryService;
+import org.sakaiproject.nakamura.api.cluster.ClusterTrackingService;
+
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.Session;
+
+/**
+ * Sends events through the batched bridge to an embedded broker over the vm:// transport.
+ */
+public class OsgiJmsBridgeBatchedTest {
+
+  private static final String TOPIC = "org/sakaiproject/nakamura/events/test";
+
+  private ActiveMQConnectionFactory connectionFactory;
+  private Connection connection;
+  private OsgiJmsBridge bridge;
+
+  @Before
+  public void setUp() throws Exception {
+    connectionFactory = new ActiveMQConnectionFactory(
+        "vm://bridgetest?broker.persistent=false&broker.useJmx=false");
+    // Keep the embedded broker alive for the length of the test.
+    connection = connectionFactory.createConnection();
+    connection.start();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    if (bridge != null) {
+      bridge.deactivate(null);
+    }
+    connection.close();
+  }
+
+  @Test
+  public void testBatchedSend() throws Exception {
+    Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+    MessageConsumer consumer = session.createConsumer(session.createTopic(TOPIC));
+
+    activateBridge(10);
+    int count = 95;
+    for (int i = 0; i < count; i++) {
+      Hashtable<String, Object> properties = new Hashtable<String, Object>();
+      properties.put("n", i);
+      bridge.handleEvent(new Event(TOPIC, properties));
+    }
+
+    Set<Integer> received = new HashSet<Integer>();
+    for (int i = 0; i < count; i++) {
+      Message message = consumer.receive(5000L);
+      assertNotNull("Missing message after " + i, message);
+      assertEquals(TOPIC, message.getJMSType());
+      assertEquals("CurrentServerID", message.getStringProperty("clusterServerId"));
+      received.add(message.getIntProperty("n"));
+    }
+    assertEquals(count, received.size());
+
+    JmsBridgeStatisticsMBean statistics = bridge.getStatistics();
+    assertEquals(count, statistics.getSent());
+    assertEquals(0L, statistics.getFailed());
+    assertEquals(0, statistics.getQueueDepth());
+  }
+
+  @Test
+  public void testTopicOrderIsKeptWhenQueuesAreFull() throws Exception {
+    String otherTopic = TOPIC + "/other";
+    Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+    MessageConsumer consumer = session.createConsumer(session.createTopic(TOPIC));
+    MessageConsumer otherConsumer = session.createConsumer(session.createTopic(otherTopic));
+
+    // tiny queues so that most events wait for room.
+    activateBridge(10, 2);
+    int count = 200;
+    for (int i = 0; i < count; i++) {
+      Hashtable<String, Object> properties = new Hashtable<String, Object>();
+      properties.put("n", i);
+      bridge.handleEvent(new Event(i % 2 == 0 ? TOPIC : otherTopic, properties));
+    }
+
+    for (MessageConsumer c : new MessageConsumer[] { consumer, otherConsumer }) {
+      int last = -1;
+      for (int i = 0; i < count / 2; i++) {
+        Message message = c.receive(5000L);
+        assertNotNull("Missing message after " + i, message);
+        int n = message.getIntProperty("n");
+        assertTrue("Message " + n + " arrived after " + last, n > last);
+        last = n;
+      }
+    }
+    assertEquals(count, bridge.getStatistics().getSent());
+  }
+
+  @Test
+  public void testDeactivateSendsQueuedEvents() throws Exception {
+    Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+    MessageConsumer consumer = session.createConsumer(session.createTopic(TOPIC));
+
+    activateBridge(1000);
+    bridge.handleEvent(new Event(TOPIC, new Hashtable<String, Object>()));
+    bridge.deactivate(null);
+    bridge = null;
+
+    assertNotNull(consumer.receive(5000L));
+  }
+
+  @Test
+  public void testEventsAreDroppedWhenQueueStaysFull() throws Exception {
+    Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+    MessageConsumer consumer = session.createConsumer(session.createTopic(TOPIC));
+
+    // the sender blocks on its first connection, so its queue of one event fills up.
+    final CountDownLatch release = new CountDownLatch(1);
+    ConnectionFactory blocking = new ConnectionFactory() {
+      public Connection createConnection() throws JMSException {
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        return connectionFactory.createConnection();
+      }
+
+      public Connection createConnection(String user, String password) throws JMSException {
+        return createConnection();
+      }
+    };
+    activateBridge(10, 2, 100L, blocking);
+    int count = 5;
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < count; i++) {
+      bridge.handleEvent(new Event(TOPIC, new Hashtable<String, Object>()));
+    }
+    // every event came back from handleEvent within its offer timeout.
+    assertTrue(System.currentTimeMillis() - start < count * 1000L);
+    JmsBridgeStatisticsMBean statistics = bridge.getStatistics();
+    long dropped = statistics.getDropped();
+    assertTrue("Dropped " + dropped, dropped >= count - 2);
+
+    release.countDown();
+    for (int i = 0; i < count - dropped; i++) {
+      assertNotNull("Missing message after " + i, consumer.receive(5000L));
+    }
+    bridge.deactivate(null);
+    assertEquals(count, statistics.getSent() + dropped);
+    bridge = null;
+  }
+
+  private void activateBridge(long flushInterval) {
+    activateBridge(flushInterval, 10000);
+  }
+
+  private void activateBridge(long flushInterval, int queueSize) {
+    activateBridge(flushInterval, queueSize, 5000L, connectionFactory);
+  }
+
+  private void activateBridge(long flushInterval, int queueSize, long offerTimeout,
+      ConnectionFactory factory) {
+    ConnectionFactoryService connFactoryService = createMock(ConnectionFactoryService.class);
+    expect(connFactoryService.getDefaultConnectionFactory()).andReturn(factory)
+        .anyTimes();
+    ClusterTrackingService clusterTrackingService = createMock(ClusterTrackingService.class);
+    expect(clusterTrackingService.getCurrentServerId()).andReturn("CurrentServerID");
+
+    Hashtable<Object, Object> props = new Hashtable<Object, Object>();
+    props.put(OsgiJmsBridge.ACKNOWLEDGE_MODE, Session.AUTO_ACKNOWLEDGE);
+    props.put(OsgiJmsBridge.CONNECTION_CLIENT_ID, "sakai.event.bridge");
+    props.put(OsgiJmsBridge.SESSION_TRANSACTED, false);
+    props.put(OsgiJmsBridge.BATCHED, true);
+    props.put(OsgiJmsBridge.SENDERS, 2);
+    props.put(OsgiJmsBridge.BATCH_SIZE, 20);
+    props.put(OsgiJmsBridge.FLUSH_INTERVAL, flushInterval);
+    props.put(OsgiJmsBridge.QUEUE_SIZE, queueSize);
+    props.put(OsgiJmsBridge.OFFER_TIMEOUT, offerTimeout);
+    ComponentContext ctx = createMock(ComponentContext.class);
+    expect(ctx.getProperties()).andReturn(props);
+    replay(connFactoryService, clusterTrackingService, ctx);
+
+    bridge = new OsgiJmsBridge(connFactoryService);
+    bridge.clusterTrackingService = clusterTrackingService;
+    bridge.activate(ctx);
+  }
+}
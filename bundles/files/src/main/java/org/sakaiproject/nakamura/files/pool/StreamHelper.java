@@ -1,19 +1,32 @@
 package org.sakaiproject.nakamura.files.pool;
 
 import static javax.servlet.http.HttpServletResponse.SC_NOT_MODIFIED;
+import static javax.servlet.http.HttpServletResponse.SC_OK;
+import static javax.servlet.http.HttpServletResponse.SC_PARTIAL_CONTENT;
+import static javax.servlet.http.HttpServletResponse.SC_PRECONDITION_FAILED;
+import static javax.servlet.http.HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE;
 import static org.apache.sling.api.servlets.HttpConstants.HEADER_IF_MODIFIED_SINCE;
 import static org.apache.sling.api.servlets.HttpConstants.HEADER_LAST_MODIFIED;
 
-import org.apache.commons.io.IOUtils;
 import org.apache.sling.api.resource.Resource;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.util.StringUtils;
 
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
 
 import javax.jcr.RepositoryException;
@@ -23,25 +36,352 @@ import javax.servlet.http.HttpServletResponse;
 
 public class StreamHelper {
 
-  public void stream(HttpServletRequest request, ContentManager contentManager, Content node, String alternativeStream, HttpServletResponse response, Resource resource, ServletContext servletContext) throws IOException, StorageClientException, AccessDeniedException {
-    InputStream dataStream = contentManager.getInputStream(node.getPath(), alternativeStream);
+  private static final String BODY_LOCATION = "_bodyLocation";
+
+  /**
+   * Requests for more ranges than this are answered with the whole body.
+   */
+  private static final int MAX_RANGES = 32;
+
+  private static final String BOUNDARY = "SAKAI_BYTERANGE_BOUNDARY";
 
-    if ( dataStream == null ) {
-      response.sendError(HttpServletResponse.SC_NOT_FOUND);
-      return;
+  private static final Comparator<long[]> RANGE_ORDER = new Comparator<long[]>() {
+    public int compare(long[] o1, long[] o2) {
+      return o1[0] < o2[0] ? -1 : (o1[0] == o2[0] ? 0 : 1);
     }
-    
+  };
+
+  public void stream(HttpServletRequest request, ContentManager contentManager, Content node, String alternativeStream, HttpServletResponse response, Resource resource, ServletContext servletContext) throws IOException, StorageClientException, AccessDeniedException {
     Map<String, Object> properties = node.getProperties();
     long modifTime = StorageClientUtils.toLong(properties.get(StorageClientUtils.getAltField(Content.LASTMODIFIED_FIELD, alternativeStream)));
+    long length = StorageClientUtils.toLong(properties.get(StorageClientUtils.getAltField(Content.LENGTH_FIELD, alternativeStream)));
+    String etag = getETag(properties, alternativeStream, modifTime, length);
+
+    InputStream dataStream = null;
+    if (etag == null) {
+      // without a body location we only know there is a body once it has been opened.
+      dataStream = contentManager.getInputStream(node.getPath(), alternativeStream);
+      if ( dataStream == null ) {
+        response.sendError(HttpServletResponse.SC_NOT_FOUND);
+        return;
+      }
+    }
+
+    try {
+      // Conditional requests are answered from the properties, before the body is opened.
+      int status = checkConditions(request, etag, modifTime);
+      if (status != SC_OK) {
+        if (etag != null) {
+          response.setHeader("ETag", etag);
+        }
+        if (status == SC_NOT_MODIFIED) {
+          response.setStatus(SC_NOT_MODIFIED);
+        } else {
+          response.sendError(status);
+        }
+        return;
+      }
+
+      List<long[]> ranges = null;
+      if (length > 0 && ifRange(request, etag, modifTime)) {
+        ranges = getRanges(request.getHeader("Range"), length);
+        if (ranges != null && ranges.isEmpty()) {
+          response.setHeader("Content-Range", "bytes */" + length);
+          response.sendError(SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+          return;
+        }
+      }
+
+      if (dataStream == null) {
+        dataStream = contentManager.getInputStream(node.getPath(), alternativeStream);
+        if ( dataStream == null ) {
+          response.sendError(HttpServletResponse.SC_NOT_FOUND);
+          return;
+        }
+      }
+
+      setHeaders(properties, resource, response, alternativeStream, servletContext);
+      if (etag != null) {
+        response.setHeader("ETag", etag);
+      }
+      if (length > 0) {
+        response.setHeader("Accept-Ranges", "bytes");
+      }
+      if (ranges == null) {
+        setContentLength(properties, response, alternativeStream);
+        copy(dataStream, 0, 0, -1, response.getOutputStream());
+      } else if (ranges.size() == 1) {
+        long[] range = ranges.get(0);
+        response.setStatus(SC_PARTIAL_CONTENT);
+        response.setHeader("Content-Range", "bytes " + range[0] + "-" + range[1] + "/"
+            + length);
+        setContentLength(response, range[1] - range[0] + 1);
+        copy(dataStream, 0, range[0], range[1] - range[0] + 1, response.getOutputStream());
+      } else {
+        streamRanges(dataStream, ranges, length, properties, alternativeStream, response);
+      }
+    } finally {
+      if (dataStream != null) {
+        dataStream.close();
+      }
+    }
+  }
+
+  /**
+   * Sends several ranges as a multipart/byteranges body.
+   */
+  private void streamRanges(InputStream dataStream, List<long[]> ranges, long length,
+      Map<String, Object> properties, String alternativeStream,
+      HttpServletResponse response) throws IOException {
+    String contentType = (String) properties.get(StorageClientUtils.getAltField(Content.MIMETYPE_FIELD, alternativeStream));
+    List<byte[]> partHeaders = new ArrayList<byte[]>();
+    long contentLength = 0;
+    for (long[] range : ranges) {
+      StringBuilder header = new StringBuilder();
+      header.append("\r\n--").append(BOUNDARY).append("\r\n");
+      if (contentType != null) {
+        header.append("Content-Type: ").append(contentType).append("\r\n");
+      }
+      header.append("Content-Range: bytes ").append(range[0]).append("-").append(range[1])
+          .append("/").append(length).append("\r\n\r\n");
+      byte[] bytes = header.toString().getBytes("ISO-8859-1");
+      partHeaders.add(bytes);
+      contentLength += bytes.length + range[1] - range[0] + 1;
+    }
+    byte[] end = ("\r\n--" + BOUNDARY + "--\r\n").getBytes("ISO-8859-1");
+    contentLength += end.length;
+
+    response.setStatus(SC_PARTIAL_CONTENT);
+    response.setContentType("multipart/byteranges; boundary=" + BOUNDARY);
+    setContentLength(response, contentLength);
+    OutputStream out = response.getOutputStream();
+    long position = 0;
+    for (int i = 0; i < ranges.size(); i++) {
+      long[] range = ranges.get(i);
+      out.write(partHeaders.get(i));
+      position = copy(dataStream, position, range[0], range[1] - range[0] + 1, out);
+    }
+    out.write(end);
+  }
+
+  /**
+   * Copies part of a body. File backed bodies are transferred by their channel, others
+   * are read forwards from the current position.
+   *
+   * @param in
+   *          The body.
+   * @param position
+   *          The number of bytes already read from the body.
+   * @param start
+   *          The first byte to copy, at or after the position.
+   * @param count
+   *          The number of bytes to copy, -1 for the rest of the body.
+   * @return the position after the copy.
+   * @throws IOException
+   */
+  private long copy(InputStream in, long position, long start, long count, OutputStream out)
+      throws IOException {
+    if (in instanceof FileInputStream) {
+      FileChannel channel = ((FileInputStream) in).getChannel();
+      if (count < 0) {
+        count = channel.size() - start;
+      }
+      WritableByteChannel target = Channels.newChannel(out);
+      long done = 0;
+      while (done < count) {
+        long n = channel.transferTo(start + done, count - done, target);
+        if (n <= 0) {
+          break;
+        }
+        done += n;
+      }
+      return start + done;
+    }
+    while (position < start) {
+      long n = in.skip(start - position);
+      if (n <= 0) {
+        if (in.read() < 0) {
+          return position;
+        }
+        n = 1;
+      }
+      position += n;
+    }
+    byte[] buffer = new byte[8192];
+    long done = 0;
+    while (count < 0 || done < count) {
+      int len = (count < 0) ? buffer.length : (int) Math.min(buffer.length, count - done);
+      int n = in.read(buffer, 0, len);
+      if (n < 0) {
+        break;
+      }
+      out.write(buffer, 0, n);
+      done += n;
+    }
+    return position + done;
+  }
+
+  /**
+   * A strong entity tag for a body. A body location is never written twice, so together
+   * with the length and modification time it identifies the bytes of the body.
+   *
+   * @return the entity tag, or null if the body has no location.
+   */
+  protected String getETag(Map<String, Object> properties, String alternativeStream,
+      long modifTime, long length) {
+    Object location = properties.get(StorageClientUtils.getAltField(BODY_LOCATION, alternativeStream));
+    if (location == null) {
+      return null;
+    }
+    try {
+      return "\"" + StringUtils.sha1Hash(location + ":" + length + ":" + modifTime) + "\"";
+    } catch (Exception e) {
+      return null;
+    }
+  }
+
+  /**
+   * Evaluates If-Match, If-Unmodified-Since, If-None-Match and If-Modified-Since.
+   *
+   * @return 200 if the body should be sent, 304 or 412 otherwise.
+   */
+  protected int checkConditions(HttpServletRequest request, String etag, long modifTime) {
+    String ifMatch = request.getHeader("If-Match");
+    if (ifMatch != null) {
+      if (!matches(ifMatch, etag, false)) {
+        return SC_PRECONDITION_FAILED;
+      }
+    } else {
+      long ius = getDateHeader(request, "If-Unmodified-Since");
+      if (ius > 0 && modifTime > 0 && modifTime / 1000 > ius / 1000) {
+        return SC_PRECONDITION_FAILED;
+      }
+    }
+    String ifNoneMatch = request.getHeader("If-None-Match");
+    if (ifNoneMatch != null) {
+      return matches(ifNoneMatch, etag, true) ? SC_NOT_MODIFIED : SC_OK;
+    }
     if (unmodified(request, modifTime)) {
-      response.setStatus(SC_NOT_MODIFIED);
-      return;
+      return SC_NOT_MODIFIED;
     }
+    return SC_OK;
+  }
 
-    setHeaders(properties, resource, response, alternativeStream, servletContext);
-    setContentLength(properties, response, alternativeStream);
-    IOUtils.copyLarge(dataStream, response.getOutputStream());
-    dataStream.close();
+  /**
+   * @return true if the list of entity tags in a header matches the entity tag.
+   */
+  private boolean matches(String header, String etag, boolean weak) {
+    if (etag == null) {
+      return false;
+    }
+    for (String tag : StringUtils.split(header, ',')) {
+      tag = tag.trim();
+      if (weak && tag.startsWith("W/")) {
+        tag = tag.substring(2);
+      }
+      if ("*".equals(tag) || etag.equals(tag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return true if a Range header should be honoured, which is when there is no If-Range
+   *         or the If-Range validator matches the body.
+   */
+  private boolean ifRange(HttpServletRequest request, String etag, long modifTime) {
+    String ifRange = request.getHeader("If-Range");
+    if (ifRange == null) {
+      return true;
+    }
+    ifRange = ifRange.trim();
+    if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+      return etag != null && etag.equals(ifRange);
+    }
+    long date = getDateHeader(request, "If-Range");
+    return date > 0 && modifTime > 0 && modifTime / 1000 == date / 1000;
+  }
+
+  /**
+   * Parses a Range header.
+   *
+   * @param header
+   *          The value of the Range header.
+   * @param length
+   *          The length of the body.
+   * @return the ranges to send as inclusive first and last byte positions in ascending
+   *         order with overlapping ranges merged, an empty list if none of the ranges can
+   *         be satisfied, or null if the whole body should be sent.
+   */
+  protected List<long[]> getRanges(String header, long length) {
+    if (header == null || !header.startsWith("bytes=")) {
+      return null;
+    }
+    String[] specs = StringUtils.split(header.substring("bytes=".length()), ',');
+    if (specs.length > MAX_RANGES) {
+      return null;
+    }
+    List<long[]> ranges = new ArrayList<long[]>();
+    try {
+      for (String spec : specs) {
+        spec = spec.trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+          return null;
+        }
+        long start;
+        long end;
+        if (dash == 0) {
+          long suffix = Long.parseLong(spec.substring(1));
+          if (suffix <= 0) {
+            continue;
+          }
+          start = Math.max(0, length - suffix);
+          end = length - 1;
+        } else {
+          start = Long.parseLong(spec.substring(0, dash));
+          end = (dash == spec.length() - 1) ? length - 1 : Long.parseLong(spec
+              .substring(dash + 1));
+          if (end < start) {
+            return null;
+          }
+          if (start >= length) {
+            continue;
+          }
+          end = Math.min(end, length - 1);
+        }
+        ranges.add(new long[] { start, end });
+      }
+    } catch (NumberFormatException e) {
+      return null;
+    }
+    if (ranges.size() < 2) {
+      return ranges;
+    }
+    // send the ranges in order so the body only has to be read once.
+    Collections.sort(ranges, RANGE_ORDER);
+    List<long[]> merged = new ArrayList<long[]>();
+    long[] current = ranges.get(0);
+    for (int i = 1; i < ranges.size(); i++) {
+      long[] next = ranges.get(i);
+      if (next[0] <= current[1] + 1) {
+        current[1] = Math.max(current[1], next[1]);
+      } else {
+        merged.add(current);
+        current = next;
+      }
+    }
+    merged.add(current);
+    return merged;
+  }
+
+  private long getDateHeader(HttpServletRequest request, String name) {
+    try {
+      return request.getDateHeader(name);
+    } catch (IllegalArgumentException e) {
+      return -1;
+    }
   }
 
   /**
@@ -60,7 +400,7 @@ public class StreamHelper {
   private boolean unmodified(HttpServletRequest request, long modifTime) {
     if (modifTime > 0) {
       long modTime = modifTime / 1000; // seconds
-      long ims = request.getDateHeader(HEADER_IF_MODIFIED_SINCE) / 1000;
+      long ims = getDateHeader(request, HEADER_IF_MODIFIED_SINCE) / 1000;
       return modTime <= ims;
     }
 
@@ -113,6 +453,10 @@ public class StreamHelper {
    */
   private void setContentLength(Map<String,Object> properties, HttpServletResponse response, String alternativeStream) {
     long length = StorageClientUtils.toLong(properties.get(StorageClientUtils.getAltField(Content.LENGTH_FIELD, alternativeStream)));
+    setContentLength(response, length);
+  }
+
+  private void setContentLength(HttpServletResponse response, long length) {
     if (length > 0) {
       if (length < Integer.MAX_VALUE) {
         response.setContentLength((int) length);
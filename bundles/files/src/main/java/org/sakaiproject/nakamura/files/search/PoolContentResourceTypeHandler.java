@@ -30,7 +30,6 @@ import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.solr.client.solrj.util.ClientUtils;
 import org.apache.solr.common.SolrInputDocument;
-import org.apache.tika.exception.TikaException;
 import org.osgi.framework.BundleContext;
 import org.osgi.service.event.Event;
 import org.sakaiproject.nakamura.api.files.FilesConstants;
@@ -47,12 +46,9 @@ import org.sakaiproject.nakamura.api.lite.util.Iterables;
 import org.sakaiproject.nakamura.api.solr.IndexingHandler;
 import org.sakaiproject.nakamura.api.solr.RepositorySession;
 import org.sakaiproject.nakamura.api.solr.ResourceIndexingService;
-import org.sakaiproject.nakamura.api.tika.TikaService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
-import java.io.InputStream;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
@@ -80,7 +76,7 @@ public class PoolContentResourceTypeHandler implements IndexingHandler {
   protected ResourceIndexingService resourceIndexingService;
 
   @Reference
-  private TikaService tika;
+  protected TextExtractionService textExtractionService;
 
   private static Map<String, String> getFieldMap() {
     Builder<String, String> builder = ImmutableMap.builder();
@@ -151,14 +147,9 @@ public class PoolContentResourceTypeHandler implements IndexingHandler {
             }
           }
 
-          InputStream contentStream = contentManager.getInputStream(path);
-          if (contentStream != null) {
-            try {
-              String extracted = tika.parseToString(contentStream);
-              doc.addField("content", extracted);
-            } catch (TikaException e) {
-              LOGGER.warn(e.getMessage(), e);
-            }
+          String extracted = textExtractionService.getText(content);
+          if (extracted != null) {
+            doc.addField("content", extracted);
           }
 
           doc.addField(_DOC_SOURCE_OBJECT, content);
@@ -170,8 +161,6 @@ public class PoolContentResourceTypeHandler implements IndexingHandler {
         LOGGER.warn(e.getMessage(), e);
       } catch (AccessDeniedException e) {
         LOGGER.warn(e.getMessage(), e);
-      } catch (IOException e) {
-        LOGGER.warn(e.getMessage(), e);
       }
     }
     LOGGER.debug("Got documents {} ", documents);
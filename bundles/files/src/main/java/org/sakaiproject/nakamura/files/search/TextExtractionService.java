@@ -0,0 +1,352 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.files.search;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.apache.tika.metadata.Metadata;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventAdmin;
+import org.sakaiproject.nakamura.api.files.FilesConstants;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.tika.TikaService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.InputStream;
+import java.io.Reader;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Extracts the text of content bodies with Tika for indexing. Extracted text is kept in
+ * memory keyed by the body location and length, so content whose properties change but
+ * whose body does not is re-indexed without parsing the body again. Bodies are parsed on
+ * a bounded pool. When a parse takes longer than the indexer is prepared to wait the
+ * content is indexed without its text and indexed again once the text is available.
+ */
+@Component(immediate = true, metatype = true)
+@Service(value = TextExtractionService.class)
+public class TextExtractionService {
+
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(TextExtractionService.class);
+
+  private static final String BODY_LOCATION = "_bodyLocation";
+
+  /**
+   * The maximum number of characters of text extracted from a body, the rest is not
+   * indexed.
+   */
+  @Property(intValue = 100000)
+  static final String EXTRACTION_MAX_CHARS = "extraction.maxchars";
+
+  /**
+   * The number of characters of extracted text kept in memory.
+   */
+  @Property(longValue = 10485760L)
+  static final String EXTRACTION_CACHE_SIZE = "extraction.cache.size";
+
+  /**
+   * The number of bodies parsed at the same time.
+   */
+  @Property(intValue = 2)
+  static final String EXTRACTION_WORKERS = "extraction.workers";
+
+  /**
+   * The number of bodies waiting to be parsed. When the queue is full the indexing thread
+   * parses the body itself, which holds back indexing until the pool catches up.
+   */
+  @Property(intValue = 16)
+  static final String EXTRACTION_QUEUE = "extraction.queue";
+
+  /**
+   * The number of ms the indexer waits for a parse before indexing without the text.
+   */
+  @Property(longValue = 5000L)
+  static final String EXTRACTION_WAIT = "extraction.wait";
+
+  @Reference
+  protected TikaService tika;
+
+  @Reference
+  protected Repository sparseRepository;
+
+  @Reference
+  protected EventAdmin eventAdmin;
+
+  private int maxChars;
+
+  private long cacheSize;
+
+  private long wait;
+
+  private volatile ThreadPoolExecutor executor;
+
+  /**
+   * Extracted text in least recently used order.
+   */
+  private final LinkedHashMap<String, String> cache = new LinkedHashMap<String, String>(16,
+      0.75f, true);
+
+  private long cached;
+
+  /**
+   * Parses that are running or queued, by key.
+   */
+  private final ConcurrentMap<String, Extraction> extracting = new ConcurrentHashMap<String, Extraction>();
+
+  @Activate
+  protected void activate(Map<String, Object> properties) {
+    maxChars = OsgiUtil.toInteger(properties.get(EXTRACTION_MAX_CHARS), 100000);
+    cacheSize = OsgiUtil.toLong(properties.get(EXTRACTION_CACHE_SIZE), 10485760L);
+    wait = OsgiUtil.toLong(properties.get(EXTRACTION_WAIT), 5000L);
+    int workers = Math.max(1, OsgiUtil.toInteger(properties.get(EXTRACTION_WORKERS), 2));
+    int queue = Math.max(1, OsgiUtil.toInteger(properties.get(EXTRACTION_QUEUE), 16));
+    final AtomicInteger threadNumber = new AtomicInteger();
+    executor = new ThreadPoolExecutor(workers, workers, 60L, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(queue), new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "text-extraction-" + threadNumber.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+          }
+        }, new ThreadPoolExecutor.AbortPolicy());
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  @Deactivate
+  protected void deactivate(Map<String, Object> properties) {
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+    synchronized (cache) {
+      cache.clear();
+      cached = 0;
+    }
+  }
+
+  /**
+   * Gets the text of the body of a content item.
+   *
+   * @param content
+   *          The content item.
+   * @return the extracted text, or null if the content has no body, the body could not be
+   *         parsed or the parse is still running, in which case the content will be
+   *         indexed again when it is done.
+   */
+  public String getText(Content content) {
+    String key = getKey(content);
+    if (key == null) {
+      return null;
+    }
+    synchronized (cache) {
+      String text = cache.get(key);
+      if (text != null) {
+        return text;
+      }
+    }
+
+    Extraction task = new Extraction(key, content);
+    Extraction running = extracting.putIfAbsent(key, task);
+    if (running == null) {
+      running = task;
+      ThreadPoolExecutor pool = executor;
+      if (pool == null) {
+        // deactivated, parse on this thread.
+        task.run();
+      } else {
+        try {
+          pool.execute(task);
+        } catch (RejectedExecutionException e) {
+          // the pool is saturated or shutting down, parse on this thread.
+          task.run();
+        }
+      }
+    }
+    try {
+      try {
+        return running.get(wait, TimeUnit.MILLISECONDS);
+      } catch (TimeoutException e) {
+        running.reindex = true;
+        if (!running.isDone()) {
+          LOGGER.info("Indexing {} before its text has been extracted ", content.getPath());
+          return null;
+        }
+        // finished as we gave up on it.
+        return running.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      LOGGER.warn("Unable to extract text from {}: {}", content.getPath(), e.getCause()
+          .getMessage());
+      LOGGER.debug("Cause: ", e.getCause());
+    }
+    return null;
+  }
+
+  /**
+   * A parse of one body. When it is done the text is kept and, if an indexer gave up
+   * waiting for it, the content is indexed again.
+   */
+  private class Extraction extends FutureTask<String> {
+    private final String key;
+    private final String path;
+    private volatile boolean reindex;
+
+    Extraction(String key, final Content content) {
+      super(new Callable<String>() {
+        public String call() throws Exception {
+          return extract(content.getPath(), content);
+        }
+      });
+      this.key = key;
+      this.path = content.getPath();
+    }
+
+    @Override
+    protected void done() {
+      try {
+        if (isCancelled()) {
+          return;
+        }
+        cache(key, get());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      } catch (ExecutionException e) {
+        // reported to the indexer that asked for it.
+        return;
+      } finally {
+        // only once the text is kept, so that nothing starts the same parse again.
+        extracting.remove(key, this);
+      }
+      if (reindex) {
+        Dictionary<String, Object> properties = new Hashtable<String, Object>();
+        properties.put("path", path);
+        properties.put("resourceType", FilesConstants.POOLED_CONTENT_RT);
+        eventAdmin.postEvent(new Event(StoreListener.TOPIC_BASE + "content/"
+            + StoreListener.UPDATED_TOPIC, properties));
+      }
+    }
+  }
+
+  /**
+   * @return the cache key for the body of a content item, null if there is no body.
+   */
+  protected String getKey(Content content) {
+    if (!content.hasProperty(BODY_LOCATION)) {
+      return null;
+    }
+    return content.getProperty(BODY_LOCATION) + ":" + content.getProperty(Content.LENGTH_FIELD);
+  }
+
+  private void cache(String key, String text) {
+    if (text == null || text.length() > cacheSize) {
+      return;
+    }
+    synchronized (cache) {
+      String previous = cache.put(key, text);
+      if (previous != null) {
+        cached -= previous.length();
+      }
+      cached += text.length();
+      Iterator<String> values = cache.values().iterator();
+      while (cached > cacheSize && values.hasNext()) {
+        cached -= values.next().length();
+        values.remove();
+      }
+    }
+  }
+
+  /**
+   * Parses a body with an administrative session of its own, since the parse may outlive
+   * the indexing session.
+   *
+   * @return the first {@link #EXTRACTION_MAX_CHARS} characters of text in the body.
+   */
+  protected String extract(String path, Content content) throws Exception {
+    Session session = sparseRepository.loginAdministrative();
+    try {
+      InputStream in = session.getContentManager().getInputStream(path);
+      if (in == null) {
+        return "";
+      }
+      try {
+        Metadata metadata = new Metadata();
+        if (content.hasProperty(FilesConstants.POOLED_CONTENT_FILENAME)) {
+          metadata.set(Metadata.RESOURCE_NAME_KEY, String.valueOf(content
+              .getProperty(FilesConstants.POOLED_CONTENT_FILENAME)));
+        }
+        if (content.hasProperty(Content.MIMETYPE_FIELD)) {
+          metadata.set(Metadata.CONTENT_TYPE, String.valueOf(content
+              .getProperty(Content.MIMETYPE_FIELD)));
+        }
+        // Read no more than the limit, closing the reader stops the parse.
+        Reader reader = tika.parse(in, metadata);
+        try {
+          StringBuilder text = new StringBuilder();
+          char[] buffer = new char[4096];
+          int n;
+          while (text.length() < maxChars
+              && (n = reader.read(buffer, 0, Math.min(buffer.length, maxChars
+                  - text.length()))) >= 0) {
+            text.append(buffer, 0, n);
+          }
+          return text.toString();
+        } finally {
+          reader.close();
+        }
+      } finally {
+        in.close();
+      }
+    } finally {
+      try {
+        session.logout();
+      } catch (Exception e) {
+        LOGGER.warn("Failed to logout of administrative session {} ", e.getMessage());
+      }
+    }
+  }
+
+}
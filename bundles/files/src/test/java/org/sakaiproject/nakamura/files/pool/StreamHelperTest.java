@@ -0,0 +1,186 @@
+package org.sakaiproject.nakamura.files.pool;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.apache.sling.api.resource.Resource;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import javax.servlet.ServletContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+public class StreamHelperTest {
+
+  private static final String TESTING_STREAM_DATA = "Testing Stream Data";
+  private static final String PATH = "p/23423423423";
+
+  private StreamHelper streamHelper;
+  private HttpServletRequest request;
+  private HttpServletResponse response;
+  private ContentManager contentManager;
+  private Resource resource;
+  private ServletContext servletContext;
+  private Content content;
+  private ByteArrayOutputStream outputStream;
+
+  @Before
+  public void before() throws Exception {
+    streamHelper = new StreamHelper();
+    request = Mockito.mock(HttpServletRequest.class);
+    response = Mockito.mock(HttpServletResponse.class);
+    contentManager = Mockito.mock(ContentManager.class);
+    resource = Mockito.mock(Resource.class);
+    servletContext = Mockito.mock(ServletContext.class);
+    content = new Content(PATH, ImmutableMap.of(Content.LENGTH_FIELD,
+        (Object) TESTING_STREAM_DATA.length(), Content.LASTMODIFIED_FIELD, 1300000000000L,
+        Content.MIMETYPE_FIELD, "text/plain", "_bodyLocation", "2011/3/aa/bb/cc"));
+    Mockito.when(contentManager.getInputStream(PATH, null)).thenReturn(
+        new ByteArrayInputStream(TESTING_STREAM_DATA.getBytes("UTF-8")));
+    outputStream = new ByteArrayOutputStream();
+    ServletOutputStream servletOutputStream = new ServletOutputStream() {
+
+      @Override
+      public void write(int arg0) throws IOException {
+        outputStream.write(arg0);
+      }
+    };
+    Mockito.when(response.getOutputStream()).thenReturn(servletOutputStream);
+  }
+
+  private String getETag() {
+    return streamHelper.getETag(content.getProperties(), null, 1300000000000L,
+        TESTING_STREAM_DATA.length());
+  }
+
+  private void stream() throws Exception {
+    streamHelper.stream(request, contentManager, content, null, response, resource,
+        servletContext);
+  }
+
+  @Test
+  public void testWholeBody() throws Exception {
+    stream();
+    Assert.assertEquals(TESTING_STREAM_DATA, outputStream.toString("UTF-8"));
+    Mockito.verify(response).setHeader("ETag", getETag());
+    Mockito.verify(response).setHeader("Accept-Ranges", "bytes");
+    Mockito.verify(response).setContentLength(TESTING_STREAM_DATA.length());
+  }
+
+  @Test
+  public void testIfNoneMatchDoesNotOpenBody() throws Exception {
+    Mockito.when(request.getHeader("If-None-Match")).thenReturn("\"other\", " + getETag());
+    stream();
+    Mockito.verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    Mockito.verify(contentManager, Mockito.never()).getInputStream(PATH, null);
+  }
+
+  @Test
+  public void testIfModifiedSinceDoesNotOpenBody() throws Exception {
+    Mockito.when(request.getDateHeader("If-Modified-Since")).thenReturn(1300000001000L);
+    stream();
+    Mockito.verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    Mockito.verify(contentManager, Mockito.never()).getInputStream(PATH, null);
+  }
+
+  @Test
+  public void testIfMatchFails() throws Exception {
+    Mockito.when(request.getHeader("If-Match")).thenReturn("\"other\"");
+    stream();
+    Mockito.verify(response).sendError(HttpServletResponse.SC_PRECONDITION_FAILED);
+    Mockito.verify(contentManager, Mockito.never()).getInputStream(PATH, null);
+  }
+
+  @Test
+  public void testSingleRange() throws Exception {
+    Mockito.when(request.getHeader("Range")).thenReturn("bytes=8-13");
+    stream();
+    Mockito.verify(response).setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+    Mockito.verify(response).setHeader("Content-Range", "bytes 8-13/19");
+    Mockito.verify(response).setContentLength(6);
+    Assert.assertEquals("Stream", outputStream.toString("UTF-8"));
+  }
+
+  @Test
+  public void testSuffixRange() throws Exception {
+    Mockito.when(request.getHeader("Range")).thenReturn("bytes=-4");
+    stream();
+    Mockito.verify(response).setHeader("Content-Range", "bytes 15-18/19");
+    Assert.assertEquals("Data", outputStream.toString("UTF-8"));
+  }
+
+  @Test
+  public void testMultipleRanges() throws Exception {
+    Mockito.when(request.getHeader("Range")).thenReturn("bytes=15-,0-6");
+    stream();
+    Mockito.verify(response).setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+    Mockito.verify(response).setContentType(
+        Mockito.startsWith("multipart/byteranges; boundary="));
+    String body = outputStream.toString("UTF-8");
+    Assert.assertTrue(body.contains("Content-Range: bytes 0-6/19\r\n\r\nTesting\r\n"));
+    Assert.assertTrue(body.contains("Content-Range: bytes 15-18/19\r\n\r\nData\r\n"));
+    Assert.assertTrue(body.indexOf("bytes 0-6") < body.indexOf("bytes 15-18"));
+  }
+
+  @Test
+  public void testUnsatisfiableRange() throws Exception {
+    Mockito.when(request.getHeader("Range")).thenReturn("bytes=100-");
+    stream();
+    Mockito.verify(response).setHeader("Content-Range", "bytes */19");
+    Mockito.verify(response).sendError(
+        HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+  }
+
+  @Test
+  public void testIfRangeMismatchSendsWholeBody() throws Exception {
+    Mockito.when(request.getHeader("Range")).thenReturn("bytes=8-13");
+    Mockito.when(request.getHeader("If-Range")).thenReturn("\"other\"");
+    stream();
+    Mockito.verify(response, Mockito.never()).setStatus(
+        HttpServletResponse.SC_PARTIAL_CONTENT);
+    Assert.assertEquals(TESTING_STREAM_DATA, outputStream.toString("UTF-8"));
+  }
+
+  @Test
+  public void testFileBackedRange() throws Exception {
+    File file = File.createTempFile("streamhelper", ".txt");
+    file.deleteOnExit();
+    FileOutputStream out = new FileOutputStream(file);
+    out.write(TESTING_STREAM_DATA.getBytes("UTF-8"));
+    out.close();
+    Mockito.when(contentManager.getInputStream(PATH, null)).thenReturn(
+        new FileInputStream(file));
+    Mockito.when(request.getHeader("Range")).thenReturn("bytes=0-6,15-");
+    stream();
+    String body = outputStream.toString("UTF-8");
+    Assert.assertTrue(body.contains("\r\n\r\nTesting\r\n"));
+    Assert.assertTrue(body.contains("\r\n\r\nData\r\n"));
+  }
+
+  @Test
+  public void testGetRanges() {
+    Assert.assertNull(streamHelper.getRanges(null, 100));
+    Assert.assertNull(streamHelper.getRanges("bytes=5-2", 100));
+    Assert.assertNull(streamHelper.getRanges("lines=1-2", 100));
+    Assert.assertEquals(0, streamHelper.getRanges("bytes=200-300", 100).size());
+    List<long[]> ranges = streamHelper.getRanges("bytes=50-60,0-10,5-20,21-30,90-", 100);
+    Assert.assertEquals(3, ranges.size());
+    Assert.assertArrayEquals(new long[] { 0, 30 }, ranges.get(0));
+    Assert.assertArrayEquals(new long[] { 50, 60 }, ranges.get(1));
+    Assert.assertArrayEquals(new long[] { 90, 99 }, ranges.get(2));
+  }
+
+}
@@ -0,0 +1,167 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.files.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.apache.tika.metadata.Metadata;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventAdmin;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.tika.TikaService;
+import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ *
+ */
+public class TextExtractionServiceTest {
+
+  private static final String PATH = "/p/text";
+
+  private TextExtractionService service;
+  private TikaService tika;
+  private EventAdmin eventAdmin;
+  private ContentManager contentManager;
+  private Map<String, Object> properties;
+
+  @Before
+  public void setUp() throws Exception {
+    Repository repository = new BaseMemoryRepository().getRepository();
+    Session session = repository.loginAdministrative();
+    contentManager = session.getContentManager();
+    contentManager.update(new Content(PATH, null));
+    contentManager.writeBody(PATH, new ByteArrayInputStream("body".getBytes("UTF-8")));
+
+    tika = mock(TikaService.class);
+    eventAdmin = mock(EventAdmin.class);
+    service = new TextExtractionService();
+    service.tika = tika;
+    service.eventAdmin = eventAdmin;
+    service.sparseRepository = repository;
+    properties = new HashMap<String, Object>();
+  }
+
+  @After
+  public void tearDown() {
+    service.deactivate(properties);
+  }
+
+  @Test
+  public void testUnchangedBodyIsNotParsedAgain() throws Exception {
+    when(tika.parse(any(InputStream.class), any(Metadata.class))).thenAnswer(
+        new Answer<Reader>() {
+          public Reader answer(InvocationOnMock invocation) throws Throwable {
+            return new StringReader("some text");
+          }
+        });
+    service.activate(properties);
+
+    assertEquals("some text", service.getText(contentManager.get(PATH)));
+
+    // a property change does not touch the body.
+    Content content = contentManager.get(PATH);
+    content.setProperty("sakai:description", "changed");
+    contentManager.update(content);
+    assertEquals("some text", service.getText(contentManager.get(PATH)));
+    verify(tika, times(1)).parse(any(InputStream.class), any(Metadata.class));
+
+    // a new body is parsed.
+    contentManager.writeBody(PATH, new ByteArrayInputStream("new body".getBytes("UTF-8")));
+    assertEquals("some text", service.getText(contentManager.get(PATH)));
+    verify(tika, times(2)).parse(any(InputStream.class), any(Metadata.class));
+  }
+
+  @Test
+  public void testMaxChars() throws Exception {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 1000; i++) {
+      text.append("0123456789");
+    }
+    when(tika.parse(any(InputStream.class), any(Metadata.class))).thenReturn(
+        new StringReader(text.toString()));
+    properties.put(TextExtractionService.EXTRACTION_MAX_CHARS, 5000);
+    service.activate(properties);
+
+    assertEquals(5000, service.getText(contentManager.get(PATH)).length());
+  }
+
+  @Test
+  public void testNoBody() throws Exception {
+    service.activate(properties);
+    contentManager.update(new Content("/p/nobody", null));
+
+    assertNull(service.getText(contentManager.get("/p/nobody")));
+    verify(tika, never()).parse(any(InputStream.class), any(Metadata.class));
+  }
+
+  @Test
+  public void testAfterDeactivateParsesOnCallingThread() throws Exception {
+    when(tika.parse(any(InputStream.class), any(Metadata.class))).thenReturn(
+        new StringReader("some text"));
+    service.activate(properties);
+    service.deactivate(properties);
+
+    assertEquals("some text", service.getText(contentManager.get(PATH)));
+  }
+
+  @Test
+  public void testSlowParseIsIndexedAgain() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    when(tika.parse(any(InputStream.class), any(Metadata.class))).thenAnswer(
+        new Answer<Reader>() {
+          public Reader answer(InvocationOnMock invocation) throws Throwable {
+            release.await();
+            return new StringReader("slow text");
+          }
+        });
+    properties.put(TextExtractionService.EXTRACTION_WAIT, 10L);
+    service.activate(properties);
+
+    assertNull(service.getText(contentManager.get(PATH)));
+    // the indexer has given up waiting, now let the parse finish.
+    release.countDown();
+    verify(eventAdmin, timeout(5000)).postEvent(any(Event.class));
+    assertEquals("slow text", service.getText(contentManager.get(PATH)));
+    verify(tika, times(1)).parse(any(InputStream.class), any(Metadata.class));
+  }
+
+}
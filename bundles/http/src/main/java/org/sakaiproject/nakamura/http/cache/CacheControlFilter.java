@@ -17,26 +17,29 @@
  */
 package org.sakaiproject.nakamura.http.cache;
 
-import org.apache.commons.lang.StringUtils;
 import org.apache.felix.http.api.ExtHttpService;
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.PropertyOption;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.sling.commons.osgi.OsgiUtil;
 import org.osgi.service.component.ComponentContext;
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.util.Dictionary;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.regex.Pattern;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
 
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
@@ -53,8 +56,12 @@ import javax.servlet.http.HttpServletResponse;
  * configured regex patterns. Each configured pattern must also have a corresponding
  * maxage value (in seconds) to use if the pattern matches.
  * 
- * When more than one pattern matches, the filter sets the lowest maxage of the collection
- * of matching patterns.
+ * When more than one pattern matches, the first configured pattern is used. The rules are
+ * compiled into a {@link CacheControlRules} at activation.
+ * 
+ * Responses of rules with a <code>.requestCache</code> age are cached. When a cached
+ * response expires one request refreshes it while the others wait for it, or are served
+ * the expired copy for up to <code>.requestStale</code> seconds.
  */
 @Component(immediate = true, metatype = true)
 @Properties(value = {
@@ -73,20 +80,12 @@ import javax.servlet.http.HttpServletResponse;
     @Property(name = "service.vendor", value = "The Sakai Foundation")})
 public class CacheControlFilter implements Filter {
 
-  /**
-   * map of expiry times for whole subtrees
-   */
-  private Map<String, Map<String,String>> subPaths;
+  private static final Logger LOGGER = LoggerFactory.getLogger(CacheControlFilter.class);
 
   /**
-   * map of patterns by subtree
+   * the compiled cache rules.
    */
-  private Map<String, Map<Pattern,  Map<String,String>>> subPathPatterns;
-
-  /**
-   * list of patterns for the root resources
-   */
-  private Map<Pattern,  Map<String,String>> rootPathPatterns;
+  private CacheControlRules rules;
 
   static final String SAKAI_CACHE_PATTERNS = "sakai.cache.patterns";
 
@@ -98,6 +97,52 @@ public class CacheControlFilter implements Filter {
   @Property(intValue=5)
   private static final String FILTER_PRIORITY_CONF = "filter.priority";
 
+  /**
+   * Number of request paths whose matching rule is remembered.
+   */
+  @Property(intValue=10000)
+  static final String RESOLVED_CACHE_SIZE_CONF = "sakai.cache.resolved.size";
+
+  /**
+   * Scope of the response cache, replicated responses are shared by the cluster.
+   */
+  @Property(value = "INSTANCE", options = {
+      @PropertyOption(name = "INSTANCE", value = "Each server caches its own responses."),
+      @PropertyOption(name = "CLUSTERREPLICATED", value = "Cached responses are shared by the cluster.") })
+  static final String RESPONSE_CACHE_SCOPE_CONF = "sakai.cache.scope";
+
+  /**
+   * Default number of seconds an expired response may be served while it is refreshed,
+   * overridden by .requestStale on a rule.
+   */
+  @Property(intValue=0)
+  static final String STALE_AGE_CONF = "sakai.cache.stale";
+
+  /**
+   * Milliseconds a request waits for another request refreshing the same response.
+   */
+  @Property(intValue=5000)
+  static final String REFRESH_WAIT_CONF = "sakai.cache.refresh.wait";
+
+  /**
+   * Cached bodies of at least this many bytes are kept outside the heap, 0 disables.
+   */
+  @Property(intValue=0)
+  static final String DIRECT_SIZE_CONF = "sakai.cache.direct.size";
+
+  private CacheScope responseCacheScope = CacheScope.INSTANCE;
+
+  private int staleAge;
+
+  private long refreshWait;
+
+  private int directSize;
+
+  /**
+   * responses being refreshed, keyed by cache key.
+   */
+  private final ConcurrentMap<String, CountDownLatch> refreshing = new ConcurrentHashMap<String, CountDownLatch>();
+
   
   @Reference 
   protected CacheManagerService cacheManagerService;
@@ -129,6 +174,7 @@ public class CacheControlFilter implements Filter {
     boolean withLastModfied = true;
     boolean withCookies = true;
     int cacheAge = 0;
+    int requestStaleAge = staleAge;
     CachedResponseManager cachedResponseManager = null;
     FilterResponseWrapper fresponse = null;
     if ("GET".equals(srequest.getMethod())) {
@@ -141,6 +187,10 @@ public class CacheControlFilter implements Filter {
         if ( cacheAgeValue != null ) {
           cacheAge = Integer.parseInt(cacheAgeValue);
         }
+        String staleAgeValue = headers.get(".requestStale");
+        if ( staleAgeValue != null ) {
+          requestStaleAge = Integer.parseInt(staleAgeValue);
+        }
         
         String expiresOffsetValue = headers.get(".expires");
         if ( expiresOffsetValue != null ) {
@@ -160,64 +210,46 @@ public class CacheControlFilter implements Filter {
       sresponse.flushBuffer();
     } else {
       if ( cacheAge > 0 ) {
-        cachedResponseManager = new CachedResponseManager(srequest, cacheAge, getCache());
+        cachedResponseManager = new CachedResponseManager(srequest, cacheAge,
+            requestStaleAge, directSize, getCache(), refreshing);
         if ( cachedResponseManager.isValid() ) {
           cachedResponseManager.send(sresponse);
           return;
         }
+        if ( !cachedResponseManager.startRefresh() ) {
+          if ( cachedResponseManager.isStale() || cachedResponseManager.awaitRefresh(refreshWait) ) {
+            cachedResponseManager.send(sresponse);
+            return;
+          }
+        }
       }
-      if ( !withLastModfied || !withCookies || cachedResponseManager != null ) {
-        fresponse = new FilterResponseWrapper(sresponse, withLastModfied, withCookies, cachedResponseManager != null);
-      }
-      if ( fresponse != null ) {
-        chain.doFilter(request, fresponse);
+      try {
+        if ( !withLastModfied || !withCookies || cachedResponseManager != null ) {
+          fresponse = new FilterResponseWrapper(sresponse, withLastModfied, withCookies, cachedResponseManager != null);
+        }
+        if ( fresponse != null ) {
+          chain.doFilter(request, fresponse);
+          if ( cachedResponseManager != null ) {
+            cachedResponseManager.save(fresponse.getResponseOperation());
+          }
+        } else {
+          chain.doFilter(request, response);
+        }
+      } finally {
         if ( cachedResponseManager != null ) {
-          cachedResponseManager.save(fresponse.getResponseOperation());
+          cachedResponseManager.endRefresh();
         }
-      } else {
-        chain.doFilter(request, response);
       }
     }
   }
 
   private Cache<CachedResponse> getCache() {
-    return cacheManagerService.getCache(CacheControlFilter.class.getName()+"-cache", CacheScope.INSTANCE);
+    return cacheManagerService.getCache(CacheControlFilter.class.getName()+"-cache", responseCacheScope);
   }
 
 
   private Map<String, String> getHeaders(String path) {
-
-    // get the Path and then the first 2 elements (2 so that we can tell if this is root
-    // or not
-    String[] elements = StringUtils.split(path, "/", 2);
-
-    if (elements.length == 0) { // odd request
-      return null;
-    } else if (elements.length == 1) { // root request eg /index.html
-      for (Entry<Pattern, Map<String, String>> p : rootPathPatterns.entrySet()) {
-        if (p.getKey().matcher(path).matches()) {
-          return p.getValue();
-        }
-      }
-    } else { // subtree //p/index.html
-
-      // check if there is a subtree with a setting
-      Map<String, String> headers = subPaths.get(elements[0]);
-      if (headers != null) {
-        return headers;
-      }
-
-      // or a set of patterns for the subtree
-      Map<Pattern, Map<String, String>> patterns = subPathPatterns.get(elements[0]);
-      if (patterns != null) {
-        for (Entry<Pattern, Map<String,String>> p : patterns.entrySet()) {
-          if (p.getKey().matcher(path).matches()) {
-            return p.getValue();
-          }
-        }
-      }
-    }
-    return null;
+    return rules.getHeaders(path);
   }
 
   /**
@@ -234,31 +266,19 @@ public class CacheControlFilter implements Filter {
     @SuppressWarnings("unchecked")
     Dictionary<String, Object> properties = componentContext.getProperties();
     String[] sakaiCachePaths = (String[]) properties.get(SAKAI_CACHE_PATHS);
-    subPaths = new HashMap<String, Map<String, String>>();
-    if (sakaiCachePaths != null) {
-      for (String sakaiCachePath : sakaiCachePaths) {
-        String[] cp = StringUtils.split(sakaiCachePath, ';');
-        subPaths.put(cp[0], toMap(1, cp));
-      }
-    }
     String[] sakaiCachePatternPaths = (String[]) properties.get(SAKAI_CACHE_PATTERNS);
-    subPathPatterns = new HashMap<String, Map<Pattern, Map<String, String>>>();
-    if (sakaiCachePatternPaths != null) {
-      for (String sakaiCachePatternPath : sakaiCachePatternPaths) {
-        String[] cp = StringUtils.split(sakaiCachePatternPath, ';');
-        if (subPathPatterns.containsKey(cp[0])) {
-          subPathPatterns.get(cp[0]).put(Pattern.compile(cp[1]), toMap(2, cp));
-        } else {
-          Map<Pattern, Map<String, String>> patternMap = new HashMap<Pattern, Map<String, String>>();
-          patternMap.put(Pattern.compile(cp[1]), toMap(2, cp));
-          subPathPatterns.put(cp[0], patternMap);
-        }
-      }
-    }
-    rootPathPatterns = subPathPatterns.get("root");
-    if (rootPathPatterns == null) {
-      rootPathPatterns = new HashMap<Pattern, Map<String, String>>();
+    rules = new CacheControlRules(sakaiCachePaths, sakaiCachePatternPaths,
+        OsgiUtil.toInteger(properties.get(RESOLVED_CACHE_SIZE_CONF), 10000));
+    String scope = OsgiUtil.toString(properties.get(RESPONSE_CACHE_SCOPE_CONF), "INSTANCE");
+    try {
+      responseCacheScope = CacheScope.valueOf(scope);
+    } catch (IllegalArgumentException e) {
+      LOGGER.warn("Unknown response cache scope {}, using INSTANCE ", scope);
+      responseCacheScope = CacheScope.INSTANCE;
     }
+    staleAge = OsgiUtil.toInteger(properties.get(STALE_AGE_CONF), 0);
+    refreshWait = OsgiUtil.toLong(properties.get(REFRESH_WAIT_CONF), 5000L);
+    directSize = OsgiUtil.toInteger(properties.get(DIRECT_SIZE_CONF), 0);
 
     int filterPriority = OsgiUtil.toInteger(properties.get(FILTER_PRIORITY_CONF),0);
 
@@ -272,14 +292,5 @@ public class CacheControlFilter implements Filter {
     extHttpService.unregisterFilter(this);
   }
 
-  private Map<String, String> toMap(int starting, String[] cp) {
-    Map<String, String> map = new HashMap<String, String>();
-    for ( int i = starting; i < cp.length; i++ ) {
-      String[] kv = StringUtils.split(cp[i], ":", 2);
-      map.put(kv[0], kv[1]);
-    }
-    return map;
-  }
-
 
 }
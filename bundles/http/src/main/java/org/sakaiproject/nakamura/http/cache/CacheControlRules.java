@@ -0,0 +1,258 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.cache;
+
+import org.apache.commons.lang.StringUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * The cache rules of the {@link CacheControlFilter}, compiled when the filter is
+ * activated. A path is matched on its first element: a whole subtree setting wins,
+ * otherwise the patterns for that subtree (or the root patterns for a file in the root
+ * folder) are tried in the order they were configured, as a single combined regex. The
+ * headers resolved for each path are kept in a bounded LRU so a path that has been seen
+ * before is not matched again.
+ */
+public class CacheControlRules {
+
+  /**
+   * Marks a path that matched no rule in the resolved cache.
+   */
+  private static final Map<String, String> NO_MATCH = Collections.emptyMap();
+
+  /**
+   * Number of independently locked segments of the resolved cache, a power of 2.
+   */
+  private static final int SEGMENTS = 16;
+
+  /**
+   * An ordered list of patterns compiled into one alternation. Each pattern is wrapped in
+   * a group, and the group that took part in the match identifies the pattern.
+   */
+  static final class PatternSet {
+    private final Pattern combined;
+    private final int[] groups;
+    private final Pattern[] patterns;
+    private final List<Map<String, String>> headers;
+
+    PatternSet(List<String> regexes, List<Map<String, String>> headers) {
+      this.headers = headers;
+      patterns = new Pattern[regexes.size()];
+      groups = new int[regexes.size()];
+      StringBuilder sb = new StringBuilder();
+      boolean canCombine = true;
+      int group = 1;
+      for (int i = 0; i < patterns.length; i++) {
+        String regex = regexes.get(i);
+        patterns[i] = Pattern.compile(regex);
+        // back references would be renumbered by the wrapping groups
+        canCombine = canCombine && !regex.matches(".*\\\\[1-9].*");
+        if (i > 0) {
+          sb.append('|');
+        }
+        sb.append('(').append(regex).append(')');
+        groups[i] = group;
+        group += 1 + patterns[i].matcher("").groupCount();
+      }
+      Pattern p = null;
+      if (canCombine) {
+        try {
+          p = Pattern.compile(sb.toString());
+        } catch (PatternSyntaxException e) {
+          p = null;
+        }
+      }
+      combined = p;
+    }
+
+    Map<String, String> match(String path) {
+      if (combined != null) {
+        Matcher m = combined.matcher(path);
+        if (m.matches()) {
+          for (int i = 0; i < groups.length; i++) {
+            if (m.start(groups[i]) != -1) {
+              return headers.get(i);
+            }
+          }
+        }
+        return null;
+      }
+      for (int i = 0; i < patterns.length; i++) {
+        if (patterns[i].matcher(path).matches()) {
+          return headers.get(i);
+        }
+      }
+      return null;
+    }
+  }
+
+  /**
+   * A segment of the resolved cache.
+   */
+  private static final class Segment extends LinkedHashMap<String, Map<String, String>> {
+    private static final long serialVersionUID = 2863727442016367424L;
+    private final int maxSize;
+
+    Segment(int maxSize) {
+      super(16, 0.75f, true);
+      this.maxSize = maxSize;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Entry<String, Map<String, String>> eldest) {
+      return size() > maxSize;
+    }
+  }
+
+  /**
+   * Headers for whole subtrees, by first path element.
+   */
+  private final Map<String, Map<String, String>> subPaths;
+  /**
+   * Patterns by first path element.
+   */
+  private final Map<String, PatternSet> subPathPatterns;
+  /**
+   * Patterns for the files in the root folder.
+   */
+  private final PatternSet rootPathPatterns;
+  private final Segment[] resolved;
+
+  /**
+   * @param cachePaths
+   *          the sakai.cache.paths configuration, subtree;header;...
+   * @param cachePatterns
+   *          the sakai.cache.patterns configuration, subtree;regex;header;... where a
+   *          subtree of root means the files in the root folder.
+   * @param resolvedSize
+   *          the number of resolved paths to remember, 0 to disable.
+   */
+  public CacheControlRules(String[] cachePaths, String[] cachePatterns, int resolvedSize) {
+    subPaths = new HashMap<String, Map<String, String>>();
+    if (cachePaths != null) {
+      for (String cachePath : cachePaths) {
+        String[] cp = StringUtils.split(cachePath, ';');
+        subPaths.put(cp[0], toMap(1, cp));
+      }
+    }
+    Map<String, List<String>> regexes = new LinkedHashMap<String, List<String>>();
+    Map<String, List<Map<String, String>>> headers = new HashMap<String, List<Map<String, String>>>();
+    if (cachePatterns != null) {
+      for (String cachePattern : cachePatterns) {
+        String[] cp = StringUtils.split(cachePattern, ';');
+        if (!regexes.containsKey(cp[0])) {
+          regexes.put(cp[0], new ArrayList<String>());
+          headers.put(cp[0], new ArrayList<Map<String, String>>());
+        }
+        regexes.get(cp[0]).add(cp[1]);
+        headers.get(cp[0]).add(toMap(2, cp));
+      }
+    }
+    subPathPatterns = new HashMap<String, PatternSet>();
+    for (Entry<String, List<String>> e : regexes.entrySet()) {
+      subPathPatterns.put(e.getKey(), new PatternSet(e.getValue(), headers.get(e.getKey())));
+    }
+    rootPathPatterns = subPathPatterns.get("root");
+    if (resolvedSize > 0) {
+      resolved = new Segment[SEGMENTS];
+      for (int i = 0; i < SEGMENTS; i++) {
+        resolved[i] = new Segment(Math.max(1, resolvedSize / SEGMENTS));
+      }
+    } else {
+      resolved = null;
+    }
+  }
+
+  /**
+   * @param path
+   *          the path of the request.
+   * @return the headers for the path, or null if no rule matches.
+   */
+  public Map<String, String> getHeaders(String path) {
+    if (path == null) {
+      return null;
+    }
+    if (resolved == null) {
+      return match(path);
+    }
+    int h = path.hashCode();
+    Segment segment = resolved[(h ^ (h >>> 16)) & (SEGMENTS - 1)];
+    Map<String, String> headers;
+    synchronized (segment) {
+      headers = segment.get(path);
+    }
+    if (headers == null) {
+      headers = match(path);
+      if (headers == null) {
+        headers = NO_MATCH;
+      }
+      synchronized (segment) {
+        segment.put(path, headers);
+      }
+    }
+    return headers == NO_MATCH ? null : headers;
+  }
+
+  private Map<String, String> match(String path) {
+    // get the Path and then the first 2 elements (2 so that we can tell if this is root
+    // or not
+    String[] elements = StringUtils.split(path, "/", 2);
+
+    if (elements.length == 0) { // odd request
+      return null;
+    } else if (elements.length == 1) { // root request eg /index.html
+      if (rootPathPatterns != null) {
+        return rootPathPatterns.match(path);
+      }
+    } else { // subtree //p/index.html
+
+      // check if there is a subtree with a setting
+      Map<String, String> headers = subPaths.get(elements[0]);
+      if (headers != null) {
+        return headers;
+      }
+
+      // or a set of patterns for the subtree
+      PatternSet patterns = subPathPatterns.get(elements[0]);
+      if (patterns != null) {
+        return patterns.match(path);
+      }
+    }
+    return null;
+  }
+
+  private Map<String, String> toMap(int starting, String[] cp) {
+    Map<String, String> map = new HashMap<String, String>();
+    for ( int i = starting; i < cp.length; i++ ) {
+      String[] kv = StringUtils.split(cp[i], ":", 2);
+      map.put(kv[0], kv[1]);
+    }
+    return Collections.unmodifiableMap(map);
+  }
+
+}
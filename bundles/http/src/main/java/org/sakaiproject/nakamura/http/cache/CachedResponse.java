@@ -18,12 +18,21 @@
 package org.sakaiproject.nakamura.http.cache;
 
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
 
 import javax.servlet.http.HttpServletResponse;
 
 /**
-  A pojo to contain the response redo log and content.
+  A pojo to contain the response redo log and content. Large bodies may be kept in a
+  direct buffer outside the java heap, those are copied back into the stream when the
+  response is serialized to be replicated. Text bodies are kept encoded in the charset of
+  the response and replayed as bytes, so a hit never decodes them again.
  */
 public class CachedResponse implements Serializable {
 
@@ -31,31 +40,152 @@ public class CachedResponse implements Serializable {
    * 
    */
   private static final long serialVersionUID = -533080549451000116L;
+  private static final String UTF8 = "UTF-8";
+  private static final int COPY_BUFFER_SIZE = 8192;
   private long expires;
+  private long staleExpires;
   private Operation[] operations;
   private byte[] byteContent;
   private String stringContent;
+  private String stringCharset;
+  private transient ByteBuffer directContent;
 
   public CachedResponse(OperationResponseCapture responseOperation, int cacheAge) throws IOException {
+    this(responseOperation, cacheAge, 0, 0);
+  }
+
+  /**
+   * @param responseOperation the captured response.
+   * @param cacheAge seconds the response is fresh for.
+   * @param staleAge seconds after that the response may still be served while it is
+   *          refreshed.
+   * @param directSize bodies of at least this many bytes are held in a direct buffer, 0
+   *          keeps all bodies on the heap.
+   * @throws IOException
+   */
+  public CachedResponse(OperationResponseCapture responseOperation, int cacheAge, int staleAge,
+      int directSize) throws IOException {
     expires = System.currentTimeMillis() + cacheAge*1000L;
+    staleExpires = expires + Math.max(0, staleAge)*1000L;
     responseOperation.setDateHeader("X-Nakamura-Cache", System.currentTimeMillis());
     operations = responseOperation.getRedoLog();
     byteContent = responseOperation.getByteContent();
     stringContent = responseOperation.getStringContent();
+    if ( directSize > 0 ) {
+      if ( stringContent != null && stringContent.length() >= directSize ) {
+        stringCharset = bodyCharset(operations);
+        directContent = toDirect(stringContent.getBytes(stringCharset));
+        stringContent = null;
+      } else if ( stringContent == null && byteContent != null && byteContent.length >= directSize ) {
+        directContent = toDirect(byteContent);
+        byteContent = null;
+      }
+    }
   }
 
+  /**
+   * @return true if the response is fresh.
+   */
   public boolean isValid() {
     return expires > System.currentTimeMillis();
   }
 
+  /**
+   * @return true if the response is fresh or may still be served stale.
+   */
+  public boolean isUsable() {
+    return staleExpires > System.currentTimeMillis();
+  }
+
   public void replay(HttpServletResponse response) throws IOException {
-    OperationResponseReplay responseOperation = new OperationResponseReplay(operations, byteContent, stringContent);
-    responseOperation.replay(response);
+    if ( directContent == null ) {
+      OperationResponseReplay responseOperation = new OperationResponseReplay(operations, byteContent, stringContent);
+      responseOperation.replay(response);
+    } else {
+      OperationResponseReplay responseOperation = new OperationResponseReplay(operations, null, null);
+      responseOperation.replay(response);
+      if ( stringCharset != null ) {
+        // the bytes are already encoded, make sure the Content-Type says how.
+        response.setCharacterEncoding(stringCharset);
+      }
+      copy(directContent.duplicate(), response.getOutputStream());
+    }
   }
-  
+
+  /**
+   * @return the charset the captured response declared last, UTF-8 if it declared none
+   *         or one this jvm does not support.
+   */
+  private static String bodyCharset(Operation[] operations) {
+    String charset = null;
+    for ( Operation o : operations ) {
+      if ( o.getOperation() == OperationResponseCapture.SET_CHARACTER_ENCODING ) {
+        charset = o.get(0);
+      } else if ( o.getOperation() == OperationResponseCapture.SET_CONTENT_TYPE ) {
+        String type = o.get(0);
+        int i = type == null ? -1 : type.toLowerCase().indexOf("charset=");
+        if ( i >= 0 ) {
+          charset = type.substring(i + "charset=".length()).split(";")[0].trim();
+        }
+      }
+    }
+    try {
+      if ( charset != null && Charset.isSupported(charset) ) {
+        return charset;
+      }
+    } catch ( IllegalCharsetNameException e ) {
+      // fall through to the default.
+    }
+    return UTF8;
+  }
+
+  private static ByteBuffer toDirect(byte[] content) {
+    ByteBuffer buffer = ByteBuffer.allocateDirect(content.length);
+    buffer.put(content);
+    buffer.flip();
+    return buffer;
+  }
+
+  private static void copy(ByteBuffer source, OutputStream out) throws IOException {
+    byte[] buffer = new byte[Math.min(COPY_BUFFER_SIZE, source.remaining())];
+    while ( source.hasRemaining() ) {
+      int n = Math.min(buffer.length, source.remaining());
+      source.get(buffer, 0, n);
+      out.write(buffer, 0, n);
+    }
+  }
+
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    out.defaultWriteObject();
+    if ( directContent == null ) {
+      out.writeInt(-1);
+    } else {
+      out.writeInt(directContent.remaining());
+      copy(directContent.duplicate(), out);
+    }
+  }
+
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    int length = in.readInt();
+    if ( length >= 0 ) {
+      byte[] content = new byte[length];
+      in.readFully(content);
+      directContent = toDirect(content);
+    }
+  }
+
   @Override
   public String toString() {
-    return "redo "+operations.length+" operations "+String.valueOf(stringContent==null?byteContent.length:stringContent.length());
+    int length;
+    if ( directContent != null ) {
+      length = directContent.remaining();
+    } else if ( stringContent != null ) {
+      length = stringContent.length();
+    } else {
+      length = byteContent==null?0:byteContent.length;
+    }
+    return "redo "+operations.length+" operations "+String.valueOf(length)+(directContent==null?"":" direct");
   }
 
 }
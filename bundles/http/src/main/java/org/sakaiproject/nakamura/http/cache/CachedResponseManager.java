@@ -23,22 +23,55 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+/**
+ * Loads, saves and replays the cached response for one request. When the response has
+ * expired only one request per key refreshes it, the others are served the stale copy if
+ * there is one, or wait for the refresh to finish. Refreshes are coordinated in this JVM
+ * only, with a cluster wide cache each node refreshes at most once.
+ */
 public class CachedResponseManager {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(CachedResponseManager.class);
   private int cacheAge;
+  private int staleAge;
+  private int directSize;
   private String key;
   private Cache<CachedResponse> cache;
+  private ConcurrentMap<String, CountDownLatch> refreshing;
+  private CountDownLatch refresh;
   private CachedResponse cachedResponse;
 
   public CachedResponseManager(HttpServletRequest request, int cacheAge, Cache<CachedResponse> cache) {
+    this(request, cacheAge, 0, 0, cache, new ConcurrentHashMap<String, CountDownLatch>());
+  }
+
+  /**
+   * @param request the request being served.
+   * @param cacheAge seconds a saved response is fresh for.
+   * @param staleAge seconds after that a saved response may be served while it is being
+   *          refreshed.
+   * @param directSize bodies of at least this many bytes are saved outside the heap, 0
+   *          disables.
+   * @param cache the response cache.
+   * @param refreshing the refreshes in progress, shared by all requests using the cache.
+   */
+  public CachedResponseManager(HttpServletRequest request, int cacheAge, int staleAge,
+      int directSize, Cache<CachedResponse> cache,
+      ConcurrentMap<String, CountDownLatch> refreshing) {
     this.cacheAge = cacheAge;
+    this.staleAge = staleAge;
+    this.directSize = directSize;
     this.key = hashKey(request.getPathInfo()+"?"+request.getQueryString());
     this.cache = cache;
+    this.refreshing = refreshing;
     this.cachedResponse = load();
   }
 
@@ -50,13 +83,70 @@ public class CachedResponseManager {
    * @return true if the CacheResponse is current and valid.
    */
   public boolean isValid() {
-    return cachedResponse != null;
+    return cachedResponse != null && cachedResponse.isValid();
+  }
+
+  /**
+   * @return true if there is an expired response that may be served while it is refreshed.
+   */
+  public boolean isStale() {
+    return cachedResponse != null && !cachedResponse.isValid();
+  }
+
+  /**
+   * Claim the refresh of this response. Only one request per key holds the claim, it must
+   * call {@link #endRefresh()} once the response has been produced.
+   * 
+   * @return true if this request should produce and save the response, false if another
+   *         request is already doing so.
+   */
+  public boolean startRefresh() {
+    CountDownLatch latch = new CountDownLatch(1);
+    if ( refreshing.putIfAbsent(key, latch) == null ) {
+      refresh = latch;
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Wait for the request holding the refresh to finish, then reload the response.
+   * 
+   * @param timeout milliseconds to wait.
+   * @return true if a fresh response is now available.
+   */
+  public boolean awaitRefresh(long timeout) {
+    CountDownLatch latch = refreshing.get(key);
+    if ( latch != null ) {
+      try {
+        if ( !latch.await(timeout, TimeUnit.MILLISECONDS) ) {
+          LOGGER.debug("Gave up waiting for refresh of {} ", key);
+          return false;
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    }
+    cachedResponse = load();
+    return isValid();
+  }
+
+  /**
+   * Release the refresh claimed by {@link #startRefresh()}, waking any waiting requests.
+   */
+  public void endRefresh() {
+    if ( refresh != null ) {
+      refreshing.remove(key, refresh);
+      refresh.countDown();
+      refresh = null;
+    }
   }
 
   public void save(OperationResponseCapture responseOperation) {
     try {
       if ( responseOperation.canCache() ) {
-        cache.put(key, new CachedResponse(responseOperation, cacheAge));
+        cache.put(key, new CachedResponse(responseOperation, cacheAge, staleAge, directSize));
       }
     } catch (IOException e) {
       LOGGER.error("Failed to save response in cache ",e);
@@ -66,7 +156,7 @@ public class CachedResponseManager {
   private CachedResponse load() {
     CachedResponse cachedResponse = null;
     cachedResponse = cache.get(key);
-    if ( cachedResponse != null && !cachedResponse.isValid() ) {
+    if ( cachedResponse != null && !cachedResponse.isUsable() ) {
       cachedResponse = null;
       cache.remove(key);
     }
@@ -74,12 +164,15 @@ public class CachedResponseManager {
   }
 
   public void send(HttpServletResponse response) throws IOException {
+    if ( !cachedResponse.isValid() ) {
+      response.setHeader("Warning", "110 - \"Response is Stale\"");
+    }
     cachedResponse.replay(response);
   }
   
   @Override
   public String toString() {
-    return key+"  "+cachedResponse.toString();
+    return key+"  "+cachedResponse;
   }
 
 }
@@ -0,0 +1,107 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.qos;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A limit that follows the latency gradient of the requests it admits. Latency is
+ * averaged over a window of at least a second, and compared with the lowest window
+ * average seen, which stands for the latency of an unloaded server. While latency stays
+ * within the tolerance of that the limit grows by about the square root of the limit per
+ * window, as latency rises the limit shrinks in proportion, to at most half per window.
+ * The lowest latency is re-measured after {@link #PROBE_WINDOWS} windows so that a
+ * permanent change in the cost of requests is picked up, but only from a window in which
+ * requests did not fill the limit, since the latency of an overloaded window is no
+ * measure of an unloaded server.
+ */
+public class AdaptiveQoSLimit extends QoSLimit {
+
+  private static final long serialVersionUID = 4313553140233917046L;
+  private static final long WINDOW = TimeUnit.SECONDS.toNanos(1);
+  private static final int MIN_WINDOW_SAMPLES = 10;
+  static final int PROBE_WINDOWS = 100;
+  private static final double TOLERANCE = 2.0;
+  private static final double SMOOTHING = 0.2;
+  private final int minLimit;
+  private final int maxLimit;
+  private double estimatedLimit;
+  private long windowStart;
+  private long windowLatency;
+  private int windowSamples;
+  private int windowMaxInFlight;
+  private long noLoadLatency;
+  private int windowsSinceProbe;
+
+  /**
+   * @param initialLimit the limit to start from.
+   * @param minLimit the lowest limit, at least 1.
+   * @param maxLimit the highest limit.
+   */
+  public AdaptiveQoSLimit(int initialLimit, int minLimit, int maxLimit) {
+    super(initialLimit);
+    this.minLimit = Math.max(1, minLimit);
+    this.maxLimit = Math.max(this.minLimit, maxLimit);
+    this.estimatedLimit = initialLimit;
+    this.windowStart = System.nanoTime();
+  }
+
+  @Override
+  public void sample(long latency, int inFlight) {
+    sample(latency, inFlight, System.nanoTime());
+  }
+
+  synchronized void sample(long latency, int inFlight, long now) {
+    windowLatency += latency;
+    windowSamples++;
+    windowMaxInFlight = Math.max(windowMaxInFlight, inFlight);
+    if (windowSamples < MIN_WINDOW_SAMPLES || now - windowStart < WINDOW) {
+      return;
+    }
+    long latencyAverage = Math.max(1, windowLatency / windowSamples);
+    int maxInFlight = windowMaxInFlight;
+    windowStart = now;
+    windowLatency = 0;
+    windowSamples = 0;
+    windowMaxInFlight = 0;
+    windowsSinceProbe++;
+    boolean saturated = maxInFlight >= (int) estimatedLimit;
+    if (noLoadLatency == 0 || latencyAverage < noLoadLatency
+        || (windowsSinceProbe >= PROBE_WINDOWS && !saturated)) {
+      noLoadLatency = latencyAverage;
+      windowsSinceProbe = 0;
+    }
+
+    double gradient = Math.max(0.5,
+        Math.min(1.0, TOLERANCE * noLoadLatency / latencyAverage));
+    double newLimit = estimatedLimit * gradient + Math.sqrt(estimatedLimit);
+    if (maxInFlight < estimatedLimit / 2) {
+      // the limit was not what held requests back, dont grow it.
+      newLimit = Math.min(newLimit, estimatedLimit);
+    }
+    newLimit = estimatedLimit * (1 - SMOOTHING) + newLimit * SMOOTHING;
+    estimatedLimit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+    setLimit((int) estimatedLimit);
+  }
+
+  @Override
+  public String getMode() {
+    return QoSFilter.LIMIT_MODE_ADAPTIVE;
+  }
+
+}
@@ -9,21 +9,43 @@ import javax.servlet.ServletRequest;
 
 public class QoSControl {
 
-  private Semaphore semaphore;
+  private QoSLimit limit;
   private int priority;
   private Queue<Continuation>[] priorityQueue;
   private long timeout;
+  private int maxQueued;
+  private QoSStatistics statistics;
 
   public QoSControl(Queue<Continuation>[] priorityQueue, int nRequests, int priority,
       long timeout) {
-    semaphore = new Semaphore(nRequests, true);
+    this("default", priorityQueue, new QoSLimit(nRequests), priority, timeout, -1);
+  }
+
+  /**
+   * @param category the name of the category, used for statistics.
+   * @param priorityQueue the queues of suspended requests.
+   * @param limit the permits for concurrent requests.
+   * @param priority the queue suspended requests are put into.
+   * @param timeout the time (ms) a suspended request waits.
+   * @param maxQueued the number of suspended requests after which requests are refused
+   *          rather than suspended, -1 for no limit.
+   */
+  public QoSControl(String category, Queue<Continuation>[] priorityQueue, QoSLimit limit,
+      int priority, long timeout, int maxQueued) {
+    this.limit = limit;
     this.priority = priority;
     this.priorityQueue = priorityQueue;
     this.timeout = timeout;
+    this.maxQueued = maxQueued;
+    this.statistics = new QoSStatistics(category, limit);
   }
 
   public Semaphore getSemaphore() {
-    return semaphore;
+    return limit;
+  }
+
+  public QoSLimit getLimit() {
+    return limit;
   }
 
   public int getPriority(ServletRequest request) {
@@ -38,4 +60,15 @@ public class QoSControl {
     return timeout;
   }
 
+  /**
+   * @return true if another request may be suspended waiting for a permit.
+   */
+  public boolean canQueue() {
+    return maxQueued < 0 || statistics.getQueued() < maxQueued;
+  }
+
+  public QoSStatistics getStatistics() {
+    return statistics;
+  }
+
 }
@@ -7,6 +7,7 @@ import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.PropertyOption;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.sling.commons.osgi.OsgiUtil;
 import org.mortbay.util.ajax.Continuation;
@@ -17,12 +18,20 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
 import java.util.Dictionary;
+import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
@@ -35,6 +44,12 @@ import javax.servlet.http.HttpServletResponse;
 /**
  * Provides a configurable QoS filter that manages request in and out of the server, based on number of concurrent requests. Pending requests are prioritiezed into queue, taken out of the queue based on priority and time of entry. If the request does not match any Quality of Service Configuration, the default configuration will be used.
  * Configuration is via the
+ *
+ * Each category either has a fixed number of concurrent requests, or an adaptive limit
+ * that starts at the configured number and follows the latency of completed requests
+ * (see {@link AdaptiveQoSLimit}). Once a category has too many suspended requests further
+ * requests are refused with a 503 straight away. Per category counters are published over
+ * JMX as org.sakaiproject.nakamura.http.qos:type=QoSStatistics,category=...
  */
 @Component(immediate = true, metatype = true)
 @Properties(value = {
@@ -79,17 +94,45 @@ public class QoSFilter implements Filter {
   @Property(longValue=60000L)
   private static final String QOS_TIMEOUT_CONFIG = "qos.timeout";
   /**
-   * List of categories, formatted as pathSpec;maxrequests;priority;timeout
+   * List of categories, formatted as pathSpec;maxrequests;priority;timeout;limitmode
    * pathSpec is of the form method:firstPathElement
    * method is * or a HTTP method in lower case (get,post,etc)
-   * maxrequests is the maximum number of concurrent requests
+   * maxrequests is the maximum number of concurrent requests, or the initial limit in adaptive mode
    * priority is the queue the request is put into if suspended (0 is the lowest) (optional)
    * timeout is the time (ms) the request will wait if suspended. (optional)
+   * limitmode is fixed or adaptive (optional)
    */
   @Property(value={})
   private static final String QOS_CATEGORIES_CONFIG = "qos.categories";
+
+  static final String LIMIT_MODE_FIXED = "fixed";
+  static final String LIMIT_MODE_ADAPTIVE = "adaptive";
+  /**
+   * The limit mode of categories that dont specify one, including the default category.
+   */
+  @Property(value = LIMIT_MODE_FIXED, options = {
+      @PropertyOption(name = LIMIT_MODE_FIXED, value = "The configured number of concurrent requests."),
+      @PropertyOption(name = LIMIT_MODE_ADAPTIVE, value = "Start at the configured number and adapt to request latency.") })
+  private static final String QOS_LIMIT_MODE_CONF = "qos.limit.mode";
+  /**
+   * Lowest limit of an adaptive category.
+   */
+  @Property(intValue=1)
+  private static final String QOS_ADAPTIVE_MIN_CONF = "qos.adaptive.min";
+  /**
+   * Highest limit of an adaptive category, as a multiple of its configured limit.
+   */
+  @Property(intValue=4)
+  private static final String QOS_ADAPTIVE_MAXFACTOR_CONF = "qos.adaptive.maxfactor";
+  /**
+   * Number of suspended requests per category after which requests are refused rather than suspended, -1 for no limit.
+   */
+  @Property(intValue=1000)
+  private static final String QOS_MAX_QUEUED_CONF = "qos.maxqueued";
+  static final String STATISTICS_NAME = "org.sakaiproject.nakamura.http.qos:type=QoSStatistics,category=";
   private static final Logger LOGGER = LoggerFactory.getLogger(QoSFilter.class);
   private String suspendedAttributeName=this.getClass().getName()+this.hashCode();
+  private String deadlineAttributeName=suspendedAttributeName+".deadline";
 
   @Reference
   protected ExtHttpService extHttpService;
@@ -97,9 +140,10 @@ public class QoSFilter implements Filter {
   private long waitMs;
 
 
-  private Queue<Continuation>[] priorityQueue;
+  private int maxPriorityNumber;
   private QoSControl defaultQoSControl;
   private Map<String, QoSControl> qoSControMap = new ConcurrentHashMap<String, QoSControl>();
+  private List<ObjectName> registeredStatistics = new ArrayList<ObjectName>();
 
   public void init(FilterConfig filterConfig) throws ServletException {
   }
@@ -112,34 +156,36 @@ public class QoSFilter implements Filter {
       throws IOException, ServletException {
     boolean accepted = false;
     QoSToken qoSToken  = getQoSControl(request);
+    QoSControl qoSControl = getControl(qoSToken);
     try {
-      if (request.getAttribute(suspendedAttributeName) == null) {
+      if (Boolean.TRUE.equals(request.getAttribute(suspendedAttributeName))) {
+        request.setAttribute(suspendedAttributeName, Boolean.FALSE);
+        if (qoSControl != null) {
+          qoSControl.getStatistics().dequeued();
+        }
+        // resumed or timed out, either way the permit may have gone to another request
+        // in the meantime, so never block for it.
         accepted = qoSToken.acquire(waitMs);
-        if (accepted) {
-          request.setAttribute(suspendedAttributeName, Boolean.FALSE);
-        } else {
-          request.setAttribute(suspendedAttributeName, Boolean.TRUE);
-          Continuation continuation = ContinuationSupport.getContinuation((HttpServletRequest)request, qoSToken.getMutex());
-          continuation.suspend(qoSToken.getSuspendTime());
-          qoSToken.queue(continuation);
-          return;
+        if (!accepted) {
+          Long deadline = (Long) request.getAttribute(deadlineAttributeName);
+          long remaining = deadline == null ? 0 : deadline - System.currentTimeMillis();
+          if (request.getAttribute("javax.servlet.resumed") == Boolean.TRUE
+              && remaining > 0) {
+            suspend(request, response, qoSToken, qoSControl, remaining);
+            return;
+          }
+          if (qoSControl != null) {
+            qoSControl.getStatistics().timedOut();
+          }
         }
       } else {
-        Boolean suspended = (Boolean) request.getAttribute(suspendedAttributeName);
-
-        if (suspended.booleanValue()) {
-          request.setAttribute(suspendedAttributeName, Boolean.FALSE);
-          if (request.getAttribute("javax.servlet.resumed") == Boolean.TRUE) {
-            qoSToken.acquire();
-            accepted = true;
-          } else {
-            // Timeout! try 1 more time.
-            accepted = qoSToken.acquire(waitMs);
-          }
-        } else {
-          // pass through resume of previously accepted request
-          qoSToken.acquire();
-          accepted = true;
+        // a new request, or a previously accepted one coming back from another suspend.
+        accepted = qoSToken.acquire(waitMs);
+        if (!accepted) {
+          long timeout = qoSToken.getSuspendTime();
+          request.setAttribute(deadlineAttributeName, System.currentTimeMillis() + timeout);
+          suspend(request, response, qoSToken, qoSControl, timeout);
+          return;
         }
       }
 
@@ -160,6 +206,25 @@ public class QoSFilter implements Filter {
     }
   }
 
+  /**
+   * Queue the request on its own category and suspend it, or refuse it if the category
+   * already has too many suspended requests.
+   */
+  private void suspend(ServletRequest request, ServletResponse response, QoSToken qoSToken,
+      QoSControl qoSControl, long timeout) throws IOException {
+    if (qoSControl != null && !qoSControl.canQueue()) {
+      qoSControl.getStatistics().rejected();
+      ((HttpServletResponse) response).sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+      return;
+    }
+    request.setAttribute(suspendedAttributeName, Boolean.TRUE);
+    Continuation continuation = ContinuationSupport.getContinuation(
+        (HttpServletRequest) request, qoSToken.getMutex());
+    // queue before suspending, suspend does not return until the request is retried.
+    qoSToken.queue(continuation);
+    continuation.suspend(timeout);
+  }
+
   private QoSToken getQoSControl(ServletRequest request) {
     QoSToken control = (QoSToken) request.getAttribute(QoSToken.CONTROL_ATTR);
     if  ( control != null ) {
@@ -187,6 +252,68 @@ public class QoSFilter implements Filter {
     return qoSToken;
   }
 
+  /**
+   * @return the control of a token created by this filter, null for any other token.
+   */
+  private QoSControl getControl(QoSToken qoSToken) {
+    if (qoSToken instanceof QoSTokenImpl) {
+      return ((QoSTokenImpl) qoSToken).getQoSControl();
+    }
+    return null;
+  }
+
+  private QoSControl createQoSControl(String category, int limit, int priority,
+      long timeout, String limitMode, int adaptiveMin, int adaptiveMaxFactor, int maxQueued) {
+    QoSLimit qoSLimit;
+    if (LIMIT_MODE_ADAPTIVE.equals(limitMode)) {
+      qoSLimit = new AdaptiveQoSLimit(limit, adaptiveMin, limit * adaptiveMaxFactor);
+    } else {
+      qoSLimit = new QoSLimit(limit);
+    }
+    // each category has its own queues, so a permit released by one category only ever
+    // resumes a request that can take it.
+    return new QoSControl(category, createPriorityQueue(), qoSLimit, priority, timeout,
+        maxQueued);
+  }
+
+  @SuppressWarnings("unchecked")
+  private Queue<Continuation>[] createPriorityQueue() {
+    Queue<Continuation>[] priorityQueue = new Queue[maxPriorityNumber+1];
+    for ( int i = 0; i < priorityQueue.length; i++ ) {
+      priorityQueue[i] = new ConcurrentLinkedQueue<Continuation>();
+    }
+    return priorityQueue;
+  }
+
+  private void registerStatistics(QoSControl qoSControl) {
+    try {
+      ObjectName objectName = new ObjectName(STATISTICS_NAME
+          + ObjectName.quote(qoSControl.getStatistics().getCategory()));
+      MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+      if (!mBeanServer.isRegistered(objectName)) {
+        mBeanServer.registerMBean(new StandardMBean(qoSControl.getStatistics(),
+            QoSStatisticsMBean.class), objectName);
+        registeredStatistics.add(objectName);
+      }
+    } catch (JMException e) {
+      LOGGER.debug("Unable to publish QoS statistics: {} ", e.getMessage());
+    }
+  }
+
+  private void unregisterStatistics() {
+    MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+    for (ObjectName objectName : registeredStatistics) {
+      try {
+        if (mBeanServer.isRegistered(objectName)) {
+          mBeanServer.unregisterMBean(objectName);
+        }
+      } catch (JMException e) {
+        LOGGER.debug(e.getMessage(), e);
+      }
+    }
+    registeredStatistics.clear();
+  }
+
 
   /**
    * @param componentContext
@@ -199,26 +326,28 @@ public class QoSFilter implements Filter {
     Dictionary<String, Object> properties = componentContext.getProperties();
 
     long defaultTimeout = OsgiUtil.toInteger(properties.get(QOS_TIMEOUT_CONFIG),-1);
-    int maxPriorityNumber = OsgiUtil.toInteger(properties.get(QOS_MAX_PRIORITY_CONF),2);
-    priorityQueue = new Queue[maxPriorityNumber+1];
-    for ( int i = 0; i < priorityQueue.length; i++ ) {
-      priorityQueue[i] = new ConcurrentLinkedQueue<Continuation>();
-    }
+    maxPriorityNumber = OsgiUtil.toInteger(properties.get(QOS_MAX_PRIORITY_CONF),2);
+
+    String limitMode = OsgiUtil.toString(properties.get(QOS_LIMIT_MODE_CONF), LIMIT_MODE_FIXED);
+    int adaptiveMin = OsgiUtil.toInteger(properties.get(QOS_ADAPTIVE_MIN_CONF), 1);
+    int adaptiveMaxFactor = OsgiUtil.toInteger(properties.get(QOS_ADAPTIVE_MAXFACTOR_CONF), 4);
+    int maxQueued = OsgiUtil.toInteger(properties.get(QOS_MAX_QUEUED_CONF), 1000);
 
-    // path, max requests, priority, timeout
+    // path, max requests, priority, timeout, limit mode
+    unregisterStatistics();
     qoSControMap.clear();
     String[] qosLocations = (String[])properties.get(QOS_CATEGORIES_CONFIG);
     if ( qosLocations != null ) {
       for ( String qosLocation : qosLocations ) {
         String[] settings = StringUtils.split(qosLocation,";");
-        if ( settings != null ) {
-          if ( settings.length > 3 ) {
-            qoSControMap.put(settings[0], new QoSControl(priorityQueue, Integer.parseInt(settings[1]), Integer.parseInt(settings[2]), Long.parseLong(settings[3])));
-          } else if ( settings.length > 2 ) {
-            qoSControMap.put(settings[0], new QoSControl(priorityQueue, Integer.parseInt(settings[1]), Integer.parseInt(settings[2]), defaultTimeout));
-          } else if ( settings.length > 2 ) {
-            qoSControMap.put(settings[0], new QoSControl(priorityQueue, Integer.parseInt(settings[1]), maxPriorityNumber, defaultTimeout));
-          }
+        if ( settings != null && settings.length > 1 ) {
+          int priority = settings.length > 2 ? Integer.parseInt(settings[2]) : maxPriorityNumber;
+          long timeout = settings.length > 3 ? Long.parseLong(settings[3]) : defaultTimeout;
+          String mode = settings.length > 4 ? settings[4] : limitMode;
+          QoSControl qoSControl = createQoSControl(settings[0], Integer.parseInt(settings[1]),
+              priority, timeout, mode, adaptiveMin, adaptiveMaxFactor, maxQueued);
+          qoSControMap.put(settings[0], qoSControl);
+          registerStatistics(qoSControl);
         }
       }
     }
@@ -229,7 +358,9 @@ public class QoSFilter implements Filter {
     long qosDefaultTimeout = OsgiUtil.toLong(properties.get(QOS_DEFAULT_REQUEST_TIMEOUT_CONF),defaultTimeout);
     waitMs = OsgiUtil.toLong(properties.get(QOS_SEMAPHOREWAIT_CONF),50);
 
-    defaultQoSControl = new QoSControl(priorityQueue, qosDefaultLimit, qosDefaultPriority, qosDefaultTimeout);
+    defaultQoSControl = createQoSControl("default", qosDefaultLimit, qosDefaultPriority,
+        qosDefaultTimeout, limitMode, adaptiveMin, adaptiveMaxFactor, maxQueued);
+    registerStatistics(defaultQoSControl);
 
     int filterPriority = OsgiUtil.toInteger(properties.get(FILTER_PRIORITY_CONF),10);
 
@@ -240,12 +371,21 @@ public class QoSFilter implements Filter {
   @Deactivate
   public void deactivate(ComponentContext componentContext) {
     extHttpService.unregisterFilter(this);
+    unregisterStatistics();
     // resume any continuations held by the filter
-    for (int p = priorityQueue.length; p-- > 0;) {
-      Continuation continutaion = priorityQueue[p].poll();
-      if (continutaion != null && continutaion.isResumed()) {
-        continutaion.resume();
-        break;
+    List<QoSControl> controls = new ArrayList<QoSControl>(qoSControMap.values());
+    if (defaultQoSControl != null) {
+      controls.add(defaultQoSControl);
+    }
+    for (QoSControl qoSControl : controls) {
+      Queue<Continuation>[] priorityQueue = qoSControl.getPriorityQueue();
+      for (int p = priorityQueue.length; p-- > 0;) {
+        Continuation continutaion;
+        while ((continutaion = priorityQueue[p].poll()) != null) {
+          if (continutaion.isPending()) {
+            continutaion.resume();
+          }
+        }
       }
     }
   }
@@ -0,0 +1,76 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.qos;
+
+import java.util.concurrent.Semaphore;
+
+/**
+ * The permits of a {@link QoSControl}. The fixed limit never changes, subclasses may move
+ * the limit based on the latency of completed requests.
+ */
+public class QoSLimit extends Semaphore {
+
+  private static final long serialVersionUID = -2218350962340466571L;
+  private volatile int limit;
+
+  public QoSLimit(int limit) {
+    super(limit, true);
+    this.limit = limit;
+  }
+
+  /**
+   * @return the current number of concurrent requests allowed.
+   */
+  public int getLimit() {
+    return limit;
+  }
+
+  /**
+   * Change the number of concurrent requests allowed. Requests already holding a permit
+   * are not affected, when reducing the limit new requests wait until enough of them
+   * have completed. Raising the limit does not resume suspended requests, the
+   * {@link QoSTokenImpl} whose sample moved the limit does that.
+   * 
+   * @param newLimit
+   */
+  protected synchronized void setLimit(int newLimit) {
+    if (newLimit > limit) {
+      release(newLimit - limit);
+    } else if (newLimit < limit) {
+      reducePermits(limit - newLimit);
+    }
+    limit = newLimit;
+  }
+
+  /**
+   * Record a completed request.
+   * 
+   * @param latency the time in ns the request held its permit.
+   * @param inFlight the number of requests holding a permit when it completed.
+   */
+  public void sample(long latency, int inFlight) {
+  }
+
+  /**
+   * @return the name of the limit algorithm.
+   */
+  public String getMode() {
+    return QoSFilter.LIMIT_MODE_FIXED;
+  }
+
+}
@@ -0,0 +1,142 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.qos;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters for one {@link QoSControl}.
+ */
+public class QoSStatistics implements QoSStatisticsMBean {
+
+  private static final long[] WAIT_BUCKETS = { 0, 1, 5, 10, 50, 100, 500, 1000, 5000, 10000,
+      60000 };
+  private final String category;
+  private final QoSLimit limit;
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final AtomicInteger queued = new AtomicInteger();
+  private final AtomicLong accepted = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+  private final AtomicLong timedOut = new AtomicLong();
+  private final AtomicLong completed = new AtomicLong();
+  private final AtomicLong totalLatency = new AtomicLong();
+  private final AtomicLongArray waitHistogram = new AtomicLongArray(WAIT_BUCKETS.length + 1);
+
+  public QoSStatistics(String category, QoSLimit limit) {
+    this.category = category;
+    this.limit = limit;
+  }
+
+  /**
+   * A request was given a permit.
+   * 
+   * @param wait the time in ns since the request arrived.
+   * @return the number of requests holding a permit.
+   */
+  int accepted(long wait) {
+    accepted.incrementAndGet();
+    long waitMs = TimeUnit.NANOSECONDS.toMillis(wait);
+    int bucket = 0;
+    while (bucket < WAIT_BUCKETS.length && waitMs > WAIT_BUCKETS[bucket]) {
+      bucket++;
+    }
+    waitHistogram.incrementAndGet(bucket);
+    return inFlight.incrementAndGet();
+  }
+
+  /**
+   * A request released its permit.
+   * 
+   * @param latency the time in ns the permit was held.
+   * @return the number of requests holding a permit before this one released.
+   */
+  int completed(long latency) {
+    completed.incrementAndGet();
+    totalLatency.addAndGet(latency);
+    return inFlight.getAndDecrement();
+  }
+
+  void queued() {
+    queued.incrementAndGet();
+  }
+
+  void dequeued() {
+    queued.decrementAndGet();
+  }
+
+  void rejected() {
+    rejected.incrementAndGet();
+  }
+
+  void timedOut() {
+    timedOut.incrementAndGet();
+  }
+
+  public String getCategory() {
+    return category;
+  }
+
+  public String getLimitMode() {
+    return limit.getMode();
+  }
+
+  public int getLimit() {
+    return limit.getLimit();
+  }
+
+  public int getInFlight() {
+    return inFlight.get();
+  }
+
+  public int getQueued() {
+    return queued.get();
+  }
+
+  public long getAccepted() {
+    return accepted.get();
+  }
+
+  public long getRejected() {
+    return rejected.get();
+  }
+
+  public long getTimedOut() {
+    return timedOut.get();
+  }
+
+  public double getAverageLatency() {
+    long n = completed.get();
+    return n == 0 ? 0.0 : totalLatency.get() / (n * 1000000.0);
+  }
+
+  public long[] getWaitTimeBuckets() {
+    return WAIT_BUCKETS.clone();
+  }
+
+  public long[] getWaitTimeHistogram() {
+    long[] histogram = new long[waitHistogram.length()];
+    for (int i = 0; i < histogram.length; i++) {
+      histogram[i] = waitHistogram.get(i);
+    }
+    return histogram;
+  }
+
+}
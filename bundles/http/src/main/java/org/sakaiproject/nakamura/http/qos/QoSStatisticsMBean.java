@@ -0,0 +1,82 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.qos;
+
+/**
+ * Admission counters for one QoS category, published over JMX.
+ */
+public interface QoSStatisticsMBean {
+
+  /**
+   * @return the category, method:firstPathElement or default.
+   */
+  String getCategory();
+
+  /**
+   * @return fixed or adaptive.
+   */
+  String getLimitMode();
+
+  /**
+   * @return the current number of concurrent requests allowed.
+   */
+  int getLimit();
+
+  /**
+   * @return the number of requests holding a permit.
+   */
+  int getInFlight();
+
+  /**
+   * @return the number of suspended requests waiting for a permit.
+   */
+  int getQueued();
+
+  /**
+   * @return the number of requests admitted.
+   */
+  long getAccepted();
+
+  /**
+   * @return the number of requests refused with a 503 because too many were queued.
+   */
+  long getRejected();
+
+  /**
+   * @return the number of suspended requests refused with a 503 after waiting.
+   */
+  long getTimedOut();
+
+  /**
+   * @return the mean time in ms an admitted request held its permit.
+   */
+  double getAverageLatency();
+
+  /**
+   * @return the upper bounds in ms of the wait time histogram buckets, the last bucket is
+   *         unbounded.
+   */
+  long[] getWaitTimeBuckets();
+
+  /**
+   * @return the number of admitted requests that waited for a permit for up to each
+   *         bound in {@link #getWaitTimeBuckets()}, with one more count for longer waits.
+   */
+  long[] getWaitTimeHistogram();
+
+}
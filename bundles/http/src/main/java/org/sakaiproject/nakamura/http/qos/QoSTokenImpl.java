@@ -12,10 +12,13 @@ public class QoSTokenImpl implements QoSToken {
 
   private QoSControl qoSControl;
   private int priority;
+  private long created;
+  private long acquired;
 
   public QoSTokenImpl(QoSControl qoSControl, ServletRequest request) {
     this.qoSControl = qoSControl;
     priority = qoSControl.getPriority(request);
+    created = System.nanoTime();
   }
 
 
@@ -24,12 +27,21 @@ public class QoSTokenImpl implements QoSToken {
   }
 
   public void release() {
+    long now = System.nanoTime();
+    int inFlight = qoSControl.getStatistics().completed(now - acquired);
+    QoSLimit limit = qoSControl.getLimit();
+    int before = limit.getLimit();
+    limit.sample(now - acquired, inFlight);
+    // our own permit, and any the sample added to the limit, can each admit one request.
+    int resume = 1 + Math.max(0, limit.getLimit() - before);
     Queue<Continuation>[] priorityQueue = qoSControl.getPriorityQueue();
-    for (int p = priorityQueue.length; p-- > 0;) {
-      Continuation continutaion = priorityQueue[p].poll();
-      if (continutaion != null && continutaion.isResumed()) {
-        continutaion.resume();// this assumes only 1 will be resumed, that may not be right and we might want to think how the proprity queues are managed.
-        break;
+    for (int p = priorityQueue.length; p-- > 0 && resume > 0;) {
+      Continuation continutaion;
+      while (resume > 0 && (continutaion = priorityQueue[p].poll()) != null) {
+        if (continutaion.isPending()) {
+          continutaion.resume();
+          resume--;
+        }
       }
     }
     qoSControl.getSemaphore().release();
@@ -40,15 +52,30 @@ public class QoSTokenImpl implements QoSToken {
   }
 
   public void queue(Continuation continuation) {
+    qoSControl.getStatistics().queued();
     qoSControl.getPriorityQueue()[priority].add(continuation);
   }
 
   public boolean acquire(long waitMs) throws InterruptedException {
-    return qoSControl.getSemaphore().tryAcquire(waitMs, TimeUnit.MILLISECONDS);
+    if (qoSControl.getSemaphore().tryAcquire(waitMs, TimeUnit.MILLISECONDS)) {
+      accepted();
+      return true;
+    }
+    return false;
   }
 
   public void acquire() throws InterruptedException {
     qoSControl.getSemaphore().acquire();
+    accepted();
+  }
+
+  private void accepted() {
+    acquired = System.nanoTime();
+    qoSControl.getStatistics().accepted(acquired - created);
+  }
+
+  QoSControl getQoSControl() {
+    return qoSControl;
   }
 
 }
@@ -17,6 +17,9 @@
  */
 package org.sakaiproject.nakamura.http.cache;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
@@ -38,13 +41,19 @@ import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.util.Dictionary;
 import java.util.Hashtable;
 import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
 
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
@@ -191,9 +200,103 @@ public class CacheControlFilterTest {
     
     
     
+  }
+
+  @Test
+  public void checkSingleRefresh() throws Exception {
+    when(request.getPathInfo()).thenReturn("/cacheable/config.json");
+    ConcurrentMap<String, CountDownLatch> refreshing = new ConcurrentHashMap<String, CountDownLatch>();
+    @SuppressWarnings("unchecked")
+    Cache<CachedResponse> responseCache = (Cache<CachedResponse>) (Cache<?>) cache;
+    CachedResponseManager first = new CachedResponseManager(request, 30, 0, 0, responseCache, refreshing);
+    CachedResponseManager second = new CachedResponseManager(request, 30, 0, 0, responseCache, refreshing);
+    assertTrue(first.startRefresh());
+    assertFalse(second.startRefresh());
+    assertFalse(second.awaitRefresh(10));
+    first.endRefresh();
+    assertTrue(refreshing.isEmpty());
+    assertFalse(second.awaitRefresh(10));
+    assertTrue(second.startRefresh());
+    second.endRefresh();
+  }
+
+  @Test
+  public void checkStaleReplay() throws Exception {
+    when(request.getPathInfo()).thenReturn("/cacheable/config.json");
+    when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+      }
+    });
+    when(cache.get("/cacheable/config.json?null")).thenReturn(populateResponseCapture(true, 0, 60, 0));
+    @SuppressWarnings("unchecked")
+    Cache<CachedResponse> responseCache = (Cache<CachedResponse>) (Cache<?>) cache;
+    CachedResponseManager manager = new CachedResponseManager(request, 30, 60, 0, responseCache,
+        new ConcurrentHashMap<String, CountDownLatch>());
+    assertFalse(manager.isValid());
+    assertTrue(manager.isStale());
+    manager.send(response);
+    verify(response).setHeader("Warning", "110 - \"Response is Stale\"");
+    verify(cache, never()).remove(anyString());
+  }
+
+  @Test
+  public void checkDirectContent() throws Exception {
+    final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    ServletOutputStream servletOutputStream = new ServletOutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        baos.write(b);
+      }
+    };
+    when(response.getOutputStream()).thenReturn(servletOutputStream);
+    CachedResponse cachedResponse = populateResponseCapture(true, 30, 0, 512);
+    assertTrue(cachedResponse.toString().endsWith("direct"));
+    cachedResponse.replay(response);
+    assertEquals(1024, baos.size());
+
+    ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(serialized);
+    out.writeObject(cachedResponse);
+    out.close();
+    ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialized.toByteArray()));
+    CachedResponse copy = (CachedResponse) in.readObject();
+    baos.reset();
+    copy.replay(response);
+    assertEquals(1024, baos.size());
+    assertTrue(copy.isValid());
+  }
+
+  @Test
+  public void checkDirectStringContent() throws Exception {
+    final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    ServletOutputStream servletOutputStream = new ServletOutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        baos.write(b);
+      }
+    };
+    when(response.getOutputStream()).thenReturn(servletOutputStream);
+    OperationResponseCapture sresponse = new OperationResponseCapture();
+    sresponse.setContentType("text/plain; charset=ISO-8859-1");
+    sresponse.setStatus(200);
+    String body = "caf\u00e9 caf\u00e9 caf\u00e9";
+    sresponse.getWriter(new PrintWriter(new StringWriter())).write(body);
+    CachedResponse cachedResponse = new CachedResponse(sresponse, 30, 0, 4);
+    assertTrue(cachedResponse.toString().endsWith("direct"));
+
+    cachedResponse.replay(response);
+    verify(response, never()).getWriter();
+    verify(response).setCharacterEncoding("ISO-8859-1");
+    assertEquals(body, new String(baos.toByteArray(), "ISO-8859-1"));
   }
 
   private CachedResponse populateResponseCapture(boolean useOutputStream) throws IOException {
+    return populateResponseCapture(useOutputStream, 30, 0, 0);
+  }
+
+  private CachedResponse populateResponseCapture(boolean useOutputStream, int cacheAge,
+      int staleAge, int directSize) throws IOException {
     OperationResponseCapture sresponse = new OperationResponseCapture();
     sresponse.addDateHeader("Date", System.currentTimeMillis());
     sresponse.setDateHeader("Last-Modified", System.currentTimeMillis());
@@ -221,7 +324,7 @@ public class CacheControlFilterTest {
       StringWriter writer = new StringWriter();
       sresponse.getWriter(new PrintWriter(writer)).write("ABCDEF");        
     }  
-    return new CachedResponse(sresponse, 30);
+    return new CachedResponse(sresponse, cacheAge, staleAge, directSize);
   }
 
   @Test
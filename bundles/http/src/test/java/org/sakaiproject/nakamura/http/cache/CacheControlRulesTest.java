@@ -0,0 +1,86 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import java.util.Map;
+
+public class CacheControlRulesTest {
+
+  private static final String[] PATHS = { "dev;.expires:100;Vary:Accept-Encoding",
+      "p;Cache-Control:no-cache" };
+  private static final String[] PATTERNS = {
+      "root;.*(js|css)$;.expires:200",
+      "root;.*html$;.expires:300",
+      "var;^/var/search/public/.*$;.expires:400",
+      "var;^/var/(search|widgets)/.*$;.expires:500",
+      "var;^/var/widgets.json$;.expires:600" };
+
+  @Test
+  public void testSubPaths() {
+    CacheControlRules rules = new CacheControlRules(PATHS, PATTERNS, 100);
+    assertEquals("100", rules.getHeaders("/dev/lib/jquery.js").get(".expires"));
+    assertEquals("no-cache", rules.getHeaders("/p/abc").get("Cache-Control"));
+    assertNull(rules.getHeaders("/devwidgets/x.js"));
+  }
+
+  @Test
+  public void testRootPatterns() {
+    CacheControlRules rules = new CacheControlRules(PATHS, PATTERNS, 100);
+    assertEquals("200", rules.getHeaders("/index.css").get(".expires"));
+    assertEquals("300", rules.getHeaders("/index.html").get(".expires"));
+    assertNull(rules.getHeaders("/index.txt"));
+    assertNull(rules.getHeaders("/"));
+    assertNull(rules.getHeaders(null));
+  }
+
+  @Test
+  public void testFirstConfiguredPatternWins() {
+    for (int size : new int[] { 0, 100 }) {
+      CacheControlRules rules = new CacheControlRules(PATHS, PATTERNS, size);
+      assertEquals("400", rules.getHeaders("/var/search/public/all.json").get(".expires"));
+      assertEquals("500", rules.getHeaders("/var/search/users.json").get(".expires"));
+      assertEquals("500", rules.getHeaders("/var/widgets/x.json").get(".expires"));
+      assertEquals("600", rules.getHeaders("/var/widgets.json").get(".expires"));
+      assertNull(rules.getHeaders("/var/other.json"));
+    }
+  }
+
+  @Test
+  public void testBackReferencePatterns() {
+    CacheControlRules rules = new CacheControlRules(null, new String[] {
+        "x;^/x/(a|b)/\\1$;.expires:1", "x;^/x/.*$;.expires:2" }, 100);
+    assertEquals("1", rules.getHeaders("/x/a/a").get(".expires"));
+    assertEquals("2", rules.getHeaders("/x/a/b").get(".expires"));
+  }
+
+  @Test
+  public void testResolvedAreRemembered() {
+    CacheControlRules rules = new CacheControlRules(PATHS, PATTERNS, 100);
+    Map<String, String> headers = rules.getHeaders("/var/widgets.json");
+    assertSame(headers, rules.getHeaders("/var/widgets.json"));
+    assertNull(rules.getHeaders("/var/other.json"));
+    assertNull(rules.getHeaders("/var/other.json"));
+  }
+
+}
@@ -0,0 +1,104 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.qos;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class AdaptiveQoSLimitTest {
+
+  private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+  private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  private long window(AdaptiveQoSLimit limit, long start, long latency, int inFlight) {
+    for (int i = 0; i < 20; i++) {
+      limit.sample(latency, inFlight, start + i * SECOND / 20);
+    }
+    return start + SECOND;
+  }
+
+  @Test
+  public void testGrowsWhileLatencyHolds() {
+    AdaptiveQoSLimit limit = new AdaptiveQoSLimit(10, 1, 40);
+    long now = System.nanoTime();
+    for (int i = 0; i < 50; i++) {
+      now = window(limit, now, 10 * MS, limit.getLimit());
+    }
+    assertEquals(40, limit.getLimit());
+    assertEquals(40, limit.availablePermits());
+  }
+
+  @Test
+  public void testDoesNotGrowWhenIdle() {
+    AdaptiveQoSLimit limit = new AdaptiveQoSLimit(10, 1, 40);
+    long now = System.nanoTime();
+    for (int i = 0; i < 50; i++) {
+      now = window(limit, now, 10 * MS, 2);
+    }
+    assertEquals(10, limit.getLimit());
+  }
+
+  @Test
+  public void testShrinksAsLatencyRises() {
+    AdaptiveQoSLimit limit = new AdaptiveQoSLimit(20, 2, 80);
+    long now = System.nanoTime();
+    now = window(limit, now, 10 * MS, 20);
+    int grown = limit.getLimit();
+    for (int i = 0; i < 50; i++) {
+      now = window(limit, now, 200 * MS, limit.getLimit());
+    }
+    assertTrue(limit.getLimit() < grown);
+    // halving plus the sqrt(limit) allowance settles at 4
+    assertEquals(4, limit.getLimit());
+  }
+
+  @Test
+  public void testProbeWaitsForAnUnsaturatedWindow() {
+    AdaptiveQoSLimit limit = new AdaptiveQoSLimit(20, 2, 80);
+    long now = System.nanoTime();
+    now = window(limit, now, 10 * MS, 20);
+    // overloaded for longer than the probe interval, the unloaded latency must hold.
+    for (int i = 0; i < AdaptiveQoSLimit.PROBE_WINDOWS + 50; i++) {
+      now = window(limit, now, 200 * MS, limit.getLimit());
+    }
+    assertEquals(4, limit.getLimit());
+
+    // a window below the limit takes the new latency as the unloaded one.
+    now = window(limit, now, 200 * MS, 1);
+    for (int i = 0; i < 10; i++) {
+      now = window(limit, now, 200 * MS, limit.getLimit());
+    }
+    assertTrue(limit.getLimit() > 4);
+  }
+
+  @Test
+  public void testShrinkWaitsForHeldPermits() throws Exception {
+    AdaptiveQoSLimit limit = new AdaptiveQoSLimit(4, 1, 8);
+    limit.acquire(4);
+    limit.setLimit(2);
+    assertEquals(-2, limit.availablePermits());
+    limit.release(4);
+    assertEquals(2, limit.availablePermits());
+    assertEquals("adaptive", limit.getMode());
+  }
+
+}
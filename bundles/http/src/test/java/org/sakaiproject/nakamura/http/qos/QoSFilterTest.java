@@ -0,0 +1,173 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.qos;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.apache.felix.http.api.ExtHttpService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.mortbay.util.ajax.Continuation;
+import org.osgi.service.component.ComponentContext;
+import org.sakaiproject.nakamura.api.http.qos.QoSToken;
+
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+public class QoSFilterTest {
+
+  private QoSFilter filter;
+  private FilterChain chain;
+  private HttpServletResponse response;
+
+  @Before
+  public void before() {
+    filter = new QoSFilter();
+    filter.extHttpService = mock(ExtHttpService.class);
+    chain = mock(FilterChain.class);
+    response = mock(HttpServletResponse.class);
+  }
+
+  @After
+  public void after() {
+    filter.deactivate(null);
+  }
+
+  private void activate(int defaultLimit, String... categories) throws Exception {
+    Hashtable<String, Object> properties = new Hashtable<String, Object>();
+    properties.put("qos.default.limit", defaultLimit);
+    properties.put("qos.timeout", 60000);
+    properties.put("qos.categories", categories);
+    ComponentContext componentContext = mock(ComponentContext.class);
+    when(componentContext.getProperties()).thenReturn(properties);
+    filter.activate(componentContext);
+  }
+
+  /**
+   * A request that keeps its attributes, suspended on the given continuation.
+   */
+  private HttpServletRequest createRequest(String uri, Continuation continuation) {
+    final Map<String, Object> attributes = new HashMap<String, Object>();
+    attributes.put("org.mortbay.jetty.ajax.Continuation", continuation);
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getRequestURI()).thenReturn(uri);
+    when(request.getMethod()).thenReturn("GET");
+    when(request.getAttribute(anyString())).thenAnswer(new Answer<Object>() {
+      public Object answer(InvocationOnMock invocation) throws Throwable {
+        return attributes.get(invocation.getArguments()[0]);
+      }
+    });
+    doAnswer(new Answer<Void>() {
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        attributes.put((String) invocation.getArguments()[0], invocation.getArguments()[1]);
+        return null;
+      }
+    }).when(request).setAttribute(anyString(), any());
+    return request;
+  }
+
+  @Test
+  public void testReleaseOnlyResumesItsOwnCategory() throws Exception {
+    activate(1, "*:a;0");
+    Continuation waiting = mock(Continuation.class);
+    when(waiting.isPending()).thenReturn(true);
+    filter.doFilter(createRequest("/a/x", waiting), response, chain);
+    verify(waiting).suspend(anyLong());
+
+    filter.doFilter(createRequest("/b/x", mock(Continuation.class)), response, chain);
+    verify(chain).doFilter(any(ServletRequest.class), any(ServletResponse.class));
+    // the permit released by the default category is no use to a request in "a".
+    verify(waiting, never()).resume();
+  }
+
+  @Test
+  public void testResumedRequestWithoutPermitIsSuspendedAgain() throws Exception {
+    activate(0);
+    Continuation continuation = mock(Continuation.class);
+    when(continuation.isPending()).thenReturn(true);
+    HttpServletRequest request = createRequest("/b/x", continuation);
+    filter.doFilter(request, response, chain);
+    verify(continuation, times(1)).suspend(anyLong());
+
+    // resumed, but another request took the permit first.
+    request.setAttribute("javax.servlet.resumed", Boolean.TRUE);
+    filter.doFilter(request, response, chain);
+    verify(continuation, times(2)).suspend(anyLong());
+    verify(chain, never()).doFilter(any(ServletRequest.class), any(ServletResponse.class));
+    verify(response, never()).sendError(anyInt());
+
+    QoSTokenImpl token = (QoSTokenImpl) request.getAttribute(QoSToken.CONTROL_ATTR);
+    token.getQoSControl().getSemaphore().release();
+    filter.doFilter(request, response, chain);
+    verify(chain).doFilter(any(ServletRequest.class), any(ServletResponse.class));
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testRaisedLimitResumesAsManyRequests() throws Exception {
+    QoSLimit limit = new QoSLimit(1) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      public void sample(long latency, int inFlight) {
+        setLimit(getLimit() + 2);
+      }
+    };
+    Queue<Continuation>[] queues = new Queue[] { new ConcurrentLinkedQueue<Continuation>() };
+    QoSControl control = new QoSControl("test", queues, limit, 0, 60000, -1);
+    Continuation[] waiting = new Continuation[4];
+    for (int i = 0; i < waiting.length; i++) {
+      waiting[i] = mock(Continuation.class);
+      when(waiting[i].isPending()).thenReturn(true);
+      queues[0].add(waiting[i]);
+    }
+
+    QoSTokenImpl token = new QoSTokenImpl(control, mock(ServletRequest.class));
+    token.acquire();
+    token.release();
+    // the released permit and the two added by the sample.
+    for (int i = 0; i < 3; i++) {
+      verify(waiting[i]).resume();
+    }
+    verify(waiting[3], never()).resume();
+    assertEquals(3, limit.availablePermits());
+  }
+
+}
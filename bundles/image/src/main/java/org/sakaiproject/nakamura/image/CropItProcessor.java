@@ -25,7 +25,6 @@ import org.apache.sanselan.ImageInfo;
 import org.apache.sanselan.ImageReadException;
 import org.apache.sanselan.ImageWriteException;
 import org.apache.sanselan.Sanselan;
-import org.apache.sanselan.util.IOUtils;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.sakaiproject.nakamura.api.jcr.JCRConstants;
@@ -41,25 +40,36 @@ import org.slf4j.LoggerFactory;
 
 import java.awt.Dimension;
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Callable;
 
+import javax.imageio.IIOException;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 import javax.jcr.Binary;
 import javax.jcr.Node;
-import javax.jcr.PathNotFoundException;
 import javax.jcr.RepositoryException;
-import javax.jcr.ValueFormatException;
 
 public class CropItProcessor {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(CropItProcessor.class);
 
+  /**
+   * Images that ImageIO can't decode from a stream are read into memory, up to this size.
+   */
+  private static final long MAX_BUFFERED_IMAGE = 100L * 1024L * 1024L;
+
   /**
    *
    * @param session
@@ -88,133 +98,400 @@ public class CropItProcessor {
    */
   public static String[] crop(ResourceResolver resourceResolver, int x, int y, int width, int height,
       List<Dimension> dimensions, String img, String save) throws ImageException, StorageClientException, AccessDeniedException {
+    return crop(resourceResolver, x, y, width, height, dimensions, img, save, null);
+  }
+
+  /**
+   * Crops and scales an image as {@link #crop(ResourceResolver, int, int, int, int, List, String, String)}
+   * does. With a derivative service scaled instances that have been made before are copied
+   * rather than decoded again, and images in the content store are decoded on its worker
+   * pool with a session of the worker's own, since a worker may still be reading after
+   * the request has given up on it. Images in JCR can only be read with the session of the
+   * request and are decoded on the calling thread.
+   *
+   * @param derivatives
+   *          The derivative service, or null to decode on the calling thread.
+   */
+  public static String[] crop(ResourceResolver resourceResolver, final int x, final int y,
+      final int width, final int height, List<Dimension> dimensions, final String img,
+      String save, ImageDerivativeService derivatives) throws ImageException,
+      StorageClientException, AccessDeniedException {
 
     Session session = StorageClientUtils.adaptToSession(resourceResolver.adaptTo(javax.jcr.Session.class));
     ContentManager contentManager = session.getContentManager();
 
-    InputStream in = null;
-
     // The array that will contain all the cropped and resized images.
     String[] arrFiles = new String[dimensions.size()];
 
     try {
-      String mimeType = "unknown";
-      String imgName = "";
-      Resource imgResource = resourceResolver.getResource(img);
-      if (imgResource instanceof SparseContentResource) {
-      Content imgContent = imgResource.adaptTo(Content.class);
-
-        if (imgContent.hasProperty("mimeType") ) {
-          mimeType = (String) imgContent.getProperty("mimeType");
+      final ImageSource source = getImageSource(resourceResolver, contentManager, img);
+
+      String[] keys = new String[dimensions.size()];
+      String versionKey = null;
+      if (derivatives != null && derivatives.isCacheEnabled()) {
+        versionKey = derivatives.getVersionKey(source.getPath(), source.getLength(),
+            source.getLastModified());
+        for (int i = 0; i < dimensions.size(); i++) {
+          keys[i] = derivatives.getKey(versionKey, x, y, width, height, dimensions.get(i));
+          ImageDerivative derivative = derivatives.getDerivative(keys[i]);
+          if (derivative != null) {
+            arrFiles[i] = saveDerivative(save, source.getName(), derivative, session);
+          }
         }
-        String imgPath = imgContent.getPath();
-        imgName = imgPath.substring(imgPath.lastIndexOf("/") + 1);
-        // nt:file
-        if (!imgContent.hasProperty("_bodyLocation")) {
-          throw new ImageException(500, "Invalid image");
+      }
+
+      // Only decode the image for the dimensions that were not found.
+      final List<Dimension> missing = new ArrayList<Dimension>();
+      for (int i = 0; i < dimensions.size(); i++) {
+        if (arrFiles[i] == null) {
+          missing.add(dimensions.get(i));
         }
-        in = contentManager.getInputStream(imgPath);
+      }
+      if (missing.isEmpty()) {
+        return arrFiles;
+      }
+
+      List<ImageDerivative> scaled;
+      if (derivatives != null && source.isContent()) {
+        final ImageDerivativeService service = derivatives;
+        scaled = derivatives.execute(new Callable<List<ImageDerivative>>() {
+          public List<ImageDerivative> call() throws Exception {
+            Session adminSession = service.loginAdministrative();
+            try {
+              InputStream in = adminSession.getContentManager().getInputStream(
+                  source.getPath());
+              if (in == null) {
+                throw new ImageException(500, "Invalid image");
+              }
+              try {
+                return scale(in, img, source.getMimeType(), x, y, width, height, missing);
+              } finally {
+                in.close();
+              }
+            } finally {
+              service.logout(adminSession);
+            }
+          }
+        });
       } else {
-        Node imgNode = imgResource.adaptTo(Node.class);
-        if (imgNode.hasProperty("jcr:mimeType")) {
-          mimeType = imgNode.getProperty("jcr:mimeType").getString();
+        InputStream in = source.getStream();
+        try {
+          scaled = scale(in, img, source.getMimeType(), x, y, width, height, missing);
+        } finally {
+          in.close();
         }
-        imgName = imgNode.getName();
-        Node imgDataNode = imgNode.getNode(JCRConstants.JCR_CONTENT);
-        Binary content = imgDataNode.getProperty(JCRConstants.JCR_DATA).getBinary();
-        in = content.getStream();
-
       }
 
-        if ( in.available() > 100L*1024L*1024L ) {
-          throw new ImageException(406, "Image "+img+" too large to crop > 100MB Si "+in.available());
+      int j = 0;
+      boolean stored = false;
+      for (int i = 0; i < dimensions.size(); i++) {
+        if (arrFiles[i] != null) {
+          continue;
         }
-        try {
+        ImageDerivative derivative = scaled.get(j++);
+        if (derivative != null) {
+          arrFiles[i] = saveDerivative(save, source.getName(), derivative, session);
+          if (keys[i] != null) {
+            derivatives.storeDerivative(keys[i], derivative);
+            stored = true;
+          }
+        } else {
+          Dimension d = dimensions.get(i);
+          LOGGER.warn("Failed to scale image "+img+" to "+d.width+" by "+d.height+" defaulting to full size");
+          arrFiles[i] = img;
+        }
+      }
+      if (stored) {
+        // the source may have changed since it was last cropped.
+        derivatives.removeOtherVersions(versionKey);
+      }
+    } catch (ImageException e) {
+      throw e;
+    } catch (StorageClientException e) {
+      throw e;
+    } catch (AccessDeniedException e) {
+      throw e;
+    } catch (Exception e) {
+      LOGGER.error("Unable to read image in order to crop it.", e);
+      throw new ImageException(500, "Unable to read image in order to crop it.");
+    }
+    return arrFiles;
+  }
 
-          // NOTE: I'd prefer to use the InputStream, but I don't see a way to get the
-          // ImageInfo _and_ the BufferedImage.
-          // I've tried using a BufferedInputStream which allows you to reset, but for BMP
-          // this doesn't help.
-          byte[] bytes = IOUtils.getInputStreamBytes(in);
-          ImageInfo info = Sanselan.getImageInfo(bytes);
-          BufferedImage imgBuf = getBufferedImage(bytes, info);
+  /**
+   * Where an image is read from, the stream can be opened more than once.
+   */
+  static class ImageSource {
+    private final String name;
+    private final String mimeType;
+    private final String path;
+    private final long length;
+    private final long lastModified;
+    private final ContentManager contentManager;
+    private final Binary binary;
+
+    ImageSource(String name, String mimeType, String path, long length, long lastModified,
+        ContentManager contentManager, Binary binary) {
+      this.name = name;
+      this.mimeType = mimeType;
+      this.path = path;
+      this.length = length;
+      this.lastModified = lastModified;
+      this.contentManager = contentManager;
+      this.binary = binary;
+    }
 
-          // Set the correct width & height.
-          width = (width <= 0) ? info.getWidth() : width;
-          height = (height <= 0) ? info.getHeight() : height;
+    String getName() {
+      return name;
+    }
 
-          if (x + width > info.getWidth()) {
-            width = info.getWidth() - x;
-          }
-          if (y + height > info.getHeight()) {
-            height = info.getHeight() - y;
-          }
+    String getMimeType() {
+      return mimeType;
+    }
 
-          // Cut the desired piece out of the image.
-          BufferedImage subImage = imgBuf.getSubimage(x, y, width, height);
+    String getPath() {
+      return path;
+    }
 
-          // Loop the dimensions and create and save an image for each
-          // one.
-          for (int i = 0; i < dimensions.size(); i++) {
+    long getLength() {
+      return length;
+    }
 
-            Dimension d = dimensions.get(i);
+    long getLastModified() {
+      return lastModified;
+    }
 
-            // get dimension size
-            int iWidth = d.width;
-            int iHeight = d.height;
+    /**
+     * @return true if the image is in the content store rather than JCR.
+     */
+    boolean isContent() {
+      return binary == null;
+    }
 
-            iWidth = (iWidth <= 0) ? info.getWidth() : iWidth;
-            iHeight = (iHeight <= 0) ? info.getHeight() : iHeight;
+    InputStream getStream() throws IOException, RepositoryException,
+        StorageClientException, AccessDeniedException {
+      InputStream in;
+      if (binary != null) {
+        in = binary.getStream();
+      } else {
+        in = contentManager.getInputStream(path);
+      }
+      if (in == null) {
+        throw new ImageException(500, "Invalid image");
+      }
+      return in;
+    }
+  }
 
-            // Create the image.
-            byte[] image = scaleAndWriteToByteArray(iWidth, iHeight, subImage, imgName, info);
+  private static ImageSource getImageSource(ResourceResolver resourceResolver,
+      ContentManager contentManager, String img) throws RepositoryException,
+      ImageException {
+    String mimeType = "unknown";
+    Resource imgResource = resourceResolver.getResource(img);
+    if (imgResource instanceof SparseContentResource) {
+      Content imgContent = imgResource.adaptTo(Content.class);
+      if (imgContent.hasProperty("mimeType")) {
+        mimeType = (String) imgContent.getProperty("mimeType");
+      }
+      String imgPath = imgContent.getPath();
+      String imgName = imgPath.substring(imgPath.lastIndexOf("/") + 1);
+      // nt:file
+      if (!imgContent.hasProperty("_bodyLocation")) {
+        throw new ImageException(500, "Invalid image");
+      }
+      return new ImageSource(imgName, mimeType, imgPath, toLong(imgContent
+          .getProperty(Content.LENGTH_FIELD)), toLong(imgContent
+          .getProperty(Content.LASTMODIFIED_FIELD)), contentManager, null);
+    } else {
+      Node imgNode = imgResource.adaptTo(Node.class);
+      if (imgNode.hasProperty("jcr:mimeType")) {
+        mimeType = imgNode.getProperty("jcr:mimeType").getString();
+      }
+      Node imgDataNode = imgNode.getNode(JCRConstants.JCR_CONTENT);
+      Binary content = imgDataNode.getProperty(JCRConstants.JCR_DATA).getBinary();
+      long lastModified = 0L;
+      if (imgDataNode.hasProperty(JCRConstants.JCR_LASTMODIFIED)) {
+        lastModified = imgDataNode.getProperty(JCRConstants.JCR_LASTMODIFIED).getDate()
+            .getTimeInMillis();
+      }
+      return new ImageSource(imgNode.getName(), mimeType, imgNode.getPath(), content
+          .getSize(), lastModified, null, content);
+    }
+  }
 
-            if ( image != null ) {
+  private static long toLong(Object value) {
+    return value == null ? 0L : StorageClientUtils.toLong(value);
+  }
 
-              String sPath = save + "/" + iWidth + "x" + iHeight + "_" + imgName;
-              // Save new image to JCR.
-              saveImageToContentStore(sPath, info.getMimeType(), image, session);
+  private static String saveDerivative(String save, String imgName,
+      ImageDerivative derivative, Session session) throws ImageException,
+      StorageClientException {
+    String sPath = save + "/" + derivative.getWidth() + "x" + derivative.getHeight() + "_"
+        + imgName;
+    // Save new image to JCR.
+    saveImageToContentStore(sPath, derivative.getMimeType(), derivative.getImage(), session);
+    return sPath;
+  }
 
-              arrFiles[i] = sPath;
-            } else {
-              LOGGER.warn("Failed to scale image "+img+" to "+iWidth+" by "+iHeight+" defaulting to full size");
-              arrFiles[i] = img;
-            }
-          }
-        } catch (ImageReadException e) {
-          // This is not a valid image.
-          LOGGER.error("Can't parse this format. Image {}, mime Type {} :{}", new Object[]{img, mimeType, e.getMessage()});
-          LOGGER.debug("Cause: ", e);
-          throw new ImageException(406, "Can't parse this format.  Image "+img+", mime Type "+mimeType);
-        } catch (ImageWriteException e) {
-          LOGGER.error("Can't crop this Image {}, mime Type {}  :{} ", new Object[]{img, mimeType, e.getMessage()});
-          LOGGER.debug("Cause: ", e);
-          throw new ImageException(406, "Can't crop this Image "+img+", mime Type "+mimeType);
+  /**
+   * Cuts a piece out of an image and scales it into each of the dimensions. Formats that
+   * ImageIO can read are decoded straight from the stream, reading only the crop area and
+   * skipping rows and columns that the largest dimension does not need. Other formats are
+   * read into memory and decoded with Sanselan.
+   *
+   * @param in
+   *          The image.
+   * @param img
+   *          The location of the image, for messages.
+   * @param mimeType
+   *          The Mime type of the image, for messages.
+   * @return a scaled instance for each dimension, null where the image could not be
+   *         written.
+   * @throws ImageException
+   *           406 if the image can't be parsed.
+   * @throws IOException
+   */
+  protected static List<ImageDerivative> scale(InputStream in, String img, String mimeType,
+      int x, int y, int width, int height, List<Dimension> dimensions)
+      throws ImageException, IOException {
+    ImageInputStream iis = ImageIO.createImageInputStream(in);
+    if (iis == null) {
+      throw new ImageException(500, "Unable to read image in order to crop it.");
+    }
+    try {
+      Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+      if (!readers.hasNext()) {
+        return scaleBuffered(readBytes(iis, img), img, mimeType, x, y, width, height,
+            dimensions);
+      }
+      ImageReader reader = readers.next();
+      try {
+        reader.setInput(iis, true, true);
+        int imageWidth = reader.getWidth(0);
+        int imageHeight = reader.getHeight(0);
+        Rectangle area = getCropArea(x, y, width, height, imageWidth, imageHeight);
+
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceRegion(area);
+        int subsampling = getSubsampling(area, dimensions, imageWidth, imageHeight);
+        param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+        BufferedImage subImage = reader.read(0, param);
+
+        String format = reader.getFormatName().toLowerCase();
+        String outputMimeType = reader.getOriginatingProvider().getMIMETypes()[0];
+        if (!ImageIO.getImageWritersByFormatName(format).hasNext()) {
+          format = "png";
+          outputMimeType = "image/png";
         }
 
-    } catch (IOException e) {
-      LOGGER.error("Unable to read image in order to crop it.", e);
-      throw new ImageException(500, "Unable to read image in order to crop it.");
-    } catch (ValueFormatException e) {
-      LOGGER.error("Unable to read image in order to crop it.", e);
-      throw new ImageException(500, "Unable to read image in order to crop it.");
-    } catch (PathNotFoundException e) {
-      LOGGER.error("Unable to read image in order to crop it.", e);
-      throw new ImageException(500, "Unable to read image in order to crop it.");
-    } catch (RepositoryException e) {
-      LOGGER.error("Unable to read image in order to crop it.", e);
-      throw new ImageException(500, "Unable to read image in order to crop it.");
-    } finally {
-      // close the streams
-      if (in != null) {
-        try {
-          in.close();
-        } catch (IOException e) {
-          LOGGER.debug("Exception closing inputstream.");
+        List<ImageDerivative> derivatives = new ArrayList<ImageDerivative>();
+        for (Dimension d : dimensions) {
+          int iWidth = (d.width <= 0) ? imageWidth : d.width;
+          int iHeight = (d.height <= 0) ? imageHeight : d.height;
+          byte[] image = scaleAndWriteToByteArray(iWidth, iHeight, subImage, format);
+          derivatives.add(image == null ? null : new ImageDerivative(iWidth, iHeight,
+              outputMimeType, image));
         }
+        return derivatives;
+      } catch (IIOException e) {
+        // This is not a valid image.
+        LOGGER.error("Can't parse this format. Image {}, mime Type {} :{}", new Object[]{img, mimeType, e.getMessage()});
+        LOGGER.debug("Cause: ", e);
+        throw new ImageException(406, "Can't parse this format.  Image "+img+", mime Type "+mimeType);
+      } finally {
+        reader.dispose();
       }
+    } finally {
+      iis.close();
     }
-    return arrFiles;
+  }
+
+  /**
+   * Cuts and scales an image that has been read into memory, for the formats only
+   * Sanselan can read.
+   */
+  private static List<ImageDerivative> scaleBuffered(byte[] bytes, String img,
+      String mimeType, int x, int y, int width, int height, List<Dimension> dimensions)
+      throws ImageException, IOException {
+    try {
+      ImageInfo info = Sanselan.getImageInfo(bytes);
+      BufferedImage imgBuf = getBufferedImage(bytes, info);
+
+      // Cut the desired piece out of the image.
+      Rectangle area = getCropArea(x, y, width, height, info.getWidth(), info.getHeight());
+      BufferedImage subImage = imgBuf.getSubimage(area.x, area.y, area.width, area.height);
+
+      List<ImageDerivative> derivatives = new ArrayList<ImageDerivative>();
+      for (Dimension d : dimensions) {
+        int iWidth = (d.width <= 0) ? info.getWidth() : d.width;
+        int iHeight = (d.height <= 0) ? info.getHeight() : d.height;
+        byte[] image = scaleAndWriteToByteArray(iWidth, iHeight, subImage, img, info);
+        derivatives.add(image == null ? null : new ImageDerivative(iWidth, iHeight, info
+            .getMimeType(), image));
+      }
+      return derivatives;
+    } catch (ImageReadException e) {
+      // This is not a valid image.
+      LOGGER.error("Can't parse this format. Image {}, mime Type {} :{}", new Object[]{img, mimeType, e.getMessage()});
+      LOGGER.debug("Cause: ", e);
+      throw new ImageException(406, "Can't parse this format.  Image "+img+", mime Type "+mimeType);
+    }
+  }
+
+  private static byte[] readBytes(ImageInputStream iis, String img) throws IOException,
+      ImageException {
+    iis.seek(0);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int n;
+    while ((n = iis.read(buffer)) >= 0) {
+      out.write(buffer, 0, n);
+      if (out.size() > MAX_BUFFERED_IMAGE) {
+        throw new ImageException(406, "Image "+img+" too large to crop > 100MB");
+      }
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * @return the crop area, with a width or height <=0 meaning the entire image and
+   *         clipped to the image.
+   * @throws ImageException
+   *           400 if the area lies outside the image.
+   */
+  protected static Rectangle getCropArea(int x, int y, int width, int height,
+      int imageWidth, int imageHeight) throws ImageException {
+    // Set the correct width & height.
+    width = (width <= 0) ? imageWidth : width;
+    height = (height <= 0) ? imageHeight : height;
+
+    if (x + width > imageWidth) {
+      width = imageWidth - x;
+    }
+    if (y + height > imageHeight) {
+      height = imageHeight - y;
+    }
+    if (width <= 0 || height <= 0) {
+      throw new ImageException(400, "The area to crop lies outside the image.");
+    }
+    return new Rectangle(x, y, width, height);
+  }
+
+  /**
+   * @return how many pixels to step over when decoding the crop area. The decoded image is
+   *         kept at least twice the size of the largest dimension so that the final
+   *         scaling steps still have pixels to smooth over.
+   */
+  protected static int getSubsampling(Rectangle area, List<Dimension> dimensions,
+      int imageWidth, int imageHeight) {
+    int targetWidth = 1;
+    int targetHeight = 1;
+    for (Dimension d : dimensions) {
+      targetWidth = Math.max(targetWidth, (d.width <= 0) ? imageWidth : d.width);
+      targetHeight = Math.max(targetHeight, (d.height <= 0) ? imageHeight : d.height);
+    }
+    int subsampling = Math.min(area.width / targetWidth, area.height / targetHeight) / 2;
+    return Math.max(1, subsampling);
   }
 
   /**
@@ -338,6 +615,30 @@ public class CropItProcessor {
   }
 
 
+  /**
+   * Scales an image and writes it with ImageIO.
+   *
+   * @param format
+   *          The ImageIO format name to write the image in, png is used if there is no
+   *          ImageIO writer that can write the scaled image in this format.
+   * @return the scaled image, or null if it could not be written.
+   */
+  protected static byte[] scaleAndWriteToByteArray(int width, int height,
+      BufferedImage img, String format) {
+    try {
+      BufferedImage imgScaled = getScaledInstance(img, width, height);
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      if (!ImageIO.write(imgScaled, format, out)) {
+        out.reset();
+        ImageIO.write(imgScaled, "png", out);
+      }
+      return out.toByteArray();
+    } catch (Exception e) {
+      LOGGER.error("Failed to process image "+e.getMessage(), e);
+    }
+    return null;
+  }
+
   /**
    * Image scaling routine as prescribed by
    * http://today.java.net/pub/a/today/2007/04/03/perils-of-image-getscaledinstance.html.
@@ -358,6 +659,13 @@ public class CropItProcessor {
     // until the target size is reached
     int w = img.getWidth();
     int h = img.getHeight();
+    // Custom and indexed images can't be drawn into with any quality, use plain RGB.
+    int type = img.getType();
+    if (type == BufferedImage.TYPE_CUSTOM || type == BufferedImage.TYPE_BYTE_INDEXED
+        || type == BufferedImage.TYPE_BYTE_BINARY) {
+      type = img.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB
+          : BufferedImage.TYPE_INT_RGB;
+    }
 
     while (w > targetWidth || h > targetHeight) {
       // Bit shifting by one is faster than dividing by 2.
@@ -372,7 +680,7 @@ public class CropItProcessor {
         h = targetHeight;
       }
 
-      BufferedImage tmp = new BufferedImage(w, h, img.getType());
+      BufferedImage tmp = new BufferedImage(w, h, type);
       Graphics2D g2 = tmp.createGraphics();
       g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
           RenderingHints.VALUE_INTERPOLATION_BILINEAR);
@@ -19,6 +19,9 @@ package org.sakaiproject.nakamura.image;
 
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.sling.SlingServlet;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
@@ -70,12 +73,20 @@ import javax.servlet.http.HttpServletResponse;
         + "Example: {\"files\":[\"/test/16x16_gateway.png\",\"/test/32x32_gateway.png\"]}"),
     @ServiceResponse(code = 400, description = "There is a missing (or invalid) parameter."),
     @ServiceResponse(code = 406, description = "The provided image is not a valid imagetype."),
+    @ServiceResponse(code = 503, description = "Too many images are being cropped at the moment, try again later."),
     @ServiceResponse(code = 500, description = "Failure, explanation is in the HTML.") }))
 public class CropItServlet extends SlingAllMethodsServlet {
 
   private static final Logger logger = LoggerFactory.getLogger(CropItServlet.class);
   private static final long serialVersionUID = 7893384805719426200L;
 
+  /**
+   * Decodes images on a bounded pool and keeps the scaled instances, when it is not
+   * available images are cropped on the request thread.
+   */
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+  protected transient volatile ImageDerivativeService derivativeService;
+
   /**
    * {@inheritDoc}
    * 
@@ -148,7 +159,7 @@ public class CropItServlet extends SlingAllMethodsServlet {
 //      requestSave = PathUtils.normalizePath(requestSave) + "/";
 
       String[] crop = CropItProcessor.crop(resourceResolver, x, y, width, height, dimensions, requestImg,
-          save);
+          save, derivativeService);
 
       response.setContentType("application/json");
       response.setCharacterEncoding("UTF-8");
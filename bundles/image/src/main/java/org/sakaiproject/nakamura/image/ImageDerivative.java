@@ -0,0 +1,63 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.image;
+
+/**
+ * One scaled instance of a cropped image.
+ */
+public class ImageDerivative {
+
+  private final int width;
+  private final int height;
+  private final String mimeType;
+  private final byte[] image;
+
+  /**
+   * @param width
+   *          The width of the scaled image.
+   * @param height
+   *          The height of the scaled image.
+   * @param mimeType
+   *          The Mime type the image was written in.
+   * @param image
+   *          The encoded image.
+   */
+  public ImageDerivative(int width, int height, String mimeType, byte[] image) {
+    this.width = width;
+    this.height = height;
+    this.mimeType = mimeType;
+    this.image = image;
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  public String getMimeType() {
+    return mimeType;
+  }
+
+  public byte[] getImage() {
+    return image;
+  }
+
+}
@@ -0,0 +1,416 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.image;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.api.lite.ClientPoolException;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.util.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.awt.Dimension;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decodes and scales images on a bounded pool of worker threads and keeps the scaled
+ * instances in the content store, so that cropping the same image again does not decode
+ * it. The instances of one source image are kept together under a hash of its path, then
+ * by its length and last modified time, the crop area and the dimensions. Instances of
+ * older versions are removed when a new version is cropped, and all of them when the
+ * source image is deleted.
+ */
+@Component(immediate = true, metatype = true)
+@Service(value = { ImageDerivativeService.class, EventHandler.class })
+public class ImageDerivativeService implements EventHandler {
+
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(ImageDerivativeService.class);
+
+  /**
+   * Where the scaled instances are kept.
+   */
+  public static final String DERIVATIVE_ROOT = "/var/image/derivatives";
+
+  /**
+   * The number of images that may be decoded at the same time, each holds one decoded
+   * image on the heap.
+   */
+  @Property(intValue = 2)
+  static final String IMAGE_WORKERS = "image.workers";
+
+  /**
+   * The number of crops that may wait for a worker, further crops are refused with a 503.
+   */
+  @Property(intValue = 8)
+  static final String IMAGE_QUEUE = "image.queue";
+
+  /**
+   * The number of ms a request will wait for its crop, including the time spent queued.
+   */
+  @Property(longValue = 60000L)
+  static final String IMAGE_TIMEOUT = "image.timeout";
+
+  /**
+   * Keep scaled instances in the content store.
+   */
+  @Property(boolValue = true)
+  static final String IMAGE_CACHE = "image.cache";
+
+  @Property(value = { StoreListener.TOPIC_BASE + "content/" + StoreListener.DELETE_TOPIC }, propertyPrivate = true)
+  static final String TOPICS = EventConstants.EVENT_TOPIC;
+
+  @Reference
+  protected Repository sparseRepository;
+
+  private ThreadPoolExecutor executor;
+
+  private long timeout;
+
+  private boolean cacheEnabled;
+
+  @Activate
+  protected void activate(Map<String, Object> properties) {
+    int workers = Math.max(1, OsgiUtil.toInteger(properties.get(IMAGE_WORKERS), 2));
+    int queue = Math.max(1, OsgiUtil.toInteger(properties.get(IMAGE_QUEUE), 8));
+    timeout = OsgiUtil.toLong(properties.get(IMAGE_TIMEOUT), 60000L);
+    cacheEnabled = OsgiUtil.toBoolean(properties.get(IMAGE_CACHE), true);
+    final AtomicInteger threadNumber = new AtomicInteger();
+    executor = new ThreadPoolExecutor(workers, workers, 60L, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(queue), new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "image-worker-" + threadNumber.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+          }
+        }, new ThreadPoolExecutor.AbortPolicy());
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  @Deactivate
+  protected void deactivate(Map<String, Object> properties) {
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+  }
+
+  /**
+   * Runs a decode on the worker pool and waits for it.
+   *
+   * @param task
+   *          The work to do.
+   * @return the result of the task.
+   * @throws ImageException
+   *           503 if the pool is saturated or the task took too long, otherwise the
+   *           failure of the task.
+   */
+  public <T> T execute(Callable<T> task) throws ImageException {
+    Future<T> future;
+    try {
+      future = executor.submit(task);
+    } catch (RejectedExecutionException e) {
+      throw new ImageException(503, "Too many images are being cropped, try again later.");
+    }
+    try {
+      return future.get(timeout, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      future.cancel(true);
+      throw new ImageException(503, "Timed out waiting for the image to be cropped.");
+    } catch (InterruptedException e) {
+      future.cancel(true);
+      Thread.currentThread().interrupt();
+      throw new ImageException(500, "Interrupted while cropping the image.");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof ImageException) {
+        throw (ImageException) e.getCause();
+      }
+      LOGGER.error("Unable to crop image.", e.getCause());
+      throw new ImageException(500, "Unable to read image in order to crop it.");
+    }
+  }
+
+  /**
+   * @return true if scaled instances are kept in the content store.
+   */
+  public boolean isCacheEnabled() {
+    return cacheEnabled;
+  }
+
+  /**
+   * @param path
+   *          The path of the source image.
+   * @return where all the scaled instances of the source image are kept.
+   */
+  public String getSourceKey(String path) {
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-1");
+      String hash = StringUtils.byteToHex(md.digest(path.getBytes("UTF-8")));
+      return DERIVATIVE_ROOT + "/" + hash.substring(0, 2) + "/" + hash;
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * @param path
+   *          The path of the source image.
+   * @param length
+   *          The length of the source image.
+   * @param lastModified
+   *          When the source image was last modified.
+   * @return where the scaled instances of this version of the source image are kept.
+   */
+  public String getVersionKey(String path, long length, long lastModified) {
+    return getSourceKey(path) + "/" + length + "_" + lastModified;
+  }
+
+  /**
+   * @param versionKey
+   *          The key from {@link #getVersionKey(String, long, long)}.
+   * @param x
+   *          The requested crop area.
+   * @param y
+   * @param width
+   * @param height
+   * @param dimension
+   *          The requested dimension.
+   * @return the path a scaled instance is kept under.
+   */
+  public String getKey(String versionKey, int x, int y, int width, int height,
+      Dimension dimension) {
+    return versionKey + "/" + x + "_" + y + "_" + width + "_" + height + "/"
+        + dimension.width + "x" + dimension.height;
+  }
+
+  /**
+   * @param key
+   *          The key from {@link #getKey(String, int, int, int, int, Dimension)}.
+   * @return the scaled instance kept under the key, or null if there is none.
+   */
+  public ImageDerivative getDerivative(String key) {
+    Session session = null;
+    InputStream in = null;
+    try {
+      session = sparseRepository.loginAdministrative();
+      ContentManager contentManager = session.getContentManager();
+      Content content = contentManager.get(key);
+      if (content == null || !content.hasProperty("_bodyLocation")) {
+        return null;
+      }
+      in = contentManager.getInputStream(key);
+      if (in == null) {
+        return null;
+      }
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      int n;
+      while ((n = in.read(buffer)) >= 0) {
+        out.write(buffer, 0, n);
+      }
+      return new ImageDerivative(toInt(content.getProperty("width")), toInt(content
+          .getProperty("height")), (String) content.getProperty("mimeType"), out
+          .toByteArray());
+    } catch (Exception e) {
+      LOGGER.warn("Unable to read scaled image {}: {}", key, e.getMessage());
+      return null;
+    } finally {
+      if (in != null) {
+        try {
+          in.close();
+        } catch (IOException e) {
+          LOGGER.debug("Exception closing inputstream.");
+        }
+      }
+      logout(session);
+    }
+  }
+
+  /**
+   * Keeps a scaled instance, failures are logged since the crop itself has succeeded.
+   *
+   * @param key
+   *          The key from {@link #getKey(String, int, int, int, int, Dimension)}.
+   * @param derivative
+   *          The scaled instance.
+   */
+  public void storeDerivative(String key, ImageDerivative derivative) {
+    Session session = null;
+    try {
+      session = sparseRepository.loginAdministrative();
+      ContentManager contentManager = session.getContentManager();
+      contentManager.update(new Content(key, ImmutableMap.of("mimeType",
+          (Object) derivative.getMimeType(), "width", derivative.getWidth(), "height",
+          derivative.getHeight())));
+      contentManager.writeBody(key, new ByteArrayInputStream(derivative.getImage()));
+    } catch (StorageClientException e) {
+      LOGGER.warn("Unable to keep scaled image {}: {}", key, e.getMessage());
+    } catch (AccessDeniedException e) {
+      LOGGER.warn("Unable to keep scaled image {}: {}", key, e.getMessage());
+    } catch (IOException e) {
+      LOGGER.warn("Unable to keep scaled image {}: {}", key, e.getMessage());
+    } finally {
+      logout(session);
+    }
+  }
+
+  /**
+   * Remove the scaled instances of every version of a source image but one.
+   *
+   * @param versionKey
+   *          The key from {@link #getVersionKey(String, long, long)} of the version to
+   *          keep.
+   */
+  public void removeOtherVersions(String versionKey) {
+    String sourceKey = versionKey.substring(0, versionKey.lastIndexOf('/'));
+    Session session = null;
+    try {
+      session = sparseRepository.loginAdministrative();
+      ContentManager contentManager = session.getContentManager();
+      Content source = contentManager.get(sourceKey);
+      if (source != null) {
+        for (Content version : Lists.newArrayList(source.listChildren())) {
+          if (!versionKey.equals(version.getPath())) {
+            removeTree(contentManager, version);
+          }
+        }
+      }
+    } catch (StorageClientException e) {
+      LOGGER.warn("Unable to remove old scaled images of {}: {}", sourceKey, e.getMessage());
+    } catch (AccessDeniedException e) {
+      LOGGER.warn("Unable to remove old scaled images of {}: {}", sourceKey, e.getMessage());
+    } finally {
+      logout(session);
+    }
+  }
+
+  /**
+   * Remove all the scaled instances of a source image.
+   *
+   * @param path
+   *          The path of the source image.
+   */
+  public void removeDerivatives(String path) {
+    String sourceKey = getSourceKey(path);
+    Session session = null;
+    try {
+      session = sparseRepository.loginAdministrative();
+      ContentManager contentManager = session.getContentManager();
+      Content source = contentManager.get(sourceKey);
+      if (source != null) {
+        removeTree(contentManager, source);
+      }
+    } catch (StorageClientException e) {
+      LOGGER.warn("Unable to remove scaled images of {}: {}", path, e.getMessage());
+    } catch (AccessDeniedException e) {
+      LOGGER.warn("Unable to remove scaled images of {}: {}", path, e.getMessage());
+    } finally {
+      logout(session);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * Removes the scaled instances of deleted content.
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String path = (String) event.getProperty("path");
+    if (cacheEnabled && path != null && !path.startsWith(DERIVATIVE_ROOT)) {
+      removeDerivatives(path);
+    }
+  }
+
+  private void removeTree(ContentManager contentManager, Content content)
+      throws StorageClientException, AccessDeniedException {
+    // collected first so nothing is deleted while the children are being listed.
+    for (Content child : Lists.newArrayList(content.listChildren())) {
+      removeTree(contentManager, child);
+    }
+    contentManager.delete(content.getPath());
+  }
+
+  /**
+   * @return an administrative session, for workers that must not use the session of a
+   *         request they may outlive.
+   * @throws ClientPoolException
+   * @throws StorageClientException
+   * @throws AccessDeniedException
+   */
+  Session loginAdministrative() throws ClientPoolException, StorageClientException,
+      AccessDeniedException {
+    return sparseRepository.loginAdministrative();
+  }
+
+  private int toInt(Object value) {
+    if (value instanceof Number) {
+      return ((Number) value).intValue();
+    }
+    return Integer.parseInt(String.valueOf(value));
+  }
+
+  void logout(Session session) {
+    if (session != null) {
+      try {
+        session.logout();
+      } catch (Exception e) {
+        LOGGER.warn("Failed to logout of administrative session {} ", e.getMessage());
+      }
+    }
+  }
+
+}
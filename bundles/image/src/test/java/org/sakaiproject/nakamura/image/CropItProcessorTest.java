@@ -17,7 +17,11 @@
  */
 package org.sakaiproject.nakamura.image;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.fail;
 import static org.mockito.Mockito.*;
 
@@ -32,9 +36,12 @@ import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.junit.Before;
 import org.junit.Test;
+import org.osgi.service.event.Event;
 import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.resource.lite.SparseContentResource;
@@ -42,11 +49,16 @@ import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
 import org.sakaiproject.nakamura.lite.jackrabbit.SparseMapUserManager;
 
 import java.awt.Dimension;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.SequenceInputStream;
 import java.util.ArrayList;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.Hashtable;
 import java.util.List;
 
 import javax.imageio.ImageIO;
@@ -66,11 +78,12 @@ public class CropItProcessorTest {
   private List<Dimension> dimensions;
   private String save = "/save/in/here/";
   private Content node;
+  private Repository repository;
 
   @Before
   public void setUp() throws Exception {
     BaseMemoryRepository baseMemoryRepository = new BaseMemoryRepository();
-    Repository repository = baseMemoryRepository.getRepository();
+    repository = baseMemoryRepository.getRepository();
     session = repository.loginAdministrative();
     session.getContentManager().update(new Content(img, null));
     node = session.getContentManager().get(img);
@@ -149,4 +162,99 @@ public class CropItProcessorTest {
     assertEquals(scaledImage.getHeight(), 50);
   }
 
+  @Test
+  public void testSubsampling() {
+    List<Dimension> sizes = new ArrayList<Dimension>();
+    sizes.add(new Dimension(50, 50));
+    sizes.add(new Dimension(100, 100));
+    // keep twice the largest dimension.
+    assertEquals(5, CropItProcessor.getSubsampling(new Rectangle(0, 0, 1000, 1200), sizes,
+        2000, 2000));
+    assertEquals(1, CropItProcessor.getSubsampling(new Rectangle(0, 0, 300, 300), sizes,
+        2000, 2000));
+    sizes.add(new Dimension(0, 0));
+    assertEquals(1, CropItProcessor.getSubsampling(new Rectangle(0, 0, 1000, 1000), sizes,
+        2000, 2000));
+  }
+
+  @Test
+  public void testCropArea() throws ImageException {
+    assertEquals(new Rectangle(10, 10, 90, 40), CropItProcessor.getCropArea(10, 10, 0, 50,
+        100, 100));
+    try {
+      CropItProcessor.getCropArea(100, 0, 10, 10, 100, 100);
+      fail("The area lies outside the image.");
+    } catch (ImageException e) {
+      assertEquals(400, e.getCode());
+    }
+  }
+
+  @Test
+  public void testCropWithDerivatives() throws Exception {
+    session.getContentManager().writeBody(img, getClass().getResourceAsStream("people.png"));
+    node = session.getContentManager().get(img);
+    ResourceResolver resourceResolver = mock(ResourceResolver.class);
+    SparseContentResource someResource = mock(SparseContentResource.class);
+    when(someResource.adaptTo(Content.class)).thenReturn(node);
+    JackrabbitSession jrSession = mock(JackrabbitSession.class);
+    SparseMapUserManager userManager = mock(SparseMapUserManager.class);
+    when(userManager.getSession()).thenReturn(session);
+    when(jrSession.getUserManager()).thenReturn(userManager);
+    when(resourceResolver.adaptTo(javax.jcr.Session.class)).thenReturn(jrSession);
+    when(resourceResolver.getResource(anyString())).thenReturn(someResource);
+
+    ImageDerivativeService derivatives = new ImageDerivativeService();
+    derivatives.sparseRepository = repository;
+    derivatives.activate(new HashMap<String, Object>());
+    try {
+      String[] files = CropItProcessor.crop(resourceResolver, x, y, width, height,
+          dimensions, img, save, derivatives);
+      assertEquals(save + "/50x50_people.png", files[0]);
+      BufferedImage scaled = ImageIO.read(session.getContentManager().getInputStream(
+          files[0]));
+      assertEquals(50, scaled.getWidth());
+      assertEquals(50, scaled.getHeight());
+
+      String versionKey = derivatives.getVersionKey(img, StorageClientUtils.toLong(node
+          .getProperty(Content.LENGTH_FIELD)), StorageClientUtils.toLong(node
+          .getProperty(Content.LASTMODIFIED_FIELD)));
+      String key = derivatives.getKey(versionKey, x, y, width, height, dimensions.get(0));
+      assertNotNull(derivatives.getDerivative(key));
+
+      // A second crop is copied from the kept instance rather than decoded.
+      byte[] marker = new byte[] { 1, 2, 3 };
+      session.getContentManager().writeBody(key, new ByteArrayInputStream(marker));
+      files = CropItProcessor.crop(resourceResolver, x, y, width, height, dimensions, img,
+          save, derivatives);
+      assertEquals(save + "/50x50_people.png", files[0]);
+      assertArrayEquals(marker, derivatives.getDerivative(key).getImage());
+      InputStream saved = session.getContentManager().getInputStream(files[0]);
+      byte[] copy = new byte[4];
+      assertEquals(3, saved.read(copy));
+
+      // A new version of the source is decoded again and the old instances are removed.
+      session.getContentManager().writeBody(img, new SequenceInputStream(getClass()
+          .getResourceAsStream("people.png"), new ByteArrayInputStream(new byte[1])));
+      node = session.getContentManager().get(img);
+      when(someResource.adaptTo(Content.class)).thenReturn(node);
+      CropItProcessor.crop(resourceResolver, x, y, width, height, dimensions, img, save,
+          derivatives);
+      assertNull(derivatives.getDerivative(key));
+      String newKey = derivatives.getKey(derivatives.getVersionKey(img, StorageClientUtils
+          .toLong(node.getProperty(Content.LENGTH_FIELD)), StorageClientUtils.toLong(node
+          .getProperty(Content.LASTMODIFIED_FIELD))), x, y, width, height, dimensions.get(0));
+      assertNotNull(derivatives.getDerivative(newKey));
+
+      // Deleting the source removes all its instances.
+      Dictionary<String, Object> properties = new Hashtable<String, Object>();
+      properties.put("path", img);
+      derivatives.handleEvent(new Event(StoreListener.TOPIC_BASE + "content/"
+          + StoreListener.DELETE_TOPIC, properties));
+      assertNull(derivatives.getDerivative(newKey));
+      assertFalse(session.getContentManager().exists(derivatives.getSourceKey(img)));
+    } finally {
+      derivatives.deactivate(null);
+    }
+  }
+
 }
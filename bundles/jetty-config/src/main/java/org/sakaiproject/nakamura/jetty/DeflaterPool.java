@@ -0,0 +1,60 @@
+package org.sakaiproject.nakamura.jetty;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.Deflater;
+
+/**
+ * A bounded pool of raw (nowrap) Deflaters at a fixed compression level. Creating a
+ * Deflater allocates native zlib state, which is only released when the Deflater is ended
+ * or finalized, so reusing them avoids that churn on every compressed response.
+ */
+public class DeflaterPool {
+
+  private final int level;
+  private final ArrayBlockingQueue<Deflater> pool;
+
+  /**
+   * @param level
+   *          the compression level, 0-9 or -1 for the zlib default.
+   * @param size
+   *          the maximum number of idle Deflaters to keep.
+   */
+  public DeflaterPool(int level, int size) {
+    this.level = level;
+    this.pool = new ArrayBlockingQueue<Deflater>(Math.max(1, size));
+  }
+
+  /**
+   * @return an idle Deflater, or a new one if there are none.
+   */
+  public Deflater take() {
+    Deflater deflater = pool.poll();
+    if (deflater == null) {
+      deflater = new Deflater(level, true);
+    }
+    return deflater;
+  }
+
+  /**
+   * Return a Deflater to the pool, ending it if the pool is full.
+   *
+   * @param deflater
+   */
+  public void release(Deflater deflater) {
+    deflater.reset();
+    if (!pool.offer(deflater)) {
+      deflater.end();
+    }
+  }
+
+  /**
+   * End all the idle Deflaters.
+   */
+  public void close() {
+    Deflater deflater;
+    while ((deflater = pool.poll()) != null) {
+      deflater.end();
+    }
+  }
+
+}
@@ -13,6 +13,8 @@
 //========================================================================
 package org.sakaiproject.nakamura.jetty;
 
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
@@ -21,7 +23,7 @@ import java.io.UnsupportedEncodingException;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.StringTokenizer;
-import java.util.zip.GZIPOutputStream;
+import java.util.zip.Deflater;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
 import javax.servlet.ServletException;
@@ -59,6 +61,15 @@ import org.slf4j.LoggerFactory;
  * This filter extends {@link UserAgentFilter} and if the the initParameter <code>excludedAgents</code>
  * is set to a comma separated list of user agents, then these agents will be excluded from gzip content.
  * </p>
+ * <p>
+ * Deflaters are pooled, and compress at the level set by the <code>compressionLevel</code>
+ * initParameter. If <code>variantCacheSize</code> is more than 0, compressed GET responses that
+ * carry an ETag or the X-Nakamura-Cache stamp of the request cache are kept, up to that many
+ * bytes in total and <code>variantMaxSize</code> bytes each. Responses identified only by a
+ * Last-Modified date are kept if <code>variantLastModified</code> is true. A later
+ * response to the same request with the same validator is sent from the stored bytes and the
+ * uncompressed body is discarded rather than compressed again.
+ * </p>
  *
  * @author gregw
  *
@@ -70,6 +81,16 @@ public class GzipFilter extends UserAgentFilter
     protected int _bufferSize=8192;
     protected int _minGzipSize=0;
     protected Set<String> _excluded;
+    protected int _compressionLevel=Deflater.DEFAULT_COMPRESSION;
+    protected DeflaterPool _deflaters;
+    protected GzipVariantCache _variants;
+    protected boolean _variantLastModified;
+
+    /**
+     * The date header the request cache sets on each response it captures, it identifies the
+     * captured content in the same way as an ETag.
+     */
+    public static final String REQUEST_CACHE_STAMP="X-Nakamura-Cache";
 
     public void init(FilterConfig filterConfig) throws ServletException
     {
@@ -100,10 +121,42 @@ public class GzipFilter extends UserAgentFilter
             while (tok.hasMoreTokens())
                 _excluded.add(tok.nextToken());
         }
+
+        tmp=filterConfig.getInitParameter("compressionLevel");
+        if (tmp!=null)
+            _compressionLevel=Integer.parseInt(tmp);
+
+        int poolSize=16;
+        tmp=filterConfig.getInitParameter("deflaterPoolSize");
+        if (tmp!=null)
+            poolSize=Integer.parseInt(tmp);
+        _deflaters=new DeflaterPool(_compressionLevel,poolSize);
+
+        long variantCacheSize=0;
+        int variantMaxSize=1048576;
+        tmp=filterConfig.getInitParameter("variantCacheSize");
+        if (tmp!=null)
+            variantCacheSize=Long.parseLong(tmp);
+        tmp=filterConfig.getInitParameter("variantMaxSize");
+        if (tmp!=null)
+            variantMaxSize=Integer.parseInt(tmp);
+        _variants=variantCacheSize>0?new GzipVariantCache(variantCacheSize,variantMaxSize):null;
+
+        // a Last-Modified date does not change when the rendering of a resource differs between
+        // users, so it only identifies content where that is known not to happen.
+        tmp=filterConfig.getInitParameter("variantLastModified");
+        _variantLastModified=tmp!=null && Boolean.valueOf(tmp).booleanValue();
     }
 
     public void destroy()
     {
+        if (_variants!=null)
+        {
+            LOGGER.info("Destroying {} ",_variants);
+            _variants.clear();
+        }
+        if (_deflaters!=null)
+            _deflaters.close();
     }
 
     public void doFilter(ServletRequest req, ServletResponse res, FilterChain chain)
@@ -114,8 +167,11 @@ public class GzipFilter extends UserAgentFilter
 
         String ae = request.getHeader("accept-encoding");
         Boolean gzip=(Boolean)request.getAttribute("GzipFilter");
+        // a partial response must go out as the identity bytes its Content-Range and
+        // Content-Length describe, so ranged requests are never compressed.
         if (ae != null && ae.indexOf("gzip")>=0 && !response.containsHeader("Content-Encoding") &&
-            (gzip==null || gzip.booleanValue()) && !"HEAD".equalsIgnoreCase(request.getMethod()))
+            (gzip==null || gzip.booleanValue()) && !"HEAD".equalsIgnoreCase(request.getMethod()) &&
+            request.getHeader("Range")==null)
         {
             if (_excluded!=null)
             {
@@ -144,13 +200,21 @@ public class GzipFilter extends UserAgentFilter
             }
             finally
             {
-                if (exceptional && !response.isCommitted())
+                try
                 {
-                    wrappedResponse.resetBuffer();
-                    wrappedResponse.noGzip(true, "Exception");
+                    if (exceptional && !response.isCommitted())
+                    {
+                        wrappedResponse.resetBuffer();
+                        wrappedResponse.noGzip(true, "Exception");
+                    }
+                    else
+                        wrappedResponse.finish();
+                }
+                finally
+                {
+                    // finishing can fail writing to the client, the Deflater goes back regardless.
+                    wrappedResponse.release();
                 }
-                else
-                    wrappedResponse.finish();
             }
         }
         else
@@ -180,6 +244,10 @@ public class GzipFilter extends UserAgentFilter
         PrintWriter _writer;
         GzipStream _gzStream;
         long _contentLength=-1;
+        int _status=200;
+        String _etag;
+        String _lastModified;
+        String _cacheStamp;
 
         public GZIPResponseWrapper(HttpServletRequest request, HttpServletResponse response)
         {
@@ -187,6 +255,63 @@ public class GzipFilter extends UserAgentFilter
             _request=request;
         }
 
+        /**
+         * Note the headers that identify the content of the response, so that the compressed
+         * variant can be stored and found again.
+         */
+        void validator(String name, String value)
+        {
+            if ("etag".equalsIgnoreCase(name))
+                _etag=value;
+            else if ("last-modified".equalsIgnoreCase(name))
+                _lastModified=value;
+            else if (REQUEST_CACHE_STAMP.equalsIgnoreCase(name))
+                _cacheStamp=value;
+            else
+                return;
+            if (_gzStream!=null)
+                _gzStream.setVariantKey(getVariantKey());
+        }
+
+        /**
+         * @return the key of the compressed variant of this response, or null if it should not
+         *         be cached.
+         */
+        String getVariantKey()
+        {
+            if (_variants==null || !"GET".equals(_request.getMethod())
+                || _request.getHeader("Range")!=null
+                || _request.getAttribute("javax.servlet.include.request_uri")!=null)
+                return null;
+            String validator;
+            if (_etag!=null)
+                validator="E"+_etag;
+            else if (_cacheStamp!=null)
+                validator="C"+_cacheStamp;
+            else if (_lastModified!=null && _variantLastModified)
+                validator="L"+_lastModified;
+            else
+                return null;
+            StringBuilder key=new StringBuilder(_request.getServerName());
+            key.append(_request.getRequestURI());
+            String query=_request.getQueryString();
+            if (query!=null)
+                key.append('?').append(query);
+            return key.append('|').append(validator).append("|gzip").toString();
+        }
+
+        public void setDateHeader(String name, long date)
+        {
+            super.setDateHeader(name,date);
+            validator(name,String.valueOf(date));
+        }
+
+        public void addDateHeader(String name, long date)
+        {
+            super.addDateHeader(name,date);
+            validator(name,String.valueOf(date));
+        }
+
         public void setContentType(String ct)
         {
             super.setContentType(ct);
@@ -210,7 +335,10 @@ public class GzipFilter extends UserAgentFilter
         public void setStatus(int sc, String sm)
         {
             super.setStatus(sc,sm);
-            if (sc<200||sc>=300)
+            _status=sc;
+            if (sc==HttpServletResponse.SC_PARTIAL_CONTENT)
+              noGzip(true, "Partial Content");
+            else if (sc<200||sc>=300)
               noGzip(false, "Status Code "+sc);
             else if ( !isCommitted() )
               doGzip();
@@ -220,26 +348,43 @@ public class GzipFilter extends UserAgentFilter
         public void setStatus(int sc)
         {
             super.setStatus(sc);
-            if (sc<200||sc>=300)
+            _status=sc;
+            if (sc==HttpServletResponse.SC_PARTIAL_CONTENT)
+                noGzip(true, "Partial Content");
+            else if (sc<200||sc>=300)
                 noGzip(false, "Status Code "+sc );
             else 
               doGzip();
         }
 
         public void setContentLength(int length)
+        {
+            contentLength(length);
+        }
+
+        /**
+         * Note the identity length of the content. When the response will never be compressed
+         * and is written straight through, the length goes straight to the response too.
+         */
+        void contentLength(long length)
         {
             _contentLength=length;
             if (_gzStream!=null)
                 _gzStream.setContentLength(length);
+            else if (_hardNoGzip)
+            {
+                if (length<Integer.MAX_VALUE)
+                    super.setContentLength((int)length);
+                else
+                    super.setHeader("Content-Length",Long.toString(length));
+            }
         }
 
         public void addHeader(String name, String value)
         {
             if ("content-length".equalsIgnoreCase(name))
             {
-                _contentLength=Long.parseLong(value);
-                if (_gzStream!=null)
-                    _gzStream.setContentLength(_contentLength);
+                contentLength(Long.parseLong(value));
             }
             else if ("content-type".equalsIgnoreCase(name))
             {
@@ -254,16 +399,17 @@ public class GzipFilter extends UserAgentFilter
                 }
             }
             else
+            {
                 super.addHeader(name,value);
+                validator(name,value);
+            }
         }
 
         public void setHeader(String name, String value)
         {
             if ("content-length".equalsIgnoreCase(name))
             {
-                _contentLength=Long.parseLong(value);
-                if (_gzStream!=null)
-                    _gzStream.setContentLength(_contentLength);
+                contentLength(Long.parseLong(value));
             }
             else if ("content-type".equalsIgnoreCase(name))
             {
@@ -278,16 +424,17 @@ public class GzipFilter extends UserAgentFilter
                 }
             }
             else
+            {
                 super.setHeader(name,value);
+                validator(name,value);
+            }
         }
 
         public void setIntHeader(String name, int value)
         {
             if ("content-length".equalsIgnoreCase(name))
             {
-                _contentLength=value;
-                if (_gzStream!=null)
-                    _gzStream.setContentLength(_contentLength);
+                contentLength(value);
             }
             else
                 super.setIntHeader(name,value);
@@ -412,12 +559,25 @@ public class GzipFilter extends UserAgentFilter
             if (_writer!=null && !_gzStream._closed)
                 _writer.flush();
             if (_gzStream!=null)
+            {
                 _gzStream.finish();
+                if (_status==200)
+                    _gzStream.storeVariant();
+            }
+        }
+
+        /**
+         * Return any Deflater still held by the response to the pool.
+         */
+        void release()
+        {
+            if (_gzStream!=null)
+                _gzStream.release();
         }
 
         protected GzipStream newGzipStream(HttpServletRequest request,HttpServletResponse response,long contentLength,int bufferSize, int minGzipSize) throws IOException
         {
-            return new GzipStream(request,response,contentLength,bufferSize,minGzipSize);
+            return new GzipStream(request,response,contentLength,bufferSize,minGzipSize,_deflaters,_variants,getVariantKey());
         }
     }
 
@@ -428,31 +588,59 @@ public class GzipFilter extends UserAgentFilter
         protected HttpServletResponse _response;
         protected OutputStream _out;
         protected ByteArrayOutputStream2 _bOut;
-        protected GZIPOutputStream _gzOut;
+        protected PooledGzipOutputStream _gzOut;
         protected boolean _closed;
         protected int _bufferSize;
         protected int _minGzipSize;
         protected long _contentLength;
+        protected DeflaterPool _deflaters;
+        protected GzipVariantCache _variants;
+        protected String _variantKey;
+        protected CaptureOutputStream _capture;
+        protected boolean _variantSent;
 
         public GzipStream(HttpServletRequest request,HttpServletResponse response,long contentLength,int bufferSize, int minGzipSize) throws IOException
+        {
+            this(request,response,contentLength,bufferSize,minGzipSize,null,null,null);
+        }
+
+        public GzipStream(HttpServletRequest request,HttpServletResponse response,long contentLength,int bufferSize, int minGzipSize,
+            DeflaterPool deflaters, GzipVariantCache variants, String variantKey) throws IOException
         {
             _request=request;
             _response=response;
             _contentLength=contentLength;
             _bufferSize=bufferSize;
             _minGzipSize=minGzipSize;
+            _deflaters=deflaters==null?new DeflaterPool(Deflater.DEFAULT_COMPRESSION,1):deflaters;
+            _variants=variants;
+            _variantKey=variantKey;
             if (minGzipSize==0)
                 doGzip();
         }
 
+        /**
+         * @param variantKey the key of the compressed variant, only used if compression has
+         *        not started yet.
+         */
+        public void setVariantKey(String variantKey)
+        {
+            if (_gzOut==null && !_variantSent)
+                _variantKey=variantKey;
+        }
+
         public void resetBuffer()
         {
             _closed=false;
             _out=null;
             _bOut=null;
-            if (_gzOut!=null && !_response.isCommitted())
+            if ((_gzOut!=null || _variantSent) && !_response.isCommitted())
                 _response.setHeader("Content-Encoding",null);
+            if (_gzOut!=null)
+                _gzOut.release();
             _gzOut=null;
+            _capture=null;
+            _variantSent=false;
         }
 
         public void setContentLength(long length)
@@ -460,6 +648,15 @@ public class GzipFilter extends UserAgentFilter
             _contentLength=length;
         }
 
+        /**
+         * Return the Deflater to the pool if the compressed output was not finished.
+         */
+        public void release()
+        {
+            if (_gzOut!=null)
+                _gzOut.release();
+        }
+
         public void flush() throws IOException
         {
             if (_out==null || _bOut!=null)
@@ -548,14 +745,29 @@ public class GzipFilter extends UserAgentFilter
 
         public void doGzip() throws IOException
         {
-            if (_gzOut==null)
+            if (_gzOut==null && !_variantSent)
             {
                 if (_response.isCommitted())
                     throw new IllegalStateException();
 
-                if (setContentEncodingGzip())
+                GzipVariantCache.Variant variant=null;
+                if (_variants!=null && _variantKey!=null)
                 {
-                    _out=_gzOut=new GZIPOutputStream(_response.getOutputStream(),_bufferSize);
+                    variant=_variants.get(_variantKey);
+                    if (variant!=null && _contentLength>=0 && _contentLength!=variant.getIdentityLength())
+                        variant=null;
+                }
+
+                if (variant!=null && setContentEncodingGzip())
+                {
+                    sendVariant(variant);
+                }
+                else if (setContentEncodingGzip())
+                {
+                    OutputStream out=_response.getOutputStream();
+                    if (_variants!=null && _variantKey!=null)
+                        out=_capture=new CaptureOutputStream(out,_variants.getMaxEntrySize());
+                    _out=_gzOut=new PooledGzipOutputStream(out,_deflaters,_bufferSize);
 
                     if (_bOut!=null)
                     {
@@ -568,6 +780,42 @@ public class GzipFilter extends UserAgentFilter
             }
         }
 
+        /**
+         * Send the stored compressed variant, anything written after this is discarded.
+         */
+        protected void sendVariant(GzipVariantCache.Variant variant) throws IOException
+        {
+            byte[] content=variant.getContent();
+            _response.setContentLength(content.length);
+            OutputStream out=_response.getOutputStream();
+            out.write(content);
+            _out=new FilterOutputStream(out)
+            {
+                public void write(int b)
+                {
+                }
+
+                public void write(byte[] b, int off, int len)
+                {
+                }
+            };
+            _bOut=null;
+            _variantSent=true;
+            LOGGER.debug("Sent stored gzip variant {} ",_variantKey);
+        }
+
+        /**
+         * Store the compressed output as a variant if all of it was captured.
+         */
+        public void storeVariant()
+        {
+            if (_capture!=null && _gzOut!=null && _gzOut.isFinished() && !_capture.isOverflowed())
+            {
+                _variants.put(_variantKey,_capture.toByteArray(),_gzOut.getBytesRead());
+                _capture=null;
+            }
+        }
+
         public void doNotGzip() throws IOException
         {
             if (_gzOut!=null)
@@ -612,4 +860,55 @@ public class GzipFilter extends UserAgentFilter
             }
         }
     }
+
+    /**
+     * Passes output through, keeping a copy until it grows past a limit.
+     */
+    protected static class CaptureOutputStream extends FilterOutputStream
+    {
+        private final int _limit;
+        private ByteArrayOutputStream _copy=new ByteArrayOutputStream();
+
+        public CaptureOutputStream(OutputStream out, int limit)
+        {
+            super(out);
+            _limit=limit;
+        }
+
+        public void write(int b) throws IOException
+        {
+            out.write(b);
+            if (_copy!=null)
+            {
+                _copy.write(b);
+                checkLimit();
+            }
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            out.write(b,off,len);
+            if (_copy!=null)
+            {
+                _copy.write(b,off,len);
+                checkLimit();
+            }
+        }
+
+        private void checkLimit()
+        {
+            if (_copy.size()>_limit)
+                _copy=null;
+        }
+
+        public boolean isOverflowed()
+        {
+            return _copy==null;
+        }
+
+        public byte[] toByteArray()
+        {
+            return _copy.toByteArray();
+        }
+    }
 }
@@ -0,0 +1,121 @@
+package org.sakaiproject.nakamura.jetty;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A least recently used cache of compressed responses, bounded by the total number of
+ * compressed bytes held. Entries are keyed by the request and a validator of the
+ * uncompressed response (an ETag, a Last-Modified date or the time the response was
+ * captured by the request cache), so a changed resource gets a new key and the old entry
+ * ages out.
+ */
+public class GzipVariantCache {
+
+  /**
+   * A stored compressed response.
+   */
+  public static final class Variant {
+    private final byte[] content;
+    private final long identityLength;
+
+    Variant(byte[] content, long identityLength) {
+      this.content = content;
+      this.identityLength = identityLength;
+    }
+
+    /**
+     * @return the compressed bytes, which must not be modified.
+     */
+    public byte[] getContent() {
+      return content;
+    }
+
+    /**
+     * @return the length of the uncompressed response.
+     */
+    public long getIdentityLength() {
+      return identityLength;
+    }
+  }
+
+  private final long maxBytes;
+  private final int maxEntrySize;
+  private final LinkedHashMap<String, Variant> variants = new LinkedHashMap<String, Variant>(
+      64, 0.75f, true);
+  private long bytes;
+  private long hits;
+  private long misses;
+
+  /**
+   * @param maxBytes
+   *          the maximum number of compressed bytes to hold.
+   * @param maxEntrySize
+   *          the largest compressed response that will be stored.
+   */
+  public GzipVariantCache(long maxBytes, int maxEntrySize) {
+    this.maxBytes = maxBytes;
+    this.maxEntrySize = maxEntrySize;
+  }
+
+  /**
+   * @return the largest compressed response that will be stored.
+   */
+  public int getMaxEntrySize() {
+    return maxEntrySize;
+  }
+
+  /**
+   * @param key
+   * @return the stored variant or null.
+   */
+  public synchronized Variant get(String key) {
+    Variant variant = variants.get(key);
+    if (variant == null) {
+      misses++;
+    } else {
+      hits++;
+    }
+    return variant;
+  }
+
+  /**
+   * Store a compressed response, evicting the least recently used until it fits.
+   *
+   * @param key
+   * @param content
+   *          the compressed bytes.
+   * @param identityLength
+   *          the length of the uncompressed response.
+   */
+  public synchronized void put(String key, byte[] content, long identityLength) {
+    if (content.length > maxEntrySize || content.length > maxBytes) {
+      return;
+    }
+    Variant previous = variants.put(key, new Variant(content, identityLength));
+    if (previous != null) {
+      bytes -= previous.content.length;
+    }
+    bytes += content.length;
+    for (Iterator<Variant> i = variants.values().iterator(); bytes > maxBytes
+        && i.hasNext();) {
+      bytes -= i.next().content.length;
+      i.remove();
+    }
+  }
+
+  /**
+   * Remove everything.
+   */
+  public synchronized void clear() {
+    variants.clear();
+    bytes = 0;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "GzipVariantCache entries:" + variants.size() + " bytes:" + bytes + " hits:"
+        + hits + " misses:" + misses;
+  }
+
+}
@@ -0,0 +1,112 @@
+package org.sakaiproject.nakamura.jetty;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * A gzip stream, as {@link java.util.zip.GZIPOutputStream}, that borrows its Deflater from
+ * a {@link DeflaterPool} and gives it back when the stream is finished or abandoned.
+ */
+public class PooledGzipOutputStream extends DeflaterOutputStream {
+
+  private static final byte[] HEADER = { 0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, 0 };
+
+  private final DeflaterPool pool;
+  private final CRC32 crc = new CRC32();
+  private boolean released;
+  private boolean finished;
+  private long length;
+
+  /**
+   * @param out
+   *          the stream to write the compressed output to.
+   * @param pool
+   *          the pool of Deflaters.
+   * @param bufferSize
+   *          the size of the output buffer.
+   * @throws IOException
+   */
+  public PooledGzipOutputStream(OutputStream out, DeflaterPool pool, int bufferSize)
+      throws IOException {
+    super(out, pool.take(), bufferSize);
+    this.pool = pool;
+    try {
+      out.write(HEADER);
+    } catch (IOException e) {
+      release();
+      throw e;
+    }
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    if (released) {
+      throw new IOException("Stream finished");
+    }
+    super.write(b, off, len);
+    crc.update(b, off, len);
+  }
+
+  /**
+   * Finish the compressed output, write the trailer and return the Deflater to the pool.
+   * The underlying stream is left open.
+   */
+  @Override
+  public void finish() throws IOException {
+    if (!released) {
+      try {
+        super.finish();
+        length = def.getBytesRead();
+        writeInt((int) crc.getValue());
+        writeInt((int) length);
+        finished = true;
+      } finally {
+        release();
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      finish();
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * @return true if the compressed output is complete.
+   */
+  public boolean isFinished() {
+    return finished;
+  }
+
+  /**
+   * @return the number of uncompressed bytes written.
+   */
+  public long getBytesRead() {
+    return released ? length : def.getBytesRead();
+  }
+
+  /**
+   * Return the Deflater to the pool without finishing the output, used when the response
+   * is abandoned.
+   */
+  public void release() {
+    if (!released) {
+      released = true;
+      pool.release(def);
+    }
+  }
+
+  private void writeInt(int i) throws IOException {
+    out.write(i & 0xff);
+    out.write((i >> 8) & 0xff);
+    out.write((i >> 16) & 0xff);
+    out.write((i >> 24) & 0xff);
+  }
+
+}
@@ -0,0 +1,64 @@
+package org.sakaiproject.nakamura.jetty;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.util.zip.Deflater;
+
+public class DeflaterPoolTest {
+
+  @Test
+  public void testReleasedDeflaterIsReusedAfterReset() {
+    DeflaterPool pool = new DeflaterPool(Deflater.BEST_SPEED, 2);
+    Deflater deflater = pool.take();
+    deflater.setInput(new byte[] { 1, 2, 3 });
+    deflater.finish();
+    deflater.deflate(new byte[64]);
+    assertEquals(3, deflater.getBytesRead());
+
+    pool.release(deflater);
+    Deflater reused = pool.take();
+    assertSame(deflater, reused);
+    assertEquals(0, reused.getBytesRead());
+    assertEquals(false, reused.finished());
+  }
+
+  @Test
+  public void testEmptyPoolCreatesDeflaters() {
+    DeflaterPool pool = new DeflaterPool(Deflater.DEFAULT_COMPRESSION, 1);
+    Deflater first = pool.take();
+    Deflater second = pool.take();
+    assertNotSame(first, second);
+  }
+
+  @Test
+  public void testFullPoolEndsReleasedDeflater() {
+    DeflaterPool pool = new DeflaterPool(Deflater.DEFAULT_COMPRESSION, 1);
+    Deflater first = pool.take();
+    Deflater second = pool.take();
+    pool.release(first);
+    pool.release(second);
+    assertSame(first, pool.take());
+    try {
+      second.setInput(new byte[1]);
+      second.deflate(new byte[16]);
+      fail("A Deflater released to a full pool should have been ended");
+    } catch (RuntimeException e) {
+      // ended
+    }
+  }
+
+  @Test
+  public void testCloseEndsIdleDeflaters() {
+    DeflaterPool pool = new DeflaterPool(Deflater.DEFAULT_COMPRESSION, 2);
+    Deflater deflater = pool.take();
+    pool.release(deflater);
+    pool.close();
+    assertNotSame(deflater, pool.take());
+  }
+
+}
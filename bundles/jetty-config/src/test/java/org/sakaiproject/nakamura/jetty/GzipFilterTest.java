@@ -0,0 +1,282 @@
+package org.sakaiproject.nakamura.jetty;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.jetty.PooledGzipOutputStreamTest.CountingPool;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+public class GzipFilterTest {
+
+  /**
+   * Records the headers and body written by the filter.
+   */
+  static class TestResponse extends HttpServletResponseWrapper {
+    Map<String, String> headers = new HashMap<String, String>();
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    int contentLength = -1;
+    int failAfter = -1;
+
+    TestResponse() {
+      super(mock(HttpServletResponse.class));
+    }
+
+    @Override
+    public void setHeader(String name, String value) {
+      if (value == null) {
+        headers.remove(name.toLowerCase());
+      } else {
+        headers.put(name.toLowerCase(), value);
+      }
+    }
+
+    @Override
+    public void addHeader(String name, String value) {
+      setHeader(name, value);
+    }
+
+    @Override
+    public boolean containsHeader(String name) {
+      return headers.containsKey(name.toLowerCase());
+    }
+
+    @Override
+    public void setContentLength(int len) {
+      contentLength = len;
+    }
+
+    @Override
+    public boolean isCommitted() {
+      return body.size() > 0;
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() {
+      return new ServletOutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+          if (failAfter >= 0 && body.size() >= failAfter) {
+            throw new IOException("Client went away");
+          }
+          body.write(b);
+        }
+      };
+    }
+  }
+
+  /**
+   * Writes a body, optionally setting an ETag, a Content-Length and a Content-Encoding first.
+   */
+  static class TestChain implements FilterChain {
+    private final byte[] content;
+    private final String etag;
+    private final String encoding;
+
+    TestChain(byte[] content, String etag, String encoding) {
+      this.content = content;
+      this.etag = etag;
+      this.encoding = encoding;
+    }
+
+    public void doFilter(ServletRequest request, ServletResponse response)
+        throws IOException {
+      HttpServletResponse httpResponse = (HttpServletResponse) response;
+      if (etag != null) {
+        httpResponse.setHeader("ETag", etag);
+      }
+      if (encoding != null) {
+        httpResponse.setHeader("Content-Encoding", encoding);
+      }
+      httpResponse.setContentLength(content.length);
+      httpResponse.getOutputStream().write(content);
+    }
+  }
+
+  /**
+   * Answers with part of a text file, as StreamHelper does for a Range request.
+   */
+  static class RangeChain implements FilterChain {
+    private final byte[] content;
+    private final int start;
+    private final int end;
+
+    RangeChain(byte[] content, int start, int end) {
+      this.content = content;
+      this.start = start;
+      this.end = end;
+    }
+
+    public void doFilter(ServletRequest request, ServletResponse response)
+        throws IOException {
+      HttpServletResponse httpResponse = (HttpServletResponse) response;
+      httpResponse.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+      httpResponse.setContentType("text/plain");
+      httpResponse.setHeader("Content-Range", "bytes " + start + "-" + end + "/"
+          + content.length);
+      httpResponse.setContentLength(end - start + 1);
+      httpResponse.getOutputStream().write(content, start, end - start + 1);
+    }
+  }
+
+  private GzipFilter filter;
+  private CountingPool pool;
+
+  @Before
+  public void setUp() throws ServletException {
+    FilterConfig config = mock(FilterConfig.class);
+    when(config.getInitParameter("variantCacheSize")).thenReturn("1000000");
+    filter = new GzipFilter();
+    filter.init(config);
+    pool = new CountingPool();
+    filter._deflaters = pool;
+  }
+
+  @After
+  public void tearDown() {
+    filter.destroy();
+  }
+
+  private HttpServletRequest request(String acceptEncoding) {
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getHeader("accept-encoding")).thenReturn(acceptEncoding);
+    when(request.getMethod()).thenReturn("GET");
+    when(request.getServerName()).thenReturn("localhost");
+    when(request.getRequestURI()).thenReturn("/p");
+    return request;
+  }
+
+  private TestResponse get(byte[] content, String etag) throws Exception {
+    TestResponse response = new TestResponse();
+    filter.doFilter(request("gzip"), response, new TestChain(content, etag, null));
+    assertEquals("gzip", response.headers.get("content-encoding"));
+    assertEquals(0, pool.outstanding);
+    return response;
+  }
+
+  @Test
+  public void testVariantIsReusedForTheSameETagAndLength() throws Exception {
+    byte[] content = PooledGzipOutputStreamTest.body(20000);
+    byte[] first = get(content, "\"1\"").body.toByteArray();
+    assertArrayEquals(content, PooledGzipOutputStreamTest.gunzip(first));
+    assertTrue(filter._variants.toString().contains("entries:1"));
+
+    TestResponse second = get(content, "\"1\"");
+    assertArrayEquals(first, second.body.toByteArray());
+    assertEquals(first.length, second.contentLength);
+    assertTrue(filter._variants.toString().contains("hits:1"));
+  }
+
+  @Test
+  public void testVariantIsNotReusedForAnotherETagOrLength() throws Exception {
+    byte[] content = PooledGzipOutputStreamTest.body(20000);
+    get(content, "\"1\"");
+
+    byte[] changed = PooledGzipOutputStreamTest.body(20001);
+    byte[] longer = get(changed, "\"1\"").body.toByteArray();
+    assertArrayEquals(changed, PooledGzipOutputStreamTest.gunzip(longer));
+
+    byte[] retagged = get(changed, "\"2\"").body.toByteArray();
+    assertArrayEquals(changed, PooledGzipOutputStreamTest.gunzip(retagged));
+    assertTrue(filter._variants.toString().contains("entries:2"));
+  }
+
+  @Test
+  public void testIdentityWithoutAcceptEncoding() throws Exception {
+    byte[] content = PooledGzipOutputStreamTest.body(2000);
+    TestResponse response = new TestResponse();
+    filter.doFilter(request(null), response, new TestChain(content, "\"1\"", null));
+    assertNull(response.headers.get("content-encoding"));
+    assertArrayEquals(content, response.body.toByteArray());
+  }
+
+  @Test
+  public void testIdentityWhenAlreadyEncoded() throws Exception {
+    byte[] content = PooledGzipOutputStreamTest.body(2000);
+    filter._minGzipSize = 1;
+    TestResponse response = new TestResponse();
+    filter.doFilter(request("gzip"), response, new TestChain(content, null, "deflate"));
+    assertEquals("deflate", response.headers.get("content-encoding"));
+    assertArrayEquals(content, response.body.toByteArray());
+    assertEquals(0, pool.outstanding);
+  }
+
+  @Test
+  public void testIdentityBelowMinimumSize() throws Exception {
+    byte[] content = PooledGzipOutputStreamTest.body(50);
+    filter._minGzipSize = 100;
+    TestResponse response = new TestResponse();
+    filter.doFilter(request("gzip"), response, new TestChain(content, null, null));
+    assertNull(response.headers.get("content-encoding"));
+    assertEquals(50, response.contentLength);
+    assertArrayEquals(content, response.body.toByteArray());
+  }
+
+  @Test
+  public void testDeflaterIsReturnedWhenTheClientGoesAway() throws Exception {
+    TestResponse response = new TestResponse();
+    response.failAfter = 20;
+    try {
+      filter.doFilter(request("gzip"), response, new TestChain(
+          PooledGzipOutputStreamTest.body(20000), "\"1\"", null));
+      fail("The failed write should be thrown");
+    } catch (IOException e) {
+      // expected
+    }
+    assertEquals(0, pool.outstanding);
+    assertTrue(filter._variants.toString().contains("entries:0"));
+  }
+
+  @Test
+  public void testRangedTextFileIsNotCompressed() throws Exception {
+    byte[] content = PooledGzipOutputStreamTest.body(40000);
+    filter._minGzipSize = 1;
+    HttpServletRequest request = request("gzip");
+    when(request.getHeader("Range")).thenReturn("bytes=1000-20999");
+    TestResponse response = new TestResponse();
+    filter.doFilter(request, response, new RangeChain(content, 1000, 20999));
+
+    assertNull(response.headers.get("content-encoding"));
+    assertEquals(20000, response.contentLength);
+    byte[] expected = new byte[20000];
+    System.arraycopy(content, 1000, expected, 0, expected.length);
+    assertArrayEquals(expected, response.body.toByteArray());
+    assertEquals(0, pool.outstanding);
+  }
+
+  @Test
+  public void testPartialContentIsNotCompressed() throws Exception {
+    // a 206 without a Range header on the request, If-Range handled further down say.
+    byte[] content = PooledGzipOutputStreamTest.body(40000);
+    filter._minGzipSize = 1;
+    TestResponse response = new TestResponse();
+    filter.doFilter(request("gzip"), response, new RangeChain(content, 0, 9999));
+
+    assertNull(response.headers.get("content-encoding"));
+    assertEquals(10000, response.contentLength);
+    assertEquals(10000, response.body.size());
+    assertEquals(0, pool.outstanding);
+  }
+
+}
@@ -0,0 +1,55 @@
+package org.sakaiproject.nakamura.jetty;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class GzipVariantCacheTest {
+
+  @Test
+  public void testGetAndPut() {
+    GzipVariantCache cache = new GzipVariantCache(100, 50);
+    assertNull(cache.get("a"));
+    cache.put("a", new byte[10], 40);
+    GzipVariantCache.Variant variant = cache.get("a");
+    assertNotNull(variant);
+    assertEquals(10, variant.getContent().length);
+    assertEquals(40, variant.getIdentityLength());
+    assertEquals("GzipVariantCache entries:1 bytes:10 hits:1 misses:1", cache.toString());
+  }
+
+  @Test
+  public void testOversizedEntryIsNotStored() {
+    GzipVariantCache cache = new GzipVariantCache(100, 50);
+    cache.put("a", new byte[51], 100);
+    assertNull(cache.get("a"));
+  }
+
+  @Test
+  public void testLeastRecentlyUsedIsEvicted() {
+    GzipVariantCache cache = new GzipVariantCache(100, 50);
+    cache.put("a", new byte[40], 80);
+    cache.put("b", new byte[40], 80);
+    cache.get("a");
+    cache.put("c", new byte[40], 80);
+    assertNotNull(cache.get("a"));
+    assertNull(cache.get("b"));
+    assertNotNull(cache.get("c"));
+  }
+
+  @Test
+  public void testReplaceAndClear() {
+    GzipVariantCache cache = new GzipVariantCache(100, 50);
+    cache.put("a", new byte[40], 80);
+    cache.put("a", new byte[20], 60);
+    assertEquals(20, cache.get("a").getContent().length);
+    cache.put("b", new byte[50], 80);
+    assertNotNull(cache.get("a"));
+    cache.clear();
+    assertNull(cache.get("a"));
+    assertNull(cache.get("b"));
+  }
+
+}
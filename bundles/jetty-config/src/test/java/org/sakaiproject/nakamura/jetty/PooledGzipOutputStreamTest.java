@@ -0,0 +1,125 @@
+package org.sakaiproject.nakamura.jetty;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+public class PooledGzipOutputStreamTest {
+
+  /**
+   * Counts the Deflaters that have been taken and not given back.
+   */
+  static class CountingPool extends DeflaterPool {
+    int outstanding;
+
+    CountingPool() {
+      super(Deflater.DEFAULT_COMPRESSION, 4);
+    }
+
+    @Override
+    public Deflater take() {
+      outstanding++;
+      return super.take();
+    }
+
+    @Override
+    public void release(Deflater deflater) {
+      outstanding--;
+      super.release(deflater);
+    }
+  }
+
+  static byte[] body(int length) {
+    byte[] body = new byte[length];
+    for (int i = 0; i < length; i++) {
+      body[i] = (byte) ("abcdefgh".charAt(i % 8) + i / 1000);
+    }
+    return body;
+  }
+
+  static byte[] gunzip(byte[] gzipped) throws IOException {
+    InputStream in = new GZIPInputStream(new ByteArrayInputStream(gzipped));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    int n;
+    while ((n = in.read(buffer)) >= 0) {
+      out.write(buffer, 0, n);
+    }
+    return out.toByteArray();
+  }
+
+  @Test
+  public void testOutputIsGzipAndDeflaterIsReused() throws IOException {
+    CountingPool pool = new CountingPool();
+    byte[] body = body(20000);
+    byte[][] results = new byte[2][];
+    for (int i = 0; i < results.length; i++) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      PooledGzipOutputStream gzOut = new PooledGzipOutputStream(out, pool, 512);
+      gzOut.write(body, 0, body.length);
+      gzOut.finish();
+      assertTrue(gzOut.isFinished());
+      assertEquals(body.length, gzOut.getBytesRead());
+      assertEquals(0, pool.outstanding);
+      results[i] = out.toByteArray();
+      assertArrayEquals(body, gunzip(results[i]));
+    }
+    // a reset Deflater carries nothing over from the previous stream.
+    assertArrayEquals(results[0], results[1]);
+  }
+
+  @Test
+  public void testReleaseWithoutFinishing() throws IOException {
+    CountingPool pool = new CountingPool();
+    PooledGzipOutputStream gzOut = new PooledGzipOutputStream(new ByteArrayOutputStream(),
+        pool, 512);
+    gzOut.write(body(100), 0, 100);
+    gzOut.release();
+    gzOut.release();
+    assertEquals(0, pool.outstanding);
+    assertFalse(gzOut.isFinished());
+    try {
+      gzOut.write(body(10), 0, 10);
+      fail("Writing to a released stream should fail");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testFailedFinishReleases() throws IOException {
+    CountingPool pool = new CountingPool();
+    PooledGzipOutputStream gzOut = new PooledGzipOutputStream(new OutputStream() {
+      int written;
+
+      @Override
+      public void write(int b) throws IOException {
+        if (++written > 20) {
+          throw new IOException("Client went away");
+        }
+      }
+    }, pool, 512);
+    gzOut.write(body(1000), 0, 1000);
+    try {
+      gzOut.finish();
+      fail("The failed write should be thrown");
+    } catch (IOException e) {
+      // expected
+    }
+    assertEquals(0, pool.outstanding);
+    assertFalse(gzOut.isFinished());
+  }
+
+}
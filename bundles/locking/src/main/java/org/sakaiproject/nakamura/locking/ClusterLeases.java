@@ -0,0 +1,291 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.locking;
+
+import org.apache.sling.jcr.api.SlingRepository;
+import org.sakaiproject.nakamura.api.locking.LockTimeoutException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.ItemExistsException;
+import javax.jcr.InvalidItemStateException;
+import javax.jcr.Node;
+import javax.jcr.PathNotFoundException;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.lock.LockException;
+
+/**
+ * Cluster wide leases on lock ids, held as open scoped JCR locks on a node per id. The
+ * repository keeps lock state in the persistence shared by every server in the cluster,
+ * so this does not depend on a cache actually replicating. Each lease carries a timeout
+ * hint so that a lease held by a server that dies is eventually released.
+ *
+ * Only one thread per server asks for the lease on an id, the local lock queue orders the
+ * rest, so the polling here is between servers rather than between threads. All leases of
+ * this server are held by one administrative session, which is not thread safe, so every
+ * use of it is made holding the monitor of this object. The lease node is removed when
+ * the lease is released so that ids that are no longer used do not accumulate.
+ */
+class ClusterLeases {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ClusterLeases.class);
+  /**
+   * The root of the lease nodes.
+   */
+  static final String LEASE_ROOT = "/var/lockmanager";
+  private static final long MIN_POLL = 20;
+  private static final long MAX_POLL = 500;
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private SlingRepository repository;
+  private final long leaseSeconds;
+  private final String ownerInfo;
+  /**
+   * The session holding every lease of this server, guarded by this.
+   */
+  private Session session;
+  /**
+   * The ids this server holds leases on.
+   */
+  private final ConcurrentMap<String, Boolean> leases = new ConcurrentHashMap<String, Boolean>();
+
+  /**
+   * @param leaseSeconds
+   *          the time after which the repository may release a lease that has not been
+   *          released.
+   * @param ownerInfo
+   *          recorded against each lease to identify this server.
+   */
+  ClusterLeases(long leaseSeconds, String ownerInfo) {
+    this.leaseSeconds = leaseSeconds;
+    this.ownerInfo = ownerInfo;
+  }
+
+  /**
+   * @param repository
+   *          the shared repository, null while it is unavailable. Any leases held through
+   *          the previous repository are left to expire.
+   */
+  synchronized void setRepository(SlingRepository repository) {
+    if (this.repository != repository) {
+      if (!leases.isEmpty()) {
+        LOGGER.warn("Repository changed holding {} cluster locks, they will expire after {}s ",
+            leases.size(), leaseSeconds);
+        leases.clear();
+      }
+      logout();
+    }
+    this.repository = repository;
+  }
+
+  /**
+   * @param id
+   * @return true if this server holds the lease on id.
+   */
+  boolean isHeld(String id) {
+    return leases.containsKey(id);
+  }
+
+  /**
+   * Take the lease on id, waiting for another server to release it if necessary.
+   *
+   * @param id
+   *          the lock id.
+   * @param timeout
+   *          the maximum time to wait in ms, 0 to try once.
+   * @return true if the lease was taken, false if it was held elsewhere and timeout was 0.
+   * @throws LockTimeoutException
+   *           if the lease was not taken within a non zero timeout, or the repository
+   *           failed.
+   */
+  boolean acquire(String id, long timeout) throws LockTimeoutException {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+    long poll = MIN_POLL;
+    try {
+      while (true) {
+        if (tryAcquire(id)) {
+          return true;
+        }
+        if (timeout == 0) {
+          return false;
+        }
+        long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+        if (remaining <= 0) {
+          throw new LockTimeoutException("Timed out waiting for cluster lock on " + id);
+        }
+        // sleep without the monitor so that other ids can be leased and released.
+        Thread.sleep(Math.min(poll, remaining));
+        poll = Math.min(poll * 2, MAX_POLL);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new LockTimeoutException("Interrupted waiting for cluster lock on " + id);
+    }
+  }
+
+  /**
+   * Make one attempt to take the lease on id.
+   *
+   * @return true if the lease was taken, false if another server holds it.
+   */
+  private synchronized boolean tryAcquire(String id) throws LockTimeoutException {
+    try {
+      Session currentSession = getSession();
+      String path = getLeaseNode(currentSession, id);
+      try {
+        currentSession.getWorkspace().getLockManager()
+            .lock(path, false, false, leaseSeconds, ownerInfo);
+        leases.put(id, Boolean.TRUE);
+        return true;
+      } catch (LockException e) {
+        LOGGER.debug("Lease on {} held by another server ", id);
+      } catch (PathNotFoundException e) {
+        // another server released the lease and removed the node, try again next time.
+        LOGGER.debug("Lease node for {} removed by another server ", id);
+      } catch (InvalidItemStateException e) {
+        LOGGER.debug("Lease node for {} changed by another server ", id);
+      }
+      currentSession.refresh(false);
+      return false;
+    } catch (RepositoryException e) {
+      logout();
+      throw new LockTimeoutException("Unable to take cluster lock on " + id, e);
+    }
+  }
+
+  /**
+   * Release the lease on id if this server holds it. The lease node is removed while the
+   * lease is still held, which also releases the lock, so no other server can take the
+   * lease on a node that is about to go.
+   *
+   * @param id
+   */
+  synchronized void release(String id) {
+    if (leases.remove(id) == null || session == null) {
+      return;
+    }
+    String path = getLeasePath(id);
+    try {
+      if (session.nodeExists(path)) {
+        session.getNode(path).remove();
+        session.save();
+      }
+    } catch (RepositoryException e) {
+      LOGGER.debug("Unable to remove lease node for {}, unlocking it ", id, e);
+      try {
+        session.refresh(false);
+        session.getWorkspace().getLockManager().unlock(path);
+      } catch (RepositoryException e1) {
+        LOGGER.warn("Failed to release cluster lock on {}, it will expire after {}s ",
+            id, leaseSeconds);
+        LOGGER.debug(e1.getMessage(), e1);
+      }
+    }
+  }
+
+  /**
+   * Release every lease held by this server and close the session.
+   */
+  synchronized void releaseAll() {
+    for (String id : leases.keySet()) {
+      release(id);
+    }
+    logout();
+  }
+
+  /**
+   * @return the session holding the leases, logging in if there is none.
+   */
+  private Session getSession() throws RepositoryException, LockTimeoutException {
+    if (session == null) {
+      if (repository == null) {
+        throw new LockTimeoutException("No repository to take cluster locks ");
+      }
+      session = repository.loginAdministrative(null);
+    }
+    return session;
+  }
+
+  private void logout() {
+    if (session != null) {
+      session.logout();
+      session = null;
+    }
+  }
+
+  /**
+   * Get the lockable node for id, creating it if this is the first time id has been
+   * locked. Another server may be creating the same node, in which case its copy is used.
+   */
+  private String getLeaseNode(Session session, String id) throws RepositoryException {
+    String path = getLeasePath(id);
+    if (session.nodeExists(path)) {
+      return path;
+    }
+    try {
+      Node node = session.getRootNode();
+      for (String name : path.substring(1).split("/")) {
+        if (node.hasNode(name)) {
+          node = node.getNode(name);
+        } else {
+          node = node.addNode(name, "nt:unstructured");
+        }
+      }
+      node.addMixin("mix:lockable");
+      session.save();
+    } catch (ItemExistsException e) {
+      session.refresh(false);
+    } catch (InvalidItemStateException e) {
+      session.refresh(false);
+    }
+    return path;
+  }
+
+  /**
+   * @param id
+   * @return the path of the lease node, the ids are hashed as they may not be valid node
+   *         names.
+   */
+  static String getLeasePath(String id) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-1").digest(id.getBytes("UTF-8"));
+      StringBuilder sb = new StringBuilder(LEASE_ROOT.length() + 44);
+      sb.append(LEASE_ROOT).append('/');
+      for (int i = 0; i < digest.length; i++) {
+        if (i == 1) {
+          sb.append('/');
+        }
+        sb.append(HEX[(digest[i] >> 4) & 0xf]).append(HEX[digest[i] & 0xf]);
+      }
+      return sb.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+}
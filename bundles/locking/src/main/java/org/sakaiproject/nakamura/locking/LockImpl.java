@@ -101,6 +101,13 @@ public class LockImpl implements Lock, ThreadBound {
     return String.valueOf(ownerId);
   }
 
+  /**
+   * @return the thread id of the owner.
+   */
+  long getOwnerId() {
+    return ownerId;
+  }
+
   /**
    * {@inheritDoc}
    * @return true if the lock is bound to the same lock manager as the orriginating manager.
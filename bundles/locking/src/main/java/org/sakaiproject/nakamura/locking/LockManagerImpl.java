@@ -20,10 +20,17 @@ package org.sakaiproject.nakamura.locking;
 
 import edu.umd.cs.findbugs.annotations.SuppressWarnings;
 
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.PropertyOption;
 import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.apache.sling.jcr.api.SlingRepository;
 import org.sakaiproject.nakamura.api.locking.Lock;
 import org.sakaiproject.nakamura.api.locking.LockManager;
 import org.sakaiproject.nakamura.api.locking.LockTimeoutException;
@@ -33,13 +40,23 @@ import org.sakaiproject.nakamura.api.memory.CacheScope;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.lang.management.ManagementFactory;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 
 /**
- * A lock manager that uses a cluster replicated cache to manage the locks
+ * A lock manager that, by default, uses a cluster replicated cache to manage the locks.
+ * In queue mode each id has a FIFO queue of waiting threads in this JVM, and in cluster
+ * mode the owner at the head of that queue also takes a lease on the id from the shared
+ * repository.
  */
-@Component(immediate = true)
+@Component(immediate = true, metatype = true, label = "Sakai Lock Manager", description = "Manages the locks taken on ids by threads in this and the other servers of the cluster.")
 @Service
 @SuppressWarnings(justification="Circular dependency noted ", value={"CD_CIRCULAR_DEPENDENCY"})
 public class LockManagerImpl implements LockManager {
@@ -69,11 +86,37 @@ public class LockManagerImpl implements LockManager {
   @Property(value = "In JVM Lock Manager")
   static final String SERVICE_DESCRIPTION = "service.description";
 
+  static final String MODE_CACHE = "cache";
+  static final String MODE_QUEUE = "queue";
+  static final String MODE_CLUSTER = "cluster";
+
+  @Property(value = MODE_CACHE, description = "How locks are held and handed to waiting threads.", options = {
+      @PropertyOption(name = MODE_CACHE, value = "Locks are kept in a cluster replicated cache and waiters poll for them."),
+      @PropertyOption(name = MODE_QUEUE, value = "Locks are local to this server, waiters queue and are handed the lock in turn."),
+      @PropertyOption(name = MODE_CLUSTER, value = "As queue, with a lease on each lock taken from the shared repository.") })
+  static final String MODE = "lockmanager.mode";
+
+  @Property(longValue = 30000L, description = "In queue and cluster mode, the time in ms a thread waits for a lock before giving up.")
+  static final String TIMEOUT = "lockmanager.timeout";
+
+  @Property(longValue = 300L, description = "In cluster mode, the time in s a lease on a lock is held in the shared repository before another server may take it.")
+  static final String LEASE_TIMEOUT = "lockmanager.lease.timeout";
+
+  /**
+   * The name the queue statistics are published under.
+   */
+  static final String STATISTICS_NAME = "org.sakaiproject.nakamura.locking:type=LockStatistics";
+
   /**
    * Service dependency, the Cache Manager
    */
   @Reference
   private CacheManagerService cacheManagerService;
+  /**
+   * The shared repository, only used in cluster mode.
+   */
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+  private volatile SlingRepository slingRepository;
   /**
    * container for Locks.
    */
@@ -101,6 +144,18 @@ public class LockManagerImpl implements LockManager {
     }
   };
   private Object monitor = new Object();
+  /**
+   * The wait queues in queue and cluster mode, null in cache mode.
+   */
+  private volatile LockQueues queues;
+  /**
+   * The leases of this server in cluster mode, otherwise null.
+   */
+  private volatile ClusterLeases leases;
+  /**
+   * How long to wait for a queued lock, in ms.
+   */
+  private long timeout = 30000L;
 
   /**
    * @throws NoSuchAlgorithmException
@@ -121,6 +176,9 @@ public class LockManagerImpl implements LockManager {
    * @return
    */
   public Lock getLock(String id, boolean create) {
+    if (queues != null) {
+      return getQueuedLock(id, create);
+    }
     LockImpl lock = lockMap.get(id);
     if (create) {
       if (lock == null || !lock.isLocked()) {
@@ -141,6 +199,65 @@ public class LockManagerImpl implements LockManager {
     return lock;
   }
 
+  /**
+   * Get the lock without waiting in queue and cluster mode. If another server holds the
+   * lease on id there is no lock in this JVM to return, so the result is null.
+   */
+  private Lock getQueuedLock(String id, boolean create) {
+    long ownerId = threadId.get();
+    LockImpl lock = queues.tryLock(id, ownerId, create);
+    if (create && lock != null && lock.getOwnerId() == ownerId) {
+      try {
+        if (leases != null && !leases.isHeld(id) && !leases.acquire(id, 0)) {
+          queues.unlock(lock);
+          return null;
+        }
+      } catch (LockTimeoutException e) {
+        queues.unlock(lock);
+        throw new IllegalStateException(e.getMessage(), e);
+      }
+      getRequestLocks().put(id, lock);
+    }
+    return lock;
+  }
+
+  /**
+   * Wait for the lock in queue and cluster mode.
+   */
+  private Lock waitForQueuedLock(String id) throws LockTimeoutException {
+    long start = System.currentTimeMillis();
+    LockImpl lock = queues.lock(id, threadId.get(), timeout);
+    if (leases != null && !leases.isHeld(id)) {
+      long remaining = Math.max(1L, timeout - (System.currentTimeMillis() - start));
+      try {
+        leases.acquire(id, remaining);
+      } catch (LockTimeoutException e) {
+        queues.unlock(lock);
+        throw e;
+      }
+    }
+    getRequestLocks().put(id, lock);
+    if (debug) {
+      LOGGER.debug(Thread.currentThread() + " lock Granted " + id);
+    }
+    return lock;
+  }
+
+  /**
+   * Create a new lock bound to this lock manager.
+   *
+   * @param id
+   *          the id being locked.
+   * @param ownerId
+   *          the thread id of the owner.
+   * @return the lock.
+   */
+  LockImpl createLock(String id, long ownerId) {
+    LockImpl lock = new LockImpl(id, random.nextLong(), ownerId, instanceId);
+    lock.bind(this);
+    return lock;
+  }
+
   /**
    * @return
    */
@@ -159,6 +276,13 @@ public class LockManagerImpl implements LockManager {
         LOGGER.debug(Thread.currentThread() + " unlocked " + lock.getLocked());
       }
       lock.setLocked(false);
+      if (queues != null) {
+        if (leases != null) {
+          leases.release(lock.getLocked());
+        }
+        queues.unlock(lock);
+        return;
+      }
       synchronized (monitor) {
         lockMap.remove(lock.getLocked());
       }
@@ -185,6 +309,9 @@ public class LockManagerImpl implements LockManager {
    * @see org.sakaiproject.nakamura.api.locking.LockManager#lock(java.lang.String)
    */
   public Lock waitForLock(String id) throws LockTimeoutException {
+    if (queues != null) {
+      return waitForQueuedLock(id);
+    }
     long sleepTime = 100;
     int tries = 0;
     if (debug) {
@@ -228,6 +355,69 @@ public class LockManagerImpl implements LockManager {
     requestLocks.clear();
   }
 
+  /**
+   * @param properties
+   */
+  @Activate
+  protected void activate(Map<String, Object> properties) {
+    String mode = OsgiUtil.toString(properties.get(MODE), MODE_CACHE);
+    timeout = OsgiUtil.toLong(properties.get(TIMEOUT), 30000L);
+    if (MODE_QUEUE.equals(mode) || MODE_CLUSTER.equals(mode)) {
+      queues = new LockQueues(this);
+      if (MODE_CLUSTER.equals(mode)) {
+        long leaseTimeout = OsgiUtil.toLong(properties.get(LEASE_TIMEOUT), 300L);
+        leases = new ClusterLeases(leaseTimeout, "lockmanager:" + instanceId);
+        leases.setRepository(slingRepository);
+      }
+      registerStatistics();
+    }
+    LOGGER.info("Lock manager started in {} mode ", mode);
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    if (leases != null) {
+      leases.releaseAll();
+      leases = null;
+    }
+    if (queues != null) {
+      unregisterStatistics();
+      queues = null;
+    }
+  }
+
+  private void registerStatistics() {
+    try {
+      ObjectName objectName = new ObjectName(STATISTICS_NAME);
+      MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+      if (!mBeanServer.isRegistered(objectName)) {
+        mBeanServer.registerMBean(new StandardMBean(queues, LockStatisticsMBean.class),
+            objectName);
+      }
+    } catch (JMException e) {
+      LOGGER.debug("Unable to publish lock statistics: {} ", e.getMessage());
+    }
+  }
+
+  private void unregisterStatistics() {
+    try {
+      ObjectName objectName = new ObjectName(STATISTICS_NAME);
+      MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+      if (mBeanServer.isRegistered(objectName)) {
+        mBeanServer.unregisterMBean(objectName);
+      }
+    } catch (JMException e) {
+      LOGGER.debug(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * @return the queue statistics, null in cache mode.
+   */
+  LockStatisticsMBean getStatistics() {
+    return queues;
+  }
+
  
   /**
    * @param cacheManagerService
@@ -243,6 +433,30 @@ public class LockManagerImpl implements LockManager {
     this.cacheManagerService = null;
     lockMap = null;
   }
+
+  /**
+   * @param slingRepository
+   */
+  protected void bindSlingRepository(SlingRepository slingRepository) {
+    this.slingRepository = slingRepository;
+    ClusterLeases currentLeases = leases;
+    if (currentLeases != null) {
+      currentLeases.setRepository(slingRepository);
+    }
+  }
+
+  /**
+   * @param slingRepository
+   */
+  protected void unbindSlingRepository(SlingRepository slingRepository) {
+    if (this.slingRepository == slingRepository) {
+      this.slingRepository = null;
+      ClusterLeases currentLeases = leases;
+      if (currentLeases != null) {
+        currentLeases.setRepository(null);
+      }
+    }
+  }
  
  
 }
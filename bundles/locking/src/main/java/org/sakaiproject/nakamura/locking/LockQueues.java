@@ -0,0 +1,328 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.locking;
+
+import org.sakaiproject.nakamura.api.locking.LockTimeoutException;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Per id FIFO wait queues for the in JVM lock manager. Ids are hashed onto a fixed set of
+ * stripes so that unrelated ids rarely share a monitor. A waiting thread parks until the
+ * lock is handed to it, and unlock passes the lock straight to the longest waiting thread
+ * instead of letting every waiter poll for it.
+ */
+class LockQueues implements LockStatisticsMBean {
+
+  /**
+   * Number of stripes, a power of 2.
+   */
+  private static final int STRIPES = 64;
+
+  /**
+   * A queued waiter, granted is set under the stripe monitor.
+   */
+  private static final class Waiter {
+    private final Thread thread = Thread.currentThread();
+    private final long ownerId;
+    private volatile LockImpl granted;
+
+    private Waiter(long ownerId) {
+      this.ownerId = ownerId;
+    }
+  }
+
+  /**
+   * The current owner of an id and the threads waiting for it. An entry only exists while
+   * the id is locked.
+   */
+  private static final class Entry {
+    private LockImpl owner;
+    private long grantedAt;
+    private final LinkedList<Waiter> waiters = new LinkedList<Waiter>();
+  }
+
+  private final LockManagerImpl lockManager;
+  @SuppressWarnings("unchecked")
+  private final Map<String, Entry>[] stripes = new Map[STRIPES];
+
+  private final AtomicInteger held = new AtomicInteger();
+  private final AtomicInteger waiting = new AtomicInteger();
+  private final AtomicLong acquired = new AtomicLong();
+  private final AtomicLong contended = new AtomicLong();
+  private final AtomicLong timeouts = new AtomicLong();
+  private final AtomicLong waitTotal = new AtomicLong();
+  private final AtomicLong waitMax = new AtomicLong();
+  private final AtomicLong released = new AtomicLong();
+  private final AtomicLong holdTotal = new AtomicLong();
+  private final AtomicLong holdMax = new AtomicLong();
+
+  /**
+   * @param lockManager
+   *          the lock manager that creates and binds the locks.
+   */
+  LockQueues(LockManagerImpl lockManager) {
+    this.lockManager = lockManager;
+    for (int i = 0; i < STRIPES; i++) {
+      stripes[i] = new HashMap<String, Entry>();
+    }
+  }
+
+  /**
+   * Get the lock on id without waiting.
+   *
+   * @param id
+   *          the id to lock.
+   * @param ownerId
+   *          the owner asking for the lock.
+   * @param create
+   *          if false, only return the current lock.
+   * @return the lock owned by ownerId if the id was free or already owned by ownerId, the
+   *         current owners lock if it is held by someone else, or null if create is false
+   *         and the id is not locked.
+   */
+  LockImpl tryLock(String id, long ownerId, boolean create) {
+    Map<String, Entry> stripe = stripe(id);
+    synchronized (stripe) {
+      Entry entry = stripe.get(id);
+      if (entry != null) {
+        return entry.owner;
+      }
+      if (!create) {
+        return null;
+      }
+      return grant(stripe, id, ownerId);
+    }
+  }
+
+  /**
+   * Get the lock on id, waiting in line behind the current owner if necessary.
+   *
+   * @param id
+   *          the id to lock.
+   * @param ownerId
+   *          the owner asking for the lock, which must be the current thread.
+   * @param timeout
+   *          the maximum time to wait in ms.
+   * @return the lock, owned by ownerId.
+   * @throws LockTimeoutException
+   *           if the lock was not granted within the timeout or the thread was interrupted.
+   */
+  LockImpl lock(String id, long ownerId, long timeout) throws LockTimeoutException {
+    Map<String, Entry> stripe = stripe(id);
+    Waiter waiter;
+    synchronized (stripe) {
+      Entry entry = stripe.get(id);
+      if (entry == null) {
+        return grant(stripe, id, ownerId);
+      }
+      if (entry.owner.getOwnerId() == ownerId) {
+        return entry.owner;
+      }
+      waiter = new Waiter(ownerId);
+      entry.waiters.add(waiter);
+      waiting.incrementAndGet();
+      contended.incrementAndGet();
+    }
+
+    long start = System.nanoTime();
+    long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeout);
+    boolean interrupted = false;
+    try {
+      while (waiter.granted == null) {
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0 || interrupted) {
+          synchronized (stripe) {
+            if (waiter.granted == null) {
+              Entry entry = stripe.get(id);
+              if (entry != null) {
+                entry.waiters.remove(waiter);
+              }
+              waiting.decrementAndGet();
+              timeouts.incrementAndGet();
+              throw new LockTimeoutException((interrupted ? "Interrupted" : "Timed out")
+                  + " waiting for lock on " + id);
+            }
+          }
+          break;
+        }
+        LockSupport.parkNanos(this, remaining);
+        interrupted = Thread.interrupted();
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    waitTotal.addAndGet(waited);
+    updateMax(waitMax, waited);
+    return waiter.granted;
+  }
+
+  /**
+   * Release the lock, handing it to the next waiter if there is one.
+   *
+   * @param lock
+   *          the lock to release.
+   * @return true if the lock was the current owner of its id.
+   */
+  boolean unlock(LockImpl lock) {
+    String id = lock.getLocked();
+    Map<String, Entry> stripe = stripe(id);
+    Waiter next;
+    synchronized (stripe) {
+      Entry entry = stripe.get(id);
+      if (entry == null || entry.owner != lock) {
+        return false;
+      }
+      long now = System.nanoTime();
+      long heldFor = TimeUnit.NANOSECONDS.toMillis(now - entry.grantedAt);
+      released.incrementAndGet();
+      holdTotal.addAndGet(heldFor);
+      updateMax(holdMax, heldFor);
+
+      next = entry.waiters.poll();
+      if (next == null) {
+        stripe.remove(id);
+        held.decrementAndGet();
+        return true;
+      }
+      entry.owner = lockManager.createLock(id, next.ownerId);
+      entry.grantedAt = now;
+      acquired.incrementAndGet();
+      waiting.decrementAndGet();
+      next.granted = entry.owner;
+    }
+    LockSupport.unpark(next.thread);
+    return true;
+  }
+
+  private LockImpl grant(Map<String, Entry> stripe, String id, long ownerId) {
+    Entry entry = new Entry();
+    entry.owner = lockManager.createLock(id, ownerId);
+    entry.grantedAt = System.nanoTime();
+    stripe.put(id, entry);
+    held.incrementAndGet();
+    acquired.incrementAndGet();
+    return entry.owner;
+  }
+
+  private Map<String, Entry> stripe(String id) {
+    int h = id.hashCode();
+    h ^= (h >>> 16);
+    return stripes[h & (STRIPES - 1)];
+  }
+
+  private static void updateMax(AtomicLong max, long value) {
+    long current = max.get();
+    while (value > current && !max.compareAndSet(current, value)) {
+      current = max.get();
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.locking.LockStatisticsMBean#getHeld()
+   */
+  public int getHeld() {
+    return held.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.locking.LockStatisticsMBean#getWaiting()
+   */
+  public int getWaiting() {
+    return waiting.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.locking.LockStatisticsMBean#getAcquired()
+   */
+  public long getAcquired() {
+    return acquired.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.locking.LockStatisticsMBean#getContended()
+   */
+  public long getContended() {
+    return contended.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.locking.LockStatisticsMBean#getTimeouts()
+   */
+  public long getTimeouts() {
+    return timeouts.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.locking.LockStatisticsMBean#getAverageWait()
+   */
+  public double getAverageWait() {
+    long waits = contended.get() - timeouts.get() - waiting.get();
+    return waits <= 0 ? 0.0 : (double) waitTotal.get() / waits;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.locking.LockStatisticsMBean#getMaxWait()
+   */
+  public long getMaxWait() {
+    return waitMax.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.locking.LockStatisticsMBean#getAverageHold()
+   */
+  public double getAverageHold() {
+    long count = released.get();
+    return count == 0 ? 0.0 : (double) holdTotal.get() / count;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.locking.LockStatisticsMBean#getMaxHold()
+   */
+  public long getMaxHold() {
+    return holdMax.get();
+  }
+
+}
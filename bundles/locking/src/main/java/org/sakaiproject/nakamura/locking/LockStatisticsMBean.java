@@ -0,0 +1,70 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.locking;
+
+/**
+ * Wait and hold times of the queued lock manager, published over JMX.
+ */
+public interface LockStatisticsMBean {
+
+  /**
+   * @return the number of ids currently locked by this server.
+   */
+  int getHeld();
+
+  /**
+   * @return the number of threads waiting for a lock.
+   */
+  int getWaiting();
+
+  /**
+   * @return the number of locks granted.
+   */
+  long getAcquired();
+
+  /**
+   * @return the number of locks that had to wait for another owner.
+   */
+  long getContended();
+
+  /**
+   * @return the number of waits that gave up before the lock was granted.
+   */
+  long getTimeouts();
+
+  /**
+   * @return the mean time in ms a contended lock waited before it was granted.
+   */
+  double getAverageWait();
+
+  /**
+   * @return the longest time in ms a lock waited before it was granted.
+   */
+  long getMaxWait();
+
+  /**
+   * @return the mean time in ms a lock was held.
+   */
+  double getAverageHold();
+
+  /**
+   * @return the longest time in ms a lock was held.
+   */
+  long getMaxHold();
+
+}
@@ -0,0 +1,113 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.locking;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.sling.jcr.api.SlingRepository;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.jcr.Node;
+import javax.jcr.Session;
+import javax.jcr.Workspace;
+import javax.jcr.lock.LockException;
+import javax.jcr.lock.LockManager;
+
+/**
+ *
+ */
+public class ClusterLeasesTest {
+
+  private static final String OWNER = "lockmanager:1";
+  private SlingRepository repository;
+  private Session session;
+  private LockManager jcrLockManager;
+  private ClusterLeases leases;
+
+  @Before
+  public void setUp() throws Exception {
+    repository = createMock(SlingRepository.class);
+    session = createMock(Session.class);
+    Workspace workspace = createMock(Workspace.class);
+    jcrLockManager = createMock(LockManager.class);
+    expect(session.getWorkspace()).andReturn(workspace).anyTimes();
+    expect(workspace.getLockManager()).andReturn(jcrLockManager).anyTimes();
+    replay(workspace);
+    leases = new ClusterLeases(300L, OWNER);
+    leases.setRepository(repository);
+  }
+
+  @Test
+  public void testLeasesShareOneSessionAndRemoveTheirNode() throws Exception {
+    String pathA = ClusterLeases.getLeasePath("a");
+    String pathB = ClusterLeases.getLeasePath("b");
+    Node nodeA = createMock(Node.class);
+    Node nodeB = createMock(Node.class);
+    expect(repository.loginAdministrative(null)).andReturn(session).once();
+    expect(session.nodeExists(pathA)).andReturn(true).times(2);
+    expect(session.nodeExists(pathB)).andReturn(true).times(2);
+    expect(jcrLockManager.lock(pathA, false, false, 300L, OWNER)).andReturn(null);
+    expect(jcrLockManager.lock(pathB, false, false, 300L, OWNER)).andReturn(null);
+    expect(session.getNode(pathA)).andReturn(nodeA);
+    expect(session.getNode(pathB)).andReturn(nodeB);
+    nodeA.remove();
+    nodeB.remove();
+    session.save();
+    expectLastCall().times(2);
+    session.logout();
+    replay(repository, session, jcrLockManager, nodeA, nodeB);
+
+    assertTrue(leases.acquire("a", 0));
+    assertTrue(leases.acquire("b", 0));
+    assertTrue(leases.isHeld("a"));
+    leases.release("a");
+    assertFalse(leases.isHeld("a"));
+    assertTrue(leases.isHeld("b"));
+    leases.releaseAll();
+    assertFalse(leases.isHeld("b"));
+
+    verify(repository, session, jcrLockManager, nodeA, nodeB);
+  }
+
+  @Test
+  public void testLeaseHeldElsewhere() throws Exception {
+    String path = ClusterLeases.getLeasePath("a");
+    expect(repository.loginAdministrative(null)).andReturn(session).once();
+    expect(session.nodeExists(path)).andReturn(true).times(2);
+    expect(jcrLockManager.lock(path, false, false, 300L, OWNER)).andThrow(
+        new LockException("held"));
+    expect(jcrLockManager.lock(path, false, false, 300L, OWNER)).andReturn(null);
+    session.refresh(false);
+    replay(repository, session, jcrLockManager);
+
+    assertFalse(leases.acquire("a", 0));
+    assertFalse(leases.isHeld("a"));
+    assertTrue(leases.acquire("a", 1000));
+    assertTrue(leases.isHeld("a"));
+
+    verify(repository, session, jcrLockManager);
+  }
+
+}
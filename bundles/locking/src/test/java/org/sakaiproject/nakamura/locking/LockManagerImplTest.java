@@ -22,16 +22,25 @@ import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.sakaiproject.nakamura.api.locking.Lock;
+import org.sakaiproject.nakamura.api.locking.LockTimeoutException;
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
 import org.sakaiproject.nakamura.memory.MapCacheImpl;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 /**
  *
  */
@@ -69,6 +78,7 @@ public class LockManagerImplTest {
    */
   @After
   public void tearDown() {
+    lockManager.deactivate();
     lockManager.unbindCacheManagerService(cacheManagerService);
     verify(cacheManagerService);
   }
@@ -97,4 +107,97 @@ public class LockManagerImplTest {
     assertEquals(null, lock);
   }
 
+  @Test
+  public void testQueuedHandOffInOrder() throws Exception {
+    activateQueue(5000L);
+    Lock held = lockManager.waitForLock("foo");
+    assertTrue(held.isOwner());
+
+    final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+    Thread[] waiters = new Thread[3];
+    for (int i = 0; i < waiters.length; i++) {
+      final String name = "waiter" + i;
+      waiters[i] = new Thread(new Runnable() {
+        public void run() {
+          try {
+            Lock lock = lockManager.waitForLock("foo");
+            if (lock.isOwner()) {
+              order.add(name);
+            }
+            lock.unlock();
+          } catch (LockTimeoutException e) {
+            order.add(e.getMessage());
+          }
+        }
+      });
+      waiters[i].start();
+      waitForWaiters(i + 1);
+    }
+    // the owner asking again is not queued behind the waiters
+    assertTrue(lockManager.waitForLock("foo").isOwner());
+
+    held.unlock();
+    for (Thread waiter : waiters) {
+      waiter.join(5000L);
+    }
+    assertEquals("[waiter0, waiter1, waiter2]", order.toString());
+    LockStatisticsMBean statistics = lockManager.getStatistics();
+    assertEquals(0, statistics.getHeld());
+    assertEquals(4, statistics.getAcquired());
+    assertEquals(3, statistics.getContended());
+    assertEquals(0, statistics.getTimeouts());
+  }
+
+  @Test
+  public void testQueuedTimeout() throws Exception {
+    activateQueue(50L);
+    Lock held = lockManager.waitForLock("foo");
+    final boolean[] timedOut = new boolean[1];
+    Thread waiter = new Thread(new Runnable() {
+      public void run() {
+        try {
+          lockManager.waitForLock("foo");
+        } catch (LockTimeoutException e) {
+          timedOut[0] = true;
+        }
+        Lock lock = lockManager.getLock("foo");
+        timedOut[0] = timedOut[0] && !lock.isOwner();
+      }
+    });
+    waiter.start();
+    waiter.join(5000L);
+    assertTrue(timedOut[0]);
+    assertEquals(1, lockManager.getStatistics().getTimeouts());
+    assertEquals(0, lockManager.getStatistics().getWaiting());
+
+    held.unlock();
+    assertFalse(held.isLocked());
+    assertEquals(null, lockManager.getLock("foo", false));
+  }
+
+  @Test
+  public void testQueuedClearLocks() throws Exception {
+    activateQueue(5000L);
+    lockManager.waitForLock("foo");
+    lockManager.waitForLock("bar");
+    assertEquals(2, lockManager.getStatistics().getHeld());
+    lockManager.clearLocks();
+    assertEquals(0, lockManager.getStatistics().getHeld());
+    assertEquals(null, lockManager.getLock("foo", false));
+  }
+
+  private void activateQueue(long timeout) {
+    Map<String, Object> properties = new HashMap<String, Object>();
+    properties.put(LockManagerImpl.MODE, LockManagerImpl.MODE_QUEUE);
+    properties.put(LockManagerImpl.TIMEOUT, timeout);
+    lockManager.activate(properties);
+  }
+
+  private void waitForWaiters(int waiting) throws InterruptedException {
+    for (int i = 0; i < 500 && lockManager.getStatistics().getWaiting() < waiting; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(waiting, lockManager.getStatistics().getWaiting());
+  }
+
 }
@@ -36,11 +36,13 @@ public enum CacheScope {
    */
   INSTANCE(),
   /**
-   * Make the cache bound to the instance, but accept cluster wide invalidations.
+   * Make the cache bound to the instance, but accept cluster wide invalidations. Filling a
+   * missing key is local, replacing or removing a key invalidates it on every node.
    */
   CLUSTERINVALIDATED(),
   /**
-   * Replicate the cache over the whole cluster.
+   * Replicate the cache over the whole cluster. Values must be serializable to be
+   * replicated, other values are invalidated on the other nodes instead.
    */
   CLUSTERREPLICATED();
 
@@ -20,9 +20,17 @@ package org.sakaiproject.nakamura.memory;
 import net.sf.ehcache.CacheManager;
 import net.sf.ehcache.management.ManagementService;
 
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Modified;
 import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.sakaiproject.nakamura.api.activemq.ConnectionFactoryService;
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
@@ -33,15 +41,20 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
+import javax.management.JMException;
 import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 
 /**
  * The <code>CacheManagerServiceImpl</code>
  */
-@Component(immediate = true, label = "CacheManagerServiceImpl", description = "Implementation of the Cache Manager Service")
+@Component(immediate = true, metatype = true, label = "CacheManagerServiceImpl", description = "Implementation of the Cache Manager Service")
 @Service
 public class CacheManagerServiceImpl implements CacheManagerService {
 
@@ -51,12 +64,24 @@ public class CacheManagerServiceImpl implements CacheManagerService {
   @Property(value = "Cache Manager Service Implementation")
   static final String SERVICE_DESCRIPTION = "service.description";
 
+  @Property(intValue = 100)
+  static final String CLUSTER_BATCH_SIZE = "cluster.batch.size";
+
+  @Property(longValue = 50)
+  static final String CLUSTER_FLUSH_INTERVAL = "cluster.flush.interval";
+
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC, bind = "bindConnectionFactoryService", unbind = "unbindConnectionFactoryService")
+  private ConnectionFactoryService connectionFactoryService;
+
   private static final String CONFIG_PATH = "res://org/sakaiproject/nakamura/memory/ehcacheConfig.xml";
   private static final Logger logger = LoggerFactory.getLogger(CacheManagerServiceImpl.class);
   private CacheManager cacheManager;
   private Map<String, Cache<?>> caches = new HashMap<String, Cache<?>>();
   private ThreadLocalCacheMap requestCacheMapHolder = new ThreadLocalCacheMap();
   private ThreadLocalCacheMap threadCacheMapHolder = new ThreadLocalCacheMap();
+  private Map<String, ClusterCacheImpl<?>> clusterCaches = new HashMap<String, ClusterCacheImpl<?>>();
+  private ClusterCacheBus clusterCacheBus = new ClusterCacheBus(100, 50);
+  private List<ObjectName> statisticsMBeans = new ArrayList<ObjectName>();
 
   public CacheManagerServiceImpl() throws IOException {
     create();
@@ -97,10 +122,58 @@ public class CacheManagerServiceImpl implements CacheManagerService {
 
   }
 
+  @Activate
+  @Modified
+  protected void activate(Map<String, Object> properties) {
+    clusterCacheBus.configure(OsgiUtil.toInteger(properties.get(CLUSTER_BATCH_SIZE), 100),
+        OsgiUtil.toLong(properties.get(CLUSTER_FLUSH_INTERVAL), 50));
+  }
+
+  /**
+   * Stops the cluster bus and its flusher thread, a new instance is created if the
+   * component is activated again.
+   */
+  @Deactivate
+  protected void deactivate() {
+    clusterCacheBus.shutdown();
+  }
+
+  protected void bindConnectionFactoryService(ConnectionFactoryService connectionFactoryService) {
+    this.connectionFactoryService = connectionFactoryService;
+    clusterCacheBus.setTransport(new JmsClusterCacheTransport(connectionFactoryService));
+  }
+
+  protected void unbindConnectionFactoryService(ConnectionFactoryService connectionFactoryService) {
+    if (this.connectionFactoryService == connectionFactoryService) {
+      this.connectionFactoryService = null;
+      clusterCacheBus.setTransport(null);
+    }
+  }
+
+  /**
+   * Replace the transport used by the cluster scoped caches, a
+   * {@link LoopbackClusterCacheTransport} shared between several instances joins them into
+   * a cluster inside one JVM.
+   *
+   * @param transport
+   */
+  void setClusterCacheTransport(ClusterCacheTransport transport) {
+    clusterCacheBus.setTransport(transport);
+  }
+
+  /**
+   * @return the bus carrying events for the cluster scoped caches.
+   */
+  ClusterCacheBus getClusterCacheBus() {
+    return clusterCacheBus;
+  }
+
   /**
    * perform a shutdown
    */
   public void stop() {
+    clusterCacheBus.shutdown();
+    unregisterStatistics();
     cacheManager.shutdown();
     // we really want to notify all threads that have maps
   }
@@ -115,9 +188,9 @@ public class CacheManagerServiceImpl implements CacheManagerService {
     case INSTANCE:
       return getInstanceCache(name);
     case CLUSTERINVALIDATED:
-      return getInstanceCache(name);
+      return getClusterCache(name, false);
     case CLUSTERREPLICATED:
-      return getInstanceCache(name);
+      return getClusterCache(name, true);
     case REQUEST:
       return getRequestCache(name);
     case THREAD:
@@ -172,13 +245,81 @@ public class CacheManagerServiceImpl implements CacheManagerService {
     } else {
       Cache<V> c = (Cache<V>) caches.get(name);
       if (c == null) {
-        c = new CacheImpl<V>(cacheManager, name);
+        c = createIndexedCache(name);
         caches.put(name, c);
       }
       return c;
     }
   }
 
+  /**
+   * Create a path indexed cache over the named Ehcache cache and publish its statistics.
+   * Unnamed caches get a new wrapper on every call, so they stay as plain {@link CacheImpl}s
+   * rather than registering a listener each time.
+   *
+   * @param name
+   * @return
+   */
+  private <V> PathIndexedCacheImpl<V> createIndexedCache(String name) {
+    PathIndexedCacheImpl<V> cache = new PathIndexedCacheImpl<V>(cacheManager, name);
+    try {
+      ObjectName objectName = new ObjectName("org.sakaiproject.nakamura.memory:type=CacheStatistics,name="
+          + ObjectName.quote(name));
+      MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+      if (!mBeanServer.isRegistered(objectName)) {
+        mBeanServer.registerMBean(new StandardMBean(cache, CacheStatisticsMBean.class),
+            objectName);
+        synchronized (statisticsMBeans) {
+          statisticsMBeans.add(objectName);
+        }
+      }
+    } catch (JMException e) {
+      logger.debug("Unable to publish statistics for cache {}: {} ", name, e.getMessage());
+    }
+    return cache;
+  }
+
+  private void unregisterStatistics() {
+    MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+    synchronized (statisticsMBeans) {
+      for (ObjectName objectName : statisticsMBeans) {
+        try {
+          mBeanServer.unregisterMBean(objectName);
+        } catch (JMException e) {
+          logger.debug(e.getMessage(), e);
+        }
+      }
+      statisticsMBeans.clear();
+    }
+  }
+
+  /**
+   * Generate a cache bound to the instance that is kept in step with the same named cache on
+   * the other nodes. A cache without a name cannot be addressed by the other nodes, so is a
+   * plain instance cache.
+   *
+   * @param name
+   * @param replicated
+   *          true if values should be replicated, false if only invalidations are sent.
+   * @return
+   */
+  @SuppressWarnings("unchecked")
+  private <V> Cache<V> getClusterCache(String name, boolean replicated) {
+    if (name == null) {
+      return getInstanceCache(name);
+    }
+    synchronized (clusterCaches) {
+      ClusterCacheImpl<V> c = (ClusterCacheImpl<V>) clusterCaches.get(name);
+      if (c == null) {
+        c = new ClusterCacheImpl<V>(name, this.<V> createIndexedCache(name),
+            clusterCacheBus, replicated);
+        clusterCacheBus.register(c);
+        clusterCaches.put(name, c);
+      }
+      return c;
+    }
+  }
+
   /**
    * {@inheritDoc}
    *
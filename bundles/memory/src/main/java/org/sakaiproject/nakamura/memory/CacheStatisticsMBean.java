@@ -0,0 +1,50 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+/**
+ * Hit, miss and eviction counts of a single cache, published over JMX.
+ */
+public interface CacheStatisticsMBean {
+
+  /**
+   * @return the name of the cache.
+   */
+  String getName();
+
+  /**
+   * @return the number of gets that found a value.
+   */
+  long getHits();
+
+  /**
+   * @return the number of gets that found nothing.
+   */
+  long getMisses();
+
+  /**
+   * @return the number of entries evicted or expired by the cache itself.
+   */
+  long getEvictions();
+
+  /**
+   * @return the number of keys currently held.
+   */
+  int getSize();
+
+}
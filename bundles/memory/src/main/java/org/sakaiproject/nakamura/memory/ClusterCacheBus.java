@@ -0,0 +1,201 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the changes made to the cluster scoped caches of this node and ships them to the
+ * other nodes in batches, and applies the batches received from the other nodes to the local
+ * copies. A batch is sent when it reaches the maximum size, or when the flush interval has
+ * passed since the first event was queued, whichever happens first.
+ */
+public class ClusterCacheBus {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ClusterCacheBus.class);
+
+  private final String nodeId = UUID.randomUUID().toString();
+  private final Map<String, ClusterCacheImpl<?>> caches = new ConcurrentHashMap<String, ClusterCacheImpl<?>>();
+  private final Object pendingLock = new Object();
+  private List<ClusterCacheEvent> pending = new ArrayList<ClusterCacheEvent>();
+  private boolean flushScheduled;
+  private volatile ClusterCacheTransport transport;
+  private volatile int maxBatchSize;
+  private volatile long flushInterval;
+  private final ScheduledExecutorService flusher;
+
+  /**
+   * @param maxBatchSize
+   *          the number of events that causes an immediate send.
+   * @param flushInterval
+   *          the longest time in ms an event is held before being sent, 0 sends every event
+   *          as soon as it is published.
+   */
+  public ClusterCacheBus(int maxBatchSize, long flushInterval) {
+    configure(maxBatchSize, flushInterval);
+    flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "Cluster Cache Flusher");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+
+  /**
+   * Change the batching, takes effect from the next event published.
+   *
+   * @param maxBatchSize
+   * @param flushInterval
+   */
+  public void configure(int maxBatchSize, long flushInterval) {
+    this.maxBatchSize = Math.max(1, maxBatchSize);
+    this.flushInterval = Math.max(0, flushInterval);
+  }
+
+  /**
+   * @return the id this node uses to recognise its own batches.
+   */
+  public String getNodeId() {
+    return nodeId;
+  }
+
+  /**
+   * Register a cluster cache so that events received for its name are applied to it.
+   *
+   * @param cache
+   */
+  public void register(ClusterCacheImpl<?> cache) {
+    caches.put(cache.getName(), cache);
+  }
+
+  /**
+   * Replace the transport, any events pending are sent on the old transport first.
+   *
+   * @param newTransport
+   *          the new transport or null to run without one, in which case events are dropped.
+   */
+  public synchronized void setTransport(ClusterCacheTransport newTransport) {
+    flush();
+    ClusterCacheTransport oldTransport = transport;
+    if (oldTransport != null) {
+      oldTransport.stop(this);
+    }
+    transport = newTransport;
+    if (newTransport != null) {
+      newTransport.start(this);
+    }
+  }
+
+  /**
+   * Queue an event for the rest of the cluster.
+   *
+   * @param event
+   */
+  public void publish(ClusterCacheEvent event) {
+    if (transport == null) {
+      return;
+    }
+    boolean sendNow = false;
+    synchronized (pendingLock) {
+      pending.add(event);
+      if (pending.size() >= maxBatchSize || flushInterval == 0) {
+        sendNow = true;
+      } else if (!flushScheduled) {
+        try {
+          flusher.schedule(new Runnable() {
+            public void run() {
+              flush();
+            }
+          }, flushInterval, TimeUnit.MILLISECONDS);
+          flushScheduled = true;
+        } catch (RejectedExecutionException e) {
+          // shut down, don't hold on to anything.
+          sendNow = true;
+        }
+      }
+    }
+    if (sendNow) {
+      flush();
+    }
+  }
+
+  /**
+   * Send any pending events now.
+   */
+  public void flush() {
+    List<ClusterCacheEvent> toSend;
+    synchronized (pendingLock) {
+      flushScheduled = false;
+      if (pending.isEmpty()) {
+        return;
+      }
+      toSend = pending;
+      pending = new ArrayList<ClusterCacheEvent>();
+    }
+    ClusterCacheTransport t = transport;
+    if (t != null) {
+      try {
+        t.send(nodeId, toSend);
+      } catch (RuntimeException e) {
+        LOGGER.warn("Failed to send {} cluster cache events: {} ", toSend.size(),
+            e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Apply a batch of events from the cluster to the local caches, batches from this node are
+   * ignored.
+   *
+   * @param origin
+   * @param events
+   */
+  public void receive(String origin, List<ClusterCacheEvent> events) {
+    if (nodeId.equals(origin)) {
+      return;
+    }
+    for (ClusterCacheEvent event : events) {
+      ClusterCacheImpl<?> cache = caches.get(event.getCacheName());
+      if (cache != null) {
+        cache.apply(event);
+      }
+    }
+  }
+
+  /**
+   * Send anything pending, detach from the transport and stop the flusher.
+   */
+  public void shutdown() {
+    setTransport(null);
+    flusher.shutdown();
+  }
+
+}
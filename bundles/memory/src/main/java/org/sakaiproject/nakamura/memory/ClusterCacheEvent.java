@@ -0,0 +1,151 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+
+/**
+ * A single change to a cluster scoped cache, shipped to the other nodes in a batch by the
+ * {@link ClusterCacheBus}. The value of a put is carried already serialized, so a batch
+ * can always be read by the memory bundle and a value whose class can't be loaded on the
+ * receiving node only affects its own key.
+ */
+public class ClusterCacheEvent implements Serializable {
+
+  /**
+   *
+   */
+  private static final long serialVersionUID = 4120434565374223620L;
+
+  public enum Type {
+    /**
+     * Remove a single key.
+     */
+    REMOVE(),
+    /**
+     * Remove a key and every key below it.
+     */
+    REMOVE_CHILDREN(),
+    /**
+     * Remove every key.
+     */
+    CLEAR(),
+    /**
+     * Replace the value of a key, only used by replicated caches.
+     */
+    PUT();
+  }
+
+  private String cacheName;
+  private Type type;
+  private String key;
+  private byte[] value;
+
+  public ClusterCacheEvent(String cacheName, Type type, String key, byte[] value) {
+    this.cacheName = cacheName;
+    this.type = type;
+    this.key = key;
+    this.value = value;
+  }
+
+  /**
+   * @return a put carrying the serialized value, or a remove if the value can't be
+   *         serialized.
+   */
+  public static ClusterCacheEvent put(String cacheName, String key, Serializable value) {
+    try {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      ObjectOutputStream out = new ObjectOutputStream(baos);
+      out.writeObject(value);
+      out.close();
+      return new ClusterCacheEvent(cacheName, Type.PUT, key, baos.toByteArray());
+    } catch (IOException e) {
+      return new ClusterCacheEvent(cacheName, Type.REMOVE, key, null);
+    }
+  }
+
+  public String getCacheName() {
+    return cacheName;
+  }
+
+  public Type getType() {
+    return type;
+  }
+
+  public String getKey() {
+    return key;
+  }
+
+  /**
+   * Deserializes the value of a put, classes are loaded by the context class loader of the
+   * calling thread when it has one.
+   *
+   * @return the value, or null if there is none.
+   * @throws IOException
+   *           if the value can't be read.
+   * @throws ClassNotFoundException
+   *           if a class of the value isn't visible on this node.
+   */
+  public Object getValue() throws IOException, ClassNotFoundException {
+    if (value == null) {
+      return null;
+    }
+    ObjectInputStream in = new ContextObjectInputStream(new ByteArrayInputStream(value));
+    try {
+      return in.readObject();
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Resolves classes through the thread context class loader first.
+   */
+  private static final class ContextObjectInputStream extends ObjectInputStream {
+
+    ContextObjectInputStream(InputStream in) throws IOException {
+      super(in);
+    }
+
+    @Override
+    protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException,
+        ClassNotFoundException {
+      ClassLoader loader = Thread.currentThread().getContextClassLoader();
+      if (loader != null) {
+        try {
+          return Class.forName(desc.getName(), false, loader);
+        } catch (ClassNotFoundException e) {
+          // fall back to the default resolution below.
+        }
+      }
+      return super.resolveClass(desc);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return type + " " + cacheName + ":" + key;
+  }
+}
@@ -0,0 +1,175 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.memory.ClusterCacheEvent.Type;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * A cache held on this node that keeps step with the other nodes through a
+ * {@link ClusterCacheBus}. Invalidated caches behave like Ehcache with replicatePuts off:
+ * filling a missing key stays local, while replacing a key, removing keys or clearing are
+ * sent to the cluster as invalidations. Replicated caches also send the new value with a
+ * put, provided it is {@link Serializable}, otherwise the put becomes an invalidation.
+ */
+public class ClusterCacheImpl<V> implements Cache<V> {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ClusterCacheImpl.class);
+
+  private String name;
+  private Cache<V> cache;
+  private ClusterCacheBus bus;
+  private boolean replicated;
+
+  /**
+   * @param name
+   *          the cluster wide name of the cache.
+   * @param cache
+   *          the local copy.
+   * @param bus
+   * @param replicated
+   *          true to ship values with puts.
+   */
+  public ClusterCacheImpl(String name, Cache<V> cache, ClusterCacheBus bus,
+      boolean replicated) {
+    this.name = name;
+    this.cache = cache;
+    this.bus = bus;
+    this.replicated = replicated;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#put(java.lang.String, java.lang.Object)
+   */
+  public V put(String key, V payload) {
+    V previous = cache.put(key, payload);
+    if (replicated) {
+      if (payload instanceof Serializable) {
+        bus.publish(ClusterCacheEvent.put(name, key, (Serializable) payload));
+      } else {
+        bus.publish(new ClusterCacheEvent(name, Type.REMOVE, key, null));
+      }
+    } else if (previous != null) {
+      bus.publish(new ClusterCacheEvent(name, Type.REMOVE, key, null));
+    }
+    return previous;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#containsKey(java.lang.String)
+   */
+  public boolean containsKey(String key) {
+    return cache.containsKey(key);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#get(java.lang.String)
+   */
+  public V get(String key) {
+    return cache.get(key);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#clear()
+   */
+  public void clear() {
+    cache.clear();
+    bus.publish(new ClusterCacheEvent(name, Type.CLEAR, null, null));
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#remove(java.lang.String)
+   */
+  public void remove(String key) {
+    cache.remove(key);
+    bus.publish(new ClusterCacheEvent(name, Type.REMOVE, key, null));
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#removeChildren(java.lang.String)
+   */
+  public void removeChildren(String key) {
+    cache.removeChildren(key);
+    bus.publish(new ClusterCacheEvent(name, Type.REMOVE_CHILDREN, key, null));
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#list()
+   */
+  public List<V> list() {
+    return cache.list();
+  }
+
+  /**
+   * Apply an event from another node to the local copy, without publishing it again.
+   *
+   * @param event
+   */
+  @SuppressWarnings("unchecked")
+  void apply(ClusterCacheEvent event) {
+    switch (event.getType()) {
+    case REMOVE:
+      cache.remove(event.getKey());
+      break;
+    case REMOVE_CHILDREN:
+      cache.removeChildren(event.getKey());
+      break;
+    case CLEAR:
+      cache.clear();
+      break;
+    case PUT:
+      if (replicated) {
+        try {
+          cache.put(event.getKey(), (V) event.getValue());
+        } catch (Exception e) {
+          // a value that can't be read here only costs this key a reload.
+          LOGGER.debug("Unable to read the value of {}, removing it: {} ", event,
+              e.getMessage());
+          cache.remove(event.getKey());
+        }
+      } else {
+        cache.remove(event.getKey());
+      }
+      break;
+    }
+  }
+
+}
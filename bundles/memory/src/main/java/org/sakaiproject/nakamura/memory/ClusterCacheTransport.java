@@ -0,0 +1,54 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import java.util.List;
+
+/**
+ * Moves batches of {@link ClusterCacheEvent}s between the {@link ClusterCacheBus}es of the
+ * nodes in a cluster. Every batch sent is delivered to every bus attached to the transport,
+ * including the sender, which is expected to ignore its own batches.
+ */
+public interface ClusterCacheTransport {
+
+  /**
+   * Attach a bus to the transport, from this point on the bus receives batches sent by the
+   * other nodes.
+   *
+   * @param bus
+   */
+  void start(ClusterCacheBus bus);
+
+  /**
+   * Detach the bus and release any resources held by the transport.
+   *
+   * @param bus
+   */
+  void stop(ClusterCacheBus bus);
+
+  /**
+   * Send a batch of events to the cluster.
+   *
+   * @param origin
+   *          the id of the node sending the batch.
+   * @param events
+   *          the events in the order they happened.
+   */
+  void send(String origin, List<ClusterCacheEvent> events);
+
+}
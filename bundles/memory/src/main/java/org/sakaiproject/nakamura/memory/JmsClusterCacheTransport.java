@@ -0,0 +1,161 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import org.sakaiproject.nakamura.api.activemq.ConnectionFactoryService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.jms.Connection;
+import javax.jms.DeliveryMode;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.MessageProducer;
+import javax.jms.ObjectMessage;
+import javax.jms.Session;
+import javax.jms.Topic;
+
+/**
+ * Sends cache event batches over a JMS topic on the default ActiveMQ connection. A single
+ * long lived connection is held for both directions, messages are non persistent since a
+ * node that misses a batch while down starts with empty caches anyway.
+ */
+public class JmsClusterCacheTransport implements ClusterCacheTransport, MessageListener {
+
+  public static final String TOPIC = "org/sakaiproject/nakamura/memory/cluster";
+
+  static final String ORIGIN = "origin";
+
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(JmsClusterCacheTransport.class);
+
+  private ConnectionFactoryService connectionFactoryService;
+  private Connection connection;
+  private Session producerSession;
+  private MessageProducer producer;
+  private ClusterCacheBus bus;
+
+  public JmsClusterCacheTransport(ConnectionFactoryService connectionFactoryService) {
+    this.connectionFactoryService = connectionFactoryService;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.memory.ClusterCacheTransport#start(org.sakaiproject.nakamura.memory.ClusterCacheBus)
+   */
+  public synchronized void start(ClusterCacheBus bus) {
+    this.bus = bus;
+    try {
+      connection = connectionFactoryService.getDefaultConnectionFactory()
+          .createConnection();
+      Session consumerSession = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+      Topic consumerTopic = consumerSession.createTopic(TOPIC);
+      MessageConsumer consumer = consumerSession.createConsumer(consumerTopic);
+      consumer.setMessageListener(this);
+
+      producerSession = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+      producer = producerSession.createProducer(producerSession.createTopic(TOPIC));
+      producer.setDeliveryMode(DeliveryMode.NON_PERSISTENT);
+      connection.start();
+      LOGGER.info("Cluster cache events bound to JMS topic {} ", TOPIC);
+    } catch (JMSException e) {
+      LOGGER.error("Unable to bind cluster caches to JMS, caches will not be invalidated across the cluster: "
+          + e.getMessage(), e);
+      close();
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.memory.ClusterCacheTransport#stop(org.sakaiproject.nakamura.memory.ClusterCacheBus)
+   */
+  public synchronized void stop(ClusterCacheBus bus) {
+    close();
+    this.bus = null;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.memory.ClusterCacheTransport#send(java.lang.String,
+   *      java.util.List)
+   */
+  public synchronized void send(String origin, List<ClusterCacheEvent> events) {
+    if (producer == null) {
+      return;
+    }
+    try {
+      ObjectMessage message = producerSession
+          .createObjectMessage(new ArrayList<ClusterCacheEvent>(events));
+      message.setStringProperty(ORIGIN, origin);
+      producer.send(message);
+    } catch (JMSException e) {
+      LOGGER.warn("Failed to send {} cluster cache events: {} ", events.size(),
+          e.getMessage());
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see javax.jms.MessageListener#onMessage(javax.jms.Message)
+   */
+  @SuppressWarnings("unchecked")
+  public void onMessage(Message message) {
+    ClusterCacheBus target = bus;
+    if (target == null || !(message instanceof ObjectMessage)) {
+      return;
+    }
+    // The listener runs on an ActiveMQ thread, whose context class loader can't see the
+    // classes of this bundle.
+    Thread thread = Thread.currentThread();
+    ClassLoader contextClassLoader = thread.getContextClassLoader();
+    thread.setContextClassLoader(JmsClusterCacheTransport.class.getClassLoader());
+    try {
+      String origin = message.getStringProperty(ORIGIN);
+      List<ClusterCacheEvent> events = (List<ClusterCacheEvent>) ((ObjectMessage) message)
+          .getObject();
+      target.receive(origin, events);
+    } catch (JMSException e) {
+      LOGGER.warn("Failed to read cluster cache events: {} ", e.getMessage());
+    } finally {
+      thread.setContextClassLoader(contextClassLoader);
+    }
+  }
+
+  private void close() {
+    if (connection != null) {
+      try {
+        connection.close();
+      } catch (JMSException e) {
+        LOGGER.debug(e.getMessage(), e);
+      }
+    }
+    connection = null;
+    producerSession = null;
+    producer = null;
+  }
+
+}
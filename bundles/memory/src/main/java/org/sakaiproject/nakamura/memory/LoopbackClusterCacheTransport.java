@@ -0,0 +1,62 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A transport that delivers batches to every bus attached to the same instance, in the
+ * calling thread. Several cache managers sharing one instance behave like a cluster inside a
+ * single JVM, which is what the tests use.
+ */
+public class LoopbackClusterCacheTransport implements ClusterCacheTransport {
+
+  private List<ClusterCacheBus> buses = new CopyOnWriteArrayList<ClusterCacheBus>();
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.memory.ClusterCacheTransport#start(org.sakaiproject.nakamura.memory.ClusterCacheBus)
+   */
+  public void start(ClusterCacheBus bus) {
+    buses.add(bus);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.memory.ClusterCacheTransport#stop(org.sakaiproject.nakamura.memory.ClusterCacheBus)
+   */
+  public void stop(ClusterCacheBus bus) {
+    buses.remove(bus);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.memory.ClusterCacheTransport#send(java.lang.String,
+   *      java.util.List)
+   */
+  public void send(String origin, List<ClusterCacheEvent> events) {
+    for (ClusterCacheBus bus : buses) {
+      bus.receive(origin, events);
+    }
+  }
+
+}
@@ -22,8 +22,8 @@ import org.sakaiproject.nakamura.api.memory.ThreadBound;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Set;
 
 /**
  *
@@ -88,10 +88,9 @@ public class MapCacheImpl<V> extends HashMap<String, V>implements Cache<V>  {
     if ( !key.endsWith("/") ) {
       key = key + "/";
     }
-    Set<String> keys = super.keySet();
-    for ( String k : keys) {
-      if ( (k).startsWith(key) ) {
-        super.remove(k);
+    for ( Iterator<String> keys = super.keySet().iterator(); keys.hasNext(); ) {
+      if ( keys.next().startsWith(key) ) {
+        keys.remove();
       }
     }
   }
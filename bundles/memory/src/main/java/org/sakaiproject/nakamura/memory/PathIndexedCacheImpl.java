@@ -0,0 +1,281 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import net.sf.ehcache.CacheException;
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.event.CacheEventListener;
+
+import org.sakaiproject.nakamura.api.memory.Cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An Ehcache backed cache that keeps a sorted index of its keys, so that removing a subtree
+ * with {@link #removeChildren(String)} costs the size of the subtree rather than a scan of
+ * every key. The index follows the cache through a {@link CacheEventListener}, so entries
+ * evicted or expired by Ehcache leave the index too. Hits, misses and evictions are counted
+ * and published as a {@link CacheStatisticsMBean}. The index is a concurrent sorted set, so
+ * cache operations on different keys never wait on each other to update it.
+ */
+public class PathIndexedCacheImpl<V> implements Cache<V>, CacheEventListener,
+    CacheStatisticsMBean {
+
+  private String cacheName;
+  private net.sf.ehcache.Cache cache;
+  private ConcurrentSkipListSet<String> index = new ConcurrentSkipListSet<String>();
+  private AtomicLong hits = new AtomicLong();
+  private AtomicLong misses = new AtomicLong();
+  private AtomicLong evictions = new AtomicLong();
+
+  /**
+   * @param cacheManager
+   * @param name
+   */
+  @SuppressWarnings("unchecked")
+  public PathIndexedCacheImpl(CacheManager cacheManager, String name) {
+    if (name == null) {
+      cacheName = "default";
+    } else {
+      cacheName = name;
+    }
+    synchronized (cacheManager) {
+      cache = cacheManager.getCache(cacheName);
+      if (cache == null) {
+        cacheManager.addCache(cacheName);
+        cache = cacheManager.getCache(cacheName);
+        if (cache == null) {
+          throw new RuntimeException("Failed to create Cache with name " + cacheName);
+        }
+      }
+      cache.getCacheEventNotificationService().registerListener(this);
+      for (Object k : cache.getKeys()) {
+        index.add((String) k);
+      }
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#clear()
+   */
+  public void clear() {
+    cache.removeAll();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#containsKey(java.lang.String)
+   */
+  public boolean containsKey(String key) {
+    return cache.isKeyInCache(key);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#get(java.lang.String)
+   */
+  @SuppressWarnings("unchecked")
+  public V get(String key) {
+    Element e = cache.get(key);
+    if (e == null) {
+      misses.incrementAndGet();
+      return null;
+    }
+    hits.incrementAndGet();
+    return (V) e.getObjectValue();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#put(java.lang.String, java.lang.Object)
+   */
+  @SuppressWarnings("unchecked")
+  public V put(String key, V payload) {
+    V previous = null;
+    Element e = cache.getQuiet(key);
+    if (e != null) {
+      previous = (V) e.getObjectValue();
+    }
+    cache.put(new Element(key, payload));
+    return previous;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#remove(java.lang.String)
+   */
+  public void remove(String key) {
+    cache.remove(key);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#removeChildren(java.lang.String)
+   */
+  public void removeChildren(String key) {
+    cache.remove(key);
+    if (!key.endsWith("/")) {
+      key = key + "/";
+    }
+    for (String k : getChildKeys(key)) {
+      cache.remove(k);
+    }
+  }
+
+  /**
+   * @param prefix
+   * @return a copy of the indexed keys starting with prefix, taken from the sorted index.
+   *         Keys added or removed during the walk may or may not be included.
+   */
+  List<String> getChildKeys(String prefix) {
+    List<String> children = new ArrayList<String>();
+    for (String k : index.tailSet(prefix)) {
+      if (!k.startsWith(prefix)) {
+        break;
+      }
+      children.add(k);
+    }
+    return children;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#list()
+   */
+  @SuppressWarnings("unchecked")
+  public List<V> list() {
+    List<String> keys = cache.getKeys();
+    List<V> values = new ArrayList<V>();
+    for (String k : keys) {
+      Element e = cache.get(k);
+      if (e != null) {
+        values.add((V) e.getObjectValue());
+      }
+    }
+    return values;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.memory.CacheStatisticsMBean#getName()
+   */
+  public String getName() {
+    return cacheName;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.memory.CacheStatisticsMBean#getHits()
+   */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.memory.CacheStatisticsMBean#getMisses()
+   */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.memory.CacheStatisticsMBean#getEvictions()
+   */
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.memory.CacheStatisticsMBean#getSize()
+   */
+  public int getSize() {
+    // counts the index, which is only done when the statistics are read.
+    return index.size();
+  }
+
+  // CacheEventListener, keeps the index in step with Ehcache.
+
+  public void notifyElementPut(Ehcache ehcache, Element element) throws CacheException {
+    addKey(element);
+  }
+
+  public void notifyElementUpdated(Ehcache ehcache, Element element) throws CacheException {
+    addKey(element);
+  }
+
+  public void notifyElementRemoved(Ehcache ehcache, Element element) throws CacheException {
+    removeKey(element);
+  }
+
+  public void notifyElementExpired(Ehcache ehcache, Element element) {
+    evictions.incrementAndGet();
+    removeKey(element);
+  }
+
+  public void notifyElementEvicted(Ehcache ehcache, Element element) {
+    evictions.incrementAndGet();
+    removeKey(element);
+  }
+
+  public void notifyRemoveAll(Ehcache ehcache) {
+    index.clear();
+  }
+
+  public void dispose() {
+    index.clear();
+  }
+
+  @Override
+  public Object clone() throws CloneNotSupportedException {
+    throw new CloneNotSupportedException("The key index is bound to a single cache");
+  }
+
+  private void addKey(Element element) {
+    if (element != null && element.getObjectKey() instanceof String) {
+      index.add((String) element.getObjectKey());
+    }
+  }
+
+  private void removeKey(Element element) {
+    if (element != null && element.getObjectKey() instanceof String) {
+      index.remove(element.getObjectKey());
+    }
+  }
+
+}
@@ -0,0 +1,145 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.memory.Cache;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class ClusterCacheTest {
+
+  private ClusterCacheBus busA;
+  private ClusterCacheBus busB;
+  private int sent;
+
+  @Before
+  public void setUp() {
+    LoopbackClusterCacheTransport transport = new LoopbackClusterCacheTransport() {
+      @Override
+      public void send(String origin, List<ClusterCacheEvent> events) {
+        sent++;
+        super.send(origin, events);
+      }
+    };
+    // a long flush interval so that only explicit flushes and full batches send.
+    busA = new ClusterCacheBus(3, 60000);
+    busB = new ClusterCacheBus(3, 60000);
+    busA.setTransport(transport);
+    busB.setTransport(transport);
+  }
+
+  @After
+  public void tearDown() {
+    busA.shutdown();
+    busB.shutdown();
+  }
+
+  private Cache<String> createCache(ClusterCacheBus bus, boolean replicated) {
+    ClusterCacheImpl<String> cache = new ClusterCacheImpl<String>("test",
+        new MapCacheImpl<String>(), bus, replicated);
+    bus.register(cache);
+    return cache;
+  }
+
+  @Test
+  public void testInvalidation() {
+    Cache<String> a = createCache(busA, false);
+    Cache<String> b = createCache(busB, false);
+    a.put("fish", "cat");
+    b.put("fish", "cat");
+    busA.flush();
+    busB.flush();
+    assertEquals(0, sent);
+    assertEquals("cat", b.get("fish"));
+
+    a.put("fish", "dog");
+    busA.flush();
+    assertEquals(1, sent);
+    assertNull(b.get("fish"));
+    assertEquals("dog", a.get("fish"));
+
+    b.put("fish", "dog");
+    b.put("fish/child", "dog");
+    b.put("fish/child/child", "dog");
+    b.put("fishy", "dog");
+    a.put("fish/child", "dog");
+    a.removeChildren("fish");
+    busA.flush();
+    assertNull(b.get("fish"));
+    assertNull(b.get("fish/child"));
+    assertNull(b.get("fish/child/child"));
+    assertEquals("dog", b.get("fishy"));
+
+    b.clear();
+    a.put("fishy", "cat");
+    busB.flush();
+    assertNull(a.get("fishy"));
+  }
+
+  @Test
+  public void testReplication() {
+    Cache<String> a = createCache(busA, true);
+    Cache<String> b = createCache(busB, true);
+    a.put("fish", "cat");
+    busA.flush();
+    assertEquals("cat", b.get("fish"));
+    b.remove("fish");
+    busB.flush();
+    assertNull(a.get("fish"));
+  }
+
+  @Test
+  public void testBatching() {
+    Cache<String> a = createCache(busA, false);
+    Cache<String> b = createCache(busB, false);
+    b.put("1", "x");
+    b.put("2", "x");
+    b.put("3", "x");
+    a.remove("1");
+    a.remove("2");
+    assertEquals(0, sent);
+    assertEquals("x", b.get("1"));
+    a.remove("3");
+    assertEquals(1, sent);
+    assertNull(b.get("1"));
+    assertNull(b.get("2"));
+    assertNull(b.get("3"));
+  }
+
+  @Test
+  public void testUnreadableValueOnlyRemovesItsKey() {
+    Cache<String> b = createCache(busB, true);
+    b.put("fish", "cat");
+    b.put("bird", "cat");
+    List<ClusterCacheEvent> events = new ArrayList<ClusterCacheEvent>();
+    events.add(new ClusterCacheEvent("test", ClusterCacheEvent.Type.PUT, "fish",
+        new byte[] { 1, 2, 3 }));
+    events.add(ClusterCacheEvent.put("test", "bird", "dog"));
+    busB.receive("elsewhere", events);
+    assertNull(b.get("fish"));
+    assertEquals("dog", b.get("bird"));
+  }
+
+}
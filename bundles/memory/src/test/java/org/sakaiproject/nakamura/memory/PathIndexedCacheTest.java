@@ -0,0 +1,85 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import net.sf.ehcache.CacheManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PathIndexedCacheTest {
+
+  private CacheManager cacheManager;
+
+  @Before
+  public void setUp() {
+    cacheManager = new CacheManager();
+  }
+
+  @After
+  public void tearDown() {
+    cacheManager.shutdown();
+  }
+
+  @Test
+  public void testRemoveChildren() {
+    PathIndexedCacheImpl<String> cache = new PathIndexedCacheImpl<String>(cacheManager,
+        "pathIndexed");
+    cache.put("a", "a");
+    cache.put("a/b", "ab");
+    cache.put("a/b/c", "abc");
+    cache.put("a/bc", "abc");
+    cache.put("ab", "ab");
+    cache.put("b/a", "ba");
+    assertEquals(6, cache.getSize());
+    assertEquals(3, cache.getChildKeys("a/").size());
+
+    cache.removeChildren("a/b");
+    assertNull(cache.get("a/b"));
+    assertNull(cache.get("a/b/c"));
+    assertEquals("abc", cache.get("a/bc"));
+    assertEquals("a", cache.get("a"));
+
+    cache.removeChildren("a");
+    assertNull(cache.get("a/bc"));
+    assertEquals("ab", cache.get("ab"));
+    assertEquals("ba", cache.get("b/a"));
+    assertEquals(2, cache.getSize());
+
+    cache.clear();
+    assertEquals(0, cache.getSize());
+  }
+
+  @Test
+  public void testStatistics() {
+    PathIndexedCacheImpl<String> cache = new PathIndexedCacheImpl<String>(cacheManager,
+        "pathStatistics");
+    cache.put("a", "a");
+    cache.get("a");
+    cache.get("a");
+    cache.get("b");
+    assertEquals(2, cache.getHits());
+    assertEquals(1, cache.getMisses());
+    assertEquals(0, cache.getEvictions());
+  }
+
+}
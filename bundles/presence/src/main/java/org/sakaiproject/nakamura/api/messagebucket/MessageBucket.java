@@ -1,6 +1,7 @@
 package org.sakaiproject.nakamura.api.messagebucket;
 
 
+import java.io.PrintWriter;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -15,6 +16,13 @@ public interface MessageBucket {
    */
   boolean isReady();
 
+  /**
+   * @param since the last sequence number the client has seen.
+   * @return true if the bucket has messages after since, or if since can't be honoured
+   *         because the messages after it are no longer held.
+   */
+  boolean isReady(long since);
+
   /**
    * @param waiter to be added to the list of waiters waiting
    */
@@ -31,6 +39,27 @@ public interface MessageBucket {
    */
   void send(HttpServletResponse response) throws  MessageBucketException;
 
+  /**
+   * Send the messages after since, each with its sequence number, along with the latest
+   * sequence number for the client to continue from. If some of the messages after since
+   * are no longer held the response is marked as reset.
+   * @param response the response to send the messages on.
+   * @param since the last sequence number the client has seen.
+   * @throws MessageBucketException
+   */
+  void send(HttpServletResponse response, long since) throws MessageBucketException;
+
+  /**
+   * Write the messages after since as server sent events, one event per message with the
+   * sequence number as its id. If some of the messages after since are no longer held a
+   * reset event comes first.
+   * @param writer the event stream to write to.
+   * @param since the last sequence number the client has seen.
+   * @return the sequence number of the last message written, for the next call.
+   * @throws MessageBucketException
+   */
+  long sendEvents(PrintWriter writer, long since) throws MessageBucketException;
+
   /**
    * Unbind the request that was bound to this bucket using this token.
    * @param token the token that was used to bind with.
@@ -38,6 +67,11 @@ public interface MessageBucket {
    */
   void unbind(String token, HttpServletRequest request);
 
+  /**
+   * Bind a request to this bucket, the bucket is kept while a request is bound to it.
+   * @param token the token used to find the bucket.
+   * @param request the request binding to the bucket.
+   */
   void bind(String token, HttpServletRequest request);
 
 }
@@ -17,7 +17,7 @@
  */
 package org.sakaiproject.nakamura.api.presence;
 
-import java.util.List;
+import java.util.Collection;
 import java.util.Map;
 
 /**
@@ -86,10 +86,17 @@ public interface PresenceService {
 
   /**
    * @param connections
-   *          a list of connections.
+   *          the connections, looked up together in a single pass.
    * @return a map of userid to online status.
    */
-  Map<String, String> online(List<String> connections);
+  Map<String, String> online(Collection<String> connections);
+
+  /**
+   * @param connections
+   *          the connections, looked up together in a single pass.
+   * @return a map of userid to location, "none" for users that have none.
+   */
+  Map<String, String> locations(Collection<String> connections);
 
   /**
    * @param location
@@ -18,4 +18,24 @@ public class ContinuationWaiter implements Waiter {
     continuation.resume();    
   }
 
+  /**
+   * A retried request makes a new waiter for the same continuation, it is the same waiter.
+   * {@inheritDoc}
+   * @see java.lang.Object#equals(java.lang.Object)
+   */
+  @Override
+  public boolean equals(Object obj) {
+    return (obj instanceof ContinuationWaiter)
+        && ((ContinuationWaiter) obj).continuation == continuation;
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see java.lang.Object#hashCode()
+   */
+  @Override
+  public int hashCode() {
+    return System.identityHashCode(continuation);
+  }
+
 }
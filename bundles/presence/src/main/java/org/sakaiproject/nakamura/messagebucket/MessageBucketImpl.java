@@ -1,8 +1,5 @@
 package org.sakaiproject.nakamura.messagebucket;
 
-import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.Maps;
-
 import org.apache.sling.commons.json.JSONException;
 import org.sakaiproject.nakamura.api.messagebucket.MessageBucket;
 import org.sakaiproject.nakamura.api.messagebucket.MessageBucketException;
@@ -10,24 +7,58 @@ import org.sakaiproject.nakamura.api.messagebucket.Waiter;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
 
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+/**
+ * A bucket holding the most recent messages for a client in a fixed size ring, each
+ * numbered with a sequence number so that a client reconnecting can pick up everything
+ * after the last message it saw. The ring is only allocated when the first message
+ * arrives, an idle bucket is a few fields.
+ */
 public class MessageBucketImpl implements MessageBucket {
 
-  private Map<Waiter, Waiter> waiters = Maps.newConcurrentHashMap();
-  private Map<String, HttpServletRequest> bound = Maps.newConcurrentHashMap();
-  private boolean ready = false;
-  private Map<String, Object> messagePayload;
+  // There are rarely more than one or two waiters, copy on write keeps that small and
+  // lets them be resumed without holding a lock.
+  private final Set<Waiter> waiters = new CopyOnWriteArraySet<Waiter>();
+  private final int capacity;
+  private final long created;
+  private volatile long lastAccess;
+  private int boundCount;
+
+  // guarded by this
+  private Object[] payloads;
+  private long sequence;
+
+  public MessageBucketImpl() {
+    this(1);
+  }
+
+  /**
+   * @param capacity the number of messages held for clients that have not collected them.
+   */
+  public MessageBucketImpl(int capacity) {
+    this.capacity = Math.max(1, capacity);
+    created = System.currentTimeMillis();
+    lastAccess = created;
+  }
 
   public boolean isReady() {
-    return ready;
+    return getSequence() > 0;
+  }
+
+  public synchronized boolean isReady(long since) {
+    // A client ahead of the bucket saw an earlier bucket, it needs to start again.
+    return sequence != since;
   }
 
   public void addWaiter(Waiter waiter) {
-    waiters.put(waiter, waiter);
+    waiters.add(waiter);
   }
 
   public void removeWaiter(Waiter waiter) {
@@ -35,10 +66,14 @@ public class MessageBucketImpl implements MessageBucket {
   }
 
   public void send(HttpServletResponse response) throws MessageBucketException {
+    Object payload;
+    synchronized (this) {
+      payload = sequence > 0 ? payloads[slot(sequence)] : null;
+    }
     try {
-      if (ready) {
+      if (payload != null) {
         ExtendedJSONWriter e = new ExtendedJSONWriter(response.getWriter());
-        e.valueMap(messagePayload);
+        e.valueMap(asMap(payload));
       } else {
         throw new MessageBucketException("Message not ready");
       }
@@ -49,20 +84,149 @@ public class MessageBucketImpl implements MessageBucket {
     }
   }
 
-  public void unbind(String token, HttpServletRequest request) {
-    bound.put(token, request);
+  public void send(HttpServletResponse response, long since) throws MessageBucketException {
+    Snapshot snapshot = snapshot(since);
+    try {
+      ExtendedJSONWriter e = new ExtendedJSONWriter(response.getWriter());
+      e.object();
+      e.key("sequence");
+      e.value(snapshot.latest);
+      e.key("reset");
+      e.value(snapshot.reset);
+      e.key("messages");
+      e.array();
+      for (int i = 0; i < snapshot.payloads.length; i++) {
+        e.object();
+        e.key("sequence");
+        e.value(snapshot.first + i);
+        e.key("message");
+        e.valueMap(asMap(snapshot.payloads[i]));
+        e.endObject();
+      }
+      e.endArray();
+      e.endObject();
+    } catch (IOException e) {
+      throw new MessageBucketException(e.getMessage(), e);
+    } catch (JSONException e) {
+      throw new MessageBucketException(e.getMessage(), e);
+    }
+  }
+
+  public long sendEvents(PrintWriter writer, long since) throws MessageBucketException {
+    Snapshot snapshot = snapshot(since);
+    try {
+      if (snapshot.reset) {
+        writer.write("id: " + (snapshot.first - 1) + "\nevent: reset\ndata: "
+            + snapshot.latest + "\n\n");
+      }
+      for (int i = 0; i < snapshot.payloads.length; i++) {
+        writer.write("id: " + (snapshot.first + i) + "\ndata: ");
+        // The JSON writer escapes line breaks in values, so the message is a single line.
+        new ExtendedJSONWriter(writer).valueMap(asMap(snapshot.payloads[i]));
+        writer.write("\n\n");
+      }
+      return snapshot.latest;
+    } catch (JSONException e) {
+      throw new MessageBucketException(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Copy out the messages after since, the lock is not held while writing to the client.
+   */
+  private synchronized Snapshot snapshot(long since) {
+    Snapshot snapshot = new Snapshot();
+    snapshot.latest = sequence;
+    long oldest = Math.max(1, sequence - capacity + 1);
+    snapshot.reset = since > sequence || since + 1 < oldest;
+    snapshot.first = snapshot.reset ? oldest : since + 1;
+    snapshot.payloads = new Object[(int) Math.max(0, sequence - snapshot.first + 1)];
+    for (int i = 0; i < snapshot.payloads.length; i++) {
+      snapshot.payloads[i] = payloads[slot(snapshot.first + i)];
+    }
+    return snapshot;
+  }
+
+  public synchronized void unbind(String token, HttpServletRequest request) {
+    boundCount--;
+    lastAccess = System.currentTimeMillis();
+  }
+
+  public synchronized void bind(String token, HttpServletRequest request) {
+    boundCount++;
+    lastAccess = System.currentTimeMillis();
+  }
+
+  /**
+   * Add a message to the bucket, waking any waiters. Once the ring is full the oldest
+   * message is dropped.
+   * @param messagePayload the message.
+   * @return the sequence number of the message.
+   */
+  public long markReady(Map<String, Object> messagePayload) {
+    long added;
+    synchronized (this) {
+      if (payloads == null) {
+        payloads = new Object[capacity];
+      }
+      added = ++sequence;
+      payloads[slot(added)] = messagePayload;
+      lastAccess = System.currentTimeMillis();
+    }
+    for (Waiter w : waiters) {
+      w.resume();
+    }
+    return added;
+  }
+
+  /**
+   * @return the sequence number of the latest message, 0 if there have been none.
+   */
+  public synchronized long getSequence() {
+    return sequence;
   }
 
-  public void bind(String token, HttpServletRequest request) {
-    bound.remove(token);
+  /**
+   * @param now the current time.
+   * @param idleTimeout the time in ms a bucket may go unused.
+   * @param ttl the time in ms a bucket may live, however busy.
+   * @return true if the bucket can be dropped.
+   */
+  synchronized boolean isExpired(long now, long idleTimeout, long ttl) {
+    if (now - created > ttl) {
+      return true;
+    }
+    return boundCount <= 0 && waiters.isEmpty() && now - lastAccess > idleTimeout;
   }
 
-  public void markReady(Map<String, Object> messagePayload) {
-    this.messagePayload = messagePayload;
-    ready = true;
-    for (Waiter w : ImmutableSet.copyOf(waiters.keySet())) {
+  /**
+   * Wake anything waiting on a bucket that has been dropped, so it comes back for a new
+   * one.
+   */
+  void expire() {
+    for (Waiter w : waiters) {
       w.resume();
     }
   }
 
+  void touch() {
+    lastAccess = System.currentTimeMillis();
+  }
+
+  private int slot(long seq) {
+    return (int) ((seq - 1) % capacity);
+  }
+
+  @SuppressWarnings("unchecked")
+  private Map<String, Object> asMap(Object payload) {
+    return (Map<String, Object>) payload;
+  }
+
+  private static final class Snapshot {
+    private long latest;
+    private long first;
+    private boolean reset;
+    private Object[] payloads;
+  }
+
 }
@@ -61,26 +61,41 @@ public class UIEventServlet extends HttpServlet {
   protected void doGet(HttpServletRequest request, HttpServletResponse response)
       throws ServletException, IOException {
     String token = request.getParameter("token");
+    // Clients that send the last sequence number they saw get every message after it,
+    // clients that don't get the latest message on its own.
+    long since = -1;
+    String sinceParam = request.getParameter("since");
+    if (sinceParam != null) {
+      try {
+        since = Long.parseLong(sinceParam);
+      } catch (NumberFormatException e) {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid since " + sinceParam);
+        return;
+      }
+    }
     try {
       MessageBucket mb =  bucketService.getBucket(token);
-       mb.bind(token, request);
+      mb.bind(token, request);
       try {
-      synchronized (mb) {
-        if ( mb.isReady() ) {
-          mb.send(response);
+        if (isReady(mb, since)) {
+          send(mb, since, response);
         } else {
-          Continuation continuation = ContinuationSupport.getContinuation(request, mb);
+          // The waiter is added before the last check so a message arriving in between
+          // resumes the continuation rather than being missed. No lock is held while
+          // suspended, on a retried request suspend returns at once.
+          Continuation continuation = ContinuationSupport.getContinuation(request, null);
           Waiter waiter = new ContinuationWaiter(continuation);
           mb.addWaiter(waiter);
-          continuation.suspend(timeout);
+          if (!isReady(mb, since)) {
+            continuation.suspend(timeout);
+          }
           mb.removeWaiter(waiter);
-          if ( mb.isReady() ) {
-            mb.send(response);
+          if (isReady(mb, since)) {
+            send(mb, since, response);
           } else {
             response.sendError(HttpServletResponse.SC_NOT_FOUND,"Timed out waiting for message bucket to fill");
           }
-        }      
-      }
+        }
       } finally {
         mb.unbind(token, request);
       }
@@ -89,5 +104,19 @@ public class UIEventServlet extends HttpServlet {
     }
   }
 
-  
+  private boolean isReady(MessageBucket mb, long since) {
+    return since < 0 ? mb.isReady() : mb.isReady(since);
+  }
+
+  private void send(MessageBucket mb, long since, HttpServletResponse response)
+      throws MessageBucketException {
+    response.setContentType("application/json");
+    response.setCharacterEncoding("UTF-8");
+    if (since < 0) {
+      mb.send(response);
+    } else {
+      mb.send(response, since);
+    }
+  }
+
 }
@@ -0,0 +1,190 @@
+package org.sakaiproject.nakamura.messagebucket;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.mortbay.util.ajax.Continuation;
+import org.mortbay.util.ajax.ContinuationSupport;
+import org.osgi.service.http.HttpService;
+import org.osgi.service.http.NamespaceException;
+import org.sakaiproject.nakamura.api.messagebucket.MessageBucket;
+import org.sakaiproject.nakamura.api.messagebucket.MessageBucketException;
+import org.sakaiproject.nakamura.api.messagebucket.MessageBucketService;
+import org.sakaiproject.nakamura.api.messagebucket.Waiter;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Streams the messages of a bucket to the client as server sent events over a single
+ * connection, using the same tokens as the long poll {@link UIEventServlet}. Between
+ * messages the request is parked on a continuation, waking to write a heartbeat comment
+ * so that proxies keep the connection open. After the stream timeout the response is
+ * ended and the client reconnects with the Last-Event-ID it has, picking up where it left
+ * off.
+ */
+@Component(metatype=true, immediate=true)
+public class UIEventStreamServlet extends HttpServlet {
+
+  private static final long serialVersionUID = -2853519962146455014L;
+
+  @Property(longValue=15000L)
+  private static final String HEARTBEAT_CONFIG = "heartbeat";
+
+  @Property(longValue=300000L)
+  private static final String STREAM_TIMEOUT_CONFIG = "streamtimeout";
+
+  @Property(longValue=3000L)
+  private static final String RETRY_CONFIG = "retry";
+
+  private static final String STREAM_ATTRIBUTE = UIEventStreamServlet.class.getName()
+      + ".stream";
+
+  private static final String PATH = "/system/uievent/stream";
+
+  @Reference
+  private HttpService httpService;
+
+  @Reference
+  private MessageBucketService bucketService;
+
+  private long heartbeat;
+  private long streamTimeout;
+  private long retry;
+
+  @Activate
+  public void activate(Map<String, Object> properties) throws ServletException, NamespaceException {
+    heartbeat = OsgiUtil.toLong(properties.get(HEARTBEAT_CONFIG), 15000L);
+    streamTimeout = OsgiUtil.toLong(properties.get(STREAM_TIMEOUT_CONFIG), 300000L);
+    retry = OsgiUtil.toLong(properties.get(RETRY_CONFIG), 3000L);
+    httpService.registerServlet(PATH, this, null, null);
+  }
+
+  @Deactivate
+  public void deactivate(Map<String, Object> properties) {
+    httpService.unregister(PATH);
+  }
+
+  @Override
+  protected void doGet(HttpServletRequest request, HttpServletResponse response)
+      throws ServletException, IOException {
+    // With a non blocking connector suspend unwinds the request and the container
+    // dispatches it again when resumed or timed out, so everything about the stream is
+    // kept on the request rather than in locals.
+    Stream stream = (Stream) request.getAttribute(STREAM_ATTRIBUTE);
+    if (stream == null) {
+      String token = request.getParameter("token");
+      long since;
+      try {
+        since = getSince(request);
+      } catch (NumberFormatException e) {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid Last-Event-ID");
+        return;
+      }
+      MessageBucket mb;
+      try {
+        mb = bucketService.getBucket(token);
+      } catch (MessageBucketException e) {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+        return;
+      }
+      response.setContentType("text/event-stream");
+      response.setCharacterEncoding("UTF-8");
+      response.setHeader("Cache-Control", "no-cache");
+      response.getWriter().write("retry: " + retry + "\n\n");
+
+      Continuation continuation = ContinuationSupport.getContinuation(request, null);
+      stream = new Stream(token, mb, since, new ContinuationWaiter(continuation),
+          System.currentTimeMillis() + streamTimeout);
+      request.setAttribute(STREAM_ATTRIBUTE, stream);
+      mb.bind(token, request);
+      mb.addWaiter(stream.waiter);
+    }
+
+    Continuation continuation = ContinuationSupport.getContinuation(request, null);
+    PrintWriter writer = response.getWriter();
+    boolean done = false;
+    try {
+      for (;;) {
+        boolean woken = false;
+        if (stream.waiting) {
+          // Blocks until resumed or the heartbeat is due, or on a dispatch after the
+          // request was unwound returns at once.
+          continuation.suspend(heartbeat);
+          stream.waiting = false;
+          woken = true;
+          if (bucketService.getBucket(stream.token) != stream.bucket) {
+            // The bucket was dropped, the client reconnects and gets the new one.
+            done = true;
+            return;
+          }
+        }
+        if (stream.bucket.isReady(stream.since)) {
+          stream.since = stream.bucket.sendEvents(writer, stream.since);
+        } else if (woken) {
+          writer.write(": \n\n");
+        }
+        // checkError flushes, and tells us if the client has gone away.
+        if (writer.checkError() || System.currentTimeMillis() > stream.expires) {
+          done = true;
+          return;
+        }
+        // A message arriving after the check above but before the request is suspended
+        // is picked up on the next heartbeat at the latest.
+        stream.waiting = true;
+      }
+    } catch (MessageBucketException e) {
+      done = true;
+      writer.write("event: error\ndata: " + e.getMessage() + "\n\n");
+      writer.flush();
+    } finally {
+      if (done) {
+        stream.bucket.removeWaiter(stream.waiter);
+        stream.bucket.unbind(stream.token, request);
+        request.removeAttribute(STREAM_ATTRIBUTE);
+      }
+    }
+  }
+
+  /**
+   * @return the last sequence number the client saw, from the Last-Event-ID header sent by
+   *         a reconnecting EventSource or the since parameter, 0 if neither is present.
+   */
+  private long getSince(HttpServletRequest request) {
+    String since = request.getHeader("Last-Event-ID");
+    if (since == null || since.length() == 0) {
+      since = request.getParameter("since");
+    }
+    if (since == null || since.length() == 0) {
+      return 0;
+    }
+    return Long.parseLong(since.trim());
+  }
+
+  private static final class Stream {
+    private final String token;
+    private final MessageBucket bucket;
+    private final Waiter waiter;
+    private final long expires;
+    private long since;
+    private boolean waiting;
+
+    Stream(String token, MessageBucket bucket, long since, Waiter waiter, long expires) {
+      this.token = token;
+      this.bucket = bucket;
+      this.since = since;
+      this.waiter = waiter;
+      this.expires = expires;
+    }
+  }
+
+}
@@ -4,6 +4,8 @@ import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.lang.StringUtils;
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.commons.osgi.OsgiUtil;
@@ -13,12 +15,21 @@ import org.sakaiproject.nakamura.api.messagebucket.MessageBucket;
 import org.sakaiproject.nakamura.api.messagebucket.MessageBucketException;
 import org.sakaiproject.nakamura.api.messagebucket.MessageBucketService;
 import org.sakaiproject.nakamura.util.Signature;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.UnsupportedEncodingException;
 import java.security.SignatureException;
 import java.text.MessageFormat;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.http.HttpServletRequest;
 
@@ -32,9 +43,24 @@ public class UntrustedMessageBucketServiceImpl implements MessageBucketService {
 
   private static final String DEFAULT_URL_PATTERN = "http://localhost:8080/system/uievent/default?token={3}&server={6}&user={7}";
   private static final String BUCKETURLPATTERN_CONFIG = "bucketurlpattern";
+  private static final Logger LOGGER = LoggerFactory.getLogger(UntrustedMessageBucketServiceImpl.class);
+
+  @Property(longValue = 300000L)
+  private static final String BUCKETIDLETIMEOUT_CONFIG = "bucketidletimeout";
+
+  @Property(longValue = 86400000L)
+  private static final String BUCKETTTL_CONFIG = "bucketttl";
+
+  @Property(intValue = 32)
+  private static final String BUCKETCAPACITY_CONFIG = "bucketcapacity";
+
   private String sharedSecret;
-  private Map<String, MessageBucket> messageBuckets = new ConcurrentHashMap<String, MessageBucket>();
+  private ConcurrentMap<String, MessageBucketImpl> messageBuckets = new ConcurrentHashMap<String, MessageBucketImpl>();
   private String urlPattern;
+  private long idleTimeout;
+  private long ttl;
+  private int capacity;
+  private ScheduledExecutorService sweeper;
   
   @Reference
   private ClusterTrackingService clusterService;
@@ -43,6 +69,57 @@ public class UntrustedMessageBucketServiceImpl implements MessageBucketService {
   public void activate(Map<String, Object> properties) {
     sharedSecret = String.valueOf(System.currentTimeMillis()); // not that secure !
     urlPattern = OsgiUtil.toString(properties.get(BUCKETURLPATTERN_CONFIG), DEFAULT_URL_PATTERN);
+    idleTimeout = OsgiUtil.toLong(properties.get(BUCKETIDLETIMEOUT_CONFIG), 300000L);
+    ttl = OsgiUtil.toLong(properties.get(BUCKETTTL_CONFIG), 86400000L);
+    capacity = OsgiUtil.toInteger(properties.get(BUCKETCAPACITY_CONFIG), 32);
+
+    long sweepInterval = Math.max(1000L, Math.min(idleTimeout / 2, 60000L));
+    sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "MessageBucket sweeper");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    sweeper.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        sweep(System.currentTimeMillis());
+      }
+    }, sweepInterval, sweepInterval, TimeUnit.MILLISECONDS);
+  }
+
+  @Deactivate
+  public void deactivate(Map<String, Object> properties) {
+    if (sweeper != null) {
+      sweeper.shutdownNow();
+      sweeper = null;
+    }
+    for (MessageBucketImpl mb : messageBuckets.values()) {
+      mb.expire();
+    }
+    messageBuckets.clear();
+  }
+
+  /**
+   * Drop buckets that have been idle for longer than the idle timeout, or have lived longer
+   * than the ttl. Anything waiting on a dropped bucket is woken to come back for a new one.
+   * @param now the current time.
+   */
+  void sweep(long now) {
+    int removed = 0;
+    for (Iterator<Entry<String, MessageBucketImpl>> i = messageBuckets.entrySet().iterator(); i
+        .hasNext();) {
+      MessageBucketImpl mb = i.next().getValue();
+      if (mb.isExpired(now, idleTimeout, ttl)) {
+        i.remove();
+        mb.expire();
+        removed++;
+      }
+    }
+    if (removed > 0) {
+      LOGGER.debug("Removed {} expired message buckets, {} remain", removed,
+          messageBuckets.size());
+    }
   }
 
   public MessageBucket getBucket(String token) throws MessageBucketException {
@@ -50,11 +127,15 @@ public class UntrustedMessageBucketServiceImpl implements MessageBucketService {
     if (key == null) {
       throw new MessageBucketException("Invalid Token " + token);
     }
-    MessageBucket mb = messageBuckets.get(key);
+    MessageBucketImpl mb = messageBuckets.get(key);
     if (mb == null) {
-      mb = new MessageBucketImpl();
-      messageBuckets.put(key, mb);
+      mb = new MessageBucketImpl(capacity);
+      MessageBucketImpl existing = messageBuckets.putIfAbsent(key, mb);
+      if (existing != null) {
+        mb = existing;
+      }
     }
+    mb.touch();
     return mb;
   }
 
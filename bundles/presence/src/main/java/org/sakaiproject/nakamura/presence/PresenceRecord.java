@@ -0,0 +1,118 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.presence;
+
+import org.sakaiproject.nakamura.api.presence.PresenceStatus;
+
+import java.io.Serializable;
+
+/**
+ * The presence of one user, a fixed layout record that replaces the colon joined string
+ * the status used to be stored as. Records are immutable, an update replaces the record.
+ * A preset status is held as its {@link PresenceStatus}, only a custom status is held as a
+ * string. The location and custom statuses are interned so that the many users sharing a
+ * status or a page share a single copy of it.
+ */
+final class PresenceRecord implements Serializable {
+
+  private static final long serialVersionUID = 3528745116394760914L;
+
+  private final String uuid;
+  private final PresenceStatus presenceStatus;
+  private final String customStatus;
+  private final String location;
+  private final long timestamp;
+
+  PresenceRecord(String uuid, String status, String location, long timestamp) {
+    this(uuid, toPresenceStatus(status), status, location, timestamp);
+  }
+
+  private PresenceRecord(String uuid, PresenceStatus presenceStatus, String customStatus,
+      String location, long timestamp) {
+    this.uuid = uuid;
+    this.presenceStatus = presenceStatus;
+    this.customStatus = presenceStatus != null || customStatus == null ? null : customStatus
+        .intern();
+    this.location = location == null ? null : location.intern();
+    this.timestamp = timestamp;
+  }
+
+  /**
+   * @return the user the record belongs to.
+   */
+  String getUuid() {
+    return uuid;
+  }
+
+  /**
+   * @return the status, one of the {@link PresenceStatus} names or a custom status.
+   */
+  String getStatus() {
+    return presenceStatus != null ? presenceStatus.name() : customStatus;
+  }
+
+  /**
+   * @return the preset status, or null if the status is a custom one.
+   */
+  PresenceStatus getPresenceStatus() {
+    return presenceStatus;
+  }
+
+  /**
+   * @return the location, "none" if there is none.
+   */
+  String getLocation() {
+    return location;
+  }
+
+  /**
+   * @return the time of the last update, in the slow changing units of the presence
+   *         service.
+   */
+  long getTimestamp() {
+    return timestamp;
+  }
+
+  /**
+   * @param now the current time.
+   * @param ttl the time to live, in the same units.
+   * @return true if the record is still current.
+   */
+  boolean isCurrent(long now, long ttl) {
+    return timestamp > now - ttl;
+  }
+
+  /**
+   * Records coming from another node in the cluster are deserialized as new strings, put
+   * them back into the shared copies.
+   */
+  private Object readResolve() {
+    return new PresenceRecord(uuid, presenceStatus, customStatus, location, timestamp);
+  }
+
+  private static PresenceStatus toPresenceStatus(String status) {
+    if (status != null) {
+      for (PresenceStatus s : PresenceStatus.values()) {
+        if (s.name().equals(status)) {
+          return s;
+        }
+      }
+    }
+    return null;
+  }
+}
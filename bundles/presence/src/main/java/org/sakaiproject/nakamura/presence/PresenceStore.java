@@ -0,0 +1,246 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.presence;
+
+import com.google.common.collect.Maps;
+
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.api.presence.PresenceStatus;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds a {@link PresenceRecord} for each user in a cache replicated across the cluster.
+ * Each user is a single entry holding both the status and the location, so concurrent
+ * updates from different nodes never have to merge a shared value and can't lose each
+ * other. Records older than the time to live are dropped by a timer wheel with one slot
+ * per time unit, each slot holding the users updated in that unit, so expiry only ever
+ * looks at the users that might have expired. A second replicated cache indexes the users
+ * at each location, so listing a location only reads the records of the users there. The
+ * index is a hint: each user it lists is checked against their own record, and a user
+ * missing from it after a concurrent write on another node is added back on their next
+ * update.
+ */
+class PresenceStore {
+
+  static final String RECORD_CACHE = "presence.records";
+  static final String LOCATION_CACHE = "presence.locations";
+
+  private final Cache<PresenceRecord> records;
+  private final Cache<Set<String>> locations;
+  private final long ttl;
+  private final Set<String>[] wheel;
+  private final AtomicLong expiredTo = new AtomicLong(-1);
+
+  /**
+   * @param cacheManagerService
+   *          the cache manager to get the replicated cache from.
+   * @param ttl
+   *          the time to live of a record, in the time units given to the store.
+   */
+  @SuppressWarnings("unchecked")
+  PresenceStore(CacheManagerService cacheManagerService, long ttl) {
+    records = cacheManagerService.getCache(RECORD_CACHE, CacheScope.CLUSTERREPLICATED);
+    locations = cacheManagerService.getCache(LOCATION_CACHE, CacheScope.CLUSTERREPLICATED);
+    this.ttl = ttl;
+    wheel = new Set[(int) ttl + 1];
+    for (int i = 0; i < wheel.length; i++) {
+      wheel[i] = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    }
+  }
+
+  /**
+   * @param uuid
+   *          the user.
+   * @param now
+   *          the current time.
+   * @return the current record of the user, null if there is none.
+   */
+  PresenceRecord get(String uuid, long now) {
+    PresenceRecord record = records.get(uuid);
+    if (record != null && record.isCurrent(now, ttl)) {
+      return record;
+    }
+    return null;
+  }
+
+  /**
+   * Look up many users in one pass.
+   *
+   * @param uuids
+   *          the users.
+   * @param now
+   *          the current time.
+   * @return the current record of each user that has one.
+   */
+  Map<String, PresenceRecord> getAll(Collection<String> uuids, long now) {
+    Map<String, PresenceRecord> result = Maps.newHashMapWithExpectedSize(uuids.size());
+    for (String uuid : uuids) {
+      PresenceRecord record = records.get(uuid);
+      if (record != null && record.isCurrent(now, ttl)) {
+        result.put(uuid, record);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Update the record of a user, keeping the current values of anything not given.
+   *
+   * @param uuid
+   *          the user.
+   * @param now
+   *          the current time.
+   * @param location
+   *          the new location, null to keep the current one.
+   * @param status
+   *          the new status, null to keep the current one.
+   * @return the new record, or null if nothing changed.
+   */
+  PresenceRecord update(String uuid, long now, String location, String status) {
+    expire(now);
+    PresenceRecord current = get(uuid, now);
+    String currentLocation = current == null ? "none" : current.getLocation();
+    String currentStatus = current == null ? PresenceStatus.online.name() : current
+        .getStatus();
+    String newLocation = location == null ? currentLocation : location;
+    String newStatus = status == null ? currentStatus : status;
+    if (current != null && current.getTimestamp() == now
+        && newLocation.equals(currentLocation) && newStatus.equals(currentStatus)) {
+      return null;
+    }
+    PresenceRecord record = new PresenceRecord(uuid, newStatus, newLocation, now);
+    records.put(uuid, record);
+    if (current != null && !newLocation.equals(currentLocation)) {
+      unindex(currentLocation, uuid);
+    }
+    index(newLocation, uuid);
+    wheel[slot(now)].add(uuid);
+    return record;
+  }
+
+  /**
+   * Remove the record of a user.
+   *
+   * @param uuid
+   *          the user.
+   * @return the record removed, null if there was none.
+   */
+  PresenceRecord remove(String uuid) {
+    PresenceRecord record = records.get(uuid);
+    if (record != null) {
+      records.remove(uuid);
+      unindex(record.getLocation(), uuid);
+    }
+    return record;
+  }
+
+  /**
+   * Reads only the records of the users indexed at the location.
+   *
+   * @param location
+   *          the location.
+   * @param now
+   *          the current time.
+   * @return the status of each user currently at the location.
+   */
+  Map<String, String> getStatusAt(String location, long now) {
+    Map<String, String> result = Maps.newHashMap();
+    Set<String> uuids = locations.get(location);
+    if (uuids == null) {
+      return result;
+    }
+    for (String uuid : uuids) {
+      PresenceRecord record = records.get(uuid);
+      if (record != null && record.isCurrent(now, ttl)
+          && location.equals(record.getLocation())) {
+        result.put(uuid, record.getStatus());
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Add a user to the index of a location. The sets in the cache are never modified, each
+   * change puts a new copy, and nothing is written if the user is already there.
+   */
+  private void index(String location, String uuid) {
+    synchronized (locations) {
+      Set<String> uuids = locations.get(location);
+      if (uuids == null || !uuids.contains(uuid)) {
+        Set<String> copy = uuids == null ? new HashSet<String>() : new HashSet<String>(uuids);
+        copy.add(uuid);
+        locations.put(location, copy);
+      }
+    }
+  }
+
+  private void unindex(String location, String uuid) {
+    synchronized (locations) {
+      Set<String> uuids = locations.get(location);
+      if (uuids != null && uuids.contains(uuid)) {
+        if (uuids.size() == 1) {
+          locations.remove(location);
+        } else {
+          Set<String> copy = new HashSet<String>(uuids);
+          copy.remove(uuid);
+          locations.put(location, copy);
+        }
+      }
+    }
+  }
+
+  /**
+   * Drop the records that have passed their time to live. Only the slots of the wheel that
+   * have come due since the last call are visited, and only one caller does the work.
+   *
+   * @param now
+   *          the current time.
+   */
+  void expire(long now) {
+    long limit = now - ttl;
+    long from = expiredTo.get();
+    if (limit <= from || !expiredTo.compareAndSet(from, limit)) {
+      return;
+    }
+    for (long t = Math.max(from + 1, limit - wheel.length + 1); t <= limit; t++) {
+      for (Iterator<String> i = wheel[slot(t)].iterator(); i.hasNext();) {
+        String uuid = i.next();
+        i.remove();
+        // Users updated since are in a later slot as well, leave them alone.
+        PresenceRecord record = records.get(uuid);
+        if (record != null && record.getTimestamp() <= limit) {
+          remove(uuid);
+        }
+      }
+    }
+  }
+
+  private int slot(long t) {
+    return (int) (t % wheel.length);
+  }
+}
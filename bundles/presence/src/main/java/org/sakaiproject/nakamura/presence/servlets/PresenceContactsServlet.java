@@ -50,6 +50,7 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.io.Writer;
 import java.util.List;
+import java.util.Map;
 
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
@@ -159,11 +160,15 @@ public class PresenceContactsServlet extends SlingSafeMethodsServlet {
           ConnectionState.ACCEPTED);
       output.key("contacts");
       UserManager um = AccessControlUtil.getUserManager(session);
+      // look up the status and location of all the contacts in one go
+      Map<String, String> statuses = presenceService.online(userIds);
+      Map<String, String> locations = presenceService.locations(userIds);
       output.array();
       for (String userId : userIds) {
         output.object();
         // put in the basics
-        PresenceUtils.makePresenceJSON(output, userId, presenceService, true);
+        PresenceUtils.makePresenceJSON(output, userId, statuses.get(userId),
+            locations.get(userId));
         // add in the profile
         Authorizable au = um.getAuthorizable(userId);
         ValueMap map = profileService.getProfileMap(au, session);
@@ -0,0 +1,143 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.messagebucket;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.apache.sling.commons.json.JSONArray;
+import org.apache.sling.commons.json.JSONObject;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.messagebucket.Waiter;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ *
+ */
+public class MessageBucketImplTest {
+
+  @Test
+  public void testSequence() throws Exception {
+    MessageBucketImpl mb = new MessageBucketImpl(3);
+    assertFalse(mb.isReady(0));
+    assertEquals(1L, mb.markReady(message(1)));
+    assertEquals(2L, mb.markReady(message(2)));
+    assertTrue(mb.isReady(0));
+    assertTrue(mb.isReady(1));
+    assertFalse(mb.isReady(2));
+
+    JSONObject json = send(mb, 1);
+    assertEquals(2L, json.getLong("sequence"));
+    assertFalse(json.getBoolean("reset"));
+    JSONArray messages = json.getJSONArray("messages");
+    assertEquals(1, messages.length());
+    assertEquals(2L, messages.getJSONObject(0).getLong("sequence"));
+    assertEquals(2, messages.getJSONObject(0).getJSONObject("message").getInt("n"));
+  }
+
+  @Test
+  public void testOverflow() throws Exception {
+    MessageBucketImpl mb = new MessageBucketImpl(3);
+    for (int i = 1; i <= 5; i++) {
+      mb.markReady(message(i));
+    }
+    // 1 has been dropped, only 3, 4 and 5 are held.
+    JSONObject json = send(mb, 1);
+    assertTrue(json.getBoolean("reset"));
+    JSONArray messages = json.getJSONArray("messages");
+    assertEquals(3, messages.length());
+    assertEquals(3, messages.getJSONObject(0).getJSONObject("message").getInt("n"));
+    assertEquals(5, messages.getJSONObject(2).getJSONObject("message").getInt("n"));
+
+    json = send(mb, 2);
+    assertFalse(json.getBoolean("reset"));
+    assertEquals(3, json.getJSONArray("messages").length());
+  }
+
+  @Test
+  public void testClientFromEarlierBucket() throws Exception {
+    MessageBucketImpl mb = new MessageBucketImpl(3);
+    assertTrue(mb.isReady(10));
+    JSONObject json = send(mb, 10);
+    assertTrue(json.getBoolean("reset"));
+    assertEquals(0L, json.getLong("sequence"));
+    assertEquals(0, json.getJSONArray("messages").length());
+  }
+
+  @Test
+  public void testSendEvents() throws Exception {
+    MessageBucketImpl mb = new MessageBucketImpl(2);
+    for (int i = 1; i <= 3; i++) {
+      mb.markReady(message(i));
+    }
+    StringWriter writer = new StringWriter();
+    assertEquals(3L, mb.sendEvents(new PrintWriter(writer), 0));
+    assertEquals("id: 1\nevent: reset\ndata: 3\n\n" + "id: 2\ndata: {\"n\":2}\n\n"
+        + "id: 3\ndata: {\"n\":3}\n\n", writer.toString());
+
+    writer = new StringWriter();
+    assertEquals(3L, mb.sendEvents(new PrintWriter(writer), 3));
+    assertEquals("", writer.toString());
+  }
+
+  @Test
+  public void testWaitersAndExpiry() throws Exception {
+    MessageBucketImpl mb = new MessageBucketImpl(3);
+    final int[] resumed = new int[1];
+    Waiter waiter = new Waiter() {
+      public void resume() {
+        resumed[0]++;
+      }
+    };
+    mb.addWaiter(waiter);
+    mb.markReady(message(1));
+    assertEquals(1, resumed[0]);
+
+    long now = System.currentTimeMillis();
+    assertFalse(mb.isExpired(now + 1000L, 10L, 100000L));
+    mb.removeWaiter(waiter);
+    assertTrue(mb.isExpired(now + 1000L, 10L, 100000L));
+    mb.bind("token", null);
+    assertFalse(mb.isExpired(now + 1000L, 10L, 100000L));
+    assertTrue(mb.isExpired(now + 200000L, 10L, 100000L));
+  }
+
+  private Map<String, Object> message(int n) {
+    return ImmutableMap.of("n", (Object) n);
+  }
+
+  private JSONObject send(MessageBucketImpl mb, long since) throws Exception {
+    StringWriter writer = new StringWriter();
+    HttpServletResponse response = createMock(HttpServletResponse.class);
+    expect(response.getWriter()).andReturn(new PrintWriter(writer));
+    replay(response);
+    mb.send(response, since);
+    return new JSONObject(writer.toString());
+  }
+}
@@ -47,7 +47,6 @@ public class PresenceServiceImplTest {
 
   private CacheManagerService cacheManagerService;
   private PresenceServiceImpl presenceService;
-  private Cache<Object> presenceLocationCache;
   private Cache<Object> presenceStatusCache;
 
   /**
@@ -56,17 +55,16 @@ public class PresenceServiceImplTest {
   @Before
   public void setUp() throws Exception {
 
-    presenceLocationCache = new MapCacheImpl<Object>();
     presenceStatusCache = new MapCacheImpl<Object>();
 
     cacheManagerService = createMock(CacheManagerService.class);
     expect(
-        cacheManagerService.getCache("presence.location",
-            CacheScope.CLUSTERREPLICATED)).andReturn(presenceLocationCache)
+        cacheManagerService.getCache("presence.records",
+            CacheScope.CLUSTERREPLICATED)).andReturn(presenceStatusCache)
         .anyTimes();
     expect(
-        cacheManagerService.getCache("presence.status",
-            CacheScope.CLUSTERREPLICATED)).andReturn(presenceStatusCache)
+        cacheManagerService.getCache("presence.locations",
+            CacheScope.CLUSTERREPLICATED)).andReturn(new MapCacheImpl<Object>())
         .anyTimes();
     replay(cacheManagerService);
 
@@ -152,6 +150,12 @@ public class PresenceServiceImplTest {
         assertEquals("user" + i + "at99", status);
       }
     }
+    Map<String, String> locations = presenceService.locations(friends);
+    assertEquals(100, locations.size());
+    for (int i = 0; i < 50; i++) {
+      assertEquals("location99", locations.get("user" + i));
+      assertEquals("none", locations.get("otheruser" + i));
+    }
   }
 
   /**
@@ -0,0 +1,139 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.presence;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import com.google.common.collect.ImmutableList;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.api.presence.PresenceStatus;
+import org.sakaiproject.nakamura.memory.MapCacheImpl;
+
+import java.util.Map;
+
+/**
+ *
+ */
+public class PresenceStoreTest {
+
+  private Cache<Object> records;
+  private Cache<Object> locations;
+  private PresenceStore store;
+
+  @Before
+  public void setUp() {
+    records = new MapCacheImpl<Object>();
+    locations = new MapCacheImpl<Object>();
+    CacheManagerService cacheManagerService = createMock(CacheManagerService.class);
+    expect(cacheManagerService.getCache(PresenceStore.RECORD_CACHE,
+        CacheScope.CLUSTERREPLICATED)).andReturn(records);
+    expect(cacheManagerService.getCache(PresenceStore.LOCATION_CACHE,
+        CacheScope.CLUSTERREPLICATED)).andReturn(locations);
+    replay(cacheManagerService);
+    store = new PresenceStore(cacheManagerService, 15L);
+  }
+
+  @Test
+  public void testExpiry() {
+    store.update("alice", 100L, "/a", null);
+    store.update("bob", 100L, "/a", "busy");
+    store.update("bob", 110L, null, null);
+    assertEquals(2, store.getStatusAt("/a", 110L).size());
+
+    // alice is no longer current, and is dropped once the wheel passes her slot.
+    assertNull(store.get("alice", 115L));
+    assertNotNull(records.get("alice"));
+    store.expire(115L);
+    assertNull(records.get("alice"));
+    assertEquals("busy", store.get("bob", 115L).getStatus());
+    assertEquals(1, store.getStatusAt("/a", 115L).size());
+
+    store.expire(125L);
+    assertNull(records.get("bob"));
+    assertEquals(0, store.getStatusAt("/a", 125L).size());
+    assertNull(locations.get("/a"));
+  }
+
+  @Test
+  public void testBulkAndInterning() {
+    store.update("alice", 100L, new String("/a"), new String("busy"));
+    store.update("bob", 100L, new String("/a"), new String("busy"));
+    Map<String, PresenceRecord> all = store.getAll(ImmutableList.of("alice", "bob", "carol"),
+        100L);
+    assertEquals(2, all.size());
+    assertSame(all.get("alice").getStatus(), all.get("bob").getStatus());
+    assertSame(all.get("alice").getLocation(), all.get("bob").getLocation());
+  }
+
+  @Test
+  public void testPresetStatusIsHeldAsEnum() {
+    store.update("alice", 100L, "/a", "online");
+    store.update("bob", 100L, "/a", "busy");
+    assertEquals(PresenceStatus.online, store.get("alice", 100L).getPresenceStatus());
+    assertEquals("online", store.get("alice", 100L).getStatus());
+    assertNull(store.get("bob", 100L).getPresenceStatus());
+    assertEquals("busy", store.get("bob", 100L).getStatus());
+  }
+
+  @Test
+  public void testUsersAtALocationAreIndependentEntries() {
+    // two nodes joining the same location each write only their own user.
+    store.update("alice", 100L, "/a", null);
+    store.update("bob", 100L, "/a", null);
+    records.remove("alice");
+    assertEquals(1, store.getStatusAt("/a", 100L).size());
+    assertEquals("online", store.getStatusAt("/a", 100L).get("bob"));
+  }
+
+  @Test
+  public void testMove() {
+    store.update("alice", 100L, "/a", null);
+    store.update("alice", 101L, "/b", null);
+    assertEquals(0, store.getStatusAt("/a", 101L).size());
+    assertNull(locations.get("/a"));
+    assertEquals("online", store.getStatusAt("/b", 101L).get("alice"));
+    assertNull(store.update("alice", 101L, "/b", null));
+  }
+
+  @Test
+  public void testOnlyUsersAtTheLocationAreRead() {
+    store.update("alice", 100L, "/a", null);
+    store.update("bob", 100L, "/b", null);
+    // a record missing from the index is not found by a scan of everyone.
+    records.put("carol", new PresenceRecord("carol", "online", "/a", 100L));
+    Map<String, String> atA = store.getStatusAt("/a", 100L);
+    assertEquals(1, atA.size());
+    assertEquals("online", atA.get("alice"));
+
+    // a user lost from the index is put back by their next update.
+    locations.remove("/a");
+    store.update("alice", 101L, null, null);
+    assertEquals(1, store.getStatusAt("/a", 101L).size());
+  }
+}
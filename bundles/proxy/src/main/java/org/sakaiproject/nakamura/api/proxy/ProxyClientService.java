@@ -21,6 +21,7 @@ import org.apache.commons.httpclient.HttpConnectionManager;
 
 import java.io.InputStream;
 import java.util.Map;
+import java.util.Set;
 
 import javax.jcr.Node;
 
@@ -61,6 +62,24 @@ public interface ProxyClientService {
    */
   public static final String SAKAI_LIMIT_GET_SIZE = "sakai:proxy-limit-length";
 
+  /**
+   * When true GET responses are streamed to the client, with sakai:proxy-limit-length
+   * enforced while the body is read instead of by a HEAD request first.
+   */
+  public static final String SAKAI_PROXY_STREAM = "sakai:proxy-stream";
+
+  /**
+   * Seconds GET responses from this end point are fresh for, in place of the upstream
+   * Cache-Control max-age and Expires. Responses that are private, no-store or set cookies
+   * are never cached. 0 disables caching for the end point.
+   */
+  public static final String SAKAI_PROXY_CACHE_TTL = "sakai:proxy-cache-ttl";
+
+  /**
+   * The largest GET response body in bytes from this end point that will be cached.
+   */
+  public static final String SAKAI_PROXY_CACHE_MAX_SIZE = "sakai:proxy-cache-max-size";
+
 
   /**
    * Executes a HTTP call using a path in the JCR to point to a template and a map of
@@ -104,6 +123,20 @@ public interface ProxyClientService {
       Map<String, Object> input, InputStream requestInputStream,
       long requestContentLength, String requestContentType) throws ProxyClientException;
 
+  /**
+   * As {@link #executeCall(Node, Map, Map, InputStream, long, String)}, for headers that
+   * were partly copied from a client request. Cached GET responses are keyed on the end
+   * point and every header that did not come from the client, and only vary on the client
+   * headers the upstream response names in its Vary header.
+   *
+   * @param clientHeaders
+   *          the names of the headers that were copied unchanged from the client request.
+   */
+  public ProxyResponse executeCall(Node node, Map<String, String> headers,
+      Set<String> clientHeaders, Map<String, Object> input,
+      InputStream requestInputStream, long requestContentLength, String requestContentType)
+      throws ProxyClientException;
+
   /**
    * Exports the HTTP Connection Manager for use by bundles making HTTP requests
    */
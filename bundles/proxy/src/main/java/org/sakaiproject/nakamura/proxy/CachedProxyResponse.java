@@ -0,0 +1,264 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.proxy;
+
+import org.apache.commons.httpclient.util.DateParseException;
+import org.apache.commons.httpclient.util.DateUtil;
+import org.sakaiproject.nakamura.api.proxy.ProxyResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * A proxy response held in the {@link ProxyResponseCache}. Instances are immutable and
+ * shared between requests, so closing them does nothing.
+ */
+public class CachedProxyResponse implements ProxyResponse {
+
+  private final int result;
+  private final Map<String, String[]> headers;
+  private final byte[] body;
+  private final String charset;
+  private final long expires;
+
+  /**
+   * @param result the upstream status.
+   * @param headers the upstream headers.
+   * @param body the upstream body.
+   * @param charset the charset of the body.
+   * @param expires the time (ms since epoch) the response stops being fresh.
+   */
+  public CachedProxyResponse(int result, Map<String, String[]> headers, byte[] body,
+      String charset, long expires) {
+    this.result = result;
+    this.headers = Collections.unmodifiableMap(new HashMap<String, String[]>(headers));
+    this.body = body;
+    this.charset = charset;
+    this.expires = expires;
+  }
+
+  /**
+   * @return true if the response can be used without asking the upstream server.
+   */
+  public boolean isFresh() {
+    return expires > System.currentTimeMillis();
+  }
+
+  /**
+   * @return the ETag of the response, null if there is none.
+   */
+  public String getETag() {
+    return getHeader(headers, "ETag");
+  }
+
+  /**
+   * @return the Last-Modified date of the response, null if there is none.
+   */
+  public String getLastModified() {
+    return getHeader(headers, "Last-Modified");
+  }
+
+  /**
+   * @return true if the upstream server can be asked whether the response has changed.
+   */
+  public boolean hasValidator() {
+    return hasValidator(headers);
+  }
+
+  /**
+   * @param headers response headers.
+   * @return true if the headers contain an ETag or Last-Modified date.
+   */
+  public static boolean hasValidator(Map<String, String[]> headers) {
+    return getHeader(headers, "ETag") != null || getHeader(headers, "Last-Modified") != null;
+  }
+
+  /**
+   * Create the response that results from a 304 revalidation.
+   * 
+   * @param notModifiedHeaders the headers of the 304, which replace those held.
+   * @param expires the new freshness limit.
+   * @return a copy of this response with the new headers and freshness limit.
+   */
+  public CachedProxyResponse revalidated(Map<String, String[]> notModifiedHeaders,
+      long expires) {
+    Map<String, String[]> merged = new HashMap<String, String[]>(headers);
+    for (Entry<String, String[]> e : notModifiedHeaders.entrySet()) {
+      String existing = findName(merged, e.getKey());
+      if (existing != null) {
+        merged.remove(existing);
+      }
+      merged.put(e.getKey(), e.getValue());
+    }
+    return new CachedProxyResponse(result, merged, body, charset, expires);
+  }
+
+  /**
+   * @return the approximate number of bytes this response occupies.
+   */
+  public long getSize() {
+    long size = body.length;
+    for (Entry<String, String[]> e : headers.entrySet()) {
+      size += e.getKey().length();
+      for (String v : e.getValue()) {
+        size += v.length();
+      }
+    }
+    return size;
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.proxy.ProxyResponse#getResultCode()
+   */
+  public int getResultCode() {
+    return result;
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.proxy.ProxyResponse#getResponseHeaders()
+   */
+  public Map<String, String[]> getResponseHeaders() {
+    return headers;
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.proxy.ProxyResponse#getResponseBody()
+   */
+  public byte[] getResponseBody() throws IOException {
+    return body.clone();
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.proxy.ProxyResponse#getResponseBodyAsInputStream()
+   */
+  public InputStream getResponseBodyAsInputStream() throws IOException {
+    return new ByteArrayInputStream(body);
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.proxy.ProxyResponse#getResponseBodyAsString()
+   */
+  public String getResponseBodyAsString() throws IOException {
+    return new String(body, charset);
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.nakamura.api.proxy.ProxyResponse#close()
+   */
+  public void close() {
+  }
+
+  /**
+   * Work out how long a response may be cached for from its Cache-Control, Expires and
+   * Date headers.
+   * 
+   * @param headers the response headers.
+   * @param now the time the response was received.
+   * @return the time (ms since epoch) the response stops being fresh, or -1 if the
+   *         response must not be stored.
+   */
+  public static long getExpires(Map<String, String[]> headers, long now) {
+    if (findName(headers, "Set-Cookie") != null) {
+      return -1;
+    }
+    String vary = getHeader(headers, "Vary");
+    if (vary != null && vary.trim().equals("*")) {
+      return -1;
+    }
+    String cacheControl = getHeader(headers, "Cache-Control");
+    if (cacheControl != null) {
+      long maxAge = -1;
+      boolean noCache = false;
+      for (String directive : cacheControl.toLowerCase().split(",")) {
+        directive = directive.trim();
+        if (directive.equals("no-store") || directive.equals("private")) {
+          return -1;
+        } else if (directive.equals("no-cache")) {
+          noCache = true;
+        } else if (directive.startsWith("s-maxage=")) {
+          maxAge = parseSeconds(directive.substring(9), maxAge);
+        } else if (directive.startsWith("max-age=") && maxAge < 0) {
+          maxAge = parseSeconds(directive.substring(8), maxAge);
+        }
+      }
+      if (noCache) {
+        return now;
+      }
+      if (maxAge >= 0) {
+        return now + maxAge * 1000L;
+      }
+    }
+    String expires = getHeader(headers, "Expires");
+    if (expires != null) {
+      try {
+        long expiresAt = DateUtil.parseDate(expires).getTime();
+        String date = getHeader(headers, "Date");
+        if (date != null) {
+          // correct for the upstream clock.
+          expiresAt = now + (expiresAt - DateUtil.parseDate(date).getTime());
+        }
+        return Math.max(now, expiresAt);
+      } catch (DateParseException e) {
+        // an invalid Expires means already expired.
+        return now;
+      }
+    }
+    return now;
+  }
+
+  private static long parseSeconds(String value, long defaultValue) {
+    try {
+      return Long.parseLong(value.trim());
+    } catch (NumberFormatException e) {
+      return defaultValue;
+    }
+  }
+
+  private static String findName(Map<String, String[]> headers, String name) {
+    for (String key : headers.keySet()) {
+      if (key.equalsIgnoreCase(name)) {
+        return key;
+      }
+    }
+    return null;
+  }
+
+  private static String getHeader(Map<String, String[]> headers, String name) {
+    String key = findName(headers, name);
+    if (key != null) {
+      String[] values = headers.get(key);
+      if (values != null && values.length > 0) {
+        return values[0];
+      }
+    }
+    return null;
+  }
+
+}
@@ -0,0 +1,90 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.proxy;
+
+import org.apache.commons.httpclient.HttpMethod;
+import org.sakaiproject.nakamura.api.proxy.ProxyResponseTooLargeException;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Counts the bytes read from an upstream body, aborting the upstream request once more
+ * than the limit have been read.
+ */
+public class LimitedInputStream extends FilterInputStream {
+
+  private final long limit;
+  private final HttpMethod method;
+  private long remaining;
+
+  /**
+   * @param in the upstream body.
+   * @param limit the number of bytes that may be read.
+   * @param method the upstream request, aborted when the limit is passed, may be null.
+   */
+  public LimitedInputStream(InputStream in, long limit, HttpMethod method) {
+    super(in);
+    this.limit = limit;
+    this.remaining = limit;
+    this.method = method;
+  }
+
+  @Override
+  public int read() throws IOException {
+    int b = super.read();
+    if (b >= 0) {
+      count(1);
+    }
+    return b;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    int n = super.read(b, off, len);
+    if (n > 0) {
+      count(n);
+    }
+    return n;
+  }
+
+  @Override
+  public long skip(long n) throws IOException {
+    long skipped = super.skip(n);
+    count(skipped);
+    return skipped;
+  }
+
+  @Override
+  public boolean markSupported() {
+    return false;
+  }
+
+  private void count(long n) throws IOException {
+    remaining -= n;
+    if (remaining < 0) {
+      if (method != null) {
+        // the rest of the body is not wanted, dont return the connection to the pool.
+        method.abort();
+      }
+      throw new ProxyResponseTooLargeException(limit);
+    }
+  }
+
+}
@@ -24,6 +24,7 @@ import org.apache.commons.httpclient.Header;
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpConnectionManager;
 import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.HttpMethodBase;
 import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
 import org.apache.commons.httpclient.UsernamePasswordCredentials;
 import org.apache.commons.httpclient.auth.AuthScope;
@@ -46,6 +47,7 @@ import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.request.RequestParameter;
+import org.apache.sling.commons.osgi.OsgiUtil;
 import org.apache.velocity.Template;
 import org.apache.velocity.VelocityContext;
 import org.apache.velocity.app.VelocityEngine;
@@ -64,14 +66,18 @@ import org.sakaiproject.nakamura.proxy.velocity.VelocityLogger;
 import org.sakaiproject.nakamura.util.JcrUtils;
 import org.sakaiproject.nakamura.util.StringUtils;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Reader;
+import java.io.SequenceInputStream;
 import java.io.StringReader;
 import java.io.StringWriter;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Dictionary;
 import java.util.Enumeration;
 import java.util.HashMap;
@@ -79,6 +85,8 @@ import java.util.HashSet;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
@@ -101,6 +109,8 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
    * Default content type of request bodies if none has been specified.
    */
   private static final String APPLICATION_OCTET_STREAM = "application/octet-stream";
+
+  private static final String AUTHORIZATION = "Authorization";
   /**
    * The classname of the jcr resource loader class.
    */
@@ -115,6 +125,39 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
   @Property(value={"rss", "trustedLoginTokenProxyPostProcessor", "someothersafepostprocessor"})
   private static final String SAFE_POSTPROCESSORS = "safe.postprocessors";
 
+  /**
+   * The number of bytes of GET responses held in the proxy response cache, 0 disables the
+   * cache.
+   */
+  @Property(longValue=10485760L)
+  static final String PROXY_CACHE_SIZE = "proxy.cache.size";
+
+  /**
+   * The largest response body in bytes that will be cached, unless the proxy node sets
+   * sakai:proxy-cache-max-size.
+   */
+  @Property(longValue=1048576L)
+  static final String PROXY_CACHE_MAX_ENTRY = "proxy.cache.maxentry";
+
+  /**
+   * The time in ms a request waits for another request fetching the same response.
+   */
+  @Property(longValue=10000L)
+  static final String PROXY_CACHE_WAIT = "proxy.cache.wait";
+
+  /**
+   * Stream GET responses for nodes that dont set sakai:proxy-stream.
+   */
+  @Property(boolValue=false)
+  static final String PROXY_STREAM = "proxy.stream";
+
+  /**
+   * The number of bytes of a streamed response a post processor may hold in memory by
+   * asking for the whole body.
+   */
+  @Property(longValue=1048576L)
+  static final String PROXY_STREAM_BUFFER_MAX = "proxy.stream.buffermax";
+
   /**
    * The shared velocity engine, which should cache all the templates. (need to sort out
    * how to invalidate).
@@ -146,6 +189,19 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
    */
   private boolean externalAuthenticatingProxy;
 
+  /**
+   * GET responses shared by all requests, null if caching is disabled.
+   */
+  private ProxyResponseCache proxyResponseCache;
+
+  private long cacheMaxEntry;
+
+  private long cacheWait;
+
+  private boolean streamDefault;
+
+  private long streamBufferMax;
+
   /**
    * Create resources used by this component.
    *
@@ -173,6 +229,13 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
     } else {
       configProperties = new HashMap<String, Object>();
     }
+    long cacheSize = OsgiUtil.toLong(configProperties.get(PROXY_CACHE_SIZE), 10485760L);
+    cacheMaxEntry = OsgiUtil.toLong(configProperties.get(PROXY_CACHE_MAX_ENTRY), 1048576L);
+    cacheWait = OsgiUtil.toLong(configProperties.get(PROXY_CACHE_WAIT), 10000L);
+    proxyResponseCache = cacheSize > 0 ? new ProxyResponseCache(cacheSize) : null;
+    streamDefault = OsgiUtil.toBoolean(configProperties.get(PROXY_STREAM), false);
+    streamBufferMax = OsgiUtil.toLong(configProperties.get(PROXY_STREAM_BUFFER_MAX), 1048576L);
+
     velocityEngine = new VelocityEngine();
     velocityEngine.setProperty(VelocityEngine.RUNTIME_LOG_LOGSYSTEM, new VelocityLogger(
         this.getClass()));
@@ -266,6 +329,22 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
   public ProxyResponse executeCall(Node node, Map<String, String> headers,
       Map<String, Object> input, InputStream requestInputStream,
       long requestContentLength, String requestContentType) throws ProxyClientException {
+    return executeCall(node, headers, Collections.<String> emptySet(), input,
+        requestInputStream, requestContentLength, requestContentType);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.proxy.ProxyClientService#executeCall(javax.jcr.Node,
+   *      java.util.Map, java.util.Set, java.util.Map, java.io.InputStream, long,
+   *      java.lang.String)
+   */
+  public ProxyResponse executeCall(Node node, Map<String, String> headers,
+      Set<String> clientHeaders, Map<String, Object> input,
+      InputStream requestInputStream, long requestContentLength, String requestContentType)
+      throws ProxyClientException {
+    String fetchKey = null;
     try {
       bindNode(node);
 
@@ -330,10 +409,48 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
 
           }
         }
+        // GET responses may be served from the cache, or revalidated against it.
+        String cacheKey = null;
+        String baseKey = null;
+        CachedProxyResponse cached = null;
+        if (proxyMethod == ProxyMethod.GET) {
+          baseKey = getBaseCacheKey(node, endpointURL, headers, clientHeaders);
+          if (baseKey != null) {
+            cacheKey = getCacheKey(baseKey, proxyResponseCache.getVary(baseKey), headers);
+            cached = proxyResponseCache.get(cacheKey);
+            if (cached != null && cached.isFresh()) {
+              return cached;
+            }
+            if (proxyResponseCache.startFetch(cacheKey)) {
+              fetchKey = cacheKey;
+            } else {
+              // another request is fetching the same response, use that.
+              CachedProxyResponse fetched = proxyResponseCache.awaitFetch(cacheKey, cacheWait);
+              if (fetched != null && fetched.isFresh()) {
+                return fetched;
+              }
+              if (fetched != null) {
+                cached = fetched;
+              }
+            }
+          }
+        }
+
+        // in streaming mode the GET size limit is enforced while the body is read,
+        // otherwise by a HEAD request before the GET.
+        long streamLimit = -1;
+        long bufferLimit = -1;
         HttpMethod method = null;
         switch (proxyMethod) {
         case GET:
-          if (node.hasProperty(SAKAI_LIMIT_GET_SIZE)) {
+          boolean streaming = isStreaming(node);
+          if (streaming) {
+            bufferLimit = streamBufferMax;
+          }
+          if (node.hasProperty(SAKAI_LIMIT_GET_SIZE) && streaming) {
+            streamLimit = node.getProperty(SAKAI_LIMIT_GET_SIZE).getLong();
+            bufferLimit = Math.min(bufferLimit, streamLimit);
+          } else if (node.hasProperty(SAKAI_LIMIT_GET_SIZE)) {
             long maxSize = node.getProperty(SAKAI_LIMIT_GET_SIZE).getLong();
             method = new HeadMethod(endpointURL);
             HttpMethodParams params = new HttpMethodParams(method.getParams());
@@ -399,6 +516,14 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
         }
 
         populateMethod(method, node, headers);
+        if (cached != null) {
+          if (cached.getETag() != null) {
+            method.setRequestHeader("If-None-Match", cached.getETag());
+          }
+          if (cached.getLastModified() != null) {
+            method.setRequestHeader("If-Modified-Since", cached.getLastModified());
+          }
+        }
 
         if (requestInputStream == null && !node.hasProperty(SAKAI_PROXY_REQUEST_TEMPLATE)) {
           if (method instanceof PostMethod) {
@@ -474,7 +599,21 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
           }
         }
 
-        return new ProxyResponseImpl(result, method);
+        if (streamLimit >= 0 && result == HttpServletResponse.SC_OK) {
+          Header contentLengthHeader = method.getResponseHeader("Content-Length");
+          if (contentLengthHeader != null
+              && Long.parseLong(contentLengthHeader.getValue().trim()) > streamLimit) {
+            method.abort();
+            return new ProxyResponseImpl(HttpServletResponse.SC_PRECONDITION_FAILED, method,
+                new ByteArrayInputStream(new byte[0]), -1, -1);
+          }
+        }
+
+        if (cacheKey != null) {
+          return cacheResponse(baseKey, cacheKey, headers, node, result, method, cached,
+              streamLimit, bufferLimit);
+        }
+        return new ProxyResponseImpl(result, method, null, streamLimit, bufferLimit);
       }
 
     } catch ( ProxyClientException e ) {
@@ -483,12 +622,182 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
       throw new ProxyClientException("The Proxy request specified by  " + node
           + " failed, cause follows:", e);
     } finally {
+      if (fetchKey != null) {
+        proxyResponseCache.endFetch(fetchKey);
+      }
       unbindNode();
     }
     throw new ProxyClientException("The Proxy request specified by " + node
         + " does not contain a valid endpoint specification ");
   }
 
+  /**
+   * @return the key shared by all variants of the GET responses for this node and url,
+   *         which includes every header that did not come from the client (Authorization
+   *         and anything a pre processor set), or null if they are not cached.
+   */
+  private String getBaseCacheKey(Node node, String endpointURL, Map<String, String> headers,
+      Set<String> clientHeaders) throws RepositoryException {
+    if (proxyResponseCache == null) {
+      return null;
+    }
+    if (node.hasProperty(SAKAI_PROXY_CACHE_TTL)
+        && node.getProperty(SAKAI_PROXY_CACHE_TTL).getLong() == 0) {
+      return null;
+    }
+    Map<String, String> keyHeaders = new TreeMap<String, String>();
+    for (Entry<String, String> header : headers.entrySet()) {
+      String name = header.getKey();
+      if (AUTHORIZATION.equalsIgnoreCase(name) || !clientHeaders.contains(name)) {
+        keyHeaders.put(name.toLowerCase(), header.getValue());
+      }
+    }
+    return node.getPath() + " " + endpointURL + " " + keyHeaders;
+  }
+
+  /**
+   * @param vary
+   *          the header names the upstream response varies on, lower case, or null.
+   * @return the key of the variant selected by the request headers.
+   */
+  private String getCacheKey(String baseKey, Set<String> vary, Map<String, String> headers) {
+    if (vary == null || vary.isEmpty()) {
+      return baseKey;
+    }
+    Map<String, String> selected = new TreeMap<String, String>();
+    for (Entry<String, String> header : headers.entrySet()) {
+      String name = header.getKey().toLowerCase();
+      if (vary.contains(name)) {
+        selected.put(name, header.getValue());
+      }
+    }
+    return baseKey + " " + selected;
+  }
+
+  /**
+   * @return the lower case header names in the Vary header of a response.
+   */
+  private Set<String> getVary(Map<String, String[]> responseHeaders) {
+    Set<String> vary = new TreeSet<String>();
+    for (Entry<String, String[]> header : responseHeaders.entrySet()) {
+      if ("Vary".equalsIgnoreCase(header.getKey()) && header.getValue() != null) {
+        for (String value : header.getValue()) {
+          for (String name : value.split(",")) {
+            name = name.trim().toLowerCase();
+            if (name.length() > 0) {
+              vary.add(name);
+            }
+          }
+        }
+      }
+    }
+    return vary;
+  }
+
+  /**
+   * Store a GET response if the upstream headers allow it, or refresh the stored response
+   * on a 304.
+   * 
+   * @return the response to hand back to the caller.
+   */
+  private ProxyResponse cacheResponse(String baseKey, String cacheKey,
+      Map<String, String> headers, Node node, int result, HttpMethod method,
+      CachedProxyResponse cached, long streamLimit, long bufferLimit)
+      throws RepositoryException, IOException {
+    ProxyResponseImpl response = new ProxyResponseImpl(result, method, null, streamLimit,
+        bufferLimit);
+    long now = System.currentTimeMillis();
+    long ttl = -1;
+    if (node.hasProperty(SAKAI_PROXY_CACHE_TTL)) {
+      ttl = node.getProperty(SAKAI_PROXY_CACHE_TTL).getLong();
+    }
+
+    if (result == HttpServletResponse.SC_NOT_MODIFIED && cached != null) {
+      response.close();
+      CachedProxyResponse revalidated = cached.revalidated(response.getResponseHeaders(), now);
+      long expires = ttl > 0 ? now + ttl * 1000L : CachedProxyResponse.getExpires(
+          revalidated.getResponseHeaders(), now);
+      if (expires < 0) {
+        proxyResponseCache.remove(cacheKey);
+        return revalidated;
+      }
+      revalidated = cached.revalidated(response.getResponseHeaders(), expires);
+      proxyResponseCache.put(cacheKey, revalidated);
+      return revalidated;
+    }
+
+    if (result != HttpServletResponse.SC_OK) {
+      return response;
+    }
+    Map<String, String[]> responseHeaders = response.getResponseHeaders();
+    long expires = CachedProxyResponse.getExpires(responseHeaders, now);
+    if (expires < 0) {
+      return response;
+    }
+    if (ttl > 0) {
+      expires = now + ttl * 1000L;
+    } else if (expires <= now && !CachedProxyResponse.hasValidator(responseHeaders)) {
+      return response;
+    }
+
+    long maxSize = cacheMaxEntry;
+    if (node.hasProperty(SAKAI_PROXY_CACHE_MAX_SIZE)) {
+      maxSize = node.getProperty(SAKAI_PROXY_CACHE_MAX_SIZE).getLong();
+    }
+    if (streamLimit >= 0) {
+      maxSize = Math.min(maxSize, streamLimit);
+    }
+    Header contentLength = method.getResponseHeader("Content-Length");
+    if (contentLength != null) {
+      try {
+        if (Long.parseLong(contentLength.getValue().trim()) > maxSize) {
+          return response;
+        }
+      } catch (NumberFormatException e) {
+        return response;
+      }
+    }
+    // the response may vary on other headers than the ones it was looked up with.
+    Set<String> vary = getVary(responseHeaders);
+    proxyResponseCache.setVary(baseKey, vary);
+    cacheKey = getCacheKey(baseKey, vary, headers);
+
+    InputStream in = method.getResponseBodyAsStream();
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    if (in != null) {
+      byte[] buffer = new byte[8192];
+      int n;
+      while ((n = in.read(buffer)) >= 0) {
+        body.write(buffer, 0, n);
+        if (body.size() > maxSize) {
+          // too large to cache, hand back what has been read and the rest of the stream.
+          return new ProxyResponseImpl(result, method, new SequenceInputStream(
+              new ByteArrayInputStream(body.toByteArray()), in), streamLimit, bufferLimit);
+        }
+      }
+    }
+    String charset = "ISO-8859-1";
+    if (method instanceof HttpMethodBase) {
+      charset = ((HttpMethodBase) method).getResponseCharSet();
+    }
+    response.close();
+    CachedProxyResponse cachedResponse = new CachedProxyResponse(result, responseHeaders,
+        body.toByteArray(), charset, expires);
+    proxyResponseCache.put(cacheKey, cachedResponse);
+    return cachedResponse;
+  }
+
+  /**
+   * @return true if GET responses for the node are streamed with the size limit enforced
+   *         while reading.
+   */
+  private boolean isStreaming(Node node) throws RepositoryException {
+    if (node.hasProperty(SAKAI_PROXY_STREAM)) {
+      return node.getProperty(SAKAI_PROXY_STREAM).getBoolean();
+    }
+    return streamDefault;
+  }
+
   private boolean isUnsafeProxyDefinition(Node node) throws RepositoryException {
     if (node.hasProperty(ProxyPostProcessor.SAKAI_POSTPROCESSOR)) {
       String postProcessorName = node.getProperty(
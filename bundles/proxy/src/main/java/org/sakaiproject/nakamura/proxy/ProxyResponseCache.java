@@ -0,0 +1,176 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.proxy;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A least recently used cache of proxy responses bounded by the bytes they hold. Expired
+ * responses are kept until evicted so they can be revalidated. Only one request per key
+ * fetches from upstream at a time, the others wait for it. The header names each end point
+ * varies on are remembered so that a request can find its variant before fetching.
+ */
+public class ProxyResponseCache {
+
+  private static final int MAX_VARY = 10000;
+
+  private final long maxSize;
+  private long size;
+  private final LinkedHashMap<String, CachedProxyResponse> responses = new LinkedHashMap<String, CachedProxyResponse>(
+      16, 0.75f, true);
+  private final Map<String, Set<String>> vary = new LinkedHashMap<String, Set<String>>(16,
+      0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Entry<String, Set<String>> eldest) {
+      return size() > MAX_VARY;
+    }
+  };
+  private final ConcurrentMap<String, CountDownLatch> fetching = new ConcurrentHashMap<String, CountDownLatch>();
+
+  /**
+   * @param maxSize the number of bytes the cache may hold.
+   */
+  public ProxyResponseCache(long maxSize) {
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * @param key
+   * @return the response held for the key, fresh or not, or null.
+   */
+  public synchronized CachedProxyResponse get(String key) {
+    return responses.get(key);
+  }
+
+  /**
+   * Store a response, evicting the least recently used responses to make room.
+   * 
+   * @param key
+   * @param response
+   */
+  public synchronized void put(String key, CachedProxyResponse response) {
+    long responseSize = response.getSize();
+    remove(key);
+    if (responseSize > maxSize) {
+      return;
+    }
+    Iterator<Entry<String, CachedProxyResponse>> i = responses.entrySet().iterator();
+    while (size + responseSize > maxSize && i.hasNext()) {
+      size -= i.next().getValue().getSize();
+      i.remove();
+    }
+    responses.put(key, response);
+    size += responseSize;
+  }
+
+  /**
+   * @param key
+   */
+  public synchronized void remove(String key) {
+    CachedProxyResponse removed = responses.remove(key);
+    if (removed != null) {
+      size -= removed.getSize();
+    }
+  }
+
+  public synchronized void clear() {
+    responses.clear();
+    vary.clear();
+    size = 0;
+  }
+
+  /**
+   * @param baseKey
+   *          the key shared by all variants of a response.
+   * @return the lower case header names the last response for the key varied on, or null.
+   */
+  public synchronized Set<String> getVary(String baseKey) {
+    return vary.get(baseKey);
+  }
+
+  /**
+   * @param baseKey
+   * @param names
+   *          the lower case header names in the Vary header of the latest response.
+   */
+  public synchronized void setVary(String baseKey, Set<String> names) {
+    vary.put(baseKey, names);
+  }
+
+  /**
+   * @return the number of bytes held.
+   */
+  public synchronized long getSize() {
+    return size;
+  }
+
+  /**
+   * Claim the fetch of a key from upstream.
+   * 
+   * @param key
+   * @return true if this request should fetch, false if another request is fetching.
+   */
+  public boolean startFetch(String key) {
+    return fetching.putIfAbsent(key, new CountDownLatch(1)) == null;
+  }
+
+  /**
+   * Wait for the request fetching a key to finish.
+   * 
+   * @param key
+   * @param timeout ms to wait.
+   * @return the response now held for the key, or null.
+   */
+  public CachedProxyResponse awaitFetch(String key, long timeout) {
+    CountDownLatch latch = fetching.get(key);
+    if (latch != null) {
+      try {
+        if (!latch.await(timeout, TimeUnit.MILLISECONDS)) {
+          return null;
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return null;
+      }
+    }
+    return get(key);
+  }
+
+  /**
+   * Release a fetch claimed with {@link #startFetch(String)}, waking waiting requests.
+   * 
+   * @param key
+   */
+  public void endFetch(String key) {
+    CountDownLatch latch = fetching.remove(key);
+    if (latch != null) {
+      latch.countDown();
+    }
+  }
+
+}
@@ -19,8 +19,11 @@ package org.sakaiproject.nakamura.proxy;
 
 import org.apache.commons.httpclient.Header;
 import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.HttpMethodBase;
 import org.sakaiproject.nakamura.api.proxy.ProxyResponse;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.HashMap;
@@ -35,6 +38,12 @@ public class ProxyResponseImpl implements ProxyResponse {
   private HttpMethod method;
   private Map<String, String[]> headers = new HashMap<String, String[]>();
   private String cause;
+  private InputStream body;
+  private long limit = -1;
+  private long bufferLimit = -1;
+  private boolean direct = true;
+  private boolean opened;
+  private byte[] buffered;
 
   /**
    * @param result
@@ -82,6 +91,34 @@ public class ProxyResponseImpl implements ProxyResponse {
     this.cause = cause;
   }
 
+  /**
+   * @param result
+   * @param method
+   * @param body the body to use in place of the method body, when part of the method
+   *          body has already been read.
+   */
+  public ProxyResponseImpl(int result, HttpMethod method, InputStream body) {
+    this(result, method, body, -1, -1);
+  }
+
+  /**
+   * @param result
+   * @param method
+   * @param body the body to use in place of the method body, null to use the method body.
+   * @param limit the number of body bytes that may be read before the upstream request is
+   *          aborted, -1 for no limit.
+   * @param bufferLimit the number of body bytes that {@link #getResponseBody()} and
+   *          {@link #getResponseBodyAsString()} will hold in memory, -1 for no limit.
+   */
+  public ProxyResponseImpl(int result, HttpMethod method, InputStream body, long limit,
+      long bufferLimit) {
+    this(result, method);
+    this.body = body;
+    this.limit = limit;
+    this.bufferLimit = bufferLimit;
+    this.direct = body == null && limit < 0 && bufferLimit < 0;
+  }
+
   /**
    * {@inheritDoc}
    * @see org.sakaiproject.nakamura.api.proxy.ProxyResponse#getResultCode()
@@ -103,7 +140,26 @@ public class ProxyResponseImpl implements ProxyResponse {
    * @see org.sakaiproject.nakamura.api.proxy.ProxyResponse#getResponseBody()
    */
   public byte[] getResponseBody() throws IOException {
-    return method.getResponseBody();
+    if (direct) {
+      return method.getResponseBody();
+    }
+    if (buffered == null) {
+      InputStream in = getResponseBodyAsInputStream();
+      if (in == null) {
+        return null;
+      }
+      if (bufferLimit >= 0) {
+        in = new LimitedInputStream(in, bufferLimit, method);
+      }
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      int n;
+      while ((n = in.read(buffer)) >= 0) {
+        baos.write(buffer, 0, n);
+      }
+      buffered = baos.toByteArray();
+    }
+    return buffered;
   }
 
   /**
@@ -111,7 +167,22 @@ public class ProxyResponseImpl implements ProxyResponse {
    * @see org.sakaiproject.nakamura.api.proxy.ProxyResponse#getResponseBodyAsInputStream()
    */
   public InputStream getResponseBodyAsInputStream() throws IOException {
-    return method.getResponseBodyAsStream();
+    if (direct) {
+      return method.getResponseBodyAsStream();
+    }
+    if (buffered != null) {
+      return new ByteArrayInputStream(buffered);
+    }
+    if (!opened) {
+      opened = true;
+      if (body == null) {
+        body = method.getResponseBodyAsStream();
+      }
+      if (body != null && limit >= 0) {
+        body = new LimitedInputStream(body, limit, method);
+      }
+    }
+    return body;
   }
 
   /**
@@ -119,7 +190,18 @@ public class ProxyResponseImpl implements ProxyResponse {
    * @see org.sakaiproject.nakamura.api.proxy.ProxyResponse#getResponseBodyAsString()
    */
   public String getResponseBodyAsString() throws IOException {
-    return method.getResponseBodyAsString();
+    if (direct) {
+      return method.getResponseBodyAsString();
+    }
+    byte[] content = getResponseBody();
+    if (content == null) {
+      return null;
+    }
+    String charset = "ISO-8859-1";
+    if (method instanceof HttpMethodBase) {
+      charset = ((HttpMethodBase) method).getResponseCharSet();
+    }
+    return new String(content, charset);
   }
 
   /**
@@ -32,6 +32,7 @@ import org.apache.sling.commons.osgi.OsgiUtil;
 import org.osgi.service.component.ComponentContext;
 import org.sakaiproject.nakamura.api.proxy.ProxyPostProcessor;
 import org.sakaiproject.nakamura.api.proxy.ProxyResponse;
+import org.sakaiproject.nakamura.api.proxy.ProxyResponseTooLargeException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -275,8 +276,14 @@ public class RSSProxyPostProcessor implements ProxyPostProcessor {
       out.writeTo(response.getOutputStream());
 
     } catch (XMLStreamException e) {
-      response.sendError(HttpServletResponse.SC_BAD_REQUEST,
-          "This is not a valid XML file.");
+      if (isTooLarge(e)) {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST, "This RSS feed is too big ");
+      } else {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+            "This is not a valid XML file.");
+      }
+    } catch (ProxyResponseTooLargeException e) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, "This RSS feed is too big ");
     } catch (Exception e) {
       logger.warn("Exception reading RSS feed.", e);
       response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
@@ -293,4 +300,16 @@ public class RSSProxyPostProcessor implements ProxyPostProcessor {
     }
 
   }
+
+  /**
+   * @return true if reading the feed stopped at the proxy size limit.
+   */
+  private boolean isTooLarge(Throwable t) {
+    for (Throwable cause = t; cause != null; cause = cause.getCause()) {
+      if (cause instanceof ProxyResponseTooLargeException) {
+        return true;
+      }
+    }
+    return false;
+  }
 }
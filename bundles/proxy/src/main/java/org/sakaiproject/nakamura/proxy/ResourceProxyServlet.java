@@ -41,6 +41,7 @@ import org.sakaiproject.nakamura.api.proxy.ProxyClientService;
 import org.sakaiproject.nakamura.api.proxy.ProxyPostProcessor;
 import org.sakaiproject.nakamura.api.proxy.ProxyPreProcessor;
 import org.sakaiproject.nakamura.api.proxy.ProxyResponse;
+import org.sakaiproject.nakamura.api.proxy.ProxyResponseTooLargeException;
 import org.sakaiproject.nakamura.util.JcrUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -307,13 +308,30 @@ public class ResourceProxyServlet extends SlingAllMethodsServlet implements Opti
         }
       }
 
+      // headers the pre processor left alone came from the client.
+      Set<String> clientHeaders = new HashSet<String>();
+      for (Entry<String, String> e : headers.entrySet()) {
+        String name = e.getKey();
+        if (!AUTHORIZATION.equals(name) && e.getValue().equals(request.getHeader(name))) {
+          clientHeaders.add(name);
+        }
+      }
+
       ProxyResponse proxyResponse = proxyClientService.executeCall(node, headers,
-          templateParams, null, -1, null);
+          clientHeaders, templateParams, null, -1, null);
       try {
         postProcessor.process(templateParams, response, proxyResponse);
       } finally {
         proxyResponse.close();
       }
+    } catch (ProxyResponseTooLargeException e) {
+      // a streamed response went over its limit
+      if (response.isCommitted()) {
+        LOGGER.info("Truncated proxied response for {}: {} ", request.getRequestURI(),
+            e.getMessage());
+      } else {
+        response.sendError(HttpServletResponse.SC_PRECONDITION_FAILED, e.getMessage());
+      }
     } catch (IOException e) {
       throw e;
     } catch (ProxyClientException e) {
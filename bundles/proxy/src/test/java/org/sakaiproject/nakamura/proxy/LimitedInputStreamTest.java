@@ -0,0 +1,78 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.sakaiproject.nakamura.api.proxy.ProxyResponseTooLargeException;
+
+import java.io.ByteArrayInputStream;
+
+/**
+ *
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class LimitedInputStreamTest {
+
+  @Mock
+  private HttpMethod method;
+
+  @Test
+  public void readsUpToTheLimit() throws Exception {
+    LimitedInputStream in = new LimitedInputStream(new ByteArrayInputStream(new byte[100]),
+        100, method);
+    assertEquals(100, IOUtils.toByteArray(in).length);
+    verify(method, never()).abort();
+  }
+
+  @Test
+  public void abortsPastTheLimit() throws Exception {
+    LimitedInputStream in = new LimitedInputStream(new ByteArrayInputStream(new byte[101]),
+        100, method);
+    try {
+      IOUtils.toByteArray(in);
+      fail("Should have stopped at the limit");
+    } catch (ProxyResponseTooLargeException e) {
+      verify(method).abort();
+    }
+  }
+
+  @Test
+  public void countsSkippedBytes() throws Exception {
+    LimitedInputStream in = new LimitedInputStream(new ByteArrayInputStream(new byte[200]),
+        100, method);
+    assertEquals(60, in.skip(60));
+    in.read(new byte[40]);
+    try {
+      in.read();
+      fail("Should have stopped at the limit");
+    } catch (ProxyResponseTooLargeException e) {
+      verify(method).abort();
+    }
+  }
+
+}
@@ -397,6 +397,10 @@ public class ProxyClientServiceImplTest extends AbstractEasyMockTest {
     expect(node.hasProperty(ProxyClientService.SAKAI_PROXY_HEADER)).andReturn(false)
         .atLeastOnce();
 
+    expect(node.hasProperty(ProxyClientService.SAKAI_PROXY_CACHE_TTL)).andReturn(false)
+        .anyTimes();
+    expect(node.hasProperty(ProxyClientService.SAKAI_PROXY_STREAM)).andReturn(false)
+        .anyTimes();
     if (limit == -1) {
       expect(node.hasProperty(ProxyClientService.SAKAI_LIMIT_GET_SIZE)).andReturn(false)
           .anyTimes();
@@ -0,0 +1,342 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.proxy;
+
+import static org.easymock.EasyMock.expect;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.mortbay.jetty.Request;
+import org.mortbay.jetty.Server;
+import org.mortbay.jetty.handler.AbstractHandler;
+import org.sakaiproject.nakamura.api.proxy.ProxyClientService;
+import org.sakaiproject.nakamura.api.proxy.ProxyResponse;
+import org.sakaiproject.nakamura.testutils.easymock.AbstractEasyMockTest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+import javax.jcr.Value;
+import javax.jcr.nodetype.PropertyDefinition;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Checks the proxy response cache against an embedded upstream server.
+ */
+public class ProxyResponseCacheTest extends AbstractEasyMockTest {
+
+  private static Server server;
+  private static UpstreamHandler upstream;
+  private static String url;
+  private ProxyClientServiceImpl proxyClientServiceImpl;
+
+  /**
+   * Responds with a fixed body, ETag and Cache-Control, answering matching conditional
+   * requests with a 304.
+   */
+  static class UpstreamHandler extends AbstractHandler {
+    String cacheControl = "max-age=60";
+    String etag = "\"v1\"";
+    String body = "one";
+    String vary;
+    long delay;
+    AtomicInteger requests = new AtomicInteger();
+    AtomicInteger notModified = new AtomicInteger();
+
+    public void handle(String target, HttpServletRequest request,
+        HttpServletResponse response, int dispatch) throws IOException, ServletException {
+      requests.incrementAndGet();
+      if (delay > 0) {
+        try {
+          Thread.sleep(delay);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      response.setHeader("Cache-Control", cacheControl);
+      response.setHeader("ETag", etag);
+      if (vary != null) {
+        response.setHeader("Vary", vary);
+      }
+      if (etag.equals(request.getHeader("If-None-Match"))) {
+        notModified.incrementAndGet();
+        response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      } else {
+        response.setContentType("text/plain");
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.getWriter().print(body);
+        if (vary != null) {
+          response.getWriter().print(" " + request.getHeader(vary));
+        }
+      }
+      ((Request) request).setHandled(true);
+    }
+  }
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    upstream = new UpstreamHandler();
+    server = new Server(0);
+    server.setHandler(upstream);
+    server.start();
+    url = "http://localhost:" + server.getConnectors()[0].getLocalPort() + "/feed";
+  }
+
+  @AfterClass
+  public static void afterClass() throws Exception {
+    server.stop();
+    server.destroy();
+  }
+
+  @Before
+  public void before() throws Exception {
+    upstream.cacheControl = "max-age=60";
+    upstream.etag = "\"v1\"";
+    upstream.body = "one";
+    upstream.vary = null;
+    upstream.delay = 0;
+    upstream.requests.set(0);
+    upstream.notModified.set(0);
+    proxyClientServiceImpl = new ProxyClientServiceImpl();
+    proxyClientServiceImpl.activate(null);
+  }
+
+  @After
+  public void after() throws Exception {
+    proxyClientServiceImpl.deactivate(null);
+  }
+
+  private Node createNode(long ttl) throws RepositoryException {
+    Node node = createNiceMock(Node.class);
+    Property endpointProperty = createNiceMock(Property.class);
+    PropertyDefinition propertyDefinition = createNiceMock(PropertyDefinition.class);
+    Value value = createNiceMock(Value.class);
+    expect(node.getPath()).andReturn("/var/proxy/feed").anyTimes();
+    expect(node.hasProperty(ProxyClientService.SAKAI_REQUEST_PROXY_ENDPOINT)).andReturn(
+        true).anyTimes();
+    expect(node.getProperty(ProxyClientService.SAKAI_REQUEST_PROXY_ENDPOINT)).andReturn(
+        endpointProperty).anyTimes();
+    expect(endpointProperty.getDefinition()).andReturn(propertyDefinition).anyTimes();
+    expect(endpointProperty.getValue()).andReturn(value).anyTimes();
+    expect(value.getString()).andReturn(url).anyTimes();
+    if (ttl >= 0) {
+      Property ttlProperty = createNiceMock(Property.class);
+      expect(node.hasProperty(ProxyClientService.SAKAI_PROXY_CACHE_TTL)).andReturn(true)
+          .anyTimes();
+      expect(node.getProperty(ProxyClientService.SAKAI_PROXY_CACHE_TTL)).andReturn(
+          ttlProperty).anyTimes();
+      expect(ttlProperty.getLong()).andReturn(ttl).anyTimes();
+    }
+    return node;
+  }
+
+  private String call(Node node) throws Exception {
+    return call(node, new HashMap<String, String>());
+  }
+
+  /**
+   * Calls as a client that sent the given headers.
+   */
+  private String call(Node node, Map<String, String> headers) throws Exception {
+    ProxyResponse response = proxyClientServiceImpl.executeCall(node, headers,
+        headers.keySet(), new HashMap<String, Object>(), null, 0, null);
+    try {
+      assertEquals(200, response.getResultCode());
+      return response.getResponseBodyAsString();
+    } finally {
+      response.close();
+    }
+  }
+
+  @Test
+  public void testFreshResponseIsShared() throws Exception {
+    Node node = createNode(-1);
+    replay();
+    assertEquals("one", call(node));
+    assertEquals("one", call(node));
+    assertEquals("one", call(node));
+    assertEquals(1, upstream.requests.get());
+    verify();
+  }
+
+  @Test
+  public void testStaleResponseIsRevalidated() throws Exception {
+    upstream.cacheControl = "max-age=0";
+    Node node = createNode(-1);
+    replay();
+    assertEquals("one", call(node));
+    assertEquals("one", call(node));
+    assertEquals(2, upstream.requests.get());
+    assertEquals(1, upstream.notModified.get());
+
+    upstream.etag = "\"v2\"";
+    upstream.body = "two";
+    assertEquals("two", call(node));
+    assertEquals(1, upstream.notModified.get());
+    verify();
+  }
+
+  @Test
+  public void testNoStoreIsNotCached() throws Exception {
+    upstream.cacheControl = "no-store";
+    Node node = createNode(-1);
+    replay();
+    assertEquals("one", call(node));
+    assertEquals("one", call(node));
+    assertEquals(2, upstream.requests.get());
+    assertEquals(0, upstream.notModified.get());
+    verify();
+  }
+
+  @Test
+  public void testTtlOverride() throws Exception {
+    upstream.cacheControl = "max-age=0";
+    Node node = createNode(60);
+    replay();
+    assertEquals("one", call(node));
+    assertEquals("one", call(node));
+    assertEquals(1, upstream.requests.get());
+    verify();
+  }
+
+  @Test
+  public void testTtlZeroDisablesCache() throws Exception {
+    Node node = createNode(0);
+    replay();
+    assertEquals("one", call(node));
+    assertEquals("one", call(node));
+    assertEquals(2, upstream.requests.get());
+    verify();
+  }
+
+  @Test
+  public void testClientHeadersOnlyVaryWhenNamed() throws Exception {
+    Node node = createNode(-1);
+    replay();
+    Map<String, String> headers = new HashMap<String, String>();
+    headers.put("Accept-Language", "en");
+    headers.put("User-Agent", "one");
+    assertEquals("one", call(node, headers));
+    headers.put("User-Agent", "two");
+    assertEquals("one", call(node, headers));
+    assertEquals(1, upstream.requests.get());
+    verify();
+  }
+
+  @Test
+  public void testVarySelectsVariant() throws Exception {
+    upstream.vary = "Accept-Language";
+    Node node = createNode(-1);
+    replay();
+    Map<String, String> headers = new HashMap<String, String>();
+    headers.put("Accept-Language", "fr");
+    headers.put("User-Agent", "one");
+    assertEquals("one fr", call(node, headers));
+    headers.put("Accept-Language", "de");
+    assertEquals("one de", call(node, headers));
+    headers.put("Accept-Language", "fr");
+    headers.put("User-Agent", "three");
+    assertEquals("one fr", call(node, headers));
+    assertEquals(2, upstream.requests.get());
+    verify();
+  }
+
+  @Test
+  public void testAuthorizationIsAlwaysKeyed() throws Exception {
+    Node node = createNode(-1);
+    replay();
+    Map<String, String> headers = new HashMap<String, String>();
+    headers.put("Authorization", "Basic one");
+    assertEquals("one", call(node, headers));
+    headers.put("Authorization", "Basic two");
+    assertEquals("one", call(node, headers));
+    assertEquals(2, upstream.requests.get());
+    verify();
+  }
+
+  @Test
+  public void testConcurrentMissesAreCoalesced() throws Exception {
+    upstream.delay = 200;
+    final Node node = createNode(-1);
+    replay();
+    final CountDownLatch start = new CountDownLatch(1);
+    final List<Object> results = new ArrayList<Object>();
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < 5; i++) {
+      Thread t = new Thread() {
+        @Override
+        public void run() {
+          Object result;
+          try {
+            start.await();
+            result = call(node);
+          } catch (Throwable e) {
+            result = e;
+          }
+          synchronized (results) {
+            results.add(result);
+          }
+        }
+      };
+      t.start();
+      threads.add(t);
+    }
+    start.countDown();
+    for (Thread t : threads) {
+      t.join(10000);
+    }
+    assertEquals(5, results.size());
+    for (Object result : results) {
+      assertEquals("one", result);
+    }
+    assertEquals(1, upstream.requests.get());
+  }
+
+  @Test
+  public void testExpires() {
+    Map<String, String[]> headers = new HashMap<String, String[]>();
+    long now = System.currentTimeMillis();
+    assertEquals(now, CachedProxyResponse.getExpires(headers, now));
+    headers.put("cache-control", new String[] { "public, s-maxage=20, max-age=10" });
+    assertEquals(now + 20000L, CachedProxyResponse.getExpires(headers, now));
+    headers.put("cache-control", new String[] { "private, max-age=10" });
+    assertEquals(-1L, CachedProxyResponse.getExpires(headers, now));
+    headers.remove("cache-control");
+    headers.put("Date", new String[] { "Mon, 01 Nov 2010 10:00:00 GMT" });
+    headers.put("Expires", new String[] { "Mon, 01 Nov 2010 10:05:00 GMT" });
+    assertEquals(now + 300000L, CachedProxyResponse.getExpires(headers, now));
+    headers.put("Set-Cookie", new String[] { "a=b" });
+    assertTrue(CachedProxyResponse.getExpires(headers, now) < 0);
+  }
+
+}
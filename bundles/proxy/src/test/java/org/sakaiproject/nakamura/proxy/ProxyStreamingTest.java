@@ -0,0 +1,225 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.proxy;
+
+import static org.easymock.EasyMock.expect;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.mortbay.jetty.Request;
+import org.mortbay.jetty.Server;
+import org.mortbay.jetty.handler.AbstractHandler;
+import org.sakaiproject.nakamura.api.proxy.ProxyClientService;
+import org.sakaiproject.nakamura.api.proxy.ProxyResponse;
+import org.sakaiproject.nakamura.api.proxy.ProxyResponseTooLargeException;
+import org.sakaiproject.nakamura.testutils.easymock.AbstractEasyMockTest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+import javax.jcr.Value;
+import javax.jcr.nodetype.PropertyDefinition;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Checks that streamed GET responses are limited while they are read.
+ */
+public class ProxyStreamingTest extends AbstractEasyMockTest {
+
+  private static Server server;
+  private static UpstreamHandler upstream;
+  private static String url;
+  private ProxyClientServiceImpl proxyClientServiceImpl;
+
+  /**
+   * Responds with a body of the requested size, with or without a Content-Length.
+   */
+  static class UpstreamHandler extends AbstractHandler {
+    int size;
+    boolean chunked;
+    List<String> methods = new CopyOnWriteArrayList<String>();
+
+    public void handle(String target, HttpServletRequest request,
+        HttpServletResponse response, int dispatch) throws IOException, ServletException {
+      methods.add(request.getMethod());
+      response.setHeader("Cache-Control", "no-store");
+      response.setContentType("application/octet-stream");
+      response.setStatus(HttpServletResponse.SC_OK);
+      if (!chunked) {
+        response.setContentLength(size);
+      }
+      if (!"HEAD".equals(request.getMethod())) {
+        OutputStream out = response.getOutputStream();
+        if (chunked) {
+          response.flushBuffer();
+        }
+        byte[] block = new byte[1024];
+        for (int i = 0; i < size; i += block.length) {
+          out.write(block, 0, Math.min(block.length, size - i));
+        }
+      }
+      ((Request) request).setHandled(true);
+    }
+  }
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    upstream = new UpstreamHandler();
+    server = new Server(0);
+    server.setHandler(upstream);
+    server.start();
+    url = "http://localhost:" + server.getConnectors()[0].getLocalPort() + "/file";
+  }
+
+  @AfterClass
+  public static void afterClass() throws Exception {
+    server.stop();
+    server.destroy();
+  }
+
+  @Before
+  public void before() throws Exception {
+    upstream.size = 0;
+    upstream.chunked = false;
+    upstream.methods.clear();
+    proxyClientServiceImpl = new ProxyClientServiceImpl();
+    proxyClientServiceImpl.activate(null);
+  }
+
+  @After
+  public void after() throws Exception {
+    proxyClientServiceImpl.deactivate(null);
+  }
+
+  private Node createNode(long limit) throws RepositoryException {
+    Node node = createNiceMock(Node.class);
+    Property endpointProperty = createNiceMock(Property.class);
+    PropertyDefinition propertyDefinition = createNiceMock(PropertyDefinition.class);
+    Value value = createNiceMock(Value.class);
+    Property streamProperty = createNiceMock(Property.class);
+    Property limitProperty = createNiceMock(Property.class);
+    expect(node.getPath()).andReturn("/var/proxy/file").anyTimes();
+    expect(node.hasProperty(ProxyClientService.SAKAI_REQUEST_PROXY_ENDPOINT)).andReturn(
+        true).anyTimes();
+    expect(node.getProperty(ProxyClientService.SAKAI_REQUEST_PROXY_ENDPOINT)).andReturn(
+        endpointProperty).anyTimes();
+    expect(endpointProperty.getDefinition()).andReturn(propertyDefinition).anyTimes();
+    expect(endpointProperty.getValue()).andReturn(value).anyTimes();
+    expect(value.getString()).andReturn(url).anyTimes();
+    expect(node.hasProperty(ProxyClientService.SAKAI_PROXY_STREAM)).andReturn(true)
+        .anyTimes();
+    expect(node.getProperty(ProxyClientService.SAKAI_PROXY_STREAM)).andReturn(
+        streamProperty).anyTimes();
+    expect(streamProperty.getBoolean()).andReturn(true).anyTimes();
+    expect(node.hasProperty(ProxyClientService.SAKAI_LIMIT_GET_SIZE)).andReturn(true)
+        .anyTimes();
+    expect(node.getProperty(ProxyClientService.SAKAI_LIMIT_GET_SIZE)).andReturn(
+        limitProperty).anyTimes();
+    expect(limitProperty.getLong()).andReturn(limit).anyTimes();
+    return node;
+  }
+
+  private ProxyResponse call(Node node) throws Exception {
+    return proxyClientServiceImpl.executeCall(node, new HashMap<String, String>(),
+        new HashMap<String, Object>(), null, 0, null);
+  }
+
+  @Test
+  public void testStreamWithinLimit() throws Exception {
+    upstream.size = 3000;
+    Node node = createNode(4096);
+    replay();
+    ProxyResponse response = call(node);
+    try {
+      assertEquals(200, response.getResultCode());
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      IOUtils.copy(response.getResponseBodyAsInputStream(), out);
+      assertEquals(3000, out.size());
+    } finally {
+      response.close();
+    }
+    // no HEAD request before the GET.
+    assertEquals(1, upstream.methods.size());
+    assertEquals("GET", upstream.methods.get(0));
+  }
+
+  @Test
+  public void testContentLengthOverLimit() throws Exception {
+    upstream.size = 8192;
+    Node node = createNode(4096);
+    replay();
+    ProxyResponse response = call(node);
+    try {
+      assertEquals(412, response.getResultCode());
+    } finally {
+      response.close();
+    }
+    assertEquals(1, upstream.methods.size());
+  }
+
+  @Test
+  public void testChunkedOverLimit() throws Exception {
+    upstream.size = 64 * 1024;
+    upstream.chunked = true;
+    Node node = createNode(4096);
+    replay();
+    ProxyResponse response = call(node);
+    try {
+      assertEquals(200, response.getResultCode());
+      IOUtils.copy(response.getResponseBodyAsInputStream(), new ByteArrayOutputStream());
+      fail("Should have stopped reading at the limit");
+    } catch (ProxyResponseTooLargeException e) {
+      // expected
+    } finally {
+      response.close();
+    }
+  }
+
+  @Test
+  public void testBufferedBodyOverLimit() throws Exception {
+    upstream.size = 64 * 1024;
+    upstream.chunked = true;
+    Node node = createNode(4096);
+    replay();
+    ProxyResponse response = call(node);
+    try {
+      response.getResponseBodyAsString();
+      fail("Should not buffer more than the limit");
+    } catch (ProxyResponseTooLargeException e) {
+      // expected
+    } finally {
+      response.close();
+    }
+  }
+
+}
@@ -44,6 +44,7 @@ import java.io.ByteArrayInputStream;
 import java.io.InputStream;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 import java.util.Vector;
 
 import javax.jcr.Node;
@@ -353,7 +354,8 @@ public class ResourceProxyServletTest {
   private void proxyClientServiceReturnsAProxyResponse() throws Exception {
     when(
         proxyClientService.executeCall((Node) any(), (Map<String, String>) any(),
-            (Map<String, Object>) any(), (InputStream) any(), anyLong(), anyString()))
+            (Set<String>) any(), (Map<String, Object>) any(), (InputStream) any(),
+            anyLong(), anyString()))
         .thenReturn(proxyResponse);
   }
 
@@ -75,6 +75,12 @@ public interface SolrSearchConstants {
    *
    */
   public static final String SAKAI_BATCHRESULTPROCESSOR = "sakai:batchresultprocessor";
+  /**
+   * Property that, when true, lets the result pages of a search template be cached. Only
+   * set it on templates whose processors read nothing from the request that is not a
+   * request parameter or selector.
+   */
+  public static final String SAKAI_CACHE_RESULTS = "sakai:cache-results";
   /**
   *
   */
@@ -0,0 +1,192 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import org.apache.commons.lang.StringUtils;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.search.SearchUtil;
+import org.sakaiproject.nakamura.api.search.solr.Query;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds the readers filter of each user, so the group walk is done once per user rather
+ * than once per query. The filter is built from the sorted principals so that the same user
+ * always produces the same filter string, which lets Solr's filterCache reuse it. The
+ * principals include the groups the user belongs to through other groups, and entries are
+ * indexed by principal, so when the user or any of those groups changes only the entries
+ * holding it are visited and dropped.
+ *
+ * The index only covers entries put by this instance, so there should be one instance per
+ * cache, see {@link SolrSearchResultCache#getReaderPrincipalCache()}.
+ */
+public class ReaderPrincipalCache {
+
+  public static final String CACHE_NAME = "org.sakaiproject.nakamura.search.readerPrincipals";
+
+  /**
+   * The principals of a user and the readers filter built from them.
+   */
+  public static class ReaderPrincipals implements Serializable {
+    /**
+     *
+     */
+    private static final long serialVersionUID = -2218574310327014734L;
+    private String userId;
+    private Set<String> principals;
+    private String filter;
+
+    public ReaderPrincipals(String userId, Set<String> principals) {
+      this.userId = userId;
+      this.principals = principals;
+      Set<String> escaped = new TreeSet<String>();
+      for (String principal : principals) {
+        escaped.add(SearchUtil.escapeString(principal, Query.SOLR));
+      }
+      this.filter = "readers:(" + StringUtils.join(escaped, " OR ") + ")";
+    }
+
+    public String getUserId() {
+      return userId;
+    }
+
+    public Set<String> getPrincipals() {
+      return principals;
+    }
+
+    public String getFilter() {
+      return filter;
+    }
+  }
+
+  private Cache<ReaderPrincipals> cache;
+  /**
+   * The users with an entry that holds each principal.
+   */
+  private ConcurrentMap<String, Set<String>> usersByPrincipal = new ConcurrentHashMap<String, Set<String>>();
+  /**
+   * Moved on by every invalidation, an entry built while one happened may be stale.
+   */
+  private AtomicLong invalidations = new AtomicLong();
+
+  public ReaderPrincipalCache(Cache<ReaderPrincipals> cache) {
+    this.cache = cache;
+  }
+
+  /**
+   * @param session
+   *          the session of the user performing the search.
+   * @return the filter query restricting results to those the user can read.
+   * @throws StorageClientException
+   * @throws AccessDeniedException
+   */
+  public String getReadersFilter(Session session) throws StorageClientException,
+      AccessDeniedException {
+    String userId = session.getUserId();
+    ReaderPrincipals readers = cache.get(userId);
+    if (readers == null) {
+      long stamp = invalidations.get();
+      Set<String> principals = new TreeSet<String>();
+      AuthorizableManager am = session.getAuthorizableManager();
+      Authorizable user = am.findAuthorizable(userId);
+      if (user != null) {
+        addGroups(user, am, principals);
+      }
+      principals.add(userId);
+      readers = new ReaderPrincipals(userId, principals);
+      put(readers);
+      if (stamp != invalidations.get()) {
+        // membership may have changed while it was being read.
+        remove(userId);
+      }
+    }
+    return readers.getFilter();
+  }
+
+  /**
+   * Add the ids of the groups authorizable belongs to, directly or through other groups.
+   */
+  private void addGroups(Authorizable authorizable, AuthorizableManager am,
+      Set<String> principals) {
+    for (Iterator<Group> gi = authorizable.memberOf(am); gi.hasNext();) {
+      Group group = gi.next();
+      if (principals.add(group.getId())) {
+        addGroups(group, am, principals);
+      }
+    }
+  }
+
+  private void put(ReaderPrincipals readers) {
+    for (String principal : readers.getPrincipals()) {
+      Set<String> users = usersByPrincipal.get(principal);
+      if (users == null) {
+        Set<String> newUsers = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        users = usersByPrincipal.putIfAbsent(principal, newUsers);
+        if (users == null) {
+          users = newUsers;
+        }
+      }
+      users.add(readers.getUserId());
+    }
+    cache.put(readers.getUserId(), readers);
+  }
+
+  private void remove(String userId) {
+    ReaderPrincipals readers = cache.get(userId);
+    cache.remove(userId);
+    if (readers != null) {
+      for (String principal : readers.getPrincipals()) {
+        Set<String> users = usersByPrincipal.get(principal);
+        if (users != null) {
+          users.remove(userId);
+        }
+      }
+    }
+  }
+
+  /**
+   * Drop the entry of an authorizable that has changed, and the entries of every user that
+   * is a member of it, directly or through other groups.
+   *
+   * @param authorizableId
+   */
+  public void invalidate(String authorizableId) {
+    invalidations.incrementAndGet();
+    remove(authorizableId);
+    Set<String> users = usersByPrincipal.remove(authorizableId);
+    if (users != null) {
+      for (String userId : users) {
+        remove(userId);
+      }
+    }
+  }
+
+}
@@ -17,14 +17,14 @@
  */
 package org.sakaiproject.nakamura.search.solr;
 
-import com.google.common.collect.Sets;
-
 import org.apache.commons.lang.StringUtils;
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.felix.scr.annotations.Services;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.commons.osgi.OsgiUtil;
 import org.apache.solr.client.solrj.SolrQuery;
@@ -33,15 +33,14 @@ import org.apache.solr.client.solrj.SolrServer;
 import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.client.solrj.response.QueryResponse;
 import org.apache.solr.common.params.CommonParams;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventHandler;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
-import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
-import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
-import org.sakaiproject.nakamura.api.lite.authorizable.Group;
 import org.sakaiproject.nakamura.api.lite.authorizable.User;
-import org.sakaiproject.nakamura.api.search.SearchUtil;
 import org.sakaiproject.nakamura.api.search.solr.Query;
 import org.sakaiproject.nakamura.api.search.solr.ResultSetFactory;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchException;
@@ -54,27 +53,35 @@ import org.slf4j.LoggerFactory;
 
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
-import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Set;
 
 /**
  *
  */
 @Component(metatype = true)
-@Service
-@Property(name = "type", value = Query.SOLR)
-public class SolrResultSetFactory implements ResultSetFactory {
+@Services(value = { @Service(value = ResultSetFactory.class),
+    @Service(value = EventHandler.class) })
+@Properties(value = {
+    @Property(name = "type", value = Query.SOLR),
+    @Property(name = "event.topics", value = {
+        StoreListener.TOPIC_BASE + "authorizables/" + StoreListener.UPDATED_TOPIC,
+        StoreListener.TOPIC_BASE + "authorizables/" + StoreListener.DELETE_TOPIC },
+        propertyPrivate = true) })
+public class SolrResultSetFactory implements ResultSetFactory, EventHandler {
   @Property(longValue = 100L)
   private static final String VERY_SLOW_QUERY_TIME = "verySlowQueryTime";
   @Property(longValue = 10L)
   private static final String SLOW_QUERY_TIME = "slowQueryTime";
   @Property(intValue = 100)
   private static final String DEFAULT_MAX_RESULTS = "defaultMaxResults";
+  @Property(intValue = 100)
+  private static final String STREAMING_THRESHOLD = "streamingThreshold";
+  @Property(intValue = 50)
+  private static final String STREAMING_CHUNK_SIZE = "streamingChunkSize";
 
   /** only used to mark the logger */
-  private final class SlowQueryLogger { }
+  static final class SlowQueryLogger { }
 
   private static final Logger LOGGER = LoggerFactory.getLogger(SolrResultSetFactory.class);
   private static final Logger SLOW_QUERY_LOGGER = LoggerFactory.getLogger(SlowQueryLogger.class);
@@ -82,9 +89,16 @@ public class SolrResultSetFactory implements ResultSetFactory {
   @Reference
   private SolrServerService solrSearchService;
 
+  @Reference
+  private SolrSearchResultCache searchResultCache;
+
+  private ReaderPrincipalCache readerPrincipalCache;
+
   private int defaultMaxResults = 100; // set to 100 to allow testing
   private long slowQueryThreshold;
   private long verySlowQueryThreshold;
+  private int streamingThreshold;
+  private int streamingChunkSize;
 
   @Activate
   protected void activate(Map<?, ?> props) {
@@ -92,6 +106,27 @@ public class SolrResultSetFactory implements ResultSetFactory {
         defaultMaxResults);
     slowQueryThreshold = OsgiUtil.toLong(props.get(SLOW_QUERY_TIME), 10L);
     verySlowQueryThreshold = OsgiUtil.toLong(props.get(VERY_SLOW_QUERY_TIME), 100L);
+    streamingThreshold = OsgiUtil.toInteger(props.get(STREAMING_THRESHOLD), 100);
+    streamingChunkSize = Math.max(1, OsgiUtil.toInteger(props.get(STREAMING_CHUNK_SIZE), 50));
+    readerPrincipalCache = searchResultCache.getReaderPrincipalCache();
+  }
+
+  /**
+   * Drop the cached readers of authorizables that change, so membership changes are seen by
+   * the next search.
+   *
+   * {@inheritDoc}
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    Object id = event.getProperty("path");
+    if (id == null) {
+      id = event.getProperty("userid");
+    }
+    if (id != null && readerPrincipalCache != null) {
+      readerPrincipalCache.invalidate(String.valueOf(id));
+    }
   }
 
   /**
@@ -108,24 +143,33 @@ public class SolrResultSetFactory implements ResultSetFactory {
       boolean asAnon) throws SolrSearchException {
     try {
       String queryString = query.getQueryString();
-      // apply readers restrictions.
+      // apply readers restrictions as a filter query, so Solr can cache it apart from the
+      // query itself.
+      String readersFilter = null;
       if (asAnon) {
-        queryString = "(" + queryString + ")  AND readers:" + User.ANON_USER;
+        readersFilter = "readers:" + User.ANON_USER;
       } else {
         Session session = StorageClientUtils.adaptToSession(request.getResourceResolver().adaptTo(javax.jcr.Session.class));
         if (!User.ADMIN_USER.equals(session.getUserId())) {
-          AuthorizableManager am = session.getAuthorizableManager();
-          Authorizable user = am.findAuthorizable(session.getUserId());
-          Set<String> readers = Sets.newHashSet();
-          for (Iterator<Group> gi = user.memberOf(am); gi.hasNext();) {
-            readers.add(SearchUtil.escapeString(gi.next().getId(), Query.SOLR));
-          }
-          readers.add(session.getUserId());
-          queryString = "(" + queryString + ") AND readers:(" + StringUtils.join(readers," OR ") + ")";
+          readersFilter = readerPrincipalCache.getReadersFilter(session);
         }
       }
 
       SolrQuery solrQuery = buildQuery(request, queryString, query.getOptions());
+      if (readersFilter != null) {
+        solrQuery.addFilterQuery(readersFilter);
+      }
+
+      // large pages are pulled from solr a chunk at a time as they are written out
+      // rather than being loaded whole. Grouped results can't be split into chunks.
+      boolean streaming = streamingThreshold > 0 && solrQuery.getRows() != null
+          && solrQuery.getRows() > streamingThreshold
+          && !"true".equals(solrQuery.get("group"));
+      int pageRows = 0;
+      if (streaming) {
+        pageRows = solrQuery.getRows();
+        solrQuery.setRows(streamingChunkSize);
+      }
 
       SolrServer solrServer = solrSearchService.getServer();
       if ( LOGGER.isDebugEnabled()) {
@@ -145,7 +189,13 @@ public class SolrResultSetFactory implements ResultSetFactory {
         }
       } catch (UnsupportedEncodingException e) {
       }
-      SolrSearchResultSetImpl rs = new SolrSearchResultSetImpl(response);
+      SolrSearchResultSet rs;
+      if (streaming) {
+        solrQuery.setRows(pageRows);
+        rs = new SolrStreamingResultSet(solrServer, solrQuery, response, streamingChunkSize);
+      } else {
+        rs = new SolrSearchResultSetImpl(response);
+      }
       if ( LOGGER.isDebugEnabled()) {
         LOGGER.debug("Got {} hits in {} ms", rs.getSize(), response.getElapsedTime());
       }
@@ -0,0 +1,311 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.request.LukeRequest;
+import org.apache.solr.common.util.NamedList;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.authorizable.User;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.api.search.solr.Query;
+import org.sakaiproject.nakamura.api.solr.SolrServerService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds rendered result pages of search templates that set sakai:cache-results, keyed on the
+ * template, the selectors and parameters of the request, the expanded query and options,
+ * the page and the reader principals of the user. Each commit the indexer makes
+ * moves the index generation on, and a page rendered under an older generation is not served
+ * again. The indexer lives in another bundle and offers no commit callback, so a commit is
+ * seen as a change in the version of the index Solr is searching, read at most once every
+ * commitCheckInterval ms. Pages also expire after a maximum age. Hits and misses are reported
+ * at debug through the slow query logger.
+ */
+@Component(immediate = true, metatype = true)
+@Service(value = SolrSearchResultCache.class)
+public class SolrSearchResultCache {
+
+  public static final String CACHE_NAME = "org.sakaiproject.nakamura.search.resultPages";
+
+  @Property(boolValue = true)
+  static final String ENABLED = "enabled";
+
+  @Property(longValue = 30000L)
+  static final String MAX_AGE = "maxAge";
+
+  @Property(intValue = 1000)
+  static final String REPORT_INTERVAL = "reportInterval";
+
+  @Property(longValue = 100L)
+  static final String MAX_ITEMS = "maxItems";
+
+  @Property(longValue = 1000L)
+  static final String COMMIT_CHECK_INTERVAL = "commitCheckInterval";
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SolrSearchResultCache.class);
+
+  /**
+   * A field name no document has, so that reading the index version inspects no fields.
+   */
+  private static final String NO_FIELD = "_no_such_field_";
+
+  private static final Logger SLOW_QUERY_LOGGER = LoggerFactory
+      .getLogger(SolrResultSetFactory.SlowQueryLogger.class);
+
+  /**
+   * A rendered page and the generation it was rendered under.
+   */
+  static class ResultPage implements Serializable {
+    /**
+     *
+     */
+    private static final long serialVersionUID = 5396702004398133446L;
+    private String json;
+    private long generation;
+    private long created;
+
+    ResultPage(String json, long generation) {
+      this.json = json;
+      this.generation = generation;
+      this.created = System.currentTimeMillis();
+    }
+  }
+
+  @Reference
+  protected CacheManagerService cacheManagerService;
+
+  @Reference
+  protected SolrServerService solrServerService;
+
+  private Cache<ResultPage> pages;
+  private ReaderPrincipalCache readerPrincipalCache;
+  private boolean enabled = true;
+  private long maxAge = 30000L;
+  private long reportInterval = 1000;
+  private long maxItems = 100;
+  private long commitCheckInterval = 1000L;
+  private AtomicLong generation = new AtomicLong();
+  private AtomicLong lastCommitCheck = new AtomicLong();
+  private volatile Object indexVersion;
+  private AtomicLong hits = new AtomicLong();
+  private AtomicLong misses = new AtomicLong();
+
+  @Activate
+  @Modified
+  protected void activate(Map<?, ?> props) {
+    enabled = OsgiUtil.toBoolean(props.get(ENABLED), true);
+    maxAge = OsgiUtil.toLong(props.get(MAX_AGE), 30000L);
+    reportInterval = Math.max(1, OsgiUtil.toInteger(props.get(REPORT_INTERVAL), 1000));
+    maxItems = OsgiUtil.toLong(props.get(MAX_ITEMS), 100L);
+    commitCheckInterval = OsgiUtil.toLong(props.get(COMMIT_CHECK_INTERVAL), 1000L);
+    pages = cacheManagerService.getCache(CACHE_NAME, CacheScope.INSTANCE);
+    readerPrincipalCache = new ReaderPrincipalCache(cacheManagerService
+        .<ReaderPrincipalCache.ReaderPrincipals> getCache(ReaderPrincipalCache.CACHE_NAME,
+            CacheScope.CLUSTERINVALIDATED));
+  }
+
+  /**
+   * Move the generation on if the indexer has committed since the last check. Only one
+   * thread reads the index version per interval, the others carry on with the current
+   * generation.
+   */
+  private void checkForCommit() {
+    long now = System.currentTimeMillis();
+    long last = lastCommitCheck.get();
+    if (now - last < commitCheckInterval || !lastCommitCheck.compareAndSet(last, now)) {
+      return;
+    }
+    Object version = null;
+    try {
+      // no terms and a field that is not in the index keep Luke to the index summary.
+      LukeRequest lukeRequest = new LukeRequest();
+      lukeRequest.setNumTerms(0);
+      lukeRequest.addField(NO_FIELD);
+      lukeRequest.setShowSchema(false);
+      NamedList<Object> indexInfo = lukeRequest.process(solrServerService.getServer())
+          .getIndexInfo();
+      if (indexInfo != null) {
+        version = indexInfo.get("version");
+      }
+    } catch (SolrServerException e) {
+      LOGGER.debug("Unable to read the index version: {} ", e.getMessage());
+    } catch (IOException e) {
+      LOGGER.debug("Unable to read the index version: {} ", e.getMessage());
+    }
+    // an unknown version is treated as a commit, so pages are never kept past one.
+    if (version == null || !version.equals(indexVersion)) {
+      indexVersion = version;
+      generation.incrementAndGet();
+    }
+  }
+
+  /**
+   * @return the readers filters of users, shared with the result set factory so that one
+   *         instance indexes and invalidates them.
+   */
+  public ReaderPrincipalCache getReaderPrincipalCache() {
+    return readerPrincipalCache;
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * @return the largest page, in items, that is cached. Larger pages are streamed straight
+   *         to the response rather than buffered.
+   */
+  public long getMaxItems() {
+    return maxItems;
+  }
+
+  /**
+   * @param request
+   * @param query
+   *          the query after template expansion, with the paging options set.
+   * @param tidy
+   * @return the key of the page this request would render.
+   * @throws StorageClientException
+   * @throws AccessDeniedException
+   */
+  @SuppressWarnings("unchecked")
+  public String getCacheKey(SlingHttpServletRequest request, Query query, boolean tidy)
+      throws StorageClientException, AccessDeniedException {
+    StringBuilder key = new StringBuilder();
+    key.append(request.getResource().getPath()).append(';');
+    appendPart(key, request.getRequestPathInfo().getSelectorString());
+    // processors may read any parameter directly, not only those in the query.
+    Map<String, String[]> parameters = new TreeMap<String, String[]>(
+        request.getParameterMap());
+    for (Entry<String, String[]> parameter : parameters.entrySet()) {
+      appendPart(key, parameter.getKey());
+      for (String value : parameter.getValue()) {
+        appendPart(key, value);
+      }
+    }
+    key.append(';');
+    key.append(query.getType()).append(';');
+    key.append(query.getQueryString()).append(';');
+    if (query.getOptions() != null) {
+      for (Entry<String, String> option : new TreeMap<String, String>(query.getOptions())
+          .entrySet()) {
+        key.append(option.getKey()).append('=').append(option.getValue()).append(';');
+      }
+    }
+    key.append(tidy).append(';');
+    Session session = StorageClientUtils.adaptToSession(request.getResourceResolver()
+        .adaptTo(javax.jcr.Session.class));
+    String userId = session.getUserId();
+    if (User.ANON_USER.equals(userId) || User.ADMIN_USER.equals(userId)) {
+      key.append(userId);
+    } else {
+      key.append(readerPrincipalCache.getReadersFilter(session));
+    }
+    return key.toString();
+  }
+
+  /**
+   * Append a part of the key prefixed with its length, so parts can't run into each other.
+   */
+  private void appendPart(StringBuilder key, String part) {
+    if (part == null) {
+      key.append('-');
+    } else {
+      key.append(part.length()).append(':').append(part);
+    }
+  }
+
+  /**
+   * @param key
+   * @return the rendered page if it is still current, otherwise null.
+   */
+  public String get(String key) {
+    checkForCommit();
+    ResultPage page = pages.get(key);
+    if (page != null
+        && (page.generation != generation.get() || System.currentTimeMillis() - page.created > maxAge)) {
+      pages.remove(key);
+      page = null;
+    }
+    long h;
+    long m;
+    if (page == null) {
+      m = misses.incrementAndGet();
+      h = hits.get();
+    } else {
+      h = hits.incrementAndGet();
+      m = misses.get();
+    }
+    if ((h + m) % reportInterval == 0) {
+      SLOW_QUERY_LOGGER.debug("Search result cache hits {} misses {} ", h, m);
+    }
+    return page == null ? null : page.json;
+  }
+
+  /**
+   * Save a rendered page under the generation that was current when rendering started.
+   *
+   * @param key
+   * @param json
+   * @param renderGeneration
+   */
+  public void put(String key, String json, long renderGeneration) {
+    checkForCommit();
+    if (renderGeneration == generation.get()) {
+      pages.put(key, new ResultPage(json, renderGeneration));
+    }
+  }
+
+  /**
+   * @return the current index generation, taken before rendering a page that will be saved.
+   */
+  public long getGeneration() {
+    checkForCommit();
+    return generation.get();
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+}
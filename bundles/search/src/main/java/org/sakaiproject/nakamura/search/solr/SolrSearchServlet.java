@@ -25,6 +25,7 @@ import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.REG_
 import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.REG_PROCESSOR_NAMES;
 import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.REG_PROVIDER_NAMES;
 import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_BATCHRESULTPROCESSOR;
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_CACHE_RESULTS;
 import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_LIMIT_RESULTS;
 import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_PROPERTY_PROVIDER;
 import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_QUERY_TEMPLATE;
@@ -59,12 +60,15 @@ import org.apache.solr.client.solrj.util.ClientUtils;
 import org.osgi.framework.Constants;
 import org.osgi.framework.ServiceReference;
 import org.osgi.service.component.ComponentContext;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.search.SearchUtil;
 import org.sakaiproject.nakamura.api.search.solr.MissingParameterException;
 import org.sakaiproject.nakamura.api.search.solr.Query;
 import org.sakaiproject.nakamura.api.search.solr.Result;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchBatchResultProcessor;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchException;
+import org.sakaiproject.nakamura.api.search.solr.SolrQueryResponseWrapper;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchPropertyProvider;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultProcessor;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
@@ -76,6 +80,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
@@ -152,6 +158,9 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
   @Reference
   private transient TemplateService templateService;
 
+  @Reference
+  protected transient SolrSearchResultCache searchResultCache;
+
   @Override
   protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response)
       throws ServletException, IOException {
@@ -224,6 +233,33 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
           }
         }
 
+        // serve the page from the result cache when it is still current, otherwise
+        // render it into a buffer so it can be saved.
+        String cacheKey = null;
+        long renderGeneration = 0;
+        if (searchResultCache != null && searchResultCache.isEnabled()
+            && nitems <= searchResultCache.getMaxItems()
+            && node.hasProperty(SAKAI_CACHE_RESULTS)
+            && node.getProperty(SAKAI_CACHE_RESULTS).getBoolean()) {
+          try {
+            renderGeneration = searchResultCache.getGeneration();
+            cacheKey = searchResultCache.getCacheKey(request, query, isTidy(request));
+            String cached = searchResultCache.get(cacheKey);
+            if (cached != null) {
+              response.setContentType("application/json");
+              response.setCharacterEncoding("UTF-8");
+              response.getWriter().write(cached);
+              return;
+            }
+          } catch (StorageClientException e) {
+            LOGGER.warn("Unable to use the search result cache: {} ", e.getMessage());
+            cacheKey = null;
+          } catch (AccessDeniedException e) {
+            LOGGER.warn("Unable to use the search result cache: {} ", e.getMessage());
+            cacheKey = null;
+          }
+        }
+
         SolrSearchResultSet rs = null;
         try {
           // Prepare the result set.
@@ -241,7 +277,13 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
         response.setContentType("application/json");
         response.setCharacterEncoding("UTF-8");
 
-        ExtendedJSONWriter write = new ExtendedJSONWriter(response.getWriter());
+        Writer out = response.getWriter();
+        StringWriter buffer = null;
+        if (cacheKey != null) {
+          buffer = new StringWriter();
+          out = buffer;
+        }
+        ExtendedJSONWriter write = new ExtendedJSONWriter(out);
         write.setTidy(isTidy(request));
 
         write.object();
@@ -269,7 +311,9 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
         }
         write.endArray();
         
-        if (page > 0 || rs.getSize() == nitems) {
+        // solr result sets already report the full count found, only other result sets
+        // need to be run again to count past the page.
+        if (!(rs instanceof SolrQueryResponseWrapper) && (page > 0 || rs.getSize() == nitems)) {
           // the result set may have been truncated by paging, so lets get a fuller count
           query.getOptions().put(PARAMS_ITEMS_PER_PAGE, Long.toString(maximumResults));
           query.getOptions().put(PARAMS_PAGE, Long.toString(0));
@@ -291,6 +335,12 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
         write.value(rs.getSize());
 
         write.endObject();
+
+        if (buffer != null) {
+          String json = buffer.toString();
+          searchResultCache.put(cacheKey, json, renderGeneration);
+          response.getWriter().write(json);
+        }
       }
     } catch (RepositoryException e) {
       LOGGER.error(e.getMessage(), e);
@@ -0,0 +1,142 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import com.google.common.collect.UnmodifiableIterator;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.sakaiproject.nakamura.api.search.solr.Result;
+import org.sakaiproject.nakamura.api.search.solr.SolrQueryResponseWrapper;
+import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A result set for large pages that pulls the documents from Solr a chunk at a time as the
+ * iterator is consumed, so only one chunk is held in memory whatever the page size, and the
+ * first results can be written before the rest have been fetched. Since each chunk is a
+ * separate query, a commit between chunks can shift documents across a chunk boundary.
+ */
+public class SolrStreamingResultSet implements SolrSearchResultSet, SolrQueryResponseWrapper {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SolrStreamingResultSet.class);
+
+  private SolrServer solrServer;
+  private SolrQuery solrQuery;
+  private QueryResponse firstResponse;
+  private int chunkSize;
+
+  /**
+   * @param solrServer
+   * @param solrQuery
+   *          the query for the whole page, start and rows define the page.
+   * @param firstResponse
+   *          the response to the first chunk, which must start at the start of the page.
+   * @param chunkSize
+   *          the number of rows fetched by each following query.
+   */
+  public SolrStreamingResultSet(SolrServer solrServer, SolrQuery solrQuery,
+      QueryResponse firstResponse, int chunkSize) {
+    this.solrServer = solrServer;
+    this.solrQuery = solrQuery;
+    this.firstResponse = firstResponse;
+    this.chunkSize = chunkSize;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet#getResultSetIterator()
+   */
+  public Iterator<Result> getResultSetIterator() {
+    final int start = solrQuery.getStart() == null ? 0 : solrQuery.getStart();
+    final int rows = solrQuery.getRows() == null ? chunkSize : solrQuery.getRows();
+    return new UnmodifiableIterator<Result>() {
+      private SolrDocumentList chunk = firstResponse.getResults();
+      private Iterator<SolrDocument> chunkIterator = (chunk == null) ? null : chunk.iterator();
+      private int fetched = (chunk == null) ? 0 : chunk.size();
+
+      public boolean hasNext() {
+        if (chunkIterator == null) {
+          return false;
+        }
+        if (!chunkIterator.hasNext()) {
+          // drop the spent chunk before fetching the next one.
+          chunkIterator = null;
+          chunk = null;
+          if (fetched < rows && start + fetched < getSize()) {
+            chunk = fetch(start + fetched, Math.min(chunkSize, rows - fetched));
+            if (chunk != null && chunk.size() > 0) {
+              fetched += chunk.size();
+              chunkIterator = chunk.iterator();
+            }
+          }
+        }
+        return chunkIterator != null && chunkIterator.hasNext();
+      }
+
+      public Result next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        return new ResultImpl(chunkIterator.next());
+      }
+    };
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet#getSize()
+   */
+  public long getSize() {
+    SolrDocumentList results = firstResponse.getResults();
+    return (results == null) ? 0 : results.getNumFound();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.search.solr.SolrQueryResponseWrapper#getQueryResponse()
+   */
+  public QueryResponse getQueryResponse() {
+    return firstResponse;
+  }
+
+  private SolrDocumentList fetch(int offset, int count) {
+    SolrQuery chunkQuery = solrQuery.getCopy();
+    chunkQuery.setStart(offset);
+    chunkQuery.setRows(count);
+    try {
+      return solrServer.query(chunkQuery).getResults();
+    } catch (SolrServerException e) {
+      LOGGER.error("Failed to fetch results {} to {}, result truncated: {} ", new Object[] {
+          offset, offset + count, e.getMessage() });
+      return null;
+    }
+  }
+
+}
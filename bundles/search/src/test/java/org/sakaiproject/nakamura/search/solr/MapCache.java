@@ -0,0 +1,60 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import org.sakaiproject.nakamura.api.memory.Cache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A plain map backed cache for tests.
+ */
+public class MapCache<V> implements Cache<V> {
+  private Map<String, V> map = new HashMap<String, V>();
+
+  public V put(String key, V payload) {
+    return map.put(key, payload);
+  }
+
+  public boolean containsKey(String key) {
+    return map.containsKey(key);
+  }
+
+  public V get(String key) {
+    return map.get(key);
+  }
+
+  public void clear() {
+    map.clear();
+  }
+
+  public void remove(String key) {
+    map.remove(key);
+  }
+
+  public void removeChildren(String key) {
+    map.remove(key);
+  }
+
+  public List<V> list() {
+    return new ArrayList<V>(map.values());
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Sets;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.sakaiproject.nakamura.search.solr.ReaderPrincipalCache.ReaderPrincipals;
+
+public class ReaderPrincipalCacheTest {
+
+  private MapCache<ReaderPrincipals> cache;
+  private ReaderPrincipalCache readerPrincipalCache;
+  private AuthorizableManager authorizableManager;
+
+  @Before
+  public void setUp() {
+    cache = new MapCache<ReaderPrincipals>();
+    readerPrincipalCache = new ReaderPrincipalCache(cache);
+    authorizableManager = mock(AuthorizableManager.class);
+  }
+
+  private Group group(String id, Group... parents) {
+    Group group = mock(Group.class);
+    when(group.getId()).thenReturn(id);
+    when(group.memberOf(authorizableManager)).thenReturn(Iterators.forArray(parents));
+    return group;
+  }
+
+  private String readersFilter(String userId, Group... groups) throws Exception {
+    Authorizable user = mock(Authorizable.class);
+    when(user.getId()).thenReturn(userId);
+    when(user.memberOf(authorizableManager)).thenReturn(Iterators.forArray(groups));
+    when(authorizableManager.findAuthorizable(userId)).thenReturn(user);
+    Session session = mock(Session.class);
+    when(session.getUserId()).thenReturn(userId);
+    when(session.getAuthorizableManager()).thenReturn(authorizableManager);
+    return readerPrincipalCache.getReadersFilter(session);
+  }
+
+  @Test
+  public void testFilterIsStable() {
+    ReaderPrincipals a = new ReaderPrincipals("alice", Sets.newHashSet("alice", "g-b",
+        "g-a"));
+    ReaderPrincipals b = new ReaderPrincipals("alice", Sets.newHashSet("g-a", "alice",
+        "g-b"));
+    assertEquals("readers:(alice OR g\\-a OR g\\-b)", a.getFilter());
+    assertEquals(a.getFilter(), b.getFilter());
+  }
+
+  @Test
+  public void testInvalidateMembers() throws Exception {
+    readersFilter("alice", group("g-a"));
+    readersFilter("bob", group("g-b"));
+    readersFilter("carol", group("g-a"));
+
+    readerPrincipalCache.invalidate("g-a");
+    assertFalse(cache.containsKey("alice"));
+    assertFalse(cache.containsKey("carol"));
+    assertTrue(cache.containsKey("bob"));
+
+    readerPrincipalCache.invalidate("bob");
+    assertFalse(cache.containsKey("bob"));
+  }
+
+  @Test
+  public void testInvalidateMembersOfNestedGroups() throws Exception {
+    Group parent = group("g-parent");
+    String filter = readersFilter("alice", group("g-a", parent));
+    assertEquals("readers:(alice OR g\\-a OR g\\-parent)", filter);
+    readersFilter("bob", group("g-b"));
+
+    readerPrincipalCache.invalidate("g-parent");
+    assertFalse(cache.containsKey("alice"));
+    assertTrue(cache.containsKey("bob"));
+
+    // a later change to the inner group still finds the rebuilt entry.
+    readersFilter("alice", group("g-a", group("g-parent")));
+    readerPrincipalCache.invalidate("g-a");
+    assertFalse(cache.containsKey("alice"));
+  }
+}
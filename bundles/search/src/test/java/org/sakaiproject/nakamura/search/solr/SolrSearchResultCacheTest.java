@@ -0,0 +1,165 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.request.RequestPathInfo;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.common.util.NamedList;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.SessionAdaptable;
+import org.sakaiproject.nakamura.api.lite.authorizable.User;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.api.search.solr.Query;
+import org.sakaiproject.nakamura.api.solr.SolrServerService;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class SolrSearchResultCacheTest {
+
+  /**
+   * Answers Luke requests with an index version that the test moves on to commit.
+   */
+  static class IndexVersionServer extends SolrServer {
+    private static final long serialVersionUID = 1L;
+    long version = 1;
+    int requests;
+
+    @Override
+    public NamedList<Object> request(SolrRequest request) {
+      requests++;
+      NamedList<Object> index = new NamedList<Object>();
+      index.add("version", version);
+      NamedList<Object> response = new NamedList<Object>();
+      response.add("index", index);
+      return response;
+    }
+
+    public void shutdown() {
+    }
+  }
+
+  private SolrSearchResultCache resultCache;
+  private IndexVersionServer server;
+
+  @Before
+  public void setUp() {
+    Cache<Object> pages = new MapCache<Object>();
+    Cache<Object> readers = new MapCache<Object>();
+    CacheManagerService cacheManagerService = createMock(CacheManagerService.class);
+    expect(cacheManagerService.getCache(SolrSearchResultCache.CACHE_NAME, CacheScope.INSTANCE))
+        .andReturn(pages).anyTimes();
+    expect(cacheManagerService.getCache(ReaderPrincipalCache.CACHE_NAME,
+        CacheScope.CLUSTERINVALIDATED)).andReturn(readers).anyTimes();
+    server = new IndexVersionServer();
+    SolrServerService solrServerService = createMock(SolrServerService.class);
+    expect(solrServerService.getServer()).andReturn(server).anyTimes();
+    replay(cacheManagerService, solrServerService);
+    resultCache = new SolrSearchResultCache();
+    resultCache.cacheManagerService = cacheManagerService;
+    resultCache.solrServerService = solrServerService;
+    Map<String, Object> props = new HashMap<String, Object>();
+    props.put(SolrSearchResultCache.COMMIT_CHECK_INTERVAL, 0L);
+    resultCache.activate(props);
+  }
+
+  @Test
+  public void testCommitInvalidates() {
+    long generation = resultCache.getGeneration();
+    resultCache.put("key", "{}", generation);
+    assertEquals("{}", resultCache.get("key"));
+    assertEquals("{}", resultCache.get("key"));
+    assertEquals(2, resultCache.getHits());
+
+    server.version++;
+    assertNull(resultCache.get("key"));
+    assertEquals(1, resultCache.getMisses());
+  }
+
+  @Test
+  public void testStaleRenderNotSaved() {
+    long generation = resultCache.getGeneration();
+    server.version++;
+    resultCache.put("key", "{}", generation);
+    assertNull(resultCache.get("key"));
+  }
+
+  @Test
+  public void testVersionIsReadOncePerInterval() {
+    Map<String, Object> props = new HashMap<String, Object>();
+    props.put(SolrSearchResultCache.COMMIT_CHECK_INTERVAL, 60000L);
+    resultCache.activate(props);
+    long generation = resultCache.getGeneration();
+    int requests = server.requests;
+    resultCache.put("key", "{}", generation);
+    server.version++;
+    assertEquals("{}", resultCache.get("key"));
+    assertEquals(requests, server.requests);
+  }
+
+  @Test
+  public void testKeyCoversSelectorsAndParameters() throws Exception {
+    Query query = new Query("q");
+    String key = resultCache.getCacheKey(mockRequest("tidy", "a", "1"), query, false);
+    assertEquals(key, resultCache.getCacheKey(mockRequest("tidy", "a", "1"), query, false));
+    assertFalse(key.equals(resultCache.getCacheKey(mockRequest(null, "a", "1"), query, false)));
+    assertFalse(key.equals(resultCache.getCacheKey(mockRequest("tidy", "a", "2"), query,
+        false)));
+    assertFalse(key.equals(resultCache.getCacheKey(mockRequest("tidy", "b", "1"), query,
+        false)));
+  }
+
+  private SlingHttpServletRequest mockRequest(String selectors, String parameter,
+      String value) {
+    SlingHttpServletRequest request = Mockito.mock(SlingHttpServletRequest.class);
+    Resource resource = Mockito.mock(Resource.class);
+    Mockito.when(resource.getPath()).thenReturn("/var/search/template");
+    Mockito.when(request.getResource()).thenReturn(resource);
+    RequestPathInfo pathInfo = Mockito.mock(RequestPathInfo.class);
+    Mockito.when(pathInfo.getSelectorString()).thenReturn(selectors);
+    Mockito.when(request.getRequestPathInfo()).thenReturn(pathInfo);
+    Map<String, String[]> parameters = new HashMap<String, String[]>();
+    parameters.put(parameter, new String[] { value });
+    Mockito.when(request.getParameterMap()).thenReturn(parameters);
+    ResourceResolver resourceResolver = Mockito.mock(ResourceResolver.class);
+    javax.jcr.Session jcrSession = Mockito.mock(javax.jcr.Session.class, Mockito
+        .withSettings().extraInterfaces(SessionAdaptable.class));
+    Session session = Mockito.mock(Session.class);
+    Mockito.when(session.getUserId()).thenReturn(User.ANON_USER);
+    Mockito.when(((SessionAdaptable) jcrSession).getSession()).thenReturn(session);
+    Mockito.when(resourceResolver.adaptTo(javax.jcr.Session.class)).thenReturn(jcrSession);
+    Mockito.when(request.getResourceResolver()).thenReturn(resourceResolver);
+    return request;
+  }
+}
@@ -0,0 +1,145 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.search.solr.Result;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+public class SolrStreamingResultSetTest {
+
+  /**
+   * Answers each query with the requested slice of a fixed number of documents, and
+   * records the start of every query it is sent.
+   */
+  static class StubSolrServer extends SolrServer {
+    private static final long serialVersionUID = 1L;
+    private final int numFound;
+    final List<Integer> requests = new ArrayList<Integer>();
+
+    StubSolrServer(int numFound) {
+      this.numFound = numFound;
+    }
+
+    @Override
+    public NamedList<Object> request(SolrRequest request) {
+      SolrParams params = request.getParams();
+      int start = params.getInt(CommonParams.START, 0);
+      int rows = params.getInt(CommonParams.ROWS, 10);
+      requests.add(start);
+      SolrDocumentList documents = new SolrDocumentList();
+      documents.setNumFound(numFound);
+      documents.setStart(start);
+      for (int i = start; i < Math.min(numFound, start + rows); i++) {
+        SolrDocument document = new SolrDocument();
+        document.setField("path", "/doc" + i);
+        documents.add(document);
+      }
+      NamedList<Object> response = new NamedList<Object>();
+      response.add("response", documents);
+      return response;
+    }
+
+    public void shutdown() {
+    }
+  }
+
+  private SolrStreamingResultSet query(StubSolrServer server, int start, int rows,
+      int chunkSize) throws Exception {
+    SolrQuery solrQuery = new SolrQuery("*:*");
+    solrQuery.setStart(start);
+    solrQuery.setRows(chunkSize);
+    SolrStreamingResultSet resultSet = new SolrStreamingResultSet(server, solrQuery,
+        server.query(solrQuery), chunkSize);
+    solrQuery.setRows(rows);
+    return resultSet;
+  }
+
+  @Test
+  public void testPageIsFetchedInChunks() throws Exception {
+    StubSolrServer server = new StubSolrServer(23);
+    SolrStreamingResultSet resultSet = query(server, 0, 20, 5);
+    assertEquals(23, resultSet.getSize());
+    int count = 0;
+    for (Iterator<Result> i = resultSet.getResultSetIterator(); i.hasNext();) {
+      assertEquals("/doc" + count, i.next().getPath());
+      count++;
+    }
+    assertEquals(20, count);
+    assertEquals(4, server.requests.size());
+    assertEquals(15, (int) server.requests.get(3));
+  }
+
+  @Test
+  public void testLastPageStopsAtNumFound() throws Exception {
+    StubSolrServer server = new StubSolrServer(23);
+    SolrStreamingResultSet resultSet = query(server, 15, 20, 5);
+    int count = 0;
+    for (Iterator<Result> i = resultSet.getResultSetIterator(); i.hasNext(); i.next()) {
+      count++;
+    }
+    assertEquals(8, count);
+    assertEquals(2, server.requests.size());
+  }
+
+  @Test
+  public void testChunksAreOnlyFetchedWhenReached() throws Exception {
+    StubSolrServer server = new StubSolrServer(100);
+    SolrStreamingResultSet resultSet = query(server, 0, 100, 10);
+    Iterator<Result> i = resultSet.getResultSetIterator();
+    assertEquals(1, server.requests.size());
+    for (int n = 0; n < 10; n++) {
+      i.next();
+    }
+    assertEquals(1, server.requests.size());
+    assertTrue(i.hasNext());
+    assertEquals(2, server.requests.size());
+    assertEquals("/doc10", i.next().getPath());
+  }
+
+  @Test
+  public void testEarlyTerminationFetchesNothingMore() throws Exception {
+    StubSolrServer server = new StubSolrServer(1000);
+    SolrStreamingResultSet resultSet = query(server, 0, 1000, 10);
+    Iterator<Result> i = resultSet.getResultSetIterator();
+    for (int n = 0; n < 15; n++) {
+      i.next();
+    }
+    // the writer stops here, each chunk was a complete response so there is nothing
+    // left open and no further query is made.
+    assertEquals(2, server.requests.size());
+    // the first chunk is kept with the response, so iterating again does not query.
+    assertEquals("/doc0", resultSet.getResultSetIterator().next().getPath());
+    assertEquals(2, server.requests.size());
+  }
+
+}
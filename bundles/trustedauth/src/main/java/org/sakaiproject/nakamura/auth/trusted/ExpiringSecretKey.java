@@ -17,6 +17,10 @@
  */
 package org.sakaiproject.nakamura.auth.trusted;
 
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.Mac;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
 
@@ -25,9 +29,13 @@ import javax.crypto.spec.SecretKeySpec;
  */
 public class ExpiringSecretKey {
 
-  private long expires;
-  private SecretKey secretKey;
-  private ExpiringSecretKeyData secretKeyData;
+  private final long expires;
+  private final SecretKey secretKey;
+  private final ExpiringSecretKeyData secretKeyData;
+  /**
+   * A Mac initialised with this key for each thread that uses it.
+   */
+  private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>();
 
   /**
    * @param b a byte array defining the secret key
@@ -63,6 +71,24 @@ public class ExpiringSecretKey {
     return secretKey;
   }
 
+  /**
+   * Get a Mac initialised with this key. The Mac belongs to the calling thread and is
+   * reset by each doFinal, so it must not be handed to another thread.
+   *
+   * @return the Mac for the current thread.
+   * @throws NoSuchAlgorithmException
+   * @throws InvalidKeyException
+   */
+  public Mac getMac() throws NoSuchAlgorithmException, InvalidKeyException {
+    Mac mac = macs.get();
+    if (mac == null) {
+      mac = Mac.getInstance(secretKey.getAlgorithm());
+      mac.init(secretKey);
+      macs.set(mac);
+    }
+    return mac;
+  }
+
   /**
    * @return the a serialzable representation.
    */
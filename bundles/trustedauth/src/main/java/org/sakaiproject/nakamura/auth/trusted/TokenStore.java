@@ -36,8 +36,14 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.security.InvalidKeyException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.crypto.Mac;
 import javax.crypto.SecretKey;
@@ -46,6 +52,8 @@ import javax.crypto.spec.SecretKeySpec;
 /**
  * A Token Storage class that maintains a local ring buffer of keys for encoding and uses
  * a cluster replicated cache for keys to be shared with other servers in the cluster.
+ * The ring is published as an immutable snapshot each time a key is added, so encoding
+ * and decoding cookies never takes a lock.
  */
 public class TokenStore {
 
@@ -118,15 +126,13 @@ public class TokenStore {
         SecureCookieException {
       String cookiePayload = String.valueOf(secretKeyId) + String.valueOf(expires) + "@"
           + encodeField(userId) + "@" + serverId;
-      Mac m = Mac.getInstance(HMAC_SHA1);
       ExpiringSecretKey expiringSecretKey = TokenStore.this.getSecretKey(serverId,
           secretKeyId);
       if (expiringSecretKey == null) {
         throw new SecureCookieException("Key serverId=["+serverId+"]: KeyId=["+secretKeyId+"] not found ");
       }
-      m.init(TokenStore.this.getSecretKey(serverId, secretKeyId).getSecretKey());
-      m.update(cookiePayload.getBytes(UTF_8));
-      String cookieValue = encodeField(m.doFinal());
+      String cookieValue = encodeField(expiringSecretKey.getMac().doFinal(
+          cookiePayload.getBytes(UTF_8)));
       return cookieValue + "@" + cookiePayload;
     }
 
@@ -136,12 +142,20 @@ public class TokenStore {
      * @throws SecureCookieException
      */
     public String decode(String value) throws SecureCookieException {
+      long now = System.currentTimeMillis();
+      VerifiedCookie verified = verifiedCookies.get(value);
+      if (verified != null) {
+        if (now < verified.expires) {
+          return verified.userId;
+        }
+        verifiedCookies.remove(value);
+      }
       String[] parts = StringUtils.split(value, "@");
       if (parts != null && parts.length == 4) {        
         this.secretKeyId = Integer.parseInt(parts[1].substring(0, 1));
         this.serverId = parts[3];
         long cookieTime = Long.parseLong(parts[1].substring(1));
-        if (System.currentTimeMillis() < cookieTime) {
+        if (now < cookieTime) {
           try {
             
             ExpiringSecretKey expiringSecretKey = TokenStore.this.getSecretKey(serverId,
@@ -156,8 +170,15 @@ public class TokenStore {
             if ( debugCookies ) {
               LOG.info("Decoding with server:{} keyno:{} secret:{} user:{} cookeiTime:{} cookie:{}",new Object[]{serverId, secretKeyId, encodeField(secretKey.getEncoded()), userId, cookieTime, value} );
             }
-            String hmac = encode(cookieTime, userId);
-            if (value.equals(hmac)) {
+            // check the signature over the payload as sent, it can only match if the
+            // payload was signed by the key.
+            int separator = value.indexOf('@');
+            byte[] signature = encodeField(
+                expiringSecretKey.getMac().doFinal(
+                    value.substring(separator + 1).getBytes(UTF_8))).getBytes(UTF_8);
+            if (MessageDigest.isEqual(signature, value.substring(0, separator).getBytes(
+                UTF_8))) {
+              cacheVerified(value, userId, cookieTime);
               return userId;
             }
           } catch (ArrayIndexOutOfBoundsException e) {
@@ -185,8 +206,55 @@ public class TokenStore {
 
   }
 
+  /**
+   * An immutable snapshot of the local key ring.
+   */
+  private static final class KeyRing {
+    /**
+     * The keys, never modified once the ring is published.
+     */
+    private final ExpiringSecretKey[] keys;
+    /**
+     * The location of the current key.
+     */
+    private final int activeId;
+    /**
+     * The time when a new key should be created.
+     */
+    private final long nextUpdate;
+
+    private KeyRing(ExpiringSecretKey[] keys, int activeId, long nextUpdate) {
+      this.keys = keys;
+      this.activeId = activeId;
+      this.nextUpdate = nextUpdate;
+    }
+  }
+
+  /**
+   * A cookie that has passed verification, and the user it identifies.
+   */
+  private static final class VerifiedCookie {
+    private final String userId;
+    private final long expires;
+
+    private VerifiedCookie(String userId, long expires) {
+      this.userId = userId;
+      this.expires = expires;
+    }
+  }
+
   public static final Logger LOG = LoggerFactory.getLogger(TokenStore.class);
 
+  /**
+   * The maximum number of verified cookies to remember.
+   */
+  private static final int MAX_VERIFIED_COOKIES = 1000;
+
+  /**
+   * The number of keys in the ring.
+   */
+  private static final int KEY_RING_SIZE = 5;
+
   /**
    *
    */
@@ -208,17 +276,17 @@ public class TokenStore {
   private long ttl = 20L * 60000L; // 20 minutes
 
   /**
-   * The time when a new token should be created.
+   * A ring of tokens used to encypt, replaced as a whole when a token is added.
    */
-  private long nextUpdate = System.currentTimeMillis();
+  private volatile KeyRing keyRing;
   /**
-   * The location of the current token.
+   * Keys from other servers in the cluster, by cache key.
    */
-  private int secretKeyId = 0;
+  private final ConcurrentMap<String, ExpiringSecretKey> remoteKeys = new ConcurrentHashMap<String, ExpiringSecretKey>();
   /**
-   * A ring of tokens used to encypt.
+   * Cookies that have been verified, by cookie value, until they expire.
    */
-  private ExpiringSecretKey[] secretKeyRingBuffer;
+  private final ConcurrentMap<String, VerifiedCookie> verifiedCookies = new ConcurrentHashMap<String, VerifiedCookie>();
   /**
    * A secure random used for generating new tokens.
    */
@@ -293,6 +361,9 @@ public class TokenStore {
     this.serverId = serverId;
     this.ttl = ttl;
     this.cacheManager = cacheManager;
+    keyRing = null;
+    remoteKeys.clear();
+    verifiedCookies.clear();
     getActiveToken();
   }
 
@@ -301,44 +372,79 @@ public class TokenStore {
    *
    * @return the current token.
    */
-  synchronized SecureCookie getActiveToken() {
-    if (secretKeyRingBuffer == null) {
-      loadLocalSecretKeys();
+  SecureCookie getActiveToken() {
+    KeyRing ring = getKeyRing();
+    if (needsNewKey(ring)) {
+      ring = addKey();
     }
-    if (System.currentTimeMillis() > nextUpdate
-        || hasExpired(secretKeyRingBuffer[secretKeyId]) ) {
-      // cycle so that during a typical ttl the tokens get completely refreshed.
-      nextUpdate = System.currentTimeMillis() + ttl / 2;
-      byte[] b = new byte[20];
-      random.nextBytes(b);
-
-      // the key will last 2x ttl so far longer than the cookie. There are 5 tokens, to
-      // the key expires before
-      // being replaced, this is important in a clustered environment.
-      ExpiringSecretKey expiringSecretKey = new ExpiringSecretKey(b, HMAC_SHA1, System
-          .currentTimeMillis()
-          + (ttl * 2), serverId);
-      int nextToken = secretKeyId + 1;
-      if (nextToken == secretKeyRingBuffer.length) {
-        nextToken = 0;
-      }
-      secretKeyRingBuffer[nextToken] = expiringSecretKey;
-      LOG.debug("Added SecretKey {} at {} ", encodeField(expiringSecretKey.getSecretKey().getEncoded()), nextToken);
-      if ( debugCookies ) {
-        dumpSecretKeyRingBuffer(secretKeyRingBuffer);
+    return new SecureCookie(serverId, ring.activeId);
+  }
+
+  /**
+   * @return the current key ring, loading it from the local store the first time.
+   */
+  private KeyRing getKeyRing() {
+    KeyRing ring = keyRing;
+    if (ring == null) {
+      synchronized (this) {
+        if (keyRing == null) {
+          keyRing = loadLocalSecretKeys();
+        }
+        ring = keyRing;
       }
-      getServerKeyCache().put(getCacheKey(serverId, nextToken),
-          expiringSecretKey.getSecretKeyData());
-      secretKeyId = nextToken;
-      saveLocalSecretKeys();
     }
-    return new SecureCookie(serverId, secretKeyId);
+    return ring;
+  }
+
+  private boolean needsNewKey(KeyRing ring) {
+    return System.currentTimeMillis() > ring.nextUpdate
+        || hasExpired(ring.keys[ring.activeId]);
+  }
+
+  /**
+   * Add a new key to the ring and publish the new ring. Only one thread adds a key, the
+   * others see the new ring when they get the lock.
+   *
+   * @return the new key ring.
+   */
+  private synchronized KeyRing addKey() {
+    KeyRing ring = getKeyRing();
+    if (!needsNewKey(ring)) {
+      return ring;
+    }
+    // cycle so that during a typical ttl the tokens get completely refreshed.
+    long nextUpdate = System.currentTimeMillis() + ttl / 2;
+    byte[] b = new byte[20];
+    random.nextBytes(b);
+
+    // the key will last 2x ttl so far longer than the cookie. There are 5 tokens, to
+    // the key expires before
+    // being replaced, this is important in a clustered environment.
+    ExpiringSecretKey expiringSecretKey = new ExpiringSecretKey(b, HMAC_SHA1, System
+        .currentTimeMillis()
+        + (ttl * 2), serverId);
+    int nextToken = ring.activeId + 1;
+    if (nextToken == ring.keys.length) {
+      nextToken = 0;
+    }
+    ExpiringSecretKey[] keys = ring.keys.clone();
+    keys[nextToken] = expiringSecretKey;
+    LOG.debug("Added SecretKey {} at {} ", encodeField(expiringSecretKey.getSecretKey().getEncoded()), nextToken);
+    getServerKeyCache().put(getCacheKey(serverId, nextToken),
+        expiringSecretKey.getSecretKeyData());
+    ring = new KeyRing(keys, nextToken, nextUpdate);
+    keyRing = ring;
+    if ( debugCookies ) {
+      dumpSecretKeyRingBuffer(ring);
+    }
+    saveLocalSecretKeys(ring);
+    return ring;
   }
 
-  private void dumpSecretKeyRingBuffer(ExpiringSecretKey[] secretKeyRingBuffer) {
+  private void dumpSecretKeyRingBuffer(KeyRing ring) {
     StringBuilder sb  = new StringBuilder();
     int i = 0;
-    for ( ExpiringSecretKey e : secretKeyRingBuffer ) {
+    for ( ExpiringSecretKey e : ring.keys ) {
       if ( e == null ) {
         sb.append(i).append(", Expires in:").append(-1).append(", Key:").append("empty").append("\n");        
       } else {
@@ -347,7 +453,7 @@ public class TokenStore {
         sb.append(", Server:").append(e.getServerId()).append("\n");
       }
     }
-    LOG.info("Secret Key Ring Buffer, Active ID is {}\n{}",secretKeyId,sb.toString());
+    LOG.info("Secret Key Ring Buffer, Active ID is {}\n{}",ring.activeId,sb.toString());
   }
 
   /**
@@ -371,7 +477,7 @@ public class TokenStore {
    * Save all the secureKeys to file
    */
   @edu.umd.cs.findbugs.annotations.SuppressWarnings(value="RV_RETURN_VALUE_IGNORED_BAD_PRACTICE",justification="Could be injected from annother bundle")
-  private void saveLocalSecretKeys() {
+  private void saveLocalSecretKeys(KeyRing ring) {
     FileOutputStream fout = null;
     DataOutputStream keyOutputStream = null;
     try {
@@ -382,16 +488,17 @@ public class TokenStore {
       }
       fout = new FileOutputStream(tmpTokenFile);
       keyOutputStream = new DataOutputStream(fout);
-      keyOutputStream.writeInt(secretKeyId);
-      keyOutputStream.writeLong(nextUpdate);
-      for (int i = 0; i < secretKeyRingBuffer.length; i++) {
-        if (secretKeyRingBuffer[i] == null) {
+      keyOutputStream.writeInt(ring.activeId);
+      keyOutputStream.writeLong(ring.nextUpdate);
+      ExpiringSecretKey[] keys = ring.keys;
+      for (int i = 0; i < keys.length; i++) {
+        if (keys[i] == null) {
           keyOutputStream.writeInt(0);
         } else {
           keyOutputStream.writeInt(1);
-          keyOutputStream.writeLong(secretKeyRingBuffer[i].getExpires());
-          keyOutputStream.writeUTF(secretKeyRingBuffer[i].getServerId());
-          byte[] b = secretKeyRingBuffer[i].getSecretKey().getEncoded();
+          keyOutputStream.writeLong(keys[i].getExpires());
+          keyOutputStream.writeUTF(keys[i].getServerId());
+          byte[] b = keys[i].getSecretKey().getEncoded();
           keyOutputStream.writeInt(b.length);
           keyOutputStream.write(b);
         }
@@ -416,9 +523,10 @@ public class TokenStore {
   }
 
   /**
-   *
+   * @return the key ring saved in the local store, or an empty ring.
    */
-  private void loadLocalSecretKeys() {
+  private KeyRing loadLocalSecretKeys() {
+    KeyRing ring = null;
     FileInputStream fin = null;
     DataInputStream keyInputStream = null;
     try {
@@ -426,7 +534,7 @@ public class TokenStore {
       keyInputStream = new DataInputStream(fin);
       int newCurrentToken = keyInputStream.readInt();
       long newNextUpdate = keyInputStream.readLong();
-      ExpiringSecretKey[] newKeys = new ExpiringSecretKey[5];
+      ExpiringSecretKey[] newKeys = new ExpiringSecretKey[KEY_RING_SIZE];
       for (int i = 0; i < newKeys.length; i++) {
         int isNull = keyInputStream.readInt();
         if (isNull == 1) {
@@ -446,10 +554,8 @@ public class TokenStore {
         }
       }
       keyInputStream.close();
-      nextUpdate = newNextUpdate;
-      secretKeyId = newCurrentToken;
-      secretKeyRingBuffer = newKeys;
-      
+      ring = new KeyRing(newKeys, newCurrentToken, newNextUpdate);
+
     } catch (IOException e) {
       LOG.error("Failed to load cookie keys " + e.getMessage());
     } finally {
@@ -462,14 +568,13 @@ public class TokenStore {
       } catch (Exception e) {
       }
     }
-    if (secretKeyRingBuffer == null) {
-      secretKeyRingBuffer = new ExpiringSecretKey[5];
-      nextUpdate = System.currentTimeMillis();
-      secretKeyId = 0;
+    if (ring == null) {
+      ring = new KeyRing(new ExpiringSecretKey[KEY_RING_SIZE], 0, System.currentTimeMillis());
     }
     if ( debugCookies ) {
-      dumpSecretKeyRingBuffer(secretKeyRingBuffer);
+      dumpSecretKeyRingBuffer(ring);
     }
+    return ring;
   }
 
   /**
@@ -494,9 +599,10 @@ public class TokenStore {
    */
   private ExpiringSecretKey getSecretKey(String serverId, int keyNumber) {
     LOG.debug("Looking key {} in {} ", serverId, keyNumber);
-    if ( secretKeyRingBuffer[keyNumber] != null ) {
-      if ( serverId.equals(secretKeyRingBuffer[keyNumber].getServerId())) {
-        return secretKeyRingBuffer[keyNumber];
+    ExpiringSecretKey[] keys = getKeyRing().keys;
+    if ( keys[keyNumber] != null ) {
+      if ( serverId.equals(keys[keyNumber].getServerId())) {
+        return keys[keyNumber];
       }
     }
     String cacheKey = getCacheKey(serverId, keyNumber);
@@ -504,16 +610,45 @@ public class TokenStore {
 
     LOG.debug("Looking for off server key {} in {} ", cacheKey, keyCache);
     // load tokens for the server up
-    if (keyCache.containsKey(cacheKey)) {
-      ExpiringSecretKeyData cachedServerKeyData = keyCache.get(cacheKey);
-      if (cachedServerKeyData.getExpires() < System.currentTimeMillis()) {
-        return new ExpiringSecretKey(cachedServerKeyData);
+    ExpiringSecretKeyData cachedServerKeyData = keyCache.get(cacheKey);
+    if (cachedServerKeyData != null
+        && cachedServerKeyData.getExpires() > System.currentTimeMillis()) {
+      // reuse the key, and so its Macs, until the other server replaces it.
+      ExpiringSecretKey remoteKey = remoteKeys.get(cacheKey);
+      if (remoteKey == null
+          || remoteKey.getExpires() != cachedServerKeyData.getExpires()
+          || !Arrays.equals(remoteKey.getSecretKeyData().getEncoded(),
+              cachedServerKeyData.getEncoded())) {
+        remoteKey = new ExpiringSecretKey(cachedServerKeyData);
+        remoteKeys.put(cacheKey, remoteKey);
       }
+      return remoteKey;
     }
     // none found.
     return null;
   }
 
+  /**
+   * Remember a verified cookie until it expires, so the next request with the same cookie
+   * does not have to verify it again. When the cache is full expired cookies are dropped,
+   * and if that is not enough the cache is emptied.
+   */
+  private void cacheVerified(String value, String userId, long expires) {
+    if (verifiedCookies.size() >= MAX_VERIFIED_COOKIES) {
+      long now = System.currentTimeMillis();
+      for (Iterator<Entry<String, VerifiedCookie>> i = verifiedCookies.entrySet()
+          .iterator(); i.hasNext();) {
+        if (i.next().getValue().expires <= now) {
+          i.remove();
+        }
+      }
+      if (verifiedCookies.size() >= MAX_VERIFIED_COOKIES) {
+        verifiedCookies.clear();
+      }
+    }
+    verifiedCookies.put(value, new VerifiedCookie(userId, expires));
+  }
+
   /**
    * @return
    */
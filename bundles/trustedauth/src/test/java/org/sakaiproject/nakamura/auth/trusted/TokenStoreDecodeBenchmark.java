@@ -0,0 +1,121 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.auth.trusted;
+
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.auth.trusted.TokenStore.SecureCookieException;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the throughput of {@link TokenStore.SecureCookie#decode(String)} with 1 to 64
+ * threads. The repeat run decodes the same cookie on every call, as a logged in user does
+ * on each request, and so mostly measures the verified cookie cache. The distinct run
+ * cycles through more cookies than the cache holds, and so mostly measures signature
+ * verification. This is not run as part of the build, run it with
+ *
+ * <pre>
+ * java -cp target/classes:target/test-classes:&lt;dependencies&gt; \
+ *   org.sakaiproject.nakamura.auth.trusted.TokenStoreDecodeBenchmark [seconds]
+ * </pre>
+ */
+public class TokenStoreDecodeBenchmark {
+
+  private static final int[] THREADS = { 1, 2, 4, 8, 16, 32, 64 };
+  private static final int DISTINCT_COOKIES = 10000;
+
+  public static void main(String[] args) throws Exception {
+    long seconds = args.length > 0 ? Long.parseLong(args[0]) : 5L;
+    File tokenFile = File.createTempFile("cookie-tokens", ".bin");
+    tokenFile.deleteOnExit();
+    TokenStore tokenStore = new TokenStore();
+    tokenStore.doInit(new CacheManagerService() {
+      private Cache<Object> cache = new LocalCache<Object>();
+
+      @SuppressWarnings("unchecked")
+      public <T> Cache<T> getCache(String name, CacheScope scope) {
+        return (Cache<T>) cache;
+      }
+
+      public void unbind(CacheScope scope) {
+      }
+    }, tokenFile.getAbsolutePath(), "benchmark-server", 3600000L);
+
+    long expires = System.currentTimeMillis() + 3600000L;
+    String[] cookies = new String[DISTINCT_COOKIES];
+    for (int i = 0; i < cookies.length; i++) {
+      cookies[i] = tokenStore.getActiveToken().encode(expires, "user" + i);
+    }
+
+    System.out.println("threads\trepeat ops/s\tdistinct ops/s");
+    for (int threads : THREADS) {
+      // warm up before each measurement.
+      run(tokenStore, new String[] { cookies[0] }, threads, 1L);
+      double repeat = run(tokenStore, new String[] { cookies[0] }, threads, seconds);
+      run(tokenStore, cookies, threads, 1L);
+      double distinct = run(tokenStore, cookies, threads, seconds);
+      System.out.println(threads + "\t" + Math.round(repeat) + "\t" + Math.round(distinct));
+    }
+  }
+
+  /**
+   * @return the decodes per second over all threads.
+   */
+  private static double run(final TokenStore tokenStore, final String[] cookies,
+      int threads, long seconds) throws InterruptedException {
+    final AtomicLong decoded = new AtomicLong();
+    final CountDownLatch start = new CountDownLatch(1);
+    final long end = System.nanoTime() + seconds * 1000000000L;
+    Thread[] workers = new Thread[threads];
+    for (int t = 0; t < threads; t++) {
+      final int offset = t * 7919;
+      workers[t] = new Thread(new Runnable() {
+        public void run() {
+          long count = 0;
+          int i = offset;
+          try {
+            start.await();
+            while (System.nanoTime() < end) {
+              for (int j = 0; j < 100; j++) {
+                tokenStore.getSecureCookie().decode(cookies[i++ % cookies.length]);
+              }
+              count += 100;
+            }
+          } catch (SecureCookieException e) {
+            throw new IllegalStateException(e);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          decoded.addAndGet(count);
+        }
+      });
+      workers[t].start();
+    }
+    long started = System.nanoTime();
+    start.countDown();
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    return decoded.get() * 1000000000.0 / (System.nanoTime() - started);
+  }
+
+}
@@ -0,0 +1,109 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.auth.trusted;
+
+import org.easymock.EasyMock;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.auth.trusted.TokenStore.SecureCookieException;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ *
+ */
+public class TokenStoreTest {
+
+  private CacheManagerService cacheManagerService;
+  private File tokenDir;
+
+  @Before
+  public void before() throws IOException {
+    Cache<Object> cache = new LocalCache<Object>();
+    cacheManagerService = EasyMock.createMock(CacheManagerService.class);
+    EasyMock.expect(
+        cacheManagerService.getCache(TokenStore.class.getName(),
+            CacheScope.CLUSTERREPLICATED)).andReturn(cache).anyTimes();
+    EasyMock.replay(cacheManagerService);
+    tokenDir = File.createTempFile("tokenstore", "");
+    tokenDir.delete();
+  }
+
+  @After
+  public void after() {
+    EasyMock.verify(cacheManagerService);
+    File[] files = tokenDir.listFiles();
+    if (files != null) {
+      for (File f : files) {
+        f.delete();
+      }
+    }
+    tokenDir.delete();
+  }
+
+  @Test
+  public void testDecodeRepeated() throws Exception {
+    TokenStore tokenStore = createTokenStore("serverA");
+    String cookie = tokenStore.getActiveToken().encode(
+        System.currentTimeMillis() + 60000L, "ieb");
+    for (int i = 0; i < 3; i++) {
+      Assert.assertEquals("ieb", tokenStore.getSecureCookie().decode(cookie));
+    }
+  }
+
+  @Test
+  public void testDecodeTampered() throws Exception {
+    TokenStore tokenStore = createTokenStore("serverA");
+    long expires = System.currentTimeMillis() + 60000L;
+    String cookie = tokenStore.getActiveToken().encode(expires, "ieb");
+    Assert.assertEquals("ieb", tokenStore.getSecureCookie().decode(cookie));
+    String other = tokenStore.getActiveToken().encode(expires, "other");
+    // the signature of one cookie with the payload of another.
+    String forged = cookie.substring(0, cookie.indexOf('@'))
+        + other.substring(other.indexOf('@'));
+    try {
+      tokenStore.getSecureCookie().decode(forged);
+      Assert.fail("Forged cookie was accepted " + forged);
+    } catch (SecureCookieException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testDecodeFromOtherServer() throws Exception {
+    TokenStore serverA = createTokenStore("serverA");
+    TokenStore serverB = createTokenStore("serverB");
+    String cookie = serverB.getActiveToken().encode(System.currentTimeMillis() + 60000L,
+        "ieb");
+    Assert.assertEquals("ieb", serverA.getSecureCookie().decode(cookie));
+    Assert.assertEquals("ieb", serverA.getSecureCookie().decode(cookie));
+  }
+
+  private TokenStore createTokenStore(String serverId) throws Exception {
+    TokenStore tokenStore = new TokenStore();
+    tokenStore.doInit(cacheManagerService, new File(tokenDir, serverId + ".bin")
+        .getAbsolutePath(), serverId, 60000L);
+    return tokenStore;
+  }
+}